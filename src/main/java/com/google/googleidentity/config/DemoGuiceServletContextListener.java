@@ -17,6 +17,8 @@
 package com.google.googleidentity.config;
 
 import com.google.googleidentity.mysql.CloudSqlModule;
+import com.google.googleidentity.mysql.EmbeddedDatabaseModule;
+import com.google.googleidentity.mysql.JdbcScheduler;
 import com.google.googleidentity.oauth2.client.seed.InMemoryClientSeedModule;
 import com.google.googleidentity.oauth2.client.seed.JdbcClientSeedModule;
 import com.google.googleidentity.oauth2.config.OAuth2ServerModule;
@@ -24,7 +26,11 @@ import com.google.googleidentity.user.seed.JdbcUserSeedModule;
 import com.google.googleidentity.user.seed.InMemoryUserSeedModule;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
+import com.google.inject.Key;
 import com.google.inject.servlet.GuiceServletContextListener;
+import com.zaxxer.hikari.HikariDataSource;
+import javax.servlet.ServletContextEvent;
+import javax.sql.DataSource;
 
 /** Start GuiceServlet, Create an Injector for Guice in OAuth2Module{@link RequestMappingModule} */
 public final class DemoGuiceServletContextListener extends GuiceServletContextListener {
@@ -36,7 +42,9 @@ public final class DemoGuiceServletContextListener extends GuiceServletContextLi
           new OAuth2ServerModule(),
           new JdbcUserSeedModule(),
           new JdbcClientSeedModule(),
-          new CloudSqlModule());
+          ("true").equals(System.getenv("EMBEDDED_DATABASE"))
+              ? new EmbeddedDatabaseModule()
+              : new CloudSqlModule());
     } else {
       return Guice.createInjector(
           new RequestMappingModule(),
@@ -45,4 +53,24 @@ public final class DemoGuiceServletContextListener extends GuiceServletContextLi
           new InMemoryClientSeedModule());
     }
   }
+
+  /** Stop the tasks of the Jdbc stores, then close the connection pool they use. */
+  @Override
+  public void contextDestroyed(ServletContextEvent servletContextEvent) {
+    Injector injector =
+        (Injector) servletContextEvent.getServletContext().getAttribute(Injector.class.getName());
+    super.contextDestroyed(servletContextEvent);
+    if (injector == null) {
+      return;
+    }
+    if (injector.getExistingBinding(Key.get(JdbcScheduler.class)) != null) {
+      injector.getInstance(JdbcScheduler.class).close();
+    }
+    if (injector.getExistingBinding(Key.get(DataSource.class)) != null) {
+      DataSource pool = injector.getInstance(DataSource.class);
+      if (pool instanceof HikariDataSource) {
+        ((HikariDataSource) pool).close();
+      }
+    }
+  }
 }
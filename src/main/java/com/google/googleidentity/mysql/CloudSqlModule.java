@@ -57,6 +57,12 @@ public class CloudSqlModule extends AbstractModule {
     config.addDataSourceProperty("socketFactory", "com.google.cloud.sql.mysql.SocketFactory");
     config.addDataSourceProperty("cloudSqlInstance", CLOUD_SQL_CONNECTION_NAME);
 
+    // Prepare each statement of JdbcExecutor once per connection on the server and keep it.
+    config.addDataSourceProperty("useServerPrepStmts", "true");
+    config.addDataSourceProperty("cachePrepStmts", "true");
+    config.addDataSourceProperty("prepStmtCacheSize", "250");
+    config.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
+
     config.setMaximumPoolSize(20);
 
     config.setMinimumIdle(20);
@@ -69,84 +75,24 @@ public class CloudSqlModule extends AbstractModule {
 
     DataSource pool = new HikariDataSource(config);
 
-    if (("true").equals(System.getenv("CLEAR_TABLES"))) {
-      try {
+    try {
+      if (("true").equals(System.getenv("CLEAR_TABLES"))) {
         dropTables(pool);
-        createTables(pool);
-      } catch (SQLException exception) {
-        throw new OAuth2ServerException("Init database, error", exception);
       }
+      SchemaMigrations.migrate(pool);
+    } catch (SQLException exception) {
+      throw new OAuth2ServerException("Init database, error", exception);
     }
     return pool;
   }
 
   public static void dropTables(DataSource pool) throws SQLException {
     Connection conn = pool.getConnection();
-    String stmt = "DROP TABLE IF EXISTS user, client, code, access_token, refresh_token;";
-    PreparedStatement statement = conn.prepareStatement(stmt);
-    statement.execute();
-    statement.close();
-    conn.close();
-  }
-
-  public static void createTables(DataSource pool) throws SQLException {
-    Connection conn = pool.getConnection();
-
     String stmt =
-        "CREATE TABLE user "
-            + "(username VARCHAR(255) NOT NULL, "
-            + "password VARCHAR(255), "
-            + "email VARCHAR(255), "
-            + "google_account_id VARCHAR(255), "
-            + "PRIMARY KEY (username));";
+        "DROP TABLE IF EXISTS user, client, code, access_token, refresh_token, "
+            + "hashed_access_token, hashed_refresh_token, scope, schema_version;";
     PreparedStatement statement = conn.prepareStatement(stmt);
     statement.execute();
-
-    stmt =
-        "CREATE TABLE client "
-            + "(client_id VARCHAR(255) NOT NULL, "
-            + "secret VARCHAR(2047), "
-            + "grant_types VARCHAR(255), "
-            + "is_scoped BOOLEAN,"
-            + "scopes VARCHAR(2047), "
-            + "redirect_uris VARCHAR(2047),"
-            + "risc_uri VARCHAR(255),"
-            + "risc_aud VARCHAR(255),"
-            + "PRIMARY KEY (client_id));";
-    statement = conn.prepareStatement(stmt);
-    statement.execute();
-
-    stmt =
-        "CREATE TABLE code "
-            + "(code VARCHAR(255) NOT NULL, "
-            + "request VARBINARY(2047), "
-            + "PRIMARY KEY (code));";
-    statement = conn.prepareStatement(stmt);
-    statement.execute();
-
-    stmt =
-        "CREATE TABLE access_token "
-            + "(access_token VARCHAR(255) NOT NULL, "
-            + "client_id VARCHAR(255) NOT NULL, "
-            + "username VARCHAR(255) NOT NULL, "
-            + "is_scoped BOOLEAN,"
-            + "scopes VARCHAR(2047), "
-            + "expired_time BIGINT, "
-            + "refresh_token VARCHAR(255), "
-            + "PRIMARY KEY (access_token));";
-    statement = conn.prepareStatement(stmt);
-    statement.execute();
-
-    stmt =
-        "CREATE TABLE refresh_token "
-            + "(refresh_token VARCHAR(255) NOT NULL, "
-            + "client_id VARCHAR(255) NOT NULL, "
-            + "username VARCHAR(255) NOT NULL, "
-            + "is_scoped BOOLEAN,"
-            + "scopes VARCHAR(2047), "
-            + "PRIMARY KEY (refresh_token));";
-    statement = conn.prepareStatement(stmt);
-    statement.execute();
     statement.close();
     conn.close();
   }
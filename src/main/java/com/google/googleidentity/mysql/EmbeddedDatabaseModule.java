@@ -0,0 +1,83 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.mysql;
+
+import com.google.common.base.Strings;
+import com.google.googleidentity.oauth2.exception.OAuth2ServerException;
+import com.google.inject.AbstractModule;
+import com.google.inject.Provides;
+import com.google.inject.Singleton;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import java.sql.SQLException;
+import javax.sql.DataSource;
+
+/**
+ * Replaces {@link CloudSqlModule} with an embedded H2 database in MySQL mode, so the Jdbc stores
+ * can run and be benchmarked without Cloud SQL. The database is in memory unless
+ * EMBEDDED_DATABASE_URL names another H2 database, e.g. "jdbc:h2:file:/tmp/demo", and is brought
+ * to the latest schema by {@link SchemaMigrations}.
+ *
+ * <p>H2 is only a test dependency, run with the embedded-database Maven profile to have it at run
+ * time.
+ */
+public class EmbeddedDatabaseModule extends AbstractModule {
+
+  /** Settings which make H2 accept the MySQL statements of the Jdbc stores. */
+  private static final String MYSQL_MODE =
+      ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;NON_KEYWORDS=USER;DB_CLOSE_DELAY=-1";
+
+  private final String url;
+
+  public EmbeddedDatabaseModule() {
+    this(
+        Strings.isNullOrEmpty(System.getenv("EMBEDDED_DATABASE_URL"))
+            ? "jdbc:h2:mem:oauth2demo"
+            : System.getenv("EMBEDDED_DATABASE_URL"));
+  }
+
+  /** @param url JDBC URL of an H2 database, without settings */
+  public EmbeddedDatabaseModule(String url) {
+    this.url = url;
+  }
+
+  /** @return the JDBC URL of the H2 database with the settings for MySQL mode */
+  public static String mysqlModeUrl(String url) {
+    return url + MYSQL_MODE;
+  }
+
+  @Override
+  public void configure() {}
+
+  @Provides
+  @Singleton
+  public DataSource createConnectionPool() {
+    HikariConfig config = new HikariConfig();
+    config.setJdbcUrl(mysqlModeUrl(url));
+
+    config.setMaximumPoolSize(10);
+
+    DataSource pool = new HikariDataSource(config);
+
+    try {
+      SchemaMigrations.migrate(pool);
+    } catch (SQLException exception) {
+      throw new OAuth2ServerException("Init database, error", exception);
+    }
+    return pool;
+  }
+}
@@ -0,0 +1,277 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.mysql;
+
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.googleidentity.oauth2.exception.OAuth2ServerException;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sql.DataSource;
+
+/**
+ * Runs the SQL statements of the Jdbc stores. A statement is run on a connection of its own or in
+ * a {@link Transaction}, connections, statements and result sets are always closed and a {@link
+ * SQLException} is thrown as an {@link OAuth2ServerException}, rolling back the transaction.
+ *
+ * <p>Every statement has a name, and {@link StatementStatistics} are kept per name. An injected
+ * executor logs them, together with the connections of the pool, every five minutes. A transaction
+ * prepares each SQL string once, repeated statements reuse it, and the prepared statement cache of
+ * the driver, see {@link CloudSqlModule}, lets separate transactions share it.
+ */
+@Singleton
+public final class JdbcExecutor {
+
+  private static final Logger log = Logger.getLogger("JdbcExecutor");
+
+  private static final Duration REPORT_INTERVAL = Duration.ofMinutes(5);
+
+  /** Sets the parameters of a statement. */
+  public interface Binder {
+    void bind(PreparedStatement statement) throws SQLException;
+  }
+
+  /** Reads the current row of a result. */
+  public interface RowMapper<T> {
+    T map(ResultSet result) throws SQLException;
+  }
+
+  /** Statements to run in one transaction. */
+  public interface Work<T> {
+    T run(Transaction transaction) throws SQLException;
+  }
+
+  private final DataSource dataSource;
+
+  private final ConcurrentMap<String, StatementStatistics> statistics = new ConcurrentHashMap<>();
+
+  public JdbcExecutor(DataSource dataSource) {
+    this.dataSource = dataSource;
+  }
+
+  /** Executor which logs its statistics every five minutes on the scheduler. */
+  @Inject
+  public JdbcExecutor(DataSource dataSource, JdbcScheduler scheduler) {
+    this(dataSource);
+    scheduler.scheduleWithFixedDelay(this::logStatistics, REPORT_INTERVAL);
+  }
+
+  /** @return all rows of the query mapped by mapper */
+  public <T> List<T> query(String name, String sql, Binder binder, RowMapper<T> mapper) {
+    return run(false, transaction -> transaction.query(name, sql, binder, mapper));
+  }
+
+  /** @return the first row of the query mapped by mapper, empty if there is none */
+  public <T> Optional<T> queryFirst(String name, String sql, Binder binder, RowMapper<T> mapper) {
+    return run(false, transaction -> transaction.queryFirst(name, sql, binder, mapper));
+  }
+
+  /** @return the number of changed rows */
+  public int update(String name, String sql, Binder binder) {
+    return run(false, transaction -> transaction.update(name, sql, binder));
+  }
+
+  /**
+   * Run the work in one transaction, which is committed if the work returns and rolled back if it
+   * throws.
+   */
+  public <T> T inTransaction(Work<T> work) {
+    return run(true, work);
+  }
+
+  /** @return the statistics of every statement run so far, by statement name */
+  public Map<String, StatementStatistics> getStatistics() {
+    return ImmutableSortedMap.copyOf(statistics);
+  }
+
+  private void logStatistics() {
+    logPool(dataSource);
+    for (Map.Entry<String, StatementStatistics> entry : getStatistics().entrySet()) {
+      log.info(entry.getKey() + ": " + entry.getValue());
+    }
+  }
+
+  private static void logPool(DataSource pool) {
+    if (pool instanceof HikariDataSource) {
+      HikariPoolMXBean bean = ((HikariDataSource) pool).getHikariPoolMXBean();
+      if (bean != null) {
+        log.info(
+            "pool: active="
+                + bean.getActiveConnections()
+                + " idle="
+                + bean.getIdleConnections()
+                + " waiting="
+                + bean.getThreadsAwaitingConnection());
+      }
+    }
+  }
+
+  private StatementStatistics statisticsOf(String name) {
+    return statistics.computeIfAbsent(name, key -> new StatementStatistics());
+  }
+
+  private <T> T run(boolean transactional, Work<T> work) {
+    Connection conn;
+    try {
+      conn = dataSource.getConnection();
+    } catch (SQLException exception) {
+      throw new OAuth2ServerException(exception);
+    }
+    Transaction transaction = new Transaction(conn);
+    Exception failure = null;
+    try {
+      if (transactional) {
+        conn.setAutoCommit(false);
+      }
+      T result = work.run(transaction);
+      if (transactional) {
+        conn.commit();
+      }
+      return result;
+    } catch (SQLException | RuntimeException exception) {
+      failure = exception;
+      if (transactional) {
+        try {
+          conn.rollback();
+        } catch (SQLException exception1) {
+          exception.addSuppressed(exception1);
+        }
+      }
+      if (exception instanceof RuntimeException) {
+        throw (RuntimeException) exception;
+      }
+      throw new OAuth2ServerException(exception);
+    } finally {
+      transaction.close(failure);
+    }
+  }
+
+  /**
+   * Statements on one connection. Only valid inside {@link #inTransaction} or the single statement
+   * methods, the statements are closed after.
+   */
+  public final class Transaction {
+
+    private final Connection conn;
+
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+    private Transaction(Connection conn) {
+      this.conn = conn;
+    }
+
+    private PreparedStatement prepare(String sql, Binder binder) throws SQLException {
+      PreparedStatement statement = statements.get(sql);
+      if (statement == null) {
+        statement = conn.prepareStatement(sql);
+        statements.put(sql, statement);
+      } else {
+        statement.clearParameters();
+      }
+      binder.bind(statement);
+      return statement;
+    }
+
+    /** @return all rows of the query mapped by mapper */
+    public <T> List<T> query(String name, String sql, Binder binder, RowMapper<T> mapper)
+        throws SQLException {
+      return read(name, sql, binder, mapper, Integer.MAX_VALUE);
+    }
+
+    /** @return the first row of the query mapped by mapper, empty if there is none */
+    public <T> Optional<T> queryFirst(String name, String sql, Binder binder, RowMapper<T> mapper)
+        throws SQLException {
+      List<T> rows = read(name, sql, binder, mapper, 1);
+      return rows.isEmpty() ? Optional.empty() : Optional.ofNullable(rows.get(0));
+    }
+
+    /** @return the number of changed rows */
+    public int update(String name, String sql, Binder binder) throws SQLException {
+      long start = System.nanoTime();
+      try {
+        int count = prepare(sql, binder).executeUpdate();
+        statisticsOf(name).record(System.nanoTime() - start, count);
+        return count;
+      } catch (SQLException | RuntimeException exception) {
+        statisticsOf(name).recordError();
+        throw exception;
+      }
+    }
+
+    private <T> List<T> read(
+        String name, String sql, Binder binder, RowMapper<T> mapper, int maxRows)
+        throws SQLException {
+      long start = System.nanoTime();
+      try {
+        List<T> rows = new ArrayList<>();
+        try (ResultSet result = prepare(sql, binder).executeQuery()) {
+          while (rows.size() < maxRows && result.next()) {
+            rows.add(mapper.map(result));
+          }
+        }
+        statisticsOf(name).record(System.nanoTime() - start, rows.size());
+        return rows;
+      } catch (SQLException | RuntimeException exception) {
+        statisticsOf(name).recordError();
+        throw exception;
+      }
+    }
+
+    /**
+     * Close all statements and then the connection, whatever fails. A failure to close is added as
+     * suppressed to the failure of the work if there is one and logged otherwise, it never hides
+     * the outcome of the work, e.g. a committed transaction.
+     */
+    private void close(Exception failure) {
+      for (PreparedStatement statement : statements.values()) {
+        try {
+          statement.close();
+        } catch (SQLException exception) {
+          closeFailed(failure, exception);
+        }
+      }
+      try {
+        conn.close();
+      } catch (SQLException exception) {
+        closeFailed(failure, exception);
+      }
+    }
+  }
+
+  private static void closeFailed(Exception failure, SQLException exception) {
+    if (failure != null) {
+      failure.addSuppressed(exception);
+    } else {
+      log.log(Level.WARNING, "Error when closing a statement or connection", exception);
+    }
+  }
+}
@@ -0,0 +1,52 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.mysql;
+
+import com.google.inject.Singleton;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One daemon thread for the periodic tasks of the Jdbc stores, such as the statistics report of
+ * {@link JdbcExecutor} and the purge of expired codes. Injected as a singleton, so the stores share
+ * it, and stopped by {@link #close} when the DataSource they use goes away.
+ */
+@Singleton
+public final class JdbcScheduler {
+
+  private final ScheduledExecutorService service =
+      Executors.newSingleThreadScheduledExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "JdbcScheduler");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  /** Run task every period, the first time one period from now. */
+  public ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, Duration period) {
+    long seconds = period.getSeconds();
+    return service.scheduleWithFixedDelay(task, seconds, seconds, TimeUnit.SECONDS);
+  }
+
+  /** Stop the tasks, a running one is interrupted. */
+  public void close() {
+    service.shutdownNow();
+  }
+}
@@ -0,0 +1,387 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.mysql;
+
+import com.google.common.collect.ImmutableList;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.logging.Logger;
+import javax.sql.DataSource;
+
+/**
+ * Forward only schema migrations of the demo database. The version of the schema is recorded in
+ * the schema_version table, one row per applied migration, and {@link #migrate} applies the
+ * migrations after it in order, so the schema can change without dropping the tables.
+ *
+ * <p>MySQL commits every DDL statement on its own, so a migration can not be rolled back. Instead
+ * each step checks whether its change is already there, and a migration interrupted by a crash or
+ * run by two instances starting at once is simply applied again.
+ */
+public final class SchemaMigrations {
+
+  private static final Logger log = Logger.getLogger("SchemaMigrations");
+
+  /** Changes the schema of the connection, must be safe to run again. */
+  private interface Step {
+    void apply(Connection conn) throws SQLException;
+  }
+
+  private static final class Migration {
+    private final int version;
+    private final String description;
+    private final Step step;
+
+    Migration(int version, String description, Step step) {
+      this.version = version;
+      this.description = description;
+      this.step = step;
+    }
+  }
+
+  /** All migrations by version, append new ones at the end and never change applied ones. */
+  private static final ImmutableList<Migration> MIGRATIONS =
+      ImmutableList.of(
+          new Migration(1, "Create tables", SchemaMigrations::createTables),
+          new Migration(
+              2, "Expire refresh tokens, index expired times", SchemaMigrations::addExpiredTimes),
+          new Migration(3, "Index token and user lookups", SchemaMigrations::addLookupIndexes),
+          new Migration(
+              4, "Create token tables keyed by digest", SchemaMigrations::createDigestTables),
+          new Migration(5, "Store scopes as bitmasks", SchemaMigrations::addScopeMasks),
+          new Migration(6, "Expire authorization codes", SchemaMigrations::addCodeExpiredTime),
+          new Migration(
+              7, "Unique user emails and Google account IDs", SchemaMigrations::uniqueUserIds),
+          new Migration(
+              8, "Keep RISC hashes of tokens keyed by digest", SchemaMigrations::addRiscHashes));
+
+  private SchemaMigrations() {}
+
+  /** @return the version the latest migration brings the schema to */
+  public static int latestVersion() {
+    return MIGRATIONS.get(MIGRATIONS.size() - 1).version;
+  }
+
+  /**
+   * Apply all migrations after the current version of the database.
+   *
+   * @return the version of the schema now
+   */
+  public static int migrate(DataSource dataSource) throws SQLException {
+    try (Connection conn = dataSource.getConnection()) {
+      execute(
+          conn,
+          "CREATE TABLE IF NOT EXISTS schema_version "
+              + "(version INT NOT NULL, "
+              + "description VARCHAR(255), "
+              + "applied_time BIGINT, "
+              + "PRIMARY KEY (version));");
+      int version = currentVersion(conn);
+      for (Migration migration : MIGRATIONS) {
+        if (migration.version <= version) {
+          continue;
+        }
+        log.info("Migrate schema to version " + migration.version + ": " + migration.description);
+        migration.step.apply(conn);
+        recordVersion(conn, migration);
+        version = migration.version;
+      }
+      return version;
+    }
+  }
+
+  /** @return the version of the schema, 0 if no migration was applied */
+  public static int currentVersion(Connection conn) throws SQLException {
+    try (PreparedStatement statement =
+            conn.prepareStatement("SELECT MAX(version) FROM schema_version;");
+        ResultSet result = statement.executeQuery()) {
+      return result.next() ? result.getInt(1) : 0;
+    }
+  }
+
+  private static void recordVersion(Connection conn, Migration migration) throws SQLException {
+    try (PreparedStatement statement =
+        conn.prepareStatement("INSERT INTO schema_version VALUES (?, ?, ?);")) {
+      statement.setInt(1, migration.version);
+      statement.setString(2, migration.description);
+      statement.setLong(3, Instant.now().getEpochSecond());
+      statement.executeUpdate();
+    } catch (SQLIntegrityConstraintViolationException exception) {
+      // Another instance applied the same migration at the same time.
+    }
+  }
+
+  private static void createTables(Connection conn) throws SQLException {
+    execute(
+        conn,
+        "CREATE TABLE IF NOT EXISTS user "
+            + "(username VARCHAR(255) NOT NULL, "
+            + "password VARCHAR(255), "
+            + "email VARCHAR(255), "
+            + "google_account_id VARCHAR(255), "
+            + "PRIMARY KEY (username));");
+    execute(
+        conn,
+        "CREATE TABLE IF NOT EXISTS client "
+            + "(client_id VARCHAR(255) NOT NULL, "
+            + "secret VARCHAR(2047), "
+            + "grant_types VARCHAR(255), "
+            + "is_scoped BOOLEAN,"
+            + "scopes VARCHAR(2047), "
+            + "redirect_uris VARCHAR(2047),"
+            + "risc_uri VARCHAR(255),"
+            + "risc_aud VARCHAR(255),"
+            + "PRIMARY KEY (client_id));");
+    execute(
+        conn,
+        "CREATE TABLE IF NOT EXISTS code "
+            + "(code VARCHAR(255) NOT NULL, "
+            + "request VARBINARY(2047), "
+            + "PRIMARY KEY (code));");
+    execute(
+        conn,
+        "CREATE TABLE IF NOT EXISTS access_token "
+            + "(access_token VARCHAR(255) NOT NULL, "
+            + "client_id VARCHAR(255) NOT NULL, "
+            + "username VARCHAR(255) NOT NULL, "
+            + "is_scoped BOOLEAN,"
+            + "scopes VARCHAR(2047), "
+            + "expired_time BIGINT, "
+            + "refresh_token VARCHAR(255), "
+            + "PRIMARY KEY (access_token));");
+    execute(
+        conn,
+        "CREATE TABLE IF NOT EXISTS refresh_token "
+            + "(refresh_token VARCHAR(255) NOT NULL, "
+            + "client_id VARCHAR(255) NOT NULL, "
+            + "username VARCHAR(255) NOT NULL, "
+            + "is_scoped BOOLEAN,"
+            + "scopes VARCHAR(2047), "
+            + "PRIMARY KEY (refresh_token));");
+  }
+
+  /** Expired tokens are removed in expired time order, see JdbcTokenReaper. */
+  private static void addExpiredTimes(Connection conn) throws SQLException {
+    if (!hasColumn(conn, "refresh_token", "expired_time")) {
+      execute(conn, "ALTER TABLE refresh_token ADD COLUMN expired_time BIGINT;");
+    }
+    createIndex(conn, "access_token", "access_token_expired_time", "expired_time");
+    createIndex(conn, "refresh_token", "refresh_token_expired_time", "expired_time");
+  }
+
+  /** Indexes for the queries which do not filter on a primary key. */
+  private static void addLookupIndexes(Connection conn) throws SQLException {
+    // Listing and revoking the tokens of a user and client, and the clients of a user.
+    createIndex(conn, "access_token", "access_token_user_client", "username, client_id");
+    createIndex(conn, "refresh_token", "refresh_token_user_client", "username, client_id");
+    // Revoking the access tokens of a refresh token.
+    createIndex(conn, "access_token", "access_token_refresh_token", "refresh_token");
+    // Looking up the user of a Google account.
+    createIndex(conn, "user", "user_email", "email");
+    createIndex(conn, "user", "user_google_account_id", "google_account_id");
+  }
+
+  /** Tokens keyed by their SHA-256 digest, see JdbcTokenLayout. */
+  private static void createDigestTables(Connection conn) throws SQLException {
+    execute(
+        conn,
+        "CREATE TABLE IF NOT EXISTS hashed_access_token "
+            + "(digest BINARY(32) NOT NULL, "
+            + "client_id VARCHAR(255) NOT NULL, "
+            + "username VARCHAR(255) NOT NULL, "
+            + "is_scoped BOOLEAN,"
+            + "scopes VARCHAR(2047), "
+            + "expired_time BIGINT, "
+            + "refresh_digest BINARY(32), "
+            + "PRIMARY KEY (digest));");
+    execute(
+        conn,
+        "CREATE TABLE IF NOT EXISTS hashed_refresh_token "
+            + "(digest BINARY(32) NOT NULL, "
+            + "client_id VARCHAR(255) NOT NULL, "
+            + "username VARCHAR(255) NOT NULL, "
+            + "is_scoped BOOLEAN,"
+            + "scopes VARCHAR(2047), "
+            + "expired_time BIGINT, "
+            + "PRIMARY KEY (digest));");
+    createIndex(
+        conn, "hashed_access_token", "hashed_access_token_user_client", "username, client_id");
+    createIndex(
+        conn, "hashed_refresh_token", "hashed_refresh_token_user_client", "username, client_id");
+    createIndex(
+        conn, "hashed_access_token", "hashed_access_token_refresh_digest", "refresh_digest");
+    createIndex(conn, "hashed_access_token", "hashed_access_token_expired_time", "expired_time");
+    createIndex(
+        conn, "hashed_refresh_token", "hashed_refresh_token_expired_time", "expired_time");
+  }
+
+  /**
+   * Scope bits of the deployment, see JdbcScopeRegistry. Rows written before keep their scopes
+   * column and a NULL scope_mask.
+   */
+  private static void addScopeMasks(Connection conn) throws SQLException {
+    execute(
+        conn,
+        "CREATE TABLE IF NOT EXISTS scope "
+            + "(bit INT NOT NULL, "
+            + "scope VARCHAR(255) NOT NULL, "
+            + "PRIMARY KEY (bit), "
+            + "UNIQUE (scope));");
+    for (String table :
+        new String[] {
+          "client", "access_token", "refresh_token", "hashed_access_token", "hashed_refresh_token"
+        }) {
+      if (!hasColumn(conn, table, "scope_mask")) {
+        execute(conn, "ALTER TABLE " + table + " ADD COLUMN scope_mask VARBINARY(255);");
+      }
+    }
+  }
+
+  /**
+   * Codes expire and are purged in expired time order, see JdbcCodeStore. Codes set before get the
+   * default lifetime of ten minutes from now.
+   */
+  private static void addCodeExpiredTime(Connection conn) throws SQLException {
+    if (!hasColumn(conn, "code", "expired_time")) {
+      execute(conn, "ALTER TABLE code ADD COLUMN expired_time BIGINT;");
+    }
+    try (PreparedStatement statement =
+        conn.prepareStatement("UPDATE code SET expired_time = ? WHERE expired_time IS NULL;")) {
+      statement.setLong(1, Instant.now().plus(Duration.ofMinutes(10)).getEpochSecond());
+      statement.executeUpdate();
+    }
+    createIndex(conn, "code", "code_expired_time", "expired_time");
+  }
+
+  /**
+   * A user without email or Google account ID stores NULL instead of an empty string, so the
+   * columns can be unique. JdbcUserDetailsService relies on that, so duplicates fail the migration
+   * before any index changes, and it is applied again once they are removed.
+   */
+  private static void uniqueUserIds(Connection conn) throws SQLException {
+    String[][] columns = {
+      {"email", "user_email", "user_email_unique"},
+      {"google_account_id", "user_google_account_id", "user_google_account_id_unique"}
+    };
+    for (String[] column : columns) {
+      execute(conn, "UPDATE user SET " + column[0] + " = NULL WHERE " + column[0] + " = '';");
+      if (hasDuplicates(conn, "user", column[0])) {
+        throw new SQLException(
+            "Users share a " + column[0] + ", remove the duplicates to make the column unique");
+      }
+    }
+    for (String[] column : columns) {
+      createIndex(conn, "user", column[2], column[0], true);
+      if (hasIndex(conn, "user", column[1])) {
+        execute(conn, "DROP INDEX " + column[1] + " ON user;");
+      }
+    }
+  }
+
+  /**
+   * The double SHA-512 RISC events identify a token by, which can not be computed from the digest.
+   * Rows stored before keep NULL, no event can be sent for them.
+   */
+  private static void addRiscHashes(Connection conn) throws SQLException {
+    for (String table : new String[] {"hashed_access_token", "hashed_refresh_token"}) {
+      if (!hasColumn(conn, table, "risc_hash")) {
+        execute(conn, "ALTER TABLE " + table + " ADD COLUMN risc_hash CHAR(128);");
+      }
+    }
+  }
+
+  private static boolean hasDuplicates(Connection conn, String table, String column)
+      throws SQLException {
+    try (PreparedStatement statement =
+            conn.prepareStatement(
+                "SELECT "
+                    + column
+                    + " FROM "
+                    + table
+                    + " WHERE "
+                    + column
+                    + " IS NOT NULL GROUP BY "
+                    + column
+                    + " HAVING COUNT(*) > 1 LIMIT 1;");
+        ResultSet result = statement.executeQuery()) {
+      return result.next();
+    }
+  }
+
+  private static void createIndex(Connection conn, String table, String index, String columns)
+      throws SQLException {
+    createIndex(conn, table, index, columns, false);
+  }
+
+  private static void createIndex(
+      Connection conn, String table, String index, String columns, boolean unique)
+      throws SQLException {
+    if (hasIndex(conn, table, index)) {
+      return;
+    }
+    try {
+      execute(
+          conn,
+          "CREATE "
+              + (unique ? "UNIQUE " : "")
+              + "INDEX "
+              + index
+              + " ON "
+              + table
+              + " ("
+              + columns
+              + ");");
+    } catch (SQLException exception) {
+      // Created by another instance in the meantime.
+      if (!hasIndex(conn, table, index)) {
+        throw exception;
+      }
+    }
+  }
+
+  private static boolean hasIndex(Connection conn, String table, String index)
+      throws SQLException {
+    DatabaseMetaData metaData = conn.getMetaData();
+    try (ResultSet result = metaData.getIndexInfo(conn.getCatalog(), null, table, false, false)) {
+      while (result.next()) {
+        if (index.equalsIgnoreCase(result.getString("INDEX_NAME"))) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static boolean hasColumn(Connection conn, String table, String column)
+      throws SQLException {
+    DatabaseMetaData metaData = conn.getMetaData();
+    try (ResultSet result = metaData.getColumns(conn.getCatalog(), null, table, column)) {
+      return result.next();
+    }
+  }
+
+  private static void execute(Connection conn, String stmt) throws SQLException {
+    try (PreparedStatement statement = conn.prepareStatement(stmt)) {
+      statement.execute();
+    }
+  }
+}
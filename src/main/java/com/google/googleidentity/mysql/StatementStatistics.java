@@ -0,0 +1,104 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.mysql;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Executions, rows, errors and a latency histogram of one named statement of {@link
+ * JdbcExecutor}. Bucket i of the histogram counts executions which took less than 2^i
+ * microseconds, so a percentile is known up to a factor of two.
+ */
+public final class StatementStatistics {
+
+  private static final int BUCKETS = 32;
+
+  private final LongAdder count = new LongAdder();
+  private final LongAdder rows = new LongAdder();
+  private final LongAdder errors = new LongAdder();
+  private final LongAdder totalNanos = new LongAdder();
+  private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+  void record(long nanos, long rowCount) {
+    count.increment();
+    rows.add(rowCount);
+    totalNanos.add(nanos);
+    long micros = Math.max(nanos / 1000, 0);
+    int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+    histogram.incrementAndGet(bucket);
+  }
+
+  void recordError() {
+    errors.increment();
+  }
+
+  /** @return successful executions */
+  public long getCount() {
+    return count.sum();
+  }
+
+  /** @return rows read by queries plus rows changed by updates */
+  public long getRowCount() {
+    return rows.sum();
+  }
+
+  /** @return executions which threw an exception */
+  public long getErrorCount() {
+    return errors.sum();
+  }
+
+  public Duration getMeanLatency() {
+    long executions = count.sum();
+    return executions == 0 ? Duration.ZERO : Duration.ofNanos(totalNanos.sum() / executions);
+  }
+
+  /**
+   * @param quantile between 0 and 1, 0.99 for the p99
+   * @return the upper bound of the histogram bucket holding the quantile
+   */
+  public Duration getLatencyPercentile(double quantile) {
+    long executions = 0;
+    long[] counts = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = histogram.get(i);
+      executions += counts[i];
+    }
+    long rank = (long) Math.ceil(quantile * executions);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank && seen > 0) {
+        return Duration.ofNanos(1000L << i);
+      }
+    }
+    return Duration.ZERO;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "count=%d rows=%d errors=%d mean=%dus p50<%dus p99<%dus",
+        getCount(),
+        getRowCount(),
+        getErrorCount(),
+        getMeanLatency().toNanos() / 1000,
+        getLatencyPercentile(0.5).toNanos() / 1000,
+        getLatencyPercentile(0.99).toNanos() / 1000);
+  }
+}
@@ -27,5 +27,7 @@ public class AuthorizationCodeModule extends AbstractModule {
             ("true").equals(System.getenv("USE_CLOUD_SQL"))
                 ? JdbcCodeStore.class
                 : InMemoryCodeStore.class);
+    // Checks the sealed code settings against the code store on startup.
+    bind(AuthorizationCodeService.class).asEagerSingleton();
   }
 }
@@ -17,25 +17,89 @@
 package com.google.googleidentity.oauth2.authorizationcode;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.hash.Hashing;
 import com.google.common.io.BaseEncoding;
+import com.google.googleidentity.oauth2.exception.OAuth2ServerException;
+import com.google.googleidentity.oauth2.exception.TemporarilyUnavailableException;
 import com.google.googleidentity.oauth2.request.OAuth2Request;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.util.Optional;
-import java.util.Random;
+import java.util.logging.Logger;
 
-/** AuthorizationCodeService, generate Authorization Code and Store it */
+/**
+ * AuthorizationCodeService, generate Authorization Code and Store it.
+ *
+ * <p>With SEALED_AUTH_CODE_LENGTH set, a code carries its request sealed by {@link SealedCodes}
+ * instead, as long as that code is at most SEALED_AUTH_CODE_LENGTH characters. Such a code is not
+ * stored, only its replay ID is once it is redeemed, so it can not be redeemed twice.
+ */
 @Singleton
 public final class AuthorizationCodeService {
 
+  private static final Logger log = Logger.getLogger("AuthorizationCodeService");
+
   /** The value is set in appengine-web.xml */
   private static final String AUTH_CODE_LENGTH =
       System.getenv("AUTH_CODE_LENGTH") ==
           null ? "10" : System.getenv("AUTH_CODE_LENGTH");
 
-  private final Random random = new Random();
+  /** Prefix hashes of the most recent (client, user) pairs. */
+  private static final long PREFIX_CACHE_SIZE = 10_000;
+
+  /** Length of the sha256(clientID + username) prefix, see {@link #generateCode}. */
+  private static final int MAX_PREFIX_LENGTH = 3;
+
+  private static final BaseEncoding ENCODING = BaseEncoding.base64Url().withPadChar('*');
+
+  /**
+   * A DRBG only locks itself, so each thread keeps its own instead of all threads sharing one
+   * generator. It costs about as much per call as per kilobyte, so bytes are drawn in blocks.
+   */
+  private static final ThreadLocal<RandomBytes> RANDOM = ThreadLocal.withInitial(RandomBytes::new);
+
+  private static final class RandomBytes {
+    private final SecureRandom random = newRandom();
+    private final byte[] block = new byte[1024];
+    private int position = block.length;
+
+    /** Fill length bytes of bytes from offset, each random byte is handed out once. */
+    void nextBytes(byte[] bytes, int offset, int length) {
+      if (length > block.length) {
+        byte[] random = new byte[length];
+        this.random.nextBytes(random);
+        System.arraycopy(random, 0, bytes, offset, length);
+        return;
+      }
+      if (position + length > block.length) {
+        random.nextBytes(block);
+        position = 0;
+      }
+      System.arraycopy(block, position, bytes, offset, length);
+      position += length;
+    }
+  }
+
+  private final LoadingCache<String, byte[]> prefixes =
+      CacheBuilder.newBuilder()
+          .maximumSize(PREFIX_CACHE_SIZE)
+          .build(
+              CacheLoader.from(
+                  key -> {
+                    byte[] hash = Hashing.sha256().hashString(key, Charsets.UTF_8).asBytes();
+                    byte[] prefix = new byte[MAX_PREFIX_LENGTH];
+                    System.arraycopy(hash, 0, prefix, 0, MAX_PREFIX_LENGTH);
+                    return prefix;
+                  }));
+
   private final CodeStore codeStore;
   private int codeLength = Integer.parseInt(AUTH_CODE_LENGTH);
 
@@ -46,9 +110,61 @@ public final class AuthorizationCodeService {
    */
   private int byteLength = (codeLength * 6 - 1) / 8 + 1;
 
+  /** Null unless codes are sealed. */
+  private final SealedCodes sealedCodes;
+
+  private final int sealedCodeLength;
+
+  /** Stored for a redeemed sealed code, only its key matters. */
+  private static final OAuth2Request REDEEMED = OAuth2Request.getDefaultInstance();
+
+  /**
+   * Codes are sealed if SEALED_AUTH_CODE_LENGTH is set, see {@link SealedCodes}.
+   *
+   * @throws IllegalStateException if AUTH_CODE_KEY is set with a code store which is not shared by
+   *     all instances, see {@link #checkReplaySet}
+   */
   @Inject
   public AuthorizationCodeService(CodeStore codeStore) {
+    this(
+        codeStore,
+        Strings.isNullOrEmpty(System.getenv("SEALED_AUTH_CODE_LENGTH"))
+            ? null
+            : sealedCodesFromEnvironment(codeStore),
+        Strings.isNullOrEmpty(System.getenv("SEALED_AUTH_CODE_LENGTH"))
+            ? 0
+            : Integer.parseInt(System.getenv("SEALED_AUTH_CODE_LENGTH")));
+  }
+
+  private static SealedCodes sealedCodesFromEnvironment(CodeStore codeStore) {
+    checkReplaySet(codeStore, !Strings.isNullOrEmpty(System.getenv("AUTH_CODE_KEY")));
+    return SealedCodes.fromEnvironment();
+  }
+
+  /**
+   * Redeemed sealed codes are remembered in the code store. With a key shared by all instances a
+   * code can be redeemed on any of them, so the store must be shared as well, otherwise the code
+   * could be redeemed once per instance. Without a shared key each instance only redeems its own
+   * codes and any store will do.
+   *
+   * @throws IllegalStateException if the key is shared and the code store is not
+   */
+  static void checkReplaySet(CodeStore codeStore, boolean sharedKey) {
+    Preconditions.checkState(
+        !sharedKey || codeStore instanceof JdbcCodeStore,
+        "AUTH_CODE_KEY needs the Cloud SQL code store, with a code store of each instance a"
+            + " sealed code could be redeemed once per instance");
+  }
+
+  /**
+   * @param sealedCodes null to store every code
+   * @param sealedCodeLength the longest sealed code, a request which does not fit gets a stored
+   *     code
+   */
+  AuthorizationCodeService(CodeStore codeStore, SealedCodes sealedCodes, int sealedCodeLength) {
     this.codeStore = codeStore;
+    this.sealedCodes = sealedCodes;
+    this.sealedCodeLength = sealedCodeLength;
   }
 
   /**
@@ -63,11 +179,21 @@ public final class AuthorizationCodeService {
 
   /**
    * Generate a authorization code for the request, always success. Because once a duplicate code
-   * generated, we will try another one.
+   * generated, we will try another one. Codes start with a prefix of up to 3 bytes of a hash of
+   * the (client, user) pair and the rest is random. Different pairs may share a prefix, it only
+   * makes collisions between pairs less likely, not impossible.
    *
    * @return the generated code
+   * @throws TemporarilyUnavailableException if the code store is full
    */
-  public String getCodeForRequest(OAuth2Request request) {
+  public String getCodeForRequest(OAuth2Request request) throws TemporarilyUnavailableException {
+
+    if (sealedCodes != null) {
+      String sealed = sealedCodes.seal(request);
+      if (sealed.length() <= sealedCodeLength) {
+        return sealed;
+      }
+    }
 
     String code =
         generateCode(
@@ -83,7 +209,23 @@ public final class AuthorizationCodeService {
 
   /** Consume the code and return the related request, if no that code, return null */
   public Optional<OAuth2Request> consumeCode(String code) {
-    return codeStore.consumeCode(code);
+    if (sealedCodes == null || !SealedCodes.isSealed(code)) {
+      return codeStore.consumeCode(code);
+    }
+    Optional<OAuth2Request> request = sealedCodes.open(code);
+    if (!request.isPresent()) {
+      return Optional.empty();
+    }
+    try {
+      // The replay ID stays in the store for a code lifetime, longer than the code is valid.
+      if (!codeStore.setCode(SealedCodes.replayId(code), REDEEMED)) {
+        return Optional.empty();
+      }
+    } catch (TemporarilyUnavailableException e) {
+      log.warning("Code store is full, can not redeem a sealed code");
+      return Optional.empty();
+    }
+    return request;
   }
 
   /**
@@ -95,16 +237,23 @@ public final class AuthorizationCodeService {
 
     byte[] authCodeBytes = new byte[byteLength];
 
-    random.nextBytes(authCodeBytes);
-
-    int numPrefixBytesToCopy = Math.min(3, byteLength / 2);
-    byte[] prefixBytes =
-        Hashing.sha256().hashString(clientID + username, Charsets.UTF_8).asBytes();
+    int numPrefixBytesToCopy = Math.min(MAX_PREFIX_LENGTH, byteLength / 2);
+    byte[] prefixBytes = prefixes.getUnchecked(clientID + username);
 
     System.arraycopy(prefixBytes, 0, authCodeBytes, 0, numPrefixBytesToCopy);
 
+    RANDOM.get().nextBytes(authCodeBytes, numPrefixBytesToCopy, byteLength - numPrefixBytesToCopy);
+
     // Here we truncate the result since the encode hex may be longer the codeLength.
-    return BaseEncoding.base64Url().withPadChar('*').encode(authCodeBytes).substring(0, codeLength);
+    return ENCODING.encode(authCodeBytes).substring(0, codeLength);
+  }
+
+  private static SecureRandom newRandom() {
+    try {
+      return SecureRandom.getInstance("DRBG");
+    } catch (NoSuchAlgorithmException e) {
+      throw new OAuth2ServerException(e);
+    }
   }
 
   public void reset() {
@@ -16,14 +16,28 @@
 
 package com.google.googleidentity.oauth2.authorizationcode;
 
+import com.google.common.base.Strings;
+import com.google.googleidentity.oauth2.exception.TemporarilyUnavailableException;
 import com.google.googleidentity.oauth2.request.OAuth2Request;
 
+import java.time.Duration;
 import java.util.Optional;
 
 /** AuthorizationCode store interface */
 interface CodeStore {
 
-  /** @return the related request and delete the code */
+  /** RFC 6749 recommends a lifetime of at most ten minutes. */
+  Duration DEFAULT_LIFETIME = Duration.ofMinutes(10);
+
+  /** @return the lifetime of codes from AUTH_CODE_LIFETIME_SECONDS, the default if not set */
+  static Duration lifetimeFromEnvironment() {
+    String seconds = System.getenv("AUTH_CODE_LIFETIME_SECONDS");
+    return Strings.isNullOrEmpty(seconds)
+        ? DEFAULT_LIFETIME
+        : Duration.ofSeconds(Long.parseLong(seconds));
+  }
+
+  /** @return the related request and delete the code, empty if the code expired */
   Optional<OAuth2Request> consumeCode(String code);
 
   /**
@@ -31,8 +45,9 @@ interface CodeStore {
    * generate a new code and try again
    *
    * @return success or not
+   * @throws TemporarilyUnavailableException if the store is full
    */
-  boolean setCode(String code, OAuth2Request request);
+  boolean setCode(String code, OAuth2Request request) throws TemporarilyUnavailableException;
 
   /**
    * reset data
@@ -13,47 +13,183 @@
     See the License for the specific language governing permissions and
     limitations under the License.
 */
-
 package com.google.googleidentity.oauth2.authorizationcode;
 
+import com.google.common.base.Strings;
+import com.google.googleidentity.oauth2.exception.TemporarilyUnavailableException;
 import com.google.googleidentity.oauth2.request.OAuth2Request;
+import com.google.inject.Inject;
 import com.google.inject.Singleton;
-
+import java.time.Clock;
+import java.time.Duration;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
-/** InMemory AuthorizationCode store, an implementation for {@link CodeStore} */
+/**
+ * InMemory AuthorizationCode store, an implementation for {@link CodeStore}. A code expires
+ * AUTH_CODE_LIFETIME_SECONDS after it was set. At most AUTH_CODE_CAPACITY codes are held, a new
+ * code beyond that is rejected with {@link TemporarilyUnavailableException} instead of growing the
+ * heap.
+ *
+ * <p>All codes live for the same time, so they are kept in two generations instead of an expiry
+ * index per code: codes are set in the current generation, and once it is a lifetime old it
+ * becomes the previous one and the previous one is dropped as a whole. A dropped generation only
+ * holds expired codes, and a code is dropped at most two lifetimes after it was set.
+ *
+ * <p>Codes are set with putIfAbsent and consumed with remove, so neither locks and a code can be
+ * consumed only once.
+ */
 @Singleton
 public final class InMemoryCodeStore implements CodeStore {
 
-  private final ConcurrentHashMap<String, OAuth2Request> codeStore = new ConcurrentHashMap<>();
+  static final int DEFAULT_CAPACITY = 100_000;
+
+  private final AtomicReference<Generations> generations;
+
+  private final Clock clock;
+  private final long lifetimeMillis;
+  private final int capacity;
+
+  private static final class CodeEntry {
+    private final OAuth2Request request;
+    private final long expiredTime;
+
+    CodeEntry(OAuth2Request request, long expiredTime) {
+      this.request = request;
+      this.expiredTime = expiredTime;
+    }
+  }
+
+  private static final class Generation {
+    private final ConcurrentMap<String, CodeEntry> codes = new ConcurrentHashMap<>();
+
+    /** Codes held or being set in this generation. */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /** Epoch millis the generation became the current one. */
+    private final long startTime;
+
+    Generation(long startTime) {
+      this.startTime = startTime;
+    }
+  }
+
+  private static final class Generations {
+    private final Generation current;
+    private final Generation previous;
+
+    Generations(Generation current, Generation previous) {
+      this.current = current;
+      this.previous = previous;
+    }
+
+    int size() {
+      return current.size.get() + previous.size.get();
+    }
+  }
 
-  public InMemoryCodeStore() {}
+  @Inject
+  public InMemoryCodeStore() {
+    this(
+        CodeStore.lifetimeFromEnvironment(),
+        Strings.isNullOrEmpty(System.getenv("AUTH_CODE_CAPACITY"))
+            ? DEFAULT_CAPACITY
+            : Integer.parseInt(System.getenv("AUTH_CODE_CAPACITY")),
+        Clock.systemUTC());
+  }
+
+  InMemoryCodeStore(Duration lifetime, int capacity, Clock clock) {
+    this.lifetimeMillis = lifetime.toMillis();
+    this.capacity = capacity;
+    this.clock = clock;
+    this.generations = new AtomicReference<>(emptyGenerations(clock.millis()));
+  }
 
   @Override
   public Optional<OAuth2Request> consumeCode(String code) {
-    if (codeStore.containsKey(code)) {
-      OAuth2Request request = codeStore.get(code);
-      codeStore.remove(code);
-      return Optional.ofNullable(request);
-    } else {
+    long now = clock.millis();
+    Generations snapshot = rotate(now);
+    CodeEntry entry = remove(snapshot.current, code);
+    if (entry == null) {
+      entry = remove(snapshot.previous, code);
+    }
+    if (entry == null || entry.expiredTime <= now) {
       return Optional.empty();
     }
+    return Optional.of(entry.request);
   }
 
-  /** The synchronize here is just for demo when using in memory storage. */
+  /** @throws TemporarilyUnavailableException if the store holds capacity codes already */
   @Override
-  public synchronized boolean setCode(String code, OAuth2Request request) {
-    if (codeStore.containsKey(code)) {
+  public boolean setCode(String code, OAuth2Request request)
+      throws TemporarilyUnavailableException {
+    long now = clock.millis();
+    Generations snapshot = rotate(now);
+    Generation current = snapshot.current;
+    // Reserve the place first, so concurrent calls can not exceed the capacity together.
+    current.size.incrementAndGet();
+    if (snapshot.size() > capacity) {
+      current.size.decrementAndGet();
+      throw new TemporarilyUnavailableException();
+    }
+    CodeEntry previous = snapshot.previous.codes.get(code);
+    if (previous != null && previous.expiredTime <= now) {
+      // An expired code is free to be set again.
+      if (snapshot.previous.codes.remove(code, previous)) {
+        snapshot.previous.size.decrementAndGet();
+      }
+      previous = null;
+    }
+    if (previous != null
+        || current.codes.putIfAbsent(code, new CodeEntry(request, now + lifetimeMillis))
+            != null) {
+      current.size.decrementAndGet();
       return false;
-    } else {
-      codeStore.put(code, request);
-      return true;
     }
+    return true;
+  }
+
+  /** @return the number of codes held, expired ones included until their generation is dropped */
+  int size() {
+    return rotate(clock.millis()).size();
   }
 
   @Override
   public void reset() {
-    codeStore.clear();
+    generations.set(emptyGenerations(clock.millis()));
+  }
+
+  private static CodeEntry remove(Generation generation, String code) {
+    CodeEntry entry = generation.codes.remove(code);
+    if (entry != null) {
+      generation.size.decrementAndGet();
+    }
+    return entry;
+  }
+
+  /** @return the generations at now, after starting a new one if the current is a lifetime old */
+  private Generations rotate(long now) {
+    Generations snapshot = generations.get();
+    while (now - snapshot.current.startTime >= lifetimeMillis) {
+      Generation current = new Generation(now);
+      // Two lifetimes passed, the current generation holds expired codes only as well.
+      Generation previous =
+          now - snapshot.current.startTime >= 2 * lifetimeMillis
+              ? new Generation(now)
+              : snapshot.current;
+      Generations rotated = new Generations(current, previous);
+      if (generations.compareAndSet(snapshot, rotated)) {
+        return rotated;
+      }
+      snapshot = generations.get();
+    }
+    return snapshot;
+  }
+
+  private static Generations emptyGenerations(long now) {
+    return new Generations(new Generation(now), new Generation(now));
   }
 }
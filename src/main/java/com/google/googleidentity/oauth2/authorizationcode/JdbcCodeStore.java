@@ -16,188 +16,164 @@
 
 package com.google.googleidentity.oauth2.authorizationcode;
 
+import com.google.googleidentity.mysql.JdbcExecutor;
+import com.google.googleidentity.mysql.JdbcScheduler;
 import com.google.googleidentity.oauth2.exception.OAuth2ServerException;
 import com.google.googleidentity.oauth2.request.OAuth2Request;
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
 import com.google.protobuf.InvalidProtocolBufferException;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.time.Clock;
+import java.time.Duration;
 import java.util.Optional;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.sql.DataSource;
 
-/** Jdbc implementation for {@link CodeStore} */
+/**
+ * Jdbc implementation for {@link CodeStore}. A code is set with a single INSERT, which fails on
+ * the primary key if the code exists, and claimed with a single DELETE of the unexpired row, so of
+ * concurrent redemptions only the one which deleted the row gets the request. No transaction is
+ * held across round trips.
+ *
+ * <p>Codes expire AUTH_CODE_LIFETIME_SECONDS after they are set. Expired codes are never returned,
+ * and removed in batches through the expired_time index every minute.
+ */
+@Singleton
 public class JdbcCodeStore implements CodeStore {
 
-  private final DataSource dataSource;
+  static final Duration DEFAULT_PURGE_INTERVAL = Duration.ofMinutes(1);
+
+  static final int DEFAULT_PURGE_BATCH_SIZE = 500;
+
+  private static final Duration PURGE_BATCH_PAUSE = Duration.ofMillis(50);
+
+  private final JdbcExecutor executor;
+
+  private final Clock clock;
+  private final Duration lifetime;
+  private final int purgeBatchSize;
 
   private final Logger log = Logger.getLogger("JdbcCodeStore");
 
   @Inject
-  public JdbcCodeStore(DataSource dataSource) {
-    this.dataSource = dataSource;
+  public JdbcCodeStore(JdbcExecutor executor, JdbcScheduler scheduler) {
+    this(
+        executor,
+        Clock.systemUTC(),
+        CodeStore.lifetimeFromEnvironment(),
+        DEFAULT_PURGE_BATCH_SIZE);
+    scheduler.scheduleWithFixedDelay(this::purgeTask, DEFAULT_PURGE_INTERVAL);
+  }
+
+  /** Store without background purge, for test. */
+  JdbcCodeStore(JdbcExecutor executor, Clock clock, Duration lifetime, int purgeBatchSize) {
+    this.executor = executor;
+    this.clock = clock;
+    this.lifetime = lifetime;
+    this.purgeBatchSize = purgeBatchSize;
   }
 
   @Override
   public Optional<OAuth2Request> consumeCode(String code) {
-    Connection conn = null;
-    PreparedStatement statement = null;
-    ResultSet result = null;
+    long now = clock.instant().getEpochSecond();
+    Optional<byte[]> request =
+        executor.queryFirst(
+            "code.readCode",
+            "SELECT request FROM code WHERE code = ? AND expired_time > ?;",
+            statement -> {
+              statement.setString(1, code);
+              statement.setLong(2, now);
+            },
+            result -> result.getBytes("request"));
+    if (!request.isPresent()) {
+      return Optional.empty();
+    }
+    // Claim the code, a concurrent redemption may have deleted the row since it was read.
+    int claimed =
+        executor.update(
+            "code.claimCode",
+            "DELETE FROM code WHERE code = ? AND expired_time > ?;",
+            statement -> {
+              statement.setString(1, code);
+              statement.setLong(2, now);
+            });
+    if (claimed == 0) {
+      return Optional.empty();
+    }
     try {
-      conn = dataSource.getConnection();
-      conn.setAutoCommit(false);
-      String stmt = "SELECT * FROM code WHERE code = ?;";
-      statement = conn.prepareStatement(stmt);
-      statement.setString(1, code);
-      result = statement.executeQuery();
-      if (result.next()) {
-        stmt = "DELETE FROM code WHERE code = ?;";
-        statement = conn.prepareStatement(stmt);
-        statement.setString(1, code);
-        statement.execute();
-        Optional<OAuth2Request> client =
-            Optional.ofNullable(OAuth2Request.parseFrom(result.getBytes("request")));
-        conn.commit();
-        return client;
-      }
-    } catch (SQLException | InvalidProtocolBufferException exception) {
-      try {
-        if (conn != null) {
-          conn.rollback();
-        }
-      } catch (SQLException exception1) {
-        throw new OAuth2ServerException(exception1);
-      }
+      return Optional.of(OAuth2Request.parseFrom(request.get()));
+    } catch (InvalidProtocolBufferException exception) {
       throw new OAuth2ServerException(exception);
-    } finally {
-      if (result != null) {
-        try {
-          result.close();
-        } catch (SQLException exception2) {
-          throw new OAuth2ServerException(exception2);
-        }
-      }
-      if (statement != null) {
-        try {
-          statement.close();
-        } catch (SQLException exception3) {
-          throw new OAuth2ServerException(exception3);
-        }
-      }
-      if (conn != null) {
-        try {
-          conn.close();
-        } catch (SQLException exception4) {
-          throw new OAuth2ServerException(exception4);
-        }
-      }
     }
-    return Optional.empty();
   }
 
   @Override
   public boolean setCode(String code, OAuth2Request request) {
-    Connection conn = null;
-    PreparedStatement statement = null;
-    ResultSet result = null;
+    long expiredTime = clock.instant().plus(lifetime).getEpochSecond();
     try {
-      conn = dataSource.getConnection();
-      conn.setAutoCommit(false);
-      String stmt = "SELECT * FROM code WHERE code = ?;";
-      statement = conn.prepareStatement(stmt);
-      statement.setString(1, code);
-      result = statement.executeQuery();
-      if (!result.next()) {
-        stmt = "INSERT INTO code VALUES(?, ?);";
-        statement = conn.prepareStatement(stmt);
-        statement.setString(1, code);
-        statement.setBytes(2, request.toByteArray());
-        statement.execute();
-        conn.commit();
-        return true;
-      } else {
+      executor.update(
+          "code.insertCode",
+          "INSERT INTO code (code, request, expired_time) VALUES (?, ?, ?);",
+          statement -> {
+            statement.setString(1, code);
+            statement.setBytes(2, request.toByteArray());
+            statement.setLong(3, expiredTime);
+          });
+      return true;
+    } catch (OAuth2ServerException exception) {
+      if (exception.getCause() instanceof SQLIntegrityConstraintViolationException) {
+        // The code exists, possibly expired but not purged yet.
         return false;
       }
-    } catch (SQLException exception) {
-      try {
-        if (conn != null) {
-          conn.rollback();
-        }
-      } catch (SQLException exception1) {
-        throw new OAuth2ServerException(exception1);
-      }
-      throw new OAuth2ServerException(exception);
-    } finally {
-      if (result != null) {
-        try {
-          result.close();
-        } catch (SQLException exception2) {
-          throw new OAuth2ServerException(exception2);
-        }
-      }
-      if (statement != null) {
-        try {
-          statement.close();
-        } catch (SQLException exception3) {
-          throw new OAuth2ServerException(exception3);
-        }
+      throw exception;
+    }
+  }
+
+  /**
+   * Remove the codes expired by now, batchSize rows per statement.
+   *
+   * @return the number of codes removed
+   */
+  long purgeExpiredCodes() {
+    long now = clock.instant().getEpochSecond();
+    long purged = 0;
+    while (true) {
+      int deleted =
+          executor.update(
+              "code.purgeCodes",
+              "DELETE FROM code WHERE expired_time <= ? LIMIT ?;",
+              statement -> {
+                statement.setLong(1, now);
+                statement.setInt(2, purgeBatchSize);
+              });
+      purged += deleted;
+      if (deleted < purgeBatchSize) {
+        return purged;
       }
-      if (conn != null) {
-        try {
-          conn.close();
-        } catch (SQLException exception4) {
-          throw new OAuth2ServerException(exception4);
-        }
+      try {
+        Thread.sleep(PURGE_BATCH_PAUSE.toMillis());
+      } catch (InterruptedException exception) {
+        Thread.currentThread().interrupt();
+        return purged;
       }
     }
   }
 
-  @Override
-  public void reset() {
-    Connection conn = null;
-    PreparedStatement statement = null;
-    ResultSet result = null;
+  private void purgeTask() {
+    // An exception would cancel the following runs of the scheduled task.
     try {
-      conn = dataSource.getConnection();
-      conn.setAutoCommit(false);
-      String stmt = "DELETE FROM code;";
-      statement = conn.prepareStatement(stmt);
-      statement.execute();
-      conn.commit();
-    } catch (SQLException exception) {
-      try {
-        if (conn != null) {
-          conn.rollback();
-        }
-      } catch (SQLException exception1) {
-        throw new OAuth2ServerException(exception1);
-      }
-      throw new OAuth2ServerException(exception);
-    } finally {
-      if (result != null) {
-        try {
-          result.close();
-        } catch (SQLException exception2) {
-          throw new OAuth2ServerException(exception2);
-        }
-      }
-      if (statement != null) {
-        try {
-          statement.close();
-        } catch (SQLException exception3) {
-          throw new OAuth2ServerException(exception3);
-        }
-      }
-      if (conn != null) {
-        try {
-          conn.close();
-        } catch (SQLException exception4) {
-          throw new OAuth2ServerException(exception4);
-        }
+      long purged = purgeExpiredCodes();
+      if (purged > 0) {
+        log.info("Removed " + purged + " expired codes");
       }
+    } catch (RuntimeException exception) {
+      log.log(Level.WARNING, "Error when removing expired codes", exception);
     }
   }
+
+  @Override
+  public void reset() {
+    executor.update("code.deleteCodes", "DELETE FROM code;", statement -> {});
+  }
 }
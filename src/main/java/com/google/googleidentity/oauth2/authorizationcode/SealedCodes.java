@@ -0,0 +1,210 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package com.google.googleidentity.oauth2.authorizationcode;
+
+import com.google.common.base.Strings;
+import com.google.common.io.BaseEncoding;
+import com.google.googleidentity.oauth2.exception.OAuth2ServerException;
+import com.google.googleidentity.oauth2.request.OAuth2Request;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.logging.Logger;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Codec of stateless authorization codes, which carry their request instead of pointing to it in
+ * a {@link CodeStore}. A sealed code is {@link #PREFIX} followed by the AES-GCM encryption of the
+ * request behind a header with its expired time:
+ *
+ * <pre>
+ *   version (1 byte) | expired time (8) | nonce (12) | ciphertext | tag (16)
+ * </pre>
+ *
+ * <p>The header is authenticated but not encrypted, and its 21 bytes encode to exactly the first
+ * 28 characters after the prefix, which {@link #replayId} uses to remember redeemed codes.
+ *
+ * <p>For all instances to redeem each other's codes they must share the key, set it base64url
+ * encoded in AUTH_CODE_KEY. Redeemed codes are remembered in the {@link CodeStore}, so a shared key
+ * is only accepted with the shared {@link JdbcCodeStore}. Without it each instance uses a random
+ * key of its own and only redeems its own codes.
+ */
+final class SealedCodes {
+
+  private static final Logger log = Logger.getLogger("SealedCodes");
+
+  /** Not in the base64url alphabet of stored codes, so the two never mix up. */
+  static final String PREFIX = "~";
+
+  private static final byte VERSION = 1;
+  private static final int HEADER_LENGTH = 1 + 8 + 12;
+  private static final int NONCE_OFFSET = 1 + 8;
+  private static final int NONCE_LENGTH = 12;
+  private static final int TAG_LENGTH = 16;
+
+  /** Characters of the encoded header. */
+  private static final int ENCODED_HEADER_LENGTH = HEADER_LENGTH / 3 * 4;
+
+  private static final BaseEncoding ENCODING = BaseEncoding.base64Url().omitPadding();
+
+  /** A Cipher is not thread safe and expensive to look up, so each thread keeps its own. */
+  private static final ThreadLocal<Cipher> CIPHER = ThreadLocal.withInitial(SealedCodes::newCipher);
+
+  private static final ThreadLocal<SecureRandom> RANDOM =
+      ThreadLocal.withInitial(SecureRandom::new);
+
+  private final Key key;
+  private final Clock clock;
+  private final Duration lifetime;
+
+  SealedCodes(Key key, Clock clock, Duration lifetime) {
+    this.key = key;
+    this.clock = clock;
+    this.lifetime = lifetime;
+  }
+
+  /** @return codec with the key from AUTH_CODE_KEY, a random key if that is not set */
+  static SealedCodes fromEnvironment() {
+    String encodedKey = System.getenv("AUTH_CODE_KEY");
+    Key key =
+        Strings.isNullOrEmpty(encodedKey)
+            ? newKey()
+            : new SecretKeySpec(ENCODING.decode(encodedKey), "AES");
+    return new SealedCodes(key, Clock.systemUTC(), CodeStore.lifetimeFromEnvironment());
+  }
+
+  static Key newKey() {
+    try {
+      KeyGenerator generator = KeyGenerator.getInstance("AES");
+      generator.init(256);
+      return generator.generateKey();
+    } catch (NoSuchAlgorithmException e) {
+      throw new OAuth2ServerException("Error when init Key!", e);
+    }
+  }
+
+  private static Cipher newCipher() {
+    try {
+      return Cipher.getInstance("AES/GCM/NoPadding");
+    } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+      throw new OAuth2ServerException(e);
+    }
+  }
+
+  static boolean isSealed(String code) {
+    return code.startsWith(PREFIX);
+  }
+
+  /**
+   * @return the part of a sealed code which identifies it, valid only for codes {@link #open}
+   *     accepted
+   */
+  static String replayId(String code) {
+    return code.substring(0, PREFIX.length() + ENCODED_HEADER_LENGTH);
+  }
+
+  /**
+   * Seal the request into a code which expires a lifetime from now. The state of the authorization
+   * response is left out, it is only needed for the redirect.
+   */
+  String seal(OAuth2Request request) {
+    OAuth2Request.Builder sealed = request.toBuilder();
+    if (sealed.hasAuthorizationResponse()) {
+      sealed.getAuthorizationResponseBuilder().clearState();
+    }
+    byte[] plaintext = sealed.build().toByteArray();
+
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + plaintext.length + TAG_LENGTH);
+    byte[] nonce = new byte[NONCE_LENGTH];
+    RANDOM.get().nextBytes(nonce);
+    buffer
+        .put(VERSION)
+        .putLong(clock.instant().plus(lifetime).getEpochSecond())
+        .put(nonce)
+        .put(plaintext);
+    byte[] bytes = buffer.array();
+
+    try {
+      Cipher cipher = CIPHER.get();
+      cipher.init(
+          Cipher.ENCRYPT_MODE,
+          key,
+          new GCMParameterSpec(TAG_LENGTH * 8, bytes, NONCE_OFFSET, NONCE_LENGTH));
+      cipher.updateAAD(bytes, 0, HEADER_LENGTH);
+      cipher.doFinal(bytes, HEADER_LENGTH, plaintext.length, bytes, HEADER_LENGTH);
+    } catch (GeneralSecurityException e) {
+      throw new OAuth2ServerException(e);
+    }
+    return PREFIX + ENCODING.encode(bytes);
+  }
+
+  /**
+   * @return the request of the code, empty if the code is malformed, expired by now or forged. A
+   *     code is accepted every time, the caller has to remember redeemed ones.
+   */
+  Optional<OAuth2Request> open(String code) {
+    if (!isSealed(code)) {
+      return Optional.empty();
+    }
+    byte[] bytes;
+    try {
+      bytes = ENCODING.decode(code.substring(PREFIX.length()));
+    } catch (IllegalArgumentException e) {
+      log.fine("Code is not base64");
+      return Optional.empty();
+    }
+    if (bytes.length < HEADER_LENGTH + TAG_LENGTH || bytes[0] != VERSION) {
+      log.fine("Code has an unknown format");
+      return Optional.empty();
+    }
+    long expiredTime = ByteBuffer.wrap(bytes, 1, 8).getLong();
+    if (expiredTime <= clock.instant().getEpochSecond()) {
+      return Optional.empty();
+    }
+
+    byte[] plaintext;
+    try {
+      Cipher cipher = CIPHER.get();
+      cipher.init(
+          Cipher.DECRYPT_MODE,
+          key,
+          new GCMParameterSpec(TAG_LENGTH * 8, bytes, NONCE_OFFSET, NONCE_LENGTH));
+      cipher.updateAAD(bytes, 0, HEADER_LENGTH);
+      plaintext = cipher.doFinal(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH);
+    } catch (AEADBadTagException e) {
+      log.fine("Code does not authenticate");
+      return Optional.empty();
+    } catch (GeneralSecurityException e) {
+      throw new OAuth2ServerException(e);
+    }
+    try {
+      return Optional.of(OAuth2Request.parseFrom(plaintext));
+    } catch (InvalidProtocolBufferException e) {
+      throw new OAuth2ServerException(e);
+    }
+  }
+}
@@ -16,8 +16,10 @@
 
 package com.google.googleidentity.oauth2.client;
 
+import com.google.googleidentity.oauth2.util.Page;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 /** ClientDetailsService Interface. Support basic client information access and modification */
 public interface ClientDetailsService {
@@ -44,8 +46,19 @@ public interface ClientDetailsService {
    */
   boolean addClient(ClientDetails client);
 
-  /** @return all clients */
+  /** @return all clients, held in memory at once, see {@link #streamClients} for many clients */
   List<ClientDetails> listClient();
 
+  /**
+   * @param cursor the next cursor of the previous page, empty for the first page
+   * @return up to limit clients in client ID order
+   */
+  Page<ClientDetails> listClient(Optional<String> cursor, int limit);
+
+  /** @return all clients in client ID order, read page by page as the stream is consumed */
+  default Stream<ClientDetails> streamClients() {
+    return Page.stream(cursor -> listClient(cursor, Page.STREAM_PAGE_SIZE));
+  }
+
   void reset();
 }
@@ -18,11 +18,12 @@ package com.google.googleidentity.oauth2.client;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.googleidentity.oauth2.util.Page;
 import com.google.inject.Singleton;
 
 import java.util.List;
 import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 /**
  * Default InMemory ClientDetailsService for client information Store An Implementation for {@link
@@ -31,7 +32,9 @@ import java.util.concurrent.ConcurrentHashMap;
 @Singleton
 public final class InMemoryClientDetailsService implements ClientDetailsService {
 
-  private final ConcurrentHashMap<String, ClientDetails> clientStore = new ConcurrentHashMap<>();
+  /** In client ID order, so a page of clients starts at its cursor. */
+  private final ConcurrentSkipListMap<String, ClientDetails> clientStore =
+      new ConcurrentSkipListMap<>();
 
   @Override
   public Optional<ClientDetails> getClientByID(String clientID) {
@@ -75,6 +78,11 @@ public final class InMemoryClientDetailsService implements ClientDetailsService
     return ImmutableList.copyOf(clientStore.values());
   }
 
+  @Override
+  public Page<ClientDetails> listClient(Optional<String> cursor, int limit) {
+    return Page.select(clientStore, cursor, limit);
+  }
+
   @Override
   public void reset() {
     clientStore.clear();
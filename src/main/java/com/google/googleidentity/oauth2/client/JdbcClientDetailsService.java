@@ -18,295 +18,142 @@ package com.google.googleidentity.oauth2.client;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
-import com.google.googleidentity.oauth2.exception.OAuth2ServerException;
+import com.google.googleidentity.mysql.JdbcExecutor;
+import com.google.googleidentity.oauth2.scope.JdbcScopeRegistry;
 import com.google.googleidentity.oauth2.util.OAuth2EnumMap;
 import com.google.googleidentity.oauth2.util.OAuth2Enums;
-import com.google.googleidentity.oauth2.util.OAuth2Utils;
+import com.google.googleidentity.oauth2.util.Page;
 import com.google.inject.Inject;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Optional;
-import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.sql.DataSource;
 
 public class JdbcClientDetailsService implements ClientDetailsService {
 
-  private final DataSource dataSource;
+  private final JdbcExecutor executor;
+
+  private final JdbcScopeRegistry scopeRegistry;
 
   private final Logger log = Logger.getLogger("JdbcClientDetailsService");
 
   @Inject
-  JdbcClientDetailsService(DataSource dataSource) {
-    this.dataSource = dataSource;
+  JdbcClientDetailsService(JdbcExecutor executor, JdbcScopeRegistry scopeRegistry) {
+    this.executor = executor;
+    this.scopeRegistry = scopeRegistry;
   }
 
   @Override
   public Optional<ClientDetails> getClientByID(String clientID) {
-    Connection conn = null;
-    PreparedStatement statement = null;
-    ResultSet result = null;
-    try {
-      conn = dataSource.getConnection();
-      String stmt = "SELECT * FROM client " + "WHERE client_id = ?;";
-      statement = conn.prepareStatement(stmt);
-      statement.setString(1, clientID);
-      result = statement.executeQuery();
-      if (result.next()) {
-        Optional<ClientDetails> client = Optional.ofNullable(buildClientFromJdbcResult(result));
-        return client;
-      }
-    } catch (SQLException exception) {
-      throw new OAuth2ServerException(exception);
-    } finally {
-      if (result != null) {
-        try {
-          result.close();
-        } catch (SQLException exception2) {
-          throw new OAuth2ServerException(exception2);
-        }
-      }
-      if (statement != null) {
-        try {
-          statement.close();
-        } catch (SQLException exception3) {
-          throw new OAuth2ServerException(exception3);
-        }
-      }
-      if (conn != null) {
-        try {
-          conn.close();
-        } catch (SQLException exception4) {
-          throw new OAuth2ServerException(exception4);
-        }
-      }
-    }
-    return Optional.empty();
+    return executor.queryFirst(
+        "client.getClientByID",
+        "SELECT * FROM client " + "WHERE client_id = ?;",
+        statement -> statement.setString(1, clientID),
+        this::buildClientFromJdbcResult);
   }
 
   @Override
   public boolean updateClient(ClientDetails client) {
-    Connection conn = null;
-    PreparedStatement statement = null;
-    try {
-      conn = dataSource.getConnection();
-      conn.setAutoCommit(false);
-      String stmt =
-          "UPDATE client "
-              + "SET secret = ?, grant_types = ?, "
-              + "is_scoped = ?, scopes = ?, redirect_uris = ? "
-              + "risc_uri = ?, risc_aud = ?"
-              + "WHERE client_id = ?;";
-      statement = conn.prepareStatement(stmt);
-
-      List<String> grantTypes = new ArrayList<>();
-
-      for (OAuth2Enums.GrantType type : client.getGrantTypesList()) {
-        grantTypes.add(OAuth2EnumMap.REVERSE_GRANT_TYPE_MAP.get(type));
-      }
-
-      statement.setString(1, client.getSecret());
-      statement.setString(2, String.join("\t", grantTypes));
-      statement.setBoolean(3, client.getIsScoped());
-      statement.setString(4, String.join("\t", client.getScopesList()));
-      statement.setString(5, String.join("\t", client.getRedirectUrisList()));
-      statement.setString(6, client.getRiscUri());
-      statement.setString(7, client.getRiscAud());
-      statement.setString(8, client.getClientId());
+    List<String> grantTypes = new ArrayList<>();
 
-      int count = statement.executeUpdate();
-      conn.commit();
-      return count == 1;
-    } catch (SQLException exception) {
-      try {
-        if (conn != null) {
-          conn.rollback();
-        }
-      } catch (SQLException exception1) {
-        throw new OAuth2ServerException(exception1);
-      }
-      throw new OAuth2ServerException(exception);
-    } finally {
-      if (statement != null) {
-        try {
-          statement.close();
-        } catch (SQLException exception3) {
-          throw new OAuth2ServerException(exception3);
-        }
-      }
-      if (conn != null) {
-        try {
-          conn.close();
-        } catch (SQLException exception4) {
-          throw new OAuth2ServerException(exception4);
-        }
-      }
+    for (OAuth2Enums.GrantType type : client.getGrantTypesList()) {
+      grantTypes.add(OAuth2EnumMap.REVERSE_GRANT_TYPE_MAP.get(type));
     }
+
+    byte[] scopeMask = scopeRegistry.register(client.getScopesList()).toByteArray();
+
+    int count =
+        executor.update(
+            "client.updateClient",
+            "UPDATE client "
+                + "SET secret = ?, grant_types = ?, "
+                + "is_scoped = ?, scopes = NULL, scope_mask = ?, redirect_uris = ?, "
+                + "risc_uri = ?, risc_aud = ? "
+                + "WHERE client_id = ?;",
+            statement -> {
+              statement.setString(1, client.getSecret());
+              statement.setString(2, String.join("\t", grantTypes));
+              statement.setBoolean(3, client.getIsScoped());
+              statement.setBytes(4, scopeMask);
+              statement.setString(5, String.join("\t", client.getRedirectUrisList()));
+              statement.setString(6, client.getRiscUri());
+              statement.setString(7, client.getRiscAud());
+              statement.setString(8, client.getClientId());
+            });
+    return count == 1;
   }
 
   @Override
   public boolean addClient(ClientDetails client) {
-    Connection conn = null;
-    PreparedStatement statement = null;
-    ResultSet result = null;
-    try {
-      conn = dataSource.getConnection();
-      conn.setAutoCommit(false);
-      String stmt = "SELECT * FROM client WHERE client_id = ?;";
-      statement = conn.prepareStatement(stmt);
-      statement.setString(1, client.getClientId());
-      result = statement.executeQuery();
-      if (!result.next()) {
-        stmt = "INSERT INTO client VALUES (?, ?, ?, ?, ?, ?, ?, ?);";
-        statement = conn.prepareStatement(stmt);
-
-        List<String> grantTypes = new ArrayList<>();
-
-        for (OAuth2Enums.GrantType type : client.getGrantTypesList()) {
-          grantTypes.add(OAuth2EnumMap.REVERSE_GRANT_TYPE_MAP.get(type));
-        }
-
-        statement.setString(1, client.getClientId());
-        statement.setString(2, client.getSecret());
-        statement.setString(3, String.join("\t", grantTypes));
-        statement.setBoolean(4, client.getIsScoped());
-        statement.setString(5, String.join("\t", client.getScopesList()));
-        statement.setString(6, String.join("\t", client.getRedirectUrisList()));
-        statement.setString(7, client.getRiscUri());
-        statement.setString(8, client.getRiscAud());
+    List<String> grantTypes = new ArrayList<>();
 
-        statement.execute();
-
-        conn.commit();
-        return true;
-      }
-    } catch (SQLException exception) {
-      try {
-        if (conn != null) {
-          conn.rollback();
-        }
-      } catch (SQLException exception1) {
-        throw new OAuth2ServerException(exception1);
-      }
-      throw new OAuth2ServerException(exception);
-    } finally {
-      if (result != null) {
-        try {
-          result.close();
-        } catch (SQLException exception2) {
-          throw new OAuth2ServerException(exception2);
-        }
-      }
-      if (statement != null) {
-        try {
-          statement.close();
-        } catch (SQLException exception3) {
-          throw new OAuth2ServerException(exception3);
-        }
-      }
-      if (conn != null) {
-        try {
-          conn.close();
-        } catch (SQLException exception4) {
-          throw new OAuth2ServerException(exception4);
-        }
-      }
+    for (OAuth2Enums.GrantType type : client.getGrantTypesList()) {
+      grantTypes.add(OAuth2EnumMap.REVERSE_GRANT_TYPE_MAP.get(type));
     }
-    return false;
+
+    byte[] scopeMask = scopeRegistry.register(client.getScopesList()).toByteArray();
+
+    return executor.inTransaction(
+        transaction -> {
+          if (transaction
+              .queryFirst(
+                  "client.getClientByID",
+                  "SELECT * FROM client " + "WHERE client_id = ?;",
+                  statement -> statement.setString(1, client.getClientId()),
+                  result -> true)
+              .isPresent()) {
+            return false;
+          }
+          transaction.update(
+              "client.addClient",
+              "INSERT INTO client (client_id, secret, grant_types, is_scoped, scope_mask, "
+                  + "redirect_uris, risc_uri, risc_aud) VALUES (?, ?, ?, ?, ?, ?, ?, ?);",
+              statement -> {
+                statement.setString(1, client.getClientId());
+                statement.setString(2, client.getSecret());
+                statement.setString(3, String.join("\t", grantTypes));
+                statement.setBoolean(4, client.getIsScoped());
+                statement.setBytes(5, scopeMask);
+                statement.setString(6, String.join("\t", client.getRedirectUrisList()));
+                statement.setString(7, client.getRiscUri());
+                statement.setString(8, client.getRiscAud());
+              });
+          return true;
+        });
   }
 
   @Override
   public List<ClientDetails> listClient() {
-    List<ClientDetails> list = new LinkedList<>();
-    Connection conn = null;
-    PreparedStatement statement = null;
-    ResultSet result = null;
-    try {
-      conn = dataSource.getConnection();
-      String stmt = "SELECT * FROM client;";
-      statement = conn.prepareStatement(stmt);
-      result = statement.executeQuery();
-      while (result.next()) {
-        list.add(buildClientFromJdbcResult(result));
-      }
-    } catch (SQLException exception) {
-      throw new OAuth2ServerException(exception);
-    } finally {
-      if (result != null) {
-        try {
-          result.close();
-        } catch (SQLException exception2) {
-          throw new OAuth2ServerException(exception2);
-        }
-      }
-      if (statement != null) {
-        try {
-          statement.close();
-        } catch (SQLException exception3) {
-          throw new OAuth2ServerException(exception3);
-        }
-      }
-      if (conn != null) {
-        try {
-          conn.close();
-        } catch (SQLException exception4) {
-          throw new OAuth2ServerException(exception4);
-        }
-      }
-    }
-    return ImmutableList.copyOf(list);
+    return ImmutableList.copyOf(
+        executor.query(
+            "client.listClient",
+            "SELECT * FROM client;",
+            statement -> {},
+            this::buildClientFromJdbcResult));
   }
 
+  /** Keyset pagination on the primary key, a page reads only its own rows. */
   @Override
-  public void reset() {
-    Connection conn = null;
-    PreparedStatement statement = null;
-    ResultSet result = null;
-    try {
-      conn = dataSource.getConnection();
-      conn.setAutoCommit(false);
-      String stmt = "DELETE FROM client;";
-      statement = conn.prepareStatement(stmt);
-      statement.execute();
-      conn.commit();
-    } catch (SQLException exception) {
-      try {
-        if (conn != null) {
-          conn.rollback();
-        }
-      } catch (SQLException exception1) {
-        throw new OAuth2ServerException(exception1);
-      }
-      throw new OAuth2ServerException(exception);
-    } finally {
-      if (result != null) {
-        try {
-          result.close();
-        } catch (SQLException exception2) {
-          throw new OAuth2ServerException(exception2);
-        }
-      }
-      if (statement != null) {
-        try {
-          statement.close();
-        } catch (SQLException exception3) {
-          throw new OAuth2ServerException(exception3);
-        }
-      }
-      if (conn != null) {
-        try {
-          conn.close();
-        } catch (SQLException exception4) {
-          throw new OAuth2ServerException(exception4);
-        }
-      }
-    }
+  public Page<ClientDetails> listClient(Optional<String> cursor, int limit) {
+    Page.checkLimit(limit);
+    return Page.fromRows(
+        executor.query(
+            "client.listClientPage",
+            "SELECT * FROM client WHERE client_id > ? ORDER BY client_id LIMIT ?;",
+            statement -> {
+              statement.setString(1, cursor.orElse(""));
+              statement.setInt(2, limit + 1);
+            },
+            this::buildClientFromJdbcResult),
+        limit,
+        ClientDetails::getClientId);
+  }
 
+  @Override
+  public void reset() {
+    executor.update("client.reset", "DELETE FROM client;", statement -> {});
   }
 
   private ClientDetails buildClientFromJdbcResult(ResultSet result) throws SQLException {
@@ -324,7 +171,7 @@ public class JdbcClientDetailsService implements ClientDetailsService {
       builder.addGrantTypes(OAuth2EnumMap.GRANT_TYPE_MAP.get(type));
     }
 
-    builder.addAllScopes(OAuth2Utils.parseScope(result.getString("scopes")));
+    builder.addAllScopes(scopeRegistry.read(result));
 
     String[] redirectUris = result.getString("redirect_uris").split("\\s+");
     builder.addAllRedirectUris(ImmutableSet.copyOf(redirectUris));
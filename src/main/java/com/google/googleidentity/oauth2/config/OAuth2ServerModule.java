@@ -18,6 +18,7 @@ package com.google.googleidentity.oauth2.config;
 
 import com.google.googleidentity.oauth2.authorizationcode.AuthorizationCodeModule;
 import com.google.googleidentity.oauth2.request.RequestHandlerModule;
+import com.google.googleidentity.oauth2.scope.ScopeModule;
 import com.google.googleidentity.oauth2.token.TokenModule;
 import com.google.inject.AbstractModule;
 
@@ -29,5 +30,6 @@ public class OAuth2ServerModule extends AbstractModule {
     install(new AuthorizationCodeModule());
     install(new TokenModule());
     install(new RequestHandlerModule());
+    install(new ScopeModule());
   }
 }
@@ -28,6 +28,7 @@ import com.google.googleidentity.oauth2.exception.InvalidRequestException;
 import com.google.googleidentity.oauth2.exception.OAuth2ServerException;
 import com.google.googleidentity.oauth2.request.OAuth2Request;
 import com.google.googleidentity.oauth2.request.RequestHandler;
+import com.google.googleidentity.oauth2.scope.ScopeRegistry;
 import com.google.googleidentity.oauth2.util.OAuth2Constants;
 import com.google.googleidentity.oauth2.util.OAuth2EnumMap;
 import com.google.googleidentity.oauth2.util.OAuth2Enums.GrantType;
@@ -59,11 +60,16 @@ public final class AuthorizationEndpoint extends HttpServlet {
 
   private final RequestHandler requestHandler;
 
+  private final ScopeRegistry scopeRegistry;
+
   @Inject
   public AuthorizationEndpoint(
-      ClientDetailsService clientDetailsService, RequestHandler requestHandler) {
+      ClientDetailsService clientDetailsService,
+      RequestHandler requestHandler,
+      ScopeRegistry scopeRegistry) {
     this.clientDetailsService = clientDetailsService;
     this.requestHandler = requestHandler;
+    this.scopeRegistry = scopeRegistry;
   }
 
   protected void doGet(HttpServletRequest request, HttpServletResponse response)
@@ -83,7 +89,8 @@ public final class AuthorizationEndpoint extends HttpServlet {
     }
 
     try {
-      AuthorizationEndpointRequestValidator.validateGET(request, clientDetailsService);
+      AuthorizationEndpointRequestValidator.validateGET(
+          request, clientDetailsService, scopeRegistry);
     } catch (OAuth2Exception exception) {
       log.info(
           "Failed in validating Get request in Authorization Endpoint."
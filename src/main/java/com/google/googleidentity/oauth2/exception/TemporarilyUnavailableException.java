@@ -0,0 +1,43 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package com.google.googleidentity.oauth2.exception;
+
+import org.apache.http.HttpStatus;
+
+/** The server is overloaded, the client may try again later. */
+public final class TemporarilyUnavailableException extends OAuth2Exception {
+
+  private static final String TEMPORARILY_UNAVAILABLE = "temporarily_unavailable";
+
+  public TemporarilyUnavailableException() {
+    super();
+  }
+
+  @Override
+  public int getHttpCode() {
+    return HttpStatus.SC_SERVICE_UNAVAILABLE;
+  }
+
+  @Override
+  public String getErrorType() {
+    return TEMPORARILY_UNAVAILABLE;
+  }
+
+  @Override
+  public String getErrorDescription() {
+    return "Too many pending authorizations, try again later!";
+  }
+}
@@ -25,6 +25,7 @@ import com.google.googleidentity.oauth2.exception.InvalidRequestException.ErrorC
 import com.google.googleidentity.oauth2.exception.InvalidScopeException;
 import com.google.googleidentity.oauth2.exception.OAuth2Exception;
 import com.google.googleidentity.oauth2.jwt.JwtSigningKeyResolver;
+import com.google.googleidentity.oauth2.scope.ScopeRegistry;
 import com.google.googleidentity.oauth2.token.OAuth2AccessToken;
 import com.google.googleidentity.oauth2.token.OAuth2TokenService;
 import com.google.googleidentity.oauth2.util.OAuth2ParameterNames;
@@ -60,16 +61,19 @@ final class JwtAssertionRequestHandler implements RequestHandler {
   private final UserDetailsService userDetailsService;
 
   private final ClientDetailsService clientDetailsService;
+  private final ScopeRegistry scopeRegistry;
   private final Logger log = Logger.getLogger("JwtAssertionTokenProcessor");
 
   @Inject
   public JwtAssertionRequestHandler(
       OAuth2TokenService oauth2TokenService,
       UserDetailsService userDetailsService,
-      ClientDetailsService clientDetailsService) {
+      ClientDetailsService clientDetailsService,
+      ScopeRegistry scopeRegistry) {
     this.oauth2TokenService = oauth2TokenService;
     this.userDetailsService = userDetailsService;
     this.clientDetailsService = clientDetailsService;
+    this.scopeRegistry = scopeRegistry;
   }
 
   @Override
@@ -164,7 +168,7 @@ final class JwtAssertionRequestHandler implements RequestHandler {
 
       if (!scopes.isEmpty()
           && client.getIsScoped()
-          && !client.getScopesList().containsAll(scopes)) {
+          && !scopeRegistry.containsAll(client.getScopesList(), scopes)) {
         throw new InvalidScopeException();
       }
 
@@ -200,7 +204,7 @@ final class JwtAssertionRequestHandler implements RequestHandler {
       userDetailsService.addUser(newUser);
       if (!scopes.isEmpty()
           && client.getIsScoped()
-          && (!client.getScopesList().containsAll(scopes))) {
+          && !scopeRegistry.containsAll(client.getScopesList(), scopes)) {
         throw new InvalidScopeException();
       }
 
@@ -26,6 +26,7 @@ import com.google.googleidentity.oauth2.jwt.JwkStore;
 import com.google.googleidentity.oauth2.token.OAuth2AccessToken;
 import com.google.googleidentity.oauth2.token.OAuth2RefreshToken;
 import com.google.googleidentity.oauth2.token.OAuth2TokenService;
+import com.google.googleidentity.oauth2.token.TokenDigest;
 import com.google.googleidentity.oauth2.util.OAuth2Constants.TokenTypes;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
@@ -74,16 +75,47 @@ public class RiscHandler {
       List<OAuth2AccessToken> accessTokenList, List<OAuth2RefreshToken> refreshTokenList) {
 
     for (OAuth2AccessToken token : accessTokenList) {
-      Thread thread = new sendEventThread(token);
-      thread.start();
+      Optional<String> tokenHash = riscTokenHash(token.getAccessToken(), token.getRiscTokenHash());
+      if (tokenHash.isPresent()) {
+        Thread thread =
+            new sendEventThread(
+                TokenTypes.ACCESS_TOKEN, token.getClientId(), token.getUsername(), tokenHash.get());
+        thread.start();
+      }
     }
 
     for (OAuth2RefreshToken token : refreshTokenList) {
-      Thread thread = new sendEventThread(token);
-      thread.start();
+      Optional<String> tokenHash =
+          riscTokenHash(token.getRefreshToken(), token.getRiscTokenHash());
+      if (tokenHash.isPresent()) {
+        Thread thread =
+            new sendEventThread(
+                TokenTypes.REFRESH_TOKEN,
+                token.getClientId(),
+                token.getUsername(),
+                tokenHash.get());
+        thread.start();
+      }
     }
   }
 
+  /**
+   * @param token the token value, or its digest identifier if it is stored by digest
+   * @param storedHash the RISC hash stored with a token stored by digest
+   * @return the hash identifying the token in the event, empty if it is stored by digest without
+   *     one, which is the case for tokens stored before the hashes were kept
+   */
+  private static Optional<String> riscTokenHash(String token, String storedHash) {
+    if (!storedHash.isEmpty()) {
+      return Optional.of(storedHash);
+    }
+    if (TokenDigest.isIdentifier(token)) {
+      log.warning("No risc for token " + token + ", stored by digest without its risc hash");
+      return Optional.empty();
+    }
+    return Optional.of(TokenDigest.riscHashOf(token));
+  }
+
   private String getJtiValue(String clientID, String username) {
     return Hashing.sha512()
         .hashString(
@@ -93,18 +125,16 @@ public class RiscHandler {
   }
 
   private class sendEventThread extends Thread {
-    String tokenType;
-    private OAuth2AccessToken accessToken;
-    private OAuth2RefreshToken refreshToken;
-
-    sendEventThread(OAuth2AccessToken oauth2AccessToken) {
-      this.accessToken = oauth2AccessToken;
-      tokenType = TokenTypes.ACCESS_TOKEN;
-    }
-
-    sendEventThread(OAuth2RefreshToken oauth2RefreshToken) {
-      this.refreshToken = oauth2RefreshToken;
-      tokenType = TokenTypes.REFRESH_TOKEN;
+    private final String tokenType;
+    private final String clientID;
+    private final String username;
+    private final String tokenHash;
+
+    sendEventThread(String tokenType, String clientID, String username, String tokenHash) {
+      this.tokenType = tokenType;
+      this.clientID = clientID;
+      this.username = username;
+      this.tokenHash = tokenHash;
     }
 
     public void run() {
@@ -126,26 +156,15 @@ public class RiscHandler {
       events.put("token_type", tokenType);
       events.put("token_identifier_alg", "hash_SHA512_double");
 
-      String tokenValue =
-          tokenType.equals(TokenTypes.ACCESS_TOKEN)
-              ? accessToken.getAccessToken()
-              : refreshToken.getRefreshToken();
-      byte[] hash = Hashing.sha512().hashString(tokenValue, StandardCharset.UTF_8).asBytes();
-      events.put("token", Hashing.sha512().hashBytes(hash).toString());
+      events.put("token", tokenHash);
 
-      String jtiValue =
-          tokenType.equals(TokenTypes.ACCESS_TOKEN)
-              ? getJtiValue(accessToken.getClientId(), accessToken.getUsername())
-              : getJtiValue(refreshToken.getClientId(), refreshToken.getUsername());
+      String jtiValue = getJtiValue(clientID, username);
 
       claims.put("https://schemas.openid.net/secevent/oauth/event-type/token-revoked", events);
 
-      Optional<ClientDetails> client =
-          clientDetailsService.getClientByID(accessToken.getClientId());
+      Optional<ClientDetails> client = clientDetailsService.getClientByID(clientID);
 
-      Preconditions.checkArgument(
-          clientDetailsService.getClientByID(accessToken.getClientId()).isPresent(),
-          "Client should exist");
+      Preconditions.checkArgument(client.isPresent(), "Client should exist");
 
       while (!successfullySentEvent && sendCount < MAX_RETRY_COUNT) {
         sendCount++;
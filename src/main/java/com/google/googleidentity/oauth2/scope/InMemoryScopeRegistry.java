@@ -0,0 +1,61 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package com.google.googleidentity.oauth2.scope;
+
+import com.google.inject.Singleton;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/** Assigns bits in the order scopes are first seen, for a single instance without a database. */
+@Singleton
+public final class InMemoryScopeRegistry implements ScopeRegistry {
+
+  private final Map<String, Integer> bits = new ConcurrentHashMap<>();
+  private final List<String> scopes = new CopyOnWriteArrayList<>();
+
+  @Override
+  public int register(String scope) {
+    Integer bit = bits.get(scope);
+    if (bit != null) {
+      return bit;
+    }
+    synchronized (this) {
+      bit = bits.get(scope);
+      if (bit == null) {
+        bit = scopes.size();
+        // Publish the scope before its bit, so every bit handed out can be resolved.
+        scopes.add(scope);
+        bits.put(scope, bit);
+      }
+      return bit;
+    }
+  }
+
+  @Override
+  public OptionalInt find(String scope) {
+    Integer bit = bits.get(scope);
+    return bit == null ? OptionalInt.empty() : OptionalInt.of(bit);
+  }
+
+  @Override
+  public Optional<String> scopeOf(int bit) {
+    return bit >= 0 && bit < scopes.size() ? Optional.of(scopes.get(bit)) : Optional.empty();
+  }
+}
@@ -0,0 +1,151 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package com.google.googleidentity.oauth2.scope;
+
+import com.google.common.collect.ImmutableList;
+import com.google.googleidentity.mysql.JdbcExecutor;
+import com.google.googleidentity.oauth2.exception.OAuth2ServerException;
+import com.google.googleidentity.oauth2.util.OAuth2Utils;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Scope bits shared by all instances through the scope table, so a mask stored by one instance
+ * means the same scopes to every other. The table is cached, and reloaded when a scope or bit is
+ * not in the cache, which only happens after another instance registered a scope.
+ *
+ * <p>A new scope is inserted on a connection of its own, so register the scopes of a token or
+ * client before starting the transaction that stores it.
+ */
+@Singleton
+public final class JdbcScopeRegistry implements ScopeRegistry {
+
+  /** The scope_mask columns are VARBINARY(255). */
+  public static final int MAX_SCOPES = 255 * 8;
+
+  /** Each failed attempt means another instance registered a scope meanwhile. */
+  private static final int MAX_INSERT_ATTEMPTS = 5;
+
+  private final JdbcExecutor executor;
+
+  private final Map<String, Integer> bits = new ConcurrentHashMap<>();
+
+  /** Scopes by bit as last loaded, replaced as a whole. */
+  private volatile ImmutableList<String> scopes = ImmutableList.of();
+
+  @Inject
+  public JdbcScopeRegistry(JdbcExecutor executor) {
+    this.executor = executor;
+  }
+
+  @Override
+  public int register(String scope) {
+    Integer bit = bits.get(scope);
+    return bit != null ? bit : registerNew(scope);
+  }
+
+  private synchronized int registerNew(String scope) {
+    for (int attempt = 1; ; attempt++) {
+      load();
+      Integer bit = bits.get(scope);
+      if (bit != null) {
+        return bit;
+      }
+      int next = scopes.size();
+      if (next >= MAX_SCOPES) {
+        throw new IllegalStateException("No bit left for scope " + scope);
+      }
+      try {
+        executor.update(
+            "scope.insertScope",
+            "INSERT INTO scope (bit, scope) VALUES (?, ?);",
+            statement -> {
+              statement.setInt(1, next);
+              statement.setString(2, scope);
+            });
+      } catch (OAuth2ServerException exception) {
+        if (!(exception.getCause() instanceof SQLIntegrityConstraintViolationException)
+            || attempt >= MAX_INSERT_ATTEMPTS) {
+          throw exception;
+        }
+      }
+    }
+  }
+
+  /** Does not read the table, see {@link ScopeRegistry#lookup}. */
+  @Override
+  public OptionalInt find(String scope) {
+    Integer bit = bits.get(scope);
+    return bit == null ? OptionalInt.empty() : OptionalInt.of(bit);
+  }
+
+  @Override
+  public Optional<String> scopeOf(int bit) {
+    if (bit < 0) {
+      return Optional.empty();
+    }
+    if (bit >= scopes.size()) {
+      synchronized (this) {
+        if (bit >= scopes.size()) {
+          load();
+        }
+      }
+    }
+    ImmutableList<String> loaded = scopes;
+    return bit < loaded.size() ? Optional.of(loaded.get(bit)) : Optional.empty();
+  }
+
+  private void load() {
+    List<String> rows =
+        executor.query(
+            "scope.listScopes",
+            "SELECT scope FROM scope ORDER BY bit;",
+            statement -> {},
+            result -> result.getString("scope"));
+    for (int bit = 0; bit < rows.size(); bit++) {
+      bits.put(rows.get(bit), bit);
+    }
+    scopes = ImmutableList.copyOf(rows);
+  }
+
+  /** Set the parameter to the mask of the scopes, which should be registered already. */
+  public void bind(PreparedStatement statement, int index, Collection<String> scopes)
+      throws SQLException {
+    statement.setBytes(index, register(scopes).toByteArray());
+  }
+
+  /**
+   * @return the scopes of the row, from its scope_mask column or, for a row written before the
+   *     column was added, its scopes column
+   */
+  public List<String> read(ResultSet result) throws SQLException {
+    byte[] mask = result.getBytes("scope_mask");
+    if (mask == null) {
+      return ImmutableList.copyOf(OAuth2Utils.parseScope(result.getString("scopes")));
+    }
+    return scopesOf(ScopeMask.fromByteArray(mask));
+  }
+}
@@ -0,0 +1,121 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package com.google.googleidentity.oauth2.scope;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * An immutable set of scopes as bits of a {@link ScopeRegistry}. A subset check is one AND per 64
+ * scopes, and a mask is stored as a few bytes instead of the scope names.
+ */
+public final class ScopeMask {
+
+  public static final ScopeMask EMPTY = new ScopeMask(new long[0]);
+
+  /** Without trailing zero words, so equal masks have equal words. */
+  private final long[] words;
+
+  private ScopeMask(long[] words) {
+    this.words = words;
+  }
+
+  public static ScopeMask of(BitSet bits) {
+    return new ScopeMask(bits.toLongArray());
+  }
+
+  /** @param words 64 bits each, taken over by the mask */
+  static ScopeMask ofWords(long[] words) {
+    int length = words.length;
+    while (length > 0 && words[length - 1] == 0) {
+      length--;
+    }
+    return new ScopeMask(length == words.length ? words : Arrays.copyOf(words, length));
+  }
+
+  /** @return words with the bit set, copied if it does not fit in them */
+  static long[] setBit(long[] words, int bit) {
+    int word = bit >>> 6;
+    long[] result = word < words.length ? words : Arrays.copyOf(words, word + 1);
+    result[word] |= 1L << bit;
+    return result;
+  }
+
+  /** @param bytes little endian as written by {@link #toByteArray} */
+  public static ScopeMask fromByteArray(byte[] bytes) {
+    return new ScopeMask(BitSet.valueOf(bytes).toLongArray());
+  }
+
+  /** @return whether every scope of other is in this mask */
+  public boolean containsAll(ScopeMask other) {
+    if (other.words.length > words.length) {
+      return false;
+    }
+    for (int i = 0; i < other.words.length; i++) {
+      if ((other.words[i] & ~words[i]) != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public boolean contains(int bit) {
+    int word = bit >>> 6;
+    return word < words.length && (words[word] & (1L << bit)) != 0;
+  }
+
+  public boolean isEmpty() {
+    return words.length == 0;
+  }
+
+  /** @return the first bit set at or after from, -1 if there is none */
+  public int nextBit(int from) {
+    int word = from >>> 6;
+    if (word >= words.length) {
+      return -1;
+    }
+    long remaining = words[word] & (-1L << from);
+    while (true) {
+      if (remaining != 0) {
+        return word * 64 + Long.numberOfTrailingZeros(remaining);
+      }
+      if (++word == words.length) {
+        return -1;
+      }
+      remaining = words[word];
+    }
+  }
+
+  /** @return the mask in one byte per eight scopes, empty for the empty mask */
+  public byte[] toByteArray() {
+    return BitSet.valueOf(words).toByteArray();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof ScopeMask && Arrays.equals(words, ((ScopeMask) o).words);
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(words);
+  }
+
+  @Override
+  public String toString() {
+    return BitSet.valueOf(words).toString();
+  }
+}
@@ -0,0 +1,94 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package com.google.googleidentity.oauth2.scope;
+
+import com.google.common.collect.ImmutableList;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.OptionalInt;
+
+/**
+ * Assigns each scope of a deployment a bit, so scopes are checked and stored as {@link
+ * ScopeMask}s. A bit is never reassigned, and names are only looked up where scopes leave the
+ * server as strings.
+ */
+public interface ScopeRegistry {
+
+  /** @return the bit of the scope, a new one if the scope is not registered yet */
+  int register(String scope);
+
+  /** @return the bit of the scope, empty if it is not registered */
+  OptionalInt find(String scope);
+
+  /** @return the scope of the bit, empty if no scope has it */
+  Optional<String> scopeOf(int bit);
+
+  /** @return the mask of the scopes, registering new ones */
+  default ScopeMask register(Collection<String> scopes) {
+    long[] words = new long[1];
+    for (String scope : scopes) {
+      words = ScopeMask.setBit(words, register(scope));
+    }
+    return ScopeMask.ofWords(words);
+  }
+
+  /**
+   * Only registered scopes are looked up, so scopes sent in a request can not fill the registry.
+   *
+   * @return the mask of the scopes, empty if one of them is not registered
+   */
+  default Optional<ScopeMask> lookup(Collection<String> scopes) {
+    long[] words = new long[1];
+    for (String scope : scopes) {
+      OptionalInt bit = find(scope);
+      if (!bit.isPresent()) {
+        return Optional.empty();
+      }
+      words = ScopeMask.setBit(words, bit.getAsInt());
+    }
+    return Optional.of(ScopeMask.ofWords(words));
+  }
+
+  /**
+   * Checks granted.containsAll(requested) on masks. The granted scopes are registered first, so a
+   * requested scope still not registered is not granted.
+   */
+  default boolean containsAll(Collection<String> granted, Collection<String> requested) {
+    ScopeMask grantedMask = register(granted);
+    for (String scope : requested) {
+      OptionalInt bit = find(scope);
+      if (!bit.isPresent() || !grantedMask.contains(bit.getAsInt())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the scopes of the mask in bit order
+   * @throws IllegalArgumentException if a bit of the mask is not assigned
+   */
+  default ImmutableList<String> scopesOf(ScopeMask mask) {
+    ImmutableList.Builder<String> scopes = ImmutableList.builder();
+    for (int bit = mask.nextBit(0); bit >= 0; bit = mask.nextBit(bit + 1)) {
+      int current = bit;
+      scopes.add(
+          scopeOf(bit)
+              .orElseThrow(() -> new IllegalArgumentException("No scope has bit " + current)));
+    }
+    return scopes.build();
+  }
+}
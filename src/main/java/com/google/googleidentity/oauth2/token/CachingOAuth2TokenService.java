@@ -0,0 +1,247 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.googleidentity.oauth2.request.OAuth2Request;
+import com.google.googleidentity.oauth2.util.Page;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Read through cache of access tokens in front of another {@link OAuth2TokenService}, so that
+ * validating the token of every resource request does not need a database round-trip.
+ *
+ * <p>The cache is bounded by size and by a time to live, and an entry never outlives the expired
+ * time of its token. All revocations evict the affected entries before they return, but only from
+ * the cache of this instance: with more than one instance a revoked access token stays valid on
+ * the others for up to the time to live. That is TOKEN_CACHE_SECONDS if set, 30 seconds otherwise,
+ * a twentieth of the ten minutes an access token is valid.
+ */
+@Singleton
+public final class CachingOAuth2TokenService implements OAuth2TokenService {
+
+  /** Name of the binding of the token service this cache reads through. */
+  public static final String BACKEND = "TokenServiceBackend";
+
+  private static final long DEFAULT_MAXIMUM_SIZE = 100000;
+
+  private static final Duration DEFAULT_TIME_TO_LIVE = Duration.ofSeconds(30);
+
+  private final OAuth2TokenService delegate;
+
+  private final Cache<String, OAuth2AccessToken> accessTokenCache;
+
+  /**
+   * Incremented after every revocation. A token read from the delegate is only kept in the cache
+   * when no revocation happened during the read, otherwise a revoked token could be cached again.
+   */
+  private final AtomicLong revocations = new AtomicLong();
+
+  @Inject
+  public CachingOAuth2TokenService(@Named(BACKEND) OAuth2TokenService delegate) {
+    this(delegate, DEFAULT_MAXIMUM_SIZE, timeToLiveFromEnvironment());
+  }
+
+  CachingOAuth2TokenService(
+      OAuth2TokenService delegate, long maximumSize, Duration timeToLive) {
+    this.delegate = delegate;
+    this.accessTokenCache =
+        CacheBuilder.newBuilder()
+            .maximumSize(maximumSize)
+            .expireAfterWrite(timeToLive)
+            .recordStats()
+            .build();
+  }
+
+  @Override
+  public OAuth2AccessToken generateAccessToken(OAuth2Request request) {
+    long revocationsBeforeWrite = revocations.get();
+    OAuth2AccessToken token = delegate.generateAccessToken(request);
+    cacheIfNotRevoked(token, revocationsBeforeWrite);
+    return token;
+  }
+
+  @Override
+  public Optional<OAuth2AccessToken> refreshToken(String refreshToken) {
+    long revocationsBeforeWrite = revocations.get();
+    Optional<OAuth2AccessToken> token = delegate.refreshToken(refreshToken);
+    token.ifPresent(newToken -> cacheIfNotRevoked(newToken, revocationsBeforeWrite));
+    return token;
+  }
+
+  @Override
+  public Optional<OAuth2AccessToken> readAccessToken(String accessToken) {
+    OAuth2AccessToken cachedToken = accessTokenCache.getIfPresent(accessToken);
+    if (cachedToken != null) {
+      if (!isExpired(cachedToken)) {
+        return Optional.of(cachedToken);
+      }
+      accessTokenCache.invalidate(accessToken);
+    }
+
+    long revocationsBeforeRead = revocations.get();
+    Optional<OAuth2AccessToken> token = delegate.readAccessToken(accessToken);
+    if (token.isPresent() && !isExpired(token.get())) {
+      cacheIfNotRevoked(token.get(), revocationsBeforeRead);
+    }
+    return token;
+  }
+
+  @Override
+  public Optional<OAuth2RefreshToken> readRefreshToken(String refreshToken) {
+    return delegate.readRefreshToken(refreshToken);
+  }
+
+  @Override
+  public boolean revokeByAccessToken(String accessToken) {
+    // Revoking an access token with a refresh token revokes all tokens of that refresh token. Read
+    // through the map view, which records no stats, so they only count readAccessToken.
+    OAuth2AccessToken cachedToken = accessTokenCache.asMap().get(accessToken);
+    Optional<OAuth2AccessToken> token =
+        cachedToken != null ? Optional.of(cachedToken) : delegate.readAccessToken(accessToken);
+
+    boolean result = delegate.revokeByAccessToken(accessToken);
+
+    String refreshToken = token.map(OAuth2AccessToken::getRefreshToken).orElse("");
+    evictAll(
+        cached ->
+            cached.getAccessToken().equals(accessToken)
+                || (!Strings.isNullOrEmpty(refreshToken)
+                    && cached.getRefreshToken().equals(refreshToken)));
+    return result;
+  }
+
+  @Override
+  public boolean revokeByRefreshToken(String refreshToken) {
+    boolean result = delegate.revokeByRefreshToken(refreshToken);
+    // Tokens read from digest keys carry the identifier of their refresh token.
+    String identifier = TokenDigest.identifierOf(refreshToken);
+    evictAll(
+        cached ->
+            cached.getRefreshToken().equals(refreshToken)
+                || cached.getRefreshToken().equals(identifier));
+    return result;
+  }
+
+  @Override
+  public boolean revokeUserClientTokens(String username, String clientID) {
+    boolean result = delegate.revokeUserClientTokens(username, clientID);
+    evictAll(
+        cached -> cached.getUsername().equals(username) && cached.getClientId().equals(clientID));
+    return result;
+  }
+
+  @Override
+  public RevokedTokens revokeAndListUserClientTokens(String username, String clientID) {
+    RevokedTokens result = delegate.revokeAndListUserClientTokens(username, clientID);
+    evictAll(
+        cached -> cached.getUsername().equals(username) && cached.getClientId().equals(clientID));
+    return result;
+  }
+
+  @Override
+  public List<String> listUserClient(String username) {
+    return delegate.listUserClient(username);
+  }
+
+  @Override
+  public List<OAuth2AccessToken> listUserClientAccessTokens(String username, String clientID) {
+    return delegate.listUserClientAccessTokens(username, clientID);
+  }
+
+  @Override
+  public List<OAuth2RefreshToken> listUserClientRefreshTokens(String username, String clientID) {
+    return delegate.listUserClientRefreshTokens(username, clientID);
+  }
+
+  @Override
+  public Page<String> listUserClient(String username, Optional<String> cursor, int limit) {
+    return delegate.listUserClient(username, cursor, limit);
+  }
+
+  @Override
+  public Page<OAuth2AccessToken> listUserClientAccessTokens(
+      String username, String clientID, Optional<String> cursor, int limit) {
+    return delegate.listUserClientAccessTokens(username, clientID, cursor, limit);
+  }
+
+  @Override
+  public Page<OAuth2RefreshToken> listUserClientRefreshTokens(
+      String username, String clientID, Optional<String> cursor, int limit) {
+    return delegate.listUserClientRefreshTokens(username, clientID, cursor, limit);
+  }
+
+  @Override
+  public void reset() {
+    delegate.reset();
+    revocations.incrementAndGet();
+    accessTokenCache.invalidateAll();
+  }
+
+  /** @return the number of access token reads served from the cache */
+  public long getHitCount() {
+    return accessTokenCache.stats().hitCount();
+  }
+
+  /** @return the number of access token reads which went to the delegate */
+  public long getMissCount() {
+    return accessTokenCache.stats().missCount();
+  }
+
+  /**
+   * Cache a token got from the delegate. If a revocation started after revocationsBefore was read,
+   * the token may have been revoked already and the entry is dropped again.
+   */
+  private void cacheIfNotRevoked(OAuth2AccessToken token, long revocationsBefore) {
+    accessTokenCache.put(token.getAccessToken(), token);
+    if (revocations.get() != revocationsBefore) {
+      accessTokenCache.invalidate(token.getAccessToken());
+    }
+  }
+
+  /**
+   * Evict the cached tokens matching the filter. Called after the delegate finished the
+   * revocation, the counter is incremented before evicting so that a read racing with the
+   * revocation drops what it cached.
+   */
+  private void evictAll(Predicate<OAuth2AccessToken> filter) {
+    revocations.incrementAndGet();
+    accessTokenCache.asMap().values().removeIf(filter);
+  }
+
+  /** @return the time to live from TOKEN_CACHE_SECONDS if that is set, the default otherwise */
+  static Duration timeToLiveFromEnvironment() {
+    String seconds = System.getenv("TOKEN_CACHE_SECONDS");
+    return Strings.isNullOrEmpty(seconds)
+        ? DEFAULT_TIME_TO_LIVE
+        : Duration.ofSeconds(Long.parseLong(seconds));
+  }
+
+  private static boolean isExpired(OAuth2AccessToken token) {
+    return !Instant.ofEpochSecond(token.getExpiredTime()).isAfter(Instant.now());
+  }
+}
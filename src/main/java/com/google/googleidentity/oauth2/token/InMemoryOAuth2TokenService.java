@@ -17,288 +17,831 @@
 package com.google.googleidentity.oauth2.token;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import com.google.googleidentity.oauth2.exception.OAuth2ServerException;
 import com.google.googleidentity.oauth2.request.OAuth2Request;
+import com.google.googleidentity.oauth2.token.ScopeSetDictionary.ScopeSet;
+import com.google.googleidentity.oauth2.token.UserTokens.AccessTokenEntry;
+import com.google.googleidentity.oauth2.token.UserTokens.RefreshTokenEntry;
+import com.google.googleidentity.oauth2.util.ExpiryWheel;
+import com.google.googleidentity.oauth2.util.Page;
 import com.google.inject.Singleton;
+import com.google.protobuf.ByteString;
 
-import javax.crypto.KeyGenerator;
-import java.security.InvalidParameterException;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.security.Key;
-import java.security.NoSuchAlgorithmException;
+import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Map;
-import java.util.HashSet;
 import java.util.UUID;
 import java.util.Optional;
 import java.util.List;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Default in memory token service. An implementation of {@link OAuth2TokenService}. The encryption
  * of clientId and username is only needed in this InMemory Design.
+ *
+ * <p>Only the random id of a token is stored, see {@link UserTokens}. The token string is the
+ * deterministic encryption of username, client ID, that id and the expired time, see {@link
+ * UserClientTokenInfo}, so it is rebuilt for the tokens handed out by the list methods. After a
+ * {@link #rotateTokenKey} a rebuilt token string differs from the one issued, both are valid.
+ *
+ * <p>Given a journal directory, every change is also appended to a {@link TokenJournal} before the
+ * call returns, and the tokens and keys in it are restored on startup.
  */
 @Singleton
 public class InMemoryOAuth2TokenService implements OAuth2TokenService {
 
   private static final Logger log = Logger.getLogger("InMemoryOAuth2TokenService");
+
+  /** One slot per second, a rotation is longer than the valid time of an access token. */
+  private static final int EXPIRY_WHEEL_SLOTS = 1024;
+
+  /** The journal is compacted when its current segment is this large. */
+  private static final long JOURNAL_SEGMENT_SIZE = 64L << 20;
+
+  /** The journal is compacted at least this often if anything was appended. */
+  private static final Duration JOURNAL_COMPACTION_INTERVAL = Duration.ofMinutes(10);
+
   Map<String, UserTokens> userTokensMap = new ConcurrentHashMap<>();
   ScheduledExecutorService service;
   private Duration tokenValidTime = Duration.ofMinutes(10);
-  private Key aesKey;
+  private final TokenKeyRing keyRing = new TokenKeyRing();
+  private final Clock clock;
+  private final ScopeSetDictionary scopeSets = new ScopeSetDictionary();
+
+  /** Every user of a client shares one copy of the client ID. */
+  private final Interner<String> clientIDs = Interners.newWeakInterner();
+
+  /** Holds one username per user with access tokens, due at its earliest expired time. */
+  private final ExpiryWheel<String> expiryWheel;
+
+  /** Null if the tokens are only kept in memory. */
+  private final TokenJournal journal;
+
+  /**
+   * Entries of changes not yet appended to the journal. Queued under the lock of the user, so the
+   * entries of a user are in the order of its changes, and appended by {@link #syncJournal}.
+   */
+  private final Queue<TokenJournalEntry> journalQueue = new ConcurrentLinkedQueue<>();
+
+  private Instant lastCompaction;
 
   public InMemoryOAuth2TokenService() {
-    initKey();
-    setTokenCleaner();
+    this(Clock.systemUTC());
   }
 
-  private void initKey() {
-    KeyGenerator generator;
-    try {
-      generator = KeyGenerator.getInstance("AES");
-      generator.init(256);
-    } catch (NoSuchAlgorithmException e) {
-      throw new OAuth2ServerException("Error when init Key!", e);
+  /** Restore the tokens journaled in the directory and journal all changes there. */
+  public InMemoryOAuth2TokenService(Path journalDirectory) {
+    this(Clock.systemUTC(), Optional.of(journalDirectory));
+  }
+
+  InMemoryOAuth2TokenService(Clock clock) {
+    this(clock, Optional.empty());
+  }
+
+  InMemoryOAuth2TokenService(Clock clock, Optional<Path> journalDirectory) {
+    this.clock = clock;
+    this.expiryWheel = new ExpiryWheel<>(EXPIRY_WHEEL_SLOTS, clock);
+    if (journalDirectory.isPresent()) {
+      try {
+        journal = TokenJournal.open(journalDirectory.get(), this::replay);
+      } catch (IOException e) {
+        throw new OAuth2ServerException("Error when opening token journal!", e);
+      }
+      // A new journal has no key yet, journaling the restored keys again is harmless.
+      keyRing.forEachKey(
+          (key, keyId) -> journal.append(keyAdded(keyId, key, keyId == keyRing.getCurrentKeyId())));
+      journal.sync();
+      lastCompaction = clock.instant();
+    } else {
+      journal = null;
     }
-    aesKey = generator.generateKey();
+    setTokenCleaner();
   }
 
   private void setTokenCleaner() {
     service = Executors.newSingleThreadScheduledExecutor();
-    service.scheduleAtFixedRate(new TokenCleaner(), 1, 1, TimeUnit.HOURS);
+    service.scheduleWithFixedDelay(new TokenCleaner(), 1, 1, TimeUnit.SECONDS);
   }
 
-  private UserTokens getUser(String username) {
-    if (!userTokensMap.containsKey(username)) {
-      userTokensMap.put(username, new UserTokens(username));
+  /**
+   * Atomically apply an update to the tokens of a user and drop the user if no tokens are left.
+   * The update runs under the lock of the user, so updates of different users run in parallel and
+   * updates of the same user are serialized. The map itself is only touched to add or remove the
+   * user; an update that finds its user already dropped starts over with the current one.
+   *
+   * @param create whether to start an empty user if there is none yet
+   * @return the result of the update, false if the user does not exist and create is false
+   */
+  private boolean updateUser(String username, boolean create, Predicate<UserTokens> update) {
+    while (true) {
+      UserTokens user =
+          create
+              ? userTokensMap.computeIfAbsent(username, UserTokens::new)
+              : userTokensMap.get(username);
+      if (user == null) {
+        return false;
+      }
+      boolean result;
+      synchronized (user) {
+        if (user.isDropped()) {
+          continue;
+        }
+        result = update.test(user);
+        if (user.isEmpty()) {
+          user.markDropped();
+          userTokensMap.remove(username, user);
+        }
+      }
+      return result;
     }
-
-    UserTokens user = userTokensMap.get(username);
-
-    return user;
   }
 
   @Override
   public OAuth2AccessToken generateAccessToken(OAuth2Request request) {
 
-    String clientID = request.getRequestAuth().getClientId();
+    String clientID = clientIDs.intern(request.getRequestAuth().getClientId());
     String username = request.getRequestAuth().getUsername();
+    boolean refreshable = request.getRequestBody().getRefreshable();
+    int scopeSetId =
+        scopeSets.intern(
+            request.getRequestBody().getIsScoped(), request.getRequestBody().getScopesList());
+    long expiredTime = clock.instant().plusSeconds(tokenValidTime.getSeconds()).getEpochSecond();
+
+    Optional<RefreshTokenEntry> refreshToken;
+    AccessTokenEntry accessToken;
+    // Token ids are random, a collision is only retried for correctness.
+    do {
+      refreshToken =
+          refreshable
+              ? Optional.of(new RefreshTokenEntry(UUID.randomUUID(), scopeSetId))
+              : Optional.empty();
+      accessToken =
+          new AccessTokenEntry(
+              UUID.randomUUID(),
+              expiredTime,
+              scopeSetId,
+              refreshToken.map(RefreshTokenEntry::getId).orElse(null));
+    } while (!updateUser(username, true, addTokens(clientID, refreshToken, accessToken)));
+    syncJournal();
+
+    return toAccessToken(
+        username,
+        clientID,
+        accessToken,
+        Optional.of(
+            encodeTokenString(
+                username, clientID, accessToken.getId(), accessToken.getExpiredTime())),
+        Optional.empty());
+  }
 
-    UserTokens user = getUser(username);
-
-    Optional<String> refreshTokenString = Optional.empty();
-
-    if (request.getRequestBody().getRefreshable()) {
-
-      String refreshTokenValue = UUID.randomUUID().toString();
-      refreshTokenString =
-          Optional.ofNullable(
-              new UserClientTokenInfo(username, clientID, refreshTokenValue)
-                  .getEncryptTokenString(aesKey));
-      while (user.readRefreshToken(clientID, refreshTokenString.get()).isPresent()) {
-        refreshTokenValue = UUID.randomUUID().toString();
-        refreshTokenString =
-            Optional.ofNullable(
-                new UserClientTokenInfo(username, clientID, refreshTokenValue)
-                    .getEncryptTokenString(aesKey));
+  /**
+   * Add a new access token and its refresh token in one update, so an unlink in between can not
+   * leave a refresh token without its first access token.
+   */
+  private Predicate<UserTokens> addTokens(
+      String clientID, Optional<RefreshTokenEntry> refreshToken, AccessTokenEntry accessToken) {
+    return user -> {
+      if (user.readAccessToken(clientID, accessToken.getId()).isPresent()) {
+        return false;
       }
+      if (refreshToken.isPresent()
+          && !journalIf(
+              user.addRefreshToken(clientID, refreshToken.get()),
+              () -> refreshTokenAdded(user.getUsername(), clientID, refreshToken.get()))) {
+        return false;
+      }
+      return journalIf(
+          addAccessToken(user, clientID, accessToken),
+          () -> accessTokenAdded(user.getUsername(), clientID, accessToken));
+    };
+  }
 
-      OAuth2RefreshToken refreshToken =
-          OAuth2RefreshToken.newBuilder()
-              .setRefreshToken(refreshTokenString.get())
-              .setClientId(request.getRequestAuth().getClientId())
-              .setUsername(request.getRequestAuth().getUsername())
-              .setIsScoped(request.getRequestBody().getIsScoped())
-              .addAllScopes(request.getRequestBody().getScopesList())
-              .build();
-      user.addRefreshToken(clientID, refreshToken);
+  private boolean addAccessToken(UserTokens user, String clientID, AccessTokenEntry accessToken) {
+    if (!user.addAccessToken(clientID, accessToken)) {
+      return false;
     }
-
-    return getNewAccessToken(request, refreshTokenString);
+    if (user.markExpiryScheduled()) {
+      expiryWheel.schedule(accessToken.getExpiredTime(), user.getUsername());
+    }
+    return true;
   }
 
   @Override
   public Optional<OAuth2AccessToken> refreshToken(String refreshToken) {
-    Optional<OAuth2RefreshToken> token = readRefreshToken(refreshToken);
+    Optional<UserClientTokenInfo> info = decodeTokenString(refreshToken);
+    if (!info.isPresent()) {
+      return Optional.empty();
+    }
+    String username = info.get().getUsername();
+    String clientID = info.get().getClientID();
+    UUID refreshTokenId = info.get().getTokenID();
+
+    Optional<RefreshTokenEntry> token = readRefreshTokenEntry(username, clientID, refreshTokenId);
     // The refreshToken may be wrong or not existed
     if (!token.isPresent()) {
       return Optional.empty();
     }
 
-    String username = token.get().getUsername();
-    String clientID = token.get().getClientId();
-
-    OAuth2Request.Builder requestBuilder = OAuth2Request.newBuilder();
-    requestBuilder.getRequestAuthBuilder().setClientId(clientID).setUsername(username);
-    requestBuilder
-        .getRequestBodyBuilder()
-        .setIsScoped(token.get().getIsScoped())
-        .addAllScopes(token.get().getScopesList())
-        .setRefreshable(true);
+    long expiredTime = clock.instant().plusSeconds(tokenValidTime.getSeconds()).getEpochSecond();
+    while (true) {
+      AccessTokenEntry accessToken =
+          new AccessTokenEntry(
+              UUID.randomUUID(), expiredTime, token.get().getScopeSetId(), refreshTokenId);
+      if (updateUser(
+          username,
+          false,
+          user ->
+              journalIf(
+                  addAccessToken(user, clientID, accessToken),
+                  () -> accessTokenAdded(username, clientID, accessToken)))) {
+        syncJournal();
+        return Optional.of(
+            toAccessToken(
+                username,
+                clientID,
+                accessToken,
+                Optional.of(
+                    encodeTokenString(
+                        username,
+                        clientID,
+                        accessToken.getId(),
+                        accessToken.getExpiredTime())),
+                Optional.of(refreshToken)));
+      }
+      // Either an id collision or the refresh token was revoked meanwhile.
+      if (!readRefreshTokenEntry(username, clientID, refreshTokenId).isPresent()) {
+        return Optional.empty();
+      }
+    }
+  }
 
-    return Optional.of(getNewAccessToken(requestBuilder.build(), Optional.of(refreshToken)));
+  /** @param expiredTime in epoch seconds, 0 for a refresh token */
+  private String encodeTokenString(String username, String clientID, UUID id, long expiredTime) {
+    return new UserClientTokenInfo(username, clientID, id, expiredTime)
+        .getEncryptTokenString(keyRing);
   }
 
   /**
-   * Generate a new access token for a request. The refresh token is already there or no refresh
-   * token is needed for the request.
+   * @return the decrypted token string, empty if it is not a valid token string of this service or
+   *     expired
    */
-  private OAuth2AccessToken getNewAccessToken(
-      OAuth2Request request, Optional<String> refreshTokenString) {
-
-    String clientID = request.getRequestAuth().getClientId();
-    String username = request.getRequestAuth().getUsername();
-
-    UserTokens user = getUser(username);
-
-    String accessTokenString = "";
-
-    String accessTokenValue = UUID.randomUUID().toString();
-    accessTokenString =
-        new UserClientTokenInfo(username, clientID, accessTokenValue).getEncryptTokenString(aesKey);
+  private Optional<UserClientTokenInfo> decodeTokenString(String tokenString) {
+    return UserClientTokenInfo.decryptTokenString(keyRing, tokenString, clock.instant());
+  }
 
-    while (user.readAccessToken(clientID, accessTokenString).isPresent()) {
-      accessTokenValue = UUID.randomUUID().toString();
-      accessTokenString =
-          new UserClientTokenInfo(username, clientID, accessTokenValue)
-              .getEncryptTokenString(aesKey);
+  /**
+   * Start a new key for token strings. Token strings issued before stay valid, the 256th rotation
+   * retires the key in use now.
+   */
+  public synchronized void rotateTokenKey() {
+    int keyId = keyRing.rotate();
+    if (journal != null) {
+      journal.append(keyAdded(keyId, keyRing.getKey(keyId).get(), true));
+      journal.sync();
     }
+  }
+
+  /**
+   * Build the protobuf of a stored access token.
+   *
+   * @param tokenString the token string if the caller has it, it is rebuilt otherwise
+   * @param refreshTokenString the refresh token string if the caller has it, it is rebuilt
+   *     otherwise
+   */
+  private OAuth2AccessToken toAccessToken(
+      String username,
+      String clientID,
+      AccessTokenEntry entry,
+      Optional<String> tokenString,
+      Optional<String> refreshTokenString) {
+    ScopeSet scopeSet = scopeSets.get(entry.getScopeSetId());
     OAuth2AccessToken.Builder builder =
         OAuth2AccessToken.newBuilder()
-            .setAccessToken(accessTokenString)
-            .setClientId(request.getRequestAuth().getClientId())
-            .setUsername(request.getRequestAuth().getUsername())
-            .setIsScoped(request.getRequestBody().getIsScoped())
-            .addAllScopes(request.getRequestBody().getScopesList())
-            .setExpiredTime(
-                Instant.now().plusSeconds(tokenValidTime.getSeconds()).getEpochSecond());
-    refreshTokenString.ifPresent(builder::setRefreshToken);
-    OAuth2AccessToken token = builder.build();
-    user.addAccessToken(clientID, token);
-    return token;
+            .setAccessToken(
+                tokenString.orElseGet(
+                    () ->
+                        encodeTokenString(
+                            username, clientID, entry.getId(), entry.getExpiredTime())))
+            .setClientId(clientID)
+            .setUsername(username)
+            .setIsScoped(scopeSet.isScoped())
+            .addAllScopes(scopeSet.getScopes())
+            .setExpiredTime(entry.getExpiredTime());
+    entry
+        .getRefreshTokenId()
+        .ifPresent(
+            id ->
+                builder.setRefreshToken(
+                    refreshTokenString.orElseGet(
+                        () -> encodeTokenString(username, clientID, id, 0))));
+    return builder.build();
   }
 
-  @Override
-  public Optional<OAuth2AccessToken> readAccessToken(String accessToken) {
-    UserClientTokenInfo info;
+  /** Build the protobuf of a stored refresh token. */
+  private OAuth2RefreshToken toRefreshToken(
+      String username, String clientID, RefreshTokenEntry entry, Optional<String> tokenString) {
+    ScopeSet scopeSet = scopeSets.get(entry.getScopeSetId());
+    return OAuth2RefreshToken.newBuilder()
+        .setRefreshToken(
+            tokenString.orElseGet(() -> encodeTokenString(username, clientID, entry.getId(), 0)))
+        .setClientId(clientID)
+        .setUsername(username)
+        .setIsScoped(scopeSet.isScoped())
+        .addAllScopes(scopeSet.getScopes())
+        .build();
+  }
 
-    try {
-      info = UserClientTokenInfo.decryptTokenString(aesKey, accessToken);
-    } catch (InvalidParameterException exception) {
-      log.log(Level.INFO, "Invalid access token Value", exception);
-      return Optional.empty();
-    }
+  private Optional<AccessTokenEntry> readAccessTokenEntry(
+      String username, String clientID, UUID id) {
+    UserTokens user = userTokensMap.get(username);
+    return user == null ? Optional.empty() : user.readAccessToken(clientID, id);
+  }
 
-    String username = info.getUsername();
-    String clientID = info.getClientID();
-    String tokenValue = info.getTokenValue();
+  private Optional<RefreshTokenEntry> readRefreshTokenEntry(
+      String username, String clientID, UUID id) {
+    UserTokens user = userTokensMap.get(username);
+    return user == null ? Optional.empty() : user.readRefreshToken(clientID, id);
+  }
 
-    if (userTokensMap.containsKey(username)) {
-      return userTokensMap.get(username).readAccessToken(clientID, accessToken);
-    } else {
+  @Override
+  public Optional<OAuth2AccessToken> readAccessToken(String accessToken) {
+    Optional<UserClientTokenInfo> info = decodeTokenString(accessToken);
+    if (!info.isPresent()) {
       return Optional.empty();
     }
+    String username = info.get().getUsername();
+    String clientID = info.get().getClientID();
+
+    return readAccessTokenEntry(username, clientID, info.get().getTokenID())
+        .map(
+            entry ->
+                toAccessToken(
+                    username, clientID, entry, Optional.of(accessToken), Optional.empty()));
   }
 
   @Override
   public Optional<OAuth2RefreshToken> readRefreshToken(String refreshToken) {
-    UserClientTokenInfo info;
-
-    try {
-      info = UserClientTokenInfo.decryptTokenString(aesKey, refreshToken);
-    } catch (InvalidParameterException exception) {
-      log.log(Level.INFO, "Invalid refresh token Value", exception);
+    Optional<UserClientTokenInfo> info = decodeTokenString(refreshToken);
+    if (!info.isPresent()) {
       return Optional.empty();
     }
+    String username = info.get().getUsername();
+    String clientID = info.get().getClientID();
 
-    String username = info.getUsername();
-    String clientID = info.getClientID();
-
-    if (userTokensMap.containsKey(username)) {
-      return userTokensMap.get(username).readRefreshToken(clientID, refreshToken);
-    } else {
-      return Optional.empty();
-    }
+    return readRefreshTokenEntry(username, clientID, info.get().getTokenID())
+        .map(entry -> toRefreshToken(username, clientID, entry, Optional.of(refreshToken)));
   }
 
   @Override
   public boolean revokeByAccessToken(String accessToken) {
-    Optional<OAuth2AccessToken> token = readAccessToken(accessToken);
-
-    if (!token.isPresent()
-        || Instant.ofEpochSecond(token.get().getExpiredTime()).isBefore(Instant.now())) {
+    Optional<UserClientTokenInfo> info = decodeTokenString(accessToken);
+    if (!info.isPresent()) {
       return false;
     }
-
-    return getUser(token.get().getUsername()).revokeByAccessToken(token.get());
+    String username = info.get().getUsername();
+    String clientID = info.get().getClientID();
+    UUID id = info.get().getTokenID();
+
+    // An expired access token is already rejected by decodeTokenString.
+    boolean revoked =
+        updateUser(
+            username,
+            false,
+            user ->
+                journalIf(
+                    user.revokeByAccessToken(clientID, id),
+                    () ->
+                        TokenJournalEntry.newBuilder()
+                            .setAccessTokenRevoked(tokenRevoked(username, clientID, id))
+                            .build()));
+    syncJournal();
+    return revoked;
   }
 
   @Override
   public boolean revokeByRefreshToken(String refreshToken) {
-    Optional<OAuth2RefreshToken> token = readRefreshToken(refreshToken);
-
-    if (!token.isPresent()) {
+    Optional<UserClientTokenInfo> info = decodeTokenString(refreshToken);
+    if (!info.isPresent()) {
       return false;
     }
-
-    return getUser(token.get().getUsername()).revokeByRefreshToken(token.get());
+    String username = info.get().getUsername();
+    String clientID = info.get().getClientID();
+    UUID id = info.get().getTokenID();
+
+    boolean revoked =
+        updateUser(
+            username,
+            false,
+            user ->
+                journalIf(
+                    user.revokeByRefreshToken(clientID, id),
+                    () ->
+                        TokenJournalEntry.newBuilder()
+                            .setRefreshTokenRevoked(tokenRevoked(username, clientID, id))
+                            .build()));
+    syncJournal();
+    return revoked;
   }
 
   @Override
   public boolean revokeUserClientTokens(String username, String clientID) {
-    if (userTokensMap.containsKey(username)) {
-      return userTokensMap.get(username).revokeUserClientTokens(clientID);
-    } else {
-      return false;
+    boolean revoked =
+        updateUser(
+            username,
+            false,
+            user ->
+                journalIf(
+                    user.revokeUserClientTokens(clientID),
+                    () -> userClientRevoked(username, clientID)));
+    syncJournal();
+    return revoked;
+  }
+
+  @Override
+  public RevokedTokens revokeAndListUserClientTokens(String username, String clientID) {
+    List<AccessTokenEntry> accessTokens = new ArrayList<>();
+    List<RefreshTokenEntry> refreshTokens = new ArrayList<>();
+    updateUser(
+        username,
+        false,
+        user -> {
+          // Listed in the same update as the revocation, so no token can be added in between.
+          accessTokens.addAll(user.listAccessTokens(clientID));
+          refreshTokens.addAll(user.listRefreshTokens(clientID));
+          return journalIf(
+              user.revokeUserClientTokens(clientID),
+              () -> userClientRevoked(username, clientID));
+        });
+    syncJournal();
+
+    RevokedTokens.Builder revoked = RevokedTokens.newBuilder();
+    for (AccessTokenEntry entry : accessTokens) {
+      revoked.addAccessTokens(
+          toAccessToken(username, clientID, entry, Optional.empty(), Optional.empty()));
     }
+    for (RefreshTokenEntry entry : refreshTokens) {
+      revoked.addRefreshTokens(toRefreshToken(username, clientID, entry, Optional.empty()));
+    }
+    return revoked.build();
   }
 
   @Override
   public List<String> listUserClient(String username) {
-    if (userTokensMap.containsKey(username)) {
-      return userTokensMap.get(username).listClients();
-    } else {
-      return ImmutableList.of();
-    }
+    UserTokens user = userTokensMap.get(username);
+    return user == null ? ImmutableList.of() : user.listClients();
   }
 
   @Override
   public List<OAuth2AccessToken> listUserClientAccessTokens(String username, String clientID) {
-    if (userTokensMap.containsKey(username)) {
-      return userTokensMap.get(username).listAccessTokens(clientID);
-    } else {
+    UserTokens user = userTokensMap.get(username);
+    if (user == null) {
       return ImmutableList.of();
     }
+    ImmutableList.Builder<OAuth2AccessToken> list = ImmutableList.builder();
+    for (AccessTokenEntry entry : user.listAccessTokens(clientID)) {
+      list.add(toAccessToken(username, clientID, entry, Optional.empty(), Optional.empty()));
+    }
+    return list.build();
   }
 
   @Override
   public List<OAuth2RefreshToken> listUserClientRefreshTokens(String username, String clientID) {
-    if (userTokensMap.containsKey(username)) {
-      return userTokensMap.get(username).listRefreshTokens(clientID);
-    } else {
+    UserTokens user = userTokensMap.get(username);
+    if (user == null) {
       return ImmutableList.of();
     }
+    ImmutableList.Builder<OAuth2RefreshToken> list = ImmutableList.builder();
+    for (RefreshTokenEntry entry : user.listRefreshTokens(clientID)) {
+      list.add(toRefreshToken(username, clientID, entry, Optional.empty()));
+    }
+    return list.build();
+  }
+
+  @Override
+  public Page<String> listUserClient(String username, Optional<String> cursor, int limit) {
+    Page.checkLimit(limit);
+    UserTokens user = userTokensMap.get(username);
+    List<String> rows = user == null ? ImmutableList.of() : user.listClients(cursor, limit + 1);
+    return Page.fromRows(rows, limit, clientID -> clientID);
+  }
+
+  /** Pages are in token ID order, only the tokens of a page have their strings built. */
+  @Override
+  public Page<OAuth2AccessToken> listUserClientAccessTokens(
+      String username, String clientID, Optional<String> cursor, int limit) {
+    UserTokens user = userTokensMap.get(username);
+    List<AccessTokenEntry> entries =
+        user == null ? ImmutableList.of() : user.listAccessTokens(clientID);
+    return Page.select(entries, entry -> entry.getId().toString(), cursor, limit)
+        .map(entry -> toAccessToken(username, clientID, entry, Optional.empty(), Optional.empty()));
+  }
+
+  /** Pages are in token ID order, only the tokens of a page have their strings built. */
+  @Override
+  public Page<OAuth2RefreshToken> listUserClientRefreshTokens(
+      String username, String clientID, Optional<String> cursor, int limit) {
+    UserTokens user = userTokensMap.get(username);
+    List<RefreshTokenEntry> entries =
+        user == null ? ImmutableList.of() : user.listRefreshTokens(clientID);
+    return Page.select(entries, entry -> entry.getId().toString(), cursor, limit)
+        .map(entry -> toRefreshToken(username, clientID, entry, Optional.empty()));
   }
 
   @Override
   public void reset() {
     userTokensMap.clear();
+    if (journal != null) {
+      journalQueue.add(TokenJournalEntry.newBuilder().setReset(true).build());
+      syncJournal();
+    }
+  }
+
+  /**
+   * @return how long after its expired time the most delayed access token of the last sweep was
+   *     removed from memory
+   */
+  public Duration getExpirySweepLag() {
+    return expiryWheel.getSweepLag();
+  }
+
+  /** Remove the access tokens expired by now. Runs every second in the token cleaner. */
+  void clearExpiredTokens() {
+    expiryWheel.sweep(this::removeExpiredTokens);
+  }
+
+  /**
+   * Remove the expired access tokens of a user and schedule the user again for the next one. The
+   * user may have been removed and started again meanwhile.
+   */
+  private void removeExpiredTokens(String username) {
+    long nowSecond = clock.instant().getEpochSecond();
+    updateUser(
+        username,
+        false,
+        user -> {
+          long next = user.removeExpiredAccessTokens(nowSecond);
+          if (next >= 0) {
+            expiryWheel.schedule(next, username);
+          }
+          return true;
+        });
+  }
+
+  /**
+   * Queue the entry for the journal if the update changed the tokens. Called inside the update, the
+   * journal itself is only written by {@link #syncJournal}.
+   *
+   * @return changed
+   */
+  private boolean journalIf(boolean changed, Supplier<TokenJournalEntry> entry) {
+    if (changed && journal != null) {
+      journalQueue.add(entry.get());
+    }
+    return changed;
+  }
+
+  /**
+   * Append the queued entries to the journal and wait until they are on disk, called outside of
+   * user updates. Entries are appended in queue order, one caller at a time.
+   */
+  private void syncJournal() {
+    if (journal != null) {
+      synchronized (journalQueue) {
+        TokenJournalEntry entry = journalQueue.poll();
+        while (entry != null) {
+          journal.append(entry);
+          entry = journalQueue.poll();
+        }
+      }
+      journal.sync();
+    }
+  }
+
+  /** Apply an entry read from the journal, applying it twice has no further effect. */
+  private void replay(TokenJournalEntry entry) {
+    switch (entry.getEntryCase()) {
+      case KEY_ADDED:
+        {
+          TokenJournalEntry.KeyAdded key = entry.getKeyAdded();
+          keyRing.restore(key.getKeyId(), key.getKey().toByteArray(), key.getCurrent());
+          break;
+        }
+      case REFRESH_TOKEN_ADDED:
+        {
+          TokenJournalEntry.RefreshTokenAdded token = entry.getRefreshTokenAdded();
+          String clientID = clientIDs.intern(token.getClientId());
+          RefreshTokenEntry refreshToken =
+              new RefreshTokenEntry(
+                  new UUID(token.getIdHigh(), token.getIdLow()),
+                  scopeSets.intern(token.getIsScoped(), token.getScopesList()));
+          updateUser(
+              token.getUsername(), true, user -> user.addRefreshToken(clientID, refreshToken));
+          break;
+        }
+      case ACCESS_TOKEN_ADDED:
+        {
+          TokenJournalEntry.AccessTokenAdded token = entry.getAccessTokenAdded();
+          if (token.getExpiredTime() <= clock.instant().getEpochSecond()) {
+            break;
+          }
+          String clientID = clientIDs.intern(token.getClientId());
+          boolean refreshable = token.getRefreshIdHigh() != 0 || token.getRefreshIdLow() != 0;
+          AccessTokenEntry accessToken =
+              new AccessTokenEntry(
+                  new UUID(token.getIdHigh(), token.getIdLow()),
+                  token.getExpiredTime(),
+                  scopeSets.intern(token.getIsScoped(), token.getScopesList()),
+                  refreshable ? new UUID(token.getRefreshIdHigh(), token.getRefreshIdLow()) : null);
+          updateUser(
+              token.getUsername(), true, user -> addAccessToken(user, clientID, accessToken));
+          break;
+        }
+      case ACCESS_TOKEN_REVOKED:
+        {
+          TokenJournalEntry.TokenRevoked token = entry.getAccessTokenRevoked();
+          UUID id = new UUID(token.getIdHigh(), token.getIdLow());
+          updateUser(
+              token.getUsername(),
+              false,
+              user -> user.revokeByAccessToken(token.getClientId(), id));
+          break;
+        }
+      case REFRESH_TOKEN_REVOKED:
+        {
+          TokenJournalEntry.TokenRevoked token = entry.getRefreshTokenRevoked();
+          UUID id = new UUID(token.getIdHigh(), token.getIdLow());
+          updateUser(
+              token.getUsername(),
+              false,
+              user -> user.revokeByRefreshToken(token.getClientId(), id));
+          break;
+        }
+      case USER_CLIENT_REVOKED:
+        {
+          TokenJournalEntry.UserClientRevoked revoked = entry.getUserClientRevoked();
+          updateUser(
+              revoked.getUsername(),
+              false,
+              user -> user.revokeUserClientTokens(revoked.getClientId()));
+          break;
+        }
+      case RESET:
+        userTokensMap.clear();
+        break;
+      default:
+        log.warning("Unknown token journal entry " + entry.getEntryCase());
+    }
+  }
+
+  /** Write all keys and unexpired tokens, each user is written as of one point in time. */
+  private void writeSnapshot(Consumer<TokenJournalEntry> out) {
+    keyRing.forEachKey(
+        (key, keyId) -> out.accept(keyAdded(keyId, key, keyId == keyRing.getCurrentKeyId())));
+    long nowSecond = clock.instant().getEpochSecond();
+    for (String username : userTokensMap.keySet()) {
+      List<TokenJournalEntry> entries = new ArrayList<>();
+      updateUser(
+          username,
+          false,
+          user -> {
+            for (String clientID : user.listClients()) {
+              // Refresh tokens first, an access token is only added after its refresh token.
+              for (RefreshTokenEntry token : user.listRefreshTokens(clientID)) {
+                entries.add(refreshTokenAdded(username, clientID, token));
+              }
+              for (AccessTokenEntry token : user.listAccessTokens(clientID)) {
+                if (token.getExpiredTime() > nowSecond) {
+                  entries.add(accessTokenAdded(username, clientID, token));
+                }
+              }
+            }
+            return true;
+          });
+      entries.forEach(out);
+    }
+  }
+
+  /** Compact the journal if it is due. Runs every second in the token cleaner. */
+  void compactJournal() {
+    Instant now = clock.instant();
+    boolean due =
+        journal.getSegmentSize() >= JOURNAL_SEGMENT_SIZE
+            || (journal.getSegmentSize() > 0
+                && !now.isBefore(lastCompaction.plus(JOURNAL_COMPACTION_INTERVAL)));
+    if (!due) {
+      return;
+    }
+    try {
+      journal.compact(this::writeSnapshot);
+      lastCompaction = now;
+    } catch (IOException e) {
+      log.log(Level.SEVERE, "Error when compacting token journal", e);
+    }
+  }
+
+  /** Stop the token cleaner and close the journal. */
+  void close() throws IOException {
+    service.shutdownNow();
+    if (journal != null) {
+      journal.close();
+    }
+  }
+
+  private TokenJournalEntry keyAdded(int keyId, Key key, boolean current) {
+    return TokenJournalEntry.newBuilder()
+        .setKeyAdded(
+            TokenJournalEntry.KeyAdded.newBuilder()
+                .setKeyId(keyId)
+                .setKey(ByteString.copyFrom(key.getEncoded()))
+                .setCurrent(current))
+        .build();
+  }
+
+  private TokenJournalEntry refreshTokenAdded(
+      String username, String clientID, RefreshTokenEntry token) {
+    ScopeSet scopeSet = scopeSets.get(token.getScopeSetId());
+    return TokenJournalEntry.newBuilder()
+        .setRefreshTokenAdded(
+            TokenJournalEntry.RefreshTokenAdded.newBuilder()
+                .setUsername(username)
+                .setClientId(clientID)
+                .setIdHigh(token.getId().getMostSignificantBits())
+                .setIdLow(token.getId().getLeastSignificantBits())
+                .setIsScoped(scopeSet.isScoped())
+                .addAllScopes(scopeSet.getScopes()))
+        .build();
+  }
+
+  private TokenJournalEntry accessTokenAdded(
+      String username, String clientID, AccessTokenEntry token) {
+    ScopeSet scopeSet = scopeSets.get(token.getScopeSetId());
+    TokenJournalEntry.AccessTokenAdded.Builder builder =
+        TokenJournalEntry.AccessTokenAdded.newBuilder()
+            .setUsername(username)
+            .setClientId(clientID)
+            .setIdHigh(token.getId().getMostSignificantBits())
+            .setIdLow(token.getId().getLeastSignificantBits())
+            .setIsScoped(scopeSet.isScoped())
+            .addAllScopes(scopeSet.getScopes())
+            .setExpiredTime(token.getExpiredTime());
+    token
+        .getRefreshTokenId()
+        .ifPresent(
+            id ->
+                builder
+                    .setRefreshIdHigh(id.getMostSignificantBits())
+                    .setRefreshIdLow(id.getLeastSignificantBits()));
+    return TokenJournalEntry.newBuilder().setAccessTokenAdded(builder).build();
+  }
+
+  private static TokenJournalEntry userClientRevoked(String username, String clientID) {
+    return TokenJournalEntry.newBuilder()
+        .setUserClientRevoked(
+            TokenJournalEntry.UserClientRevoked.newBuilder()
+                .setUsername(username)
+                .setClientId(clientID))
+        .build();
+  }
+
+  private static TokenJournalEntry.TokenRevoked tokenRevoked(
+      String username, String clientID, UUID id) {
+    return TokenJournalEntry.TokenRevoked.newBuilder()
+        .setUsername(username)
+        .setClientId(clientID)
+        .setIdHigh(id.getMostSignificantBits())
+        .setIdLow(id.getLeastSignificantBits())
+        .build();
   }
 
   private class TokenCleaner implements Runnable {
 
     @Override
     public void run() {
-      for (Map.Entry<String, UserTokens> user : userTokensMap.entrySet()) {
-        user.getValue().clearExpiredTokens();
-        if (user.getValue().isEmpty()) {
-          userTokensMap.remove(user.getKey());
+      // An exception would cancel the following runs of the scheduled task.
+      try {
+        clearExpiredTokens();
+        if (journal != null) {
+          compactJournal();
         }
+      } catch (RuntimeException exception) {
+        log.log(Level.WARNING, "Error when clearing expired tokens", exception);
       }
     }
   }
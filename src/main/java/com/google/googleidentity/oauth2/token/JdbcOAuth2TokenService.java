@@ -18,17 +18,19 @@ package com.google.googleidentity.oauth2.token;
 
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
-import com.google.googleidentity.oauth2.exception.OAuth2ServerException;
+import com.google.googleidentity.mysql.JdbcExecutor;
 import com.google.googleidentity.oauth2.request.OAuth2Request;
-import com.google.googleidentity.oauth2.util.OAuth2Utils;
-import java.sql.Connection;
+import com.google.googleidentity.oauth2.scope.JdbcScopeRegistry;
+import com.google.googleidentity.oauth2.util.Page;
+import com.google.inject.Singleton;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
@@ -36,22 +38,115 @@ import java.util.UUID;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.inject.Inject;
 import javax.sql.DataSource;
 
+/**
+ * Jdbc implementation of {@link OAuth2TokenService}.
+ *
+ * <p>With TOKEN_DIGEST_KEYS the tokens are stored keyed by their {@link TokenDigest}, see {@link
+ * JdbcTokenLayout#DIGEST}, and listed tokens carry an identifier in place of their values. Tokens
+ * stored with plain keys before are still found, and are moved to the digest tables in the
+ * background a refresh token together with its access tokens. Once the plain tables are empty
+ * they are no longer read. All instances should switch at the same time, a token written with
+ * plain keys afterwards is only found after the next move.
+ *
+ * <p>Scopes are stored as masks of the {@link JdbcScopeRegistry}.
+ */
+@Singleton
 public class JdbcOAuth2TokenService implements OAuth2TokenService {
 
-  private final DataSource dataSource;
+  /**
+   * Token values are random UUIDs, so a primary key collision is already unlikely. Retrying a
+   * bounded number of times keeps a constraint violation of another kind from looping forever.
+   */
+  private static final int MAX_INSERT_ATTEMPTS = 3;
+
+  /** Refresh tokens, or access tokens without one, moved to digest keys per transaction. */
+  private static final int MOVE_BATCH_SIZE = 100;
+
+  private final JdbcExecutor executor;
+  private final JdbcScopeRegistry scopeRegistry;
   private final Logger log = Logger.getLogger("JdbcOAuth2TokenService");
   private boolean isRefreshTokenRotatable = false;
   private Duration tokenValidTime = Duration.ofMinutes(10);
 
+  private final JdbcTokenReaper tokenReaper;
   private ScheduledExecutorService service;
 
+  /** Null if every grant commits on its own. */
+  private final JdbcTokenBatchWriter batchWriter;
+
+  /** Layout new tokens are written in. */
+  private final JdbcTokenLayout layout;
+
+  /** Whether the plain tables were found empty with digest keys, so only digests are read. */
+  private volatile boolean plainTablesMoved = false;
+
+  /**
+   * Grants are group committed if TOKEN_GROUP_COMMIT_MILLIS is set, waiting up to that long for
+   * concurrent grants to join a batch.
+   */
   @Inject
+  public JdbcOAuth2TokenService(JdbcExecutor executor, JdbcScopeRegistry scopeRegistry) {
+    this(executor, scopeRegistry, ("true").equals(System.getenv("TOKEN_DIGEST_KEYS")));
+  }
+
+  private JdbcOAuth2TokenService(
+      JdbcExecutor executor, JdbcScopeRegistry scopeRegistry, boolean digestKeys) {
+    this(
+        executor,
+        scopeRegistry,
+        JdbcTokenReaper.fromEnvironment(
+            executor, digestKeys ? JdbcTokenLayout.DIGEST : JdbcTokenLayout.PLAIN),
+        Strings.isNullOrEmpty(System.getenv("TOKEN_GROUP_COMMIT_MILLIS"))
+            ? Optional.empty()
+            : Optional.of(
+                Duration.ofMillis(Long.parseLong(System.getenv("TOKEN_GROUP_COMMIT_MILLIS")))),
+        digestKeys);
+  }
+
   public JdbcOAuth2TokenService(DataSource dataSource) {
-    this.dataSource = dataSource;
+    this(new JdbcExecutor(dataSource));
+  }
+
+  private JdbcOAuth2TokenService(JdbcExecutor executor) {
+    this(executor, new JdbcScopeRegistry(executor));
+  }
+
+  JdbcOAuth2TokenService(
+      JdbcExecutor executor,
+      JdbcTokenReaper tokenReaper,
+      Optional<Duration> groupCommitDelay,
+      boolean digestKeys) {
+    this(executor, new JdbcScopeRegistry(executor), tokenReaper, groupCommitDelay, digestKeys);
+  }
+
+  JdbcOAuth2TokenService(
+      JdbcExecutor executor,
+      JdbcScopeRegistry scopeRegistry,
+      JdbcTokenReaper tokenReaper,
+      Optional<Duration> groupCommitDelay,
+      boolean digestKeys) {
+    this.executor = executor;
+    this.scopeRegistry = scopeRegistry;
+    this.tokenReaper = tokenReaper;
+    this.layout = digestKeys ? JdbcTokenLayout.DIGEST : JdbcTokenLayout.PLAIN;
+    this.batchWriter =
+        groupCommitDelay
+            .map(
+                delay ->
+                    new JdbcTokenBatchWriter(
+                        executor,
+                        scopeRegistry,
+                        layout,
+                        delay,
+                        JdbcTokenBatchWriter.DEFAULT_MAX_ROWS,
+                        this::insertGrant))
+            .orElse(null);
     setTokenCleaner();
   }
 
@@ -61,215 +156,233 @@ public class JdbcOAuth2TokenService implements OAuth2TokenService {
 
   private void setTokenCleaner() {
     service = Executors.newSingleThreadScheduledExecutor();
-    service.scheduleAtFixedRate(new TokenCleaner(), 1, 1, TimeUnit.HOURS);
+    long interval = tokenReaper.getInterval().getSeconds();
+    service.scheduleWithFixedDelay(tokenReaper, interval, interval, TimeUnit.SECONDS);
+    if (layout.digest) {
+      service.scheduleWithFixedDelay(
+          this::movePlainTokensTask, interval, interval, TimeUnit.SECONDS);
+    }
   }
 
-  @Override
-  public OAuth2AccessToken generateAccessToken(OAuth2Request request) {
-    String clientID = request.getRequestAuth().getClientId();
-    String username = request.getRequestAuth().getUsername();
-
-    Optional<String> refreshTokenString = Optional.empty();
+  /** @return the reaper of expired tokens, for its metrics */
+  public JdbcTokenReaper getTokenReaper() {
+    return tokenReaper;
+  }
 
-    Connection conn = null;
-    PreparedStatement statement = null;
-    ResultSet result = null;
-    try {
-      conn = dataSource.getConnection();
-      conn.setAutoCommit(false);
-      if (request.getRequestBody().getRefreshable()) {
-        String refreshTokenValue = UUID.randomUUID().toString();
-        while (readRefreshToken(refreshTokenValue).isPresent()) {
-          refreshTokenValue = UUID.randomUUID().toString();
-        }
-        refreshTokenString = Optional.of(refreshTokenValue);
-        String stmt = "INSERT INTO refresh_token VALUES(?, ?, ?, ?, ?);";
-        statement = conn.prepareStatement(stmt);
-        statement.setString(1, refreshTokenValue);
-        statement.setString(2, clientID);
-        statement.setString(3, username);
-        statement.setBoolean(4, request.getRequestBody().getIsScoped());
-        statement.setString(5, String.join("\t", request.getRequestBody().getScopesList()));
-
-        statement.execute();
-        conn.commit();
-      }
-    } catch (SQLException exception) {
-      try {
-        if (conn != null) {
-          conn.rollback();
-        }
-      } catch (SQLException exception1) {
-        throw new OAuth2ServerException(exception1);
-      }
-      throw new OAuth2ServerException(exception);
-    } finally {
-      if (result != null) {
-        try {
-          result.close();
-        } catch (SQLException exception2) {
-          throw new OAuth2ServerException(exception2);
-        }
-      }
-      if (statement != null) {
-        try {
-          statement.close();
-        } catch (SQLException exception3) {
-          throw new OAuth2ServerException(exception3);
-        }
-      }
-      if (conn != null) {
-        try {
-          conn.close();
-        } catch (SQLException exception4) {
-          throw new OAuth2ServerException(exception4);
-        }
-      }
+  /** @return the layouts tokens may be stored in, the one new tokens are written in first */
+  private List<JdbcTokenLayout> layouts() {
+    if (layout.digest && !plainTablesMoved) {
+      return ImmutableList.of(JdbcTokenLayout.DIGEST, JdbcTokenLayout.PLAIN);
     }
-    return getNewAccessToken(request, refreshTokenString);
+    return ImmutableList.of(layout);
   }
 
   @Override
-  public Optional<OAuth2AccessToken> refreshToken(String refreshToken) {
-    Optional<OAuth2RefreshToken> token = readRefreshToken(refreshToken);
-    // The refreshToken may be wrong or not existed
-    if (!token.isPresent()) {
-      return Optional.empty();
+  public OAuth2AccessToken generateAccessToken(OAuth2Request request) {
+    // Outside of the transaction, see JdbcScopeRegistry.
+    scopeRegistry.register(request.getRequestBody().getScopesList());
+    if (batchWriter == null) {
+      return insertGrant(request);
     }
+    OAuth2AccessToken.Builder token =
+        newAccessTokenBuilder(request).setAccessToken(UUID.randomUUID().toString());
+    if (request.getRequestBody().getRefreshable()) {
+      token.setRefreshToken(UUID.randomUUID().toString());
+    }
+    return batchWriter.write(request, token.build());
+  }
 
-    String username = token.get().getUsername();
-    String clientID = token.get().getClientId();
+  /** Insert the tokens of a grant in a transaction of its own. */
+  private OAuth2AccessToken insertGrant(OAuth2Request request) {
+    return executor.inTransaction(
+        transaction -> {
+          Optional<String> refreshTokenString = Optional.empty();
+          if (request.getRequestBody().getRefreshable()) {
+            refreshTokenString = Optional.of(insertNewRefreshToken(transaction, request));
+          }
+          return insertNewAccessToken(transaction, layout, request, refreshTokenString);
+        });
+  }
 
-    OAuth2Request.Builder requestBuilder = OAuth2Request.newBuilder();
-    requestBuilder.getRequestAuthBuilder().setClientId(clientID).setUsername(username);
-    requestBuilder
-        .getRequestBodyBuilder()
-        .setIsScoped(token.get().getIsScoped())
-        .addAllScopes(token.get().getScopesList())
-        .setRefreshable(true);
-    return Optional.of(getNewAccessToken(requestBuilder.build(), Optional.of(refreshToken)));
+  @Override
+  public Optional<OAuth2AccessToken> refreshToken(String refreshToken) {
+    return executor.inTransaction(
+        transaction -> {
+          for (JdbcTokenLayout tokenLayout : layouts()) {
+            // Lock the refresh token row so that a concurrent revocation can not delete it before
+            // the new access token referencing it is committed.
+            Optional<OAuth2RefreshToken> token =
+                transaction.queryFirst(
+                    tokenLayout.statementName("token.lockRefreshToken"),
+                    "SELECT * FROM "
+                        + tokenLayout.refreshTable
+                        + " WHERE "
+                        + tokenLayout.refreshKey
+                        + " = ? FOR UPDATE;",
+                    statement -> statement.setObject(1, tokenLayout.key(refreshToken)),
+                    result -> buildRefreshTokenFromJdbcResult(tokenLayout, result));
+            // The refreshToken may be wrong or not existed
+            if (!token.isPresent()) {
+              continue;
+            }
+
+            OAuth2Request.Builder requestBuilder = OAuth2Request.newBuilder();
+            requestBuilder
+                .getRequestAuthBuilder()
+                .setClientId(token.get().getClientId())
+                .setUsername(token.get().getUsername());
+            requestBuilder
+                .getRequestBodyBuilder()
+                .setIsScoped(token.get().getIsScoped())
+                .addAllScopes(token.get().getScopesList())
+                .setRefreshable(true);
+
+            // Next to its refresh token, so they are moved to digest keys together.
+            return Optional.of(
+                insertNewAccessToken(
+                    transaction, tokenLayout, requestBuilder.build(), Optional.of(refreshToken)));
+          }
+          return Optional.empty();
+        });
   }
 
   /**
-   * Generate a new access token for a request. The refresh token is already there or no refresh
-   * token is needed for the request.
+   * Insert a new refresh token for the request in the transaction. A token value collision is
+   * detected by the primary key, in which case another value is tried.
+   *
+   * @return the new refresh token string
    */
-  private OAuth2AccessToken getNewAccessToken(
-      OAuth2Request request, Optional<String> refreshTokenString) {
-
-    String clientID = request.getRequestAuth().getClientId();
-    String username = request.getRequestAuth().getUsername();
-
-    String accessTokenValue = UUID.randomUUID().toString();
-
-    while (readAccessToken(accessTokenValue).isPresent()) {
-      accessTokenValue = UUID.randomUUID().toString();
+  private String insertNewRefreshToken(JdbcExecutor.Transaction transaction, OAuth2Request request)
+      throws SQLException {
+    // No expired time, a refresh token is valid until revoked.
+    String stmt =
+        "INSERT INTO "
+            + layout.refreshTable
+            + " ("
+            + layout.refreshKey
+            + ", client_id, username, is_scoped, scope_mask"
+            + layout.riscHashColumn()
+            + ") VALUES(?, ?, ?, ?, ?"
+            + layout.riscHashPlaceholder()
+            + ");";
+    for (int attempt = 1; ; attempt++) {
+      String refreshTokenValue = UUID.randomUUID().toString();
+      try {
+        transaction.update(
+            layout.statementName("token.insertRefreshToken"),
+            stmt,
+            statement -> {
+              statement.setObject(1, layout.key(refreshTokenValue));
+              statement.setString(2, request.getRequestAuth().getClientId());
+              statement.setString(3, request.getRequestAuth().getUsername());
+              statement.setBoolean(4, request.getRequestBody().getIsScoped());
+              scopeRegistry.bind(statement, 5, request.getRequestBody().getScopesList());
+              layout.bindRiscHash(statement, 6, refreshTokenValue);
+            });
+        return refreshTokenValue;
+      } catch (SQLIntegrityConstraintViolationException exception) {
+        if (attempt >= MAX_INSERT_ATTEMPTS) {
+          throw exception;
+        }
+      }
     }
+  }
 
-    OAuth2AccessToken.Builder builder =
-        OAuth2AccessToken.newBuilder()
-            .setAccessToken(accessTokenValue)
-            .setClientId(request.getRequestAuth().getClientId())
-            .setUsername(request.getRequestAuth().getUsername())
-            .setIsScoped(request.getRequestBody().getIsScoped())
-            .addAllScopes(request.getRequestBody().getScopesList())
-            .setExpiredTime(
-                Instant.now().plusSeconds(tokenValidTime.getSeconds()).getEpochSecond());
+  /**
+   * Insert a new access token for a request in the transaction. The refresh token is already there
+   * or no refresh token is needed for the request. A token value collision is detected by the
+   * primary key, in which case another value is tried. An access table partitioned by expired time
+   * has the expired time in its primary key, so a collision is not detected and nothing is retried,
+   * see {@link JdbcTokenPartitions}.
+   */
+  private OAuth2AccessToken insertNewAccessToken(
+      JdbcExecutor.Transaction transaction,
+      JdbcTokenLayout tokenLayout,
+      OAuth2Request request,
+      Optional<String> refreshTokenString)
+      throws SQLException {
+    OAuth2AccessToken.Builder builder = newAccessTokenBuilder(request);
     refreshTokenString.ifPresent(builder::setRefreshToken);
-    OAuth2AccessToken newToken = builder.build();
+    int maxAttempts =
+        tokenReaper.isPartitioned(tokenLayout.accessTable) ? 1 : MAX_INSERT_ATTEMPTS;
 
-    Connection conn = null;
-    PreparedStatement statement = null;
-    ResultSet result = null;
-    try {
-      conn = dataSource.getConnection();
-      conn.setAutoCommit(false);
-      String stmt = "INSERT INTO access_token VALUES(?, ?, ?, ?, ?, ?, ?);";
-      statement = conn.prepareStatement(stmt);
-
-      statement.setString(1, newToken.getAccessToken());
-      statement.setString(2, newToken.getClientId());
-      statement.setString(3, newToken.getUsername());
-      statement.setBoolean(4, newToken.getIsScoped());
-      statement.setString(5, String.join("\t", newToken.getScopesList()));
-      statement.setLong(6, newToken.getExpiredTime());
-      statement.setString(7, newToken.getRefreshToken());
-
-      statement.execute();
-      conn.commit();
-    } catch (SQLException exception) {
+    for (int attempt = 1; ; attempt++) {
+      builder.setAccessToken(UUID.randomUUID().toString());
       try {
-        if (conn != null) {
-          conn.rollback();
-        }
-      } catch (SQLException exception1) {
-        throw new OAuth2ServerException(exception1);
-      }
-      throw new OAuth2ServerException(exception);
-    } finally {
-      if (result != null) {
-        try {
-          result.close();
-        } catch (SQLException exception2) {
-          throw new OAuth2ServerException(exception2);
-        }
-      }
-      if (statement != null) {
-        try {
-          statement.close();
-        } catch (SQLException exception3) {
-          throw new OAuth2ServerException(exception3);
-        }
-      }
-      if (conn != null) {
-        try {
-          conn.close();
-        } catch (SQLException exception4) {
-          throw new OAuth2ServerException(exception4);
+        insertAccessToken(transaction, tokenLayout, builder.build());
+        return builder.build();
+      } catch (SQLIntegrityConstraintViolationException exception) {
+        if (attempt >= maxAttempts) {
+          throw exception;
         }
       }
     }
-    return newToken;
   }
 
+  /** Insert the access token with its values. */
+  private void insertAccessToken(
+      JdbcExecutor.Transaction transaction, JdbcTokenLayout tokenLayout, OAuth2AccessToken token)
+      throws SQLException {
+    transaction.update(
+        tokenLayout.statementName("token.insertAccessToken"),
+        "INSERT INTO "
+            + tokenLayout.accessTable
+            + " ("
+            + tokenLayout.accessKey
+            + ", client_id, username, is_scoped, scope_mask, expired_time, "
+            + tokenLayout.accessRefreshKey
+            + tokenLayout.riscHashColumn()
+            + ") VALUES(?, ?, ?, ?, ?, ?, ?"
+            + tokenLayout.riscHashPlaceholder()
+            + ");",
+        statement -> {
+          statement.setObject(1, tokenLayout.key(token.getAccessToken()));
+          statement.setString(2, token.getClientId());
+          statement.setString(3, token.getUsername());
+          statement.setBoolean(4, token.getIsScoped());
+          scopeRegistry.bind(statement, 5, token.getScopesList());
+          statement.setLong(6, token.getExpiredTime());
+          JdbcTokenLayout.bind(
+              statement, 7, tokenLayout.refreshReference(token.getRefreshToken()));
+          tokenLayout.bindRiscHash(statement, 8, token.getAccessToken());
+        });
+  }
+
+  /** @return a new access token for the request without token values */
+  private OAuth2AccessToken.Builder newAccessTokenBuilder(OAuth2Request request) {
+    return OAuth2AccessToken.newBuilder()
+        .setClientId(request.getRequestAuth().getClientId())
+        .setUsername(request.getRequestAuth().getUsername())
+        .setIsScoped(request.getRequestBody().getIsScoped())
+        .addAllScopes(request.getRequestBody().getScopesList())
+        .setExpiredTime(Instant.now().plusSeconds(tokenValidTime.getSeconds()).getEpochSecond());
+  }
+
+  /**
+   * Expired access tokens are not returned, they stay in the table until {@link JdbcTokenReaper}
+   * removes them, or until their partition is dropped.
+   */
   @Override
   public Optional<OAuth2AccessToken> readAccessToken(String accessToken) {
-    Connection conn = null;
-    PreparedStatement statement = null;
-    ResultSet result = null;
-    try {
-      conn = dataSource.getConnection();
-      String stmt = "SELECT * FROM access_token WHERE access_token = ?;";
-      statement = conn.prepareStatement(stmt);
-      statement.setString(1, accessToken);
-      result = statement.executeQuery();
-      if (result.next()) {
-        OAuth2AccessToken token = buildAccessTokenFromJdbcResult(result);
-        return Optional.ofNullable(token);
-      }
-    } catch (SQLException exception) {
-      throw new OAuth2ServerException(exception);
-    } finally {
-      if (result != null) {
-        try {
-          result.close();
-        } catch (SQLException exception2) {
-          throw new OAuth2ServerException(exception2);
-        }
-      }
-      if (statement != null) {
-        try {
-          statement.close();
-        } catch (SQLException exception3) {
-          throw new OAuth2ServerException(exception3);
-        }
-      }
-      if (conn != null) {
-        try {
-          conn.close();
-        } catch (SQLException exception4) {
-          throw new OAuth2ServerException(exception4);
-        }
+    long now = Instant.now().getEpochSecond();
+    for (JdbcTokenLayout tokenLayout : layouts()) {
+      Optional<OAuth2AccessToken> token =
+          executor.queryFirst(
+              tokenLayout.statementName("token.readAccessToken"),
+              "SELECT * FROM "
+                  + tokenLayout.accessTable
+                  + " WHERE "
+                  + tokenLayout.accessKey
+                  + " = ? AND expired_time >= ?;",
+              statement -> {
+                statement.setObject(1, tokenLayout.key(accessToken));
+                statement.setLong(2, now);
+              },
+              result -> buildAccessTokenFromJdbcResult(tokenLayout, result));
+      if (token.isPresent()) {
+        // The value is known again, the RISC hash is only carried in place of it.
+        return Optional.of(
+            token.get().toBuilder().setAccessToken(accessToken).clearRiscTokenHash().build());
       }
     }
     return Optional.empty();
@@ -277,42 +390,20 @@ public class JdbcOAuth2TokenService implements OAuth2TokenService {
 
   @Override
   public Optional<OAuth2RefreshToken> readRefreshToken(String refreshToken) {
-    Connection conn = null;
-    PreparedStatement statement = null;
-    ResultSet result = null;
-    try {
-      conn = dataSource.getConnection();
-      String stmt = "SELECT * FROM refresh_token WHERE refresh_token = ?;";
-      statement = conn.prepareStatement(stmt);
-      statement.setString(1, refreshToken);
-      result = statement.executeQuery();
-      if (result.next()) {
-        OAuth2RefreshToken token = buildRefreshTokenFromJdbcResult(result);
-        return Optional.ofNullable(token);
-      }
-    } catch (SQLException exception) {
-      throw new OAuth2ServerException(exception);
-    } finally {
-      if (result != null) {
-        try {
-          result.close();
-        } catch (SQLException exception2) {
-          throw new OAuth2ServerException(exception2);
-        }
-      }
-      if (statement != null) {
-        try {
-          statement.close();
-        } catch (SQLException exception3) {
-          throw new OAuth2ServerException(exception3);
-        }
-      }
-      if (conn != null) {
-        try {
-          conn.close();
-        } catch (SQLException exception4) {
-          throw new OAuth2ServerException(exception4);
-        }
+    for (JdbcTokenLayout tokenLayout : layouts()) {
+      Optional<OAuth2RefreshToken> token =
+          executor.queryFirst(
+              tokenLayout.statementName("token.readRefreshToken"),
+              "SELECT * FROM "
+                  + tokenLayout.refreshTable
+                  + " WHERE "
+                  + tokenLayout.refreshKey
+                  + " = ?;",
+              statement -> statement.setObject(1, tokenLayout.key(refreshToken)),
+              result -> buildRefreshTokenFromJdbcResult(tokenLayout, result));
+      if (token.isPresent()) {
+        return Optional.of(
+            token.get().toBuilder().setRefreshToken(refreshToken).clearRiscTokenHash().build());
       }
     }
     return Optional.empty();
@@ -320,438 +411,471 @@ public class JdbcOAuth2TokenService implements OAuth2TokenService {
 
   @Override
   public boolean revokeByAccessToken(String accessToken) {
-    Optional<OAuth2AccessToken> token = readAccessToken(accessToken);
-
-    if (!token.isPresent()
-        || Instant.ofEpochSecond(token.get().getExpiredTime()).isBefore(Instant.now())) {
-      return false;
-    }
-    if (!Strings.isNullOrEmpty(token.get().getRefreshToken())) {
-      return revokeByRefreshToken(token.get().getRefreshToken());
-    }
-
-    Connection conn = null;
-    PreparedStatement statement = null;
-    ResultSet result = null;
-    try {
-      conn = dataSource.getConnection();
-      conn.setAutoCommit(false);
-      String stmt = "DELETE FROM access_token WHERE access_token = ?;";
-      statement = conn.prepareStatement(stmt);
-      statement.setString(1, accessToken);
-      statement.execute();
-      conn.commit();
-    } catch (SQLException exception) {
-      try {
-        if (conn != null) {
-          conn.rollback();
-        }
-      } catch (SQLException exception1) {
-        throw new OAuth2ServerException(exception1);
-      }
-      throw new OAuth2ServerException(exception);
-    } finally {
-      if (result != null) {
-        try {
-          result.close();
-        } catch (SQLException exception2) {
-          throw new OAuth2ServerException(exception2);
-        }
-      }
-      if (statement != null) {
-        try {
-          statement.close();
-        } catch (SQLException exception3) {
-          throw new OAuth2ServerException(exception3);
-        }
-      }
-      if (conn != null) {
-        try {
-          conn.close();
-        } catch (SQLException exception4) {
-          throw new OAuth2ServerException(exception4);
-        }
-      }
+    for (JdbcTokenLayout tokenLayout : layouts()) {
+      Object key = tokenLayout.key(accessToken);
+      // The expired time and the key of the refresh token, which may be NULL or empty.
+      Optional<Object[]> token =
+          executor.queryFirst(
+              tokenLayout.statementName("token.readAccessTokenRefreshKey"),
+              "SELECT expired_time, "
+                  + tokenLayout.accessRefreshKey
+                  + " FROM "
+                  + tokenLayout.accessTable
+                  + " WHERE "
+                  + tokenLayout.accessKey
+                  + " = ?;",
+              statement -> statement.setObject(1, key),
+              result -> new Object[] {result.getLong(1), result.getObject(2)});
+      if (!token.isPresent()) {
+        continue;
+      }
+      if (Instant.ofEpochSecond((Long) token.get()[0]).isBefore(Instant.now())) {
+        return false;
+      }
+      Object refreshKey = token.get()[1];
+      if (refreshKey != null && !"".equals(refreshKey)) {
+        return revokeRefreshTokenKey(tokenLayout, refreshKey);
+      }
+      executor.update(
+          tokenLayout.statementName("token.deleteAccessToken"),
+          "DELETE FROM " + tokenLayout.accessTable + " WHERE " + tokenLayout.accessKey + " = ?;",
+          statement -> statement.setObject(1, key));
+      return true;
     }
-    return true;
+    return false;
   }
 
   @Override
   public boolean revokeByRefreshToken(String refreshToken) {
-    Optional<OAuth2RefreshToken> token = readRefreshToken(refreshToken);
-
-    if (!token.isPresent()) {
-      return false;
-    }
-
-    Connection conn = null;
-    PreparedStatement statement = null;
-    ResultSet result = null;
-    try {
-      conn = dataSource.getConnection();
-      conn.setAutoCommit(false);
-      String stmt = "DELETE FROM refresh_token WHERE refresh_token = ?;";
-      statement = conn.prepareStatement(stmt);
-      statement.setString(1, refreshToken);
-      statement.execute();
-      stmt = "DELETE FROM access_token WHERE refresh_token = ?;";
-      statement = conn.prepareStatement(stmt);
-      statement.setString(1, refreshToken);
-      statement.execute();
-      conn.commit();
-    } catch (SQLException exception) {
-      try {
-        if (conn != null) {
-          conn.rollback();
-        }
-      } catch (SQLException exception1) {
-        throw new OAuth2ServerException(exception1);
-      }
-      throw new OAuth2ServerException(exception);
-    } finally {
-      if (result != null) {
-        try {
-          result.close();
-        } catch (SQLException exception2) {
-          throw new OAuth2ServerException(exception2);
-        }
-      }
-      if (statement != null) {
-        try {
-          statement.close();
-        } catch (SQLException exception3) {
-          throw new OAuth2ServerException(exception3);
-        }
-      }
-      if (conn != null) {
-        try {
-          conn.close();
-        } catch (SQLException exception4) {
-          throw new OAuth2ServerException(exception4);
-        }
+    for (JdbcTokenLayout tokenLayout : layouts()) {
+      if (revokeRefreshTokenKey(tokenLayout, tokenLayout.key(refreshToken))) {
+        return true;
       }
     }
-    return true;
+    return false;
+  }
+
+  /**
+   * Delete the refresh token with the key and its access tokens.
+   *
+   * @return false if there is no such refresh token
+   */
+  private boolean revokeRefreshTokenKey(JdbcTokenLayout tokenLayout, Object key) {
+    return executor.inTransaction(
+        transaction -> {
+          int deleted =
+              transaction.update(
+                  tokenLayout.statementName("token.deleteRefreshToken"),
+                  "DELETE FROM "
+                      + tokenLayout.refreshTable
+                      + " WHERE "
+                      + tokenLayout.refreshKey
+                      + " = ?;",
+                  statement -> statement.setObject(1, key));
+          if (deleted == 0) {
+            return false;
+          }
+          transaction.update(
+              tokenLayout.statementName("token.deleteAccessTokensByRefreshToken"),
+              "DELETE FROM "
+                  + tokenLayout.accessTable
+                  + " WHERE "
+                  + tokenLayout.accessRefreshKey
+                  + " = ?;",
+              statement -> statement.setObject(1, key));
+          return true;
+        });
   }
 
   @Override
   public boolean revokeUserClientTokens(String username, String clientID) {
-    if (listUserClientAccessTokens(username, clientID).isEmpty()) {
-      return false;
-    }
-    Connection conn = null;
-    PreparedStatement statement = null;
-    ResultSet result = null;
-    try {
-      conn = dataSource.getConnection();
-      conn.setAutoCommit(false);
-      String stmt = "DELETE FROM refresh_token WHERE username = ? AND client_id = ?;";
-      statement = conn.prepareStatement(stmt);
-      statement.setString(1, username);
-      statement.setString(2, clientID);
-      statement.execute();
-      stmt = "DELETE FROM access_token WHERE username = ? AND client_id = ?;";
-      statement = conn.prepareStatement(stmt);
-      statement.setString(1, username);
-      statement.setString(2, clientID);
-      statement.execute();
-      conn.commit();
-    } catch (SQLException exception) {
-      try {
-        if (conn != null) {
-          conn.rollback();
-        }
-      } catch (SQLException exception1) {
-        throw new OAuth2ServerException(exception1);
-      }
-      throw new OAuth2ServerException(exception);
-    } finally {
-      if (result != null) {
-        try {
-          result.close();
-        } catch (SQLException exception2) {
-          throw new OAuth2ServerException(exception2);
-        }
-      }
-      if (statement != null) {
-        try {
-          statement.close();
-        } catch (SQLException exception3) {
-          throw new OAuth2ServerException(exception3);
-        }
-      }
-      if (conn != null) {
-        try {
-          conn.close();
-        } catch (SQLException exception4) {
-          throw new OAuth2ServerException(exception4);
-        }
-      }
-    }
-    return true;
+    int deleted =
+        executor.inTransaction(
+            transaction -> {
+              int count = 0;
+              for (JdbcTokenLayout tokenLayout : layouts()) {
+                count +=
+                    transaction.update(
+                        tokenLayout.statementName("token.deleteUserClientRefreshTokens"),
+                        "DELETE FROM "
+                            + tokenLayout.refreshTable
+                            + " WHERE username = ? AND client_id = ?;",
+                        statement -> bindUserClient(statement, username, clientID));
+                count +=
+                    transaction.update(
+                        tokenLayout.statementName("token.deleteUserClientAccessTokens"),
+                        "DELETE FROM "
+                            + tokenLayout.accessTable
+                            + " WHERE username = ? AND client_id = ?;",
+                        statement -> bindUserClient(statement, username, clientID));
+              }
+              return count;
+            });
+    return deleted > 0;
+  }
+
+  /**
+   * Lock the rows with SELECT ... FOR UPDATE and delete them in the same transaction, so a token
+   * inserted concurrently is either in the result or not revoked.
+   */
+  @Override
+  public RevokedTokens revokeAndListUserClientTokens(String username, String clientID) {
+    return executor.inTransaction(
+        transaction -> {
+          RevokedTokens.Builder revoked = RevokedTokens.newBuilder();
+          for (JdbcTokenLayout tokenLayout : layouts()) {
+            List<OAuth2RefreshToken> refreshTokens =
+                transaction.query(
+                    tokenLayout.statementName("token.lockUserClientRefreshTokens"),
+                    "SELECT * FROM "
+                        + tokenLayout.refreshTable
+                        + " WHERE username = ? AND client_id = ? FOR UPDATE;",
+                    statement -> bindUserClient(statement, username, clientID),
+                    result -> buildRefreshTokenFromJdbcResult(tokenLayout, result));
+            List<OAuth2AccessToken> accessTokens =
+                transaction.query(
+                    tokenLayout.statementName("token.lockUserClientAccessTokens"),
+                    "SELECT * FROM "
+                        + tokenLayout.accessTable
+                        + " WHERE username = ? AND client_id = ? FOR UPDATE;",
+                    statement -> bindUserClient(statement, username, clientID),
+                    result -> buildAccessTokenFromJdbcResult(tokenLayout, result));
+            if (!refreshTokens.isEmpty()) {
+              transaction.update(
+                  tokenLayout.statementName("token.deleteUserClientRefreshTokens"),
+                  "DELETE FROM "
+                      + tokenLayout.refreshTable
+                      + " WHERE username = ? AND client_id = ?;",
+                  statement -> bindUserClient(statement, username, clientID));
+            }
+            if (!accessTokens.isEmpty()) {
+              transaction.update(
+                  tokenLayout.statementName("token.deleteUserClientAccessTokens"),
+                  "DELETE FROM "
+                      + tokenLayout.accessTable
+                      + " WHERE username = ? AND client_id = ?;",
+                  statement -> bindUserClient(statement, username, clientID));
+            }
+            revoked.addAllRefreshTokens(refreshTokens).addAllAccessTokens(accessTokens);
+          }
+          return revoked.build();
+        });
   }
 
   @Override
   public List<String> listUserClient(String username) {
-    Set<String> clients = new HashSet<>();
-    Connection conn = null;
-    PreparedStatement statement = null;
-    ResultSet result = null;
-    try {
-      conn = dataSource.getConnection();
-      String stmt = "SELECT DISTINCT client_id FROM access_token WHERE username = ?;";
-      statement = conn.prepareStatement(stmt);
-      statement.setString(1, username);
-      result = statement.executeQuery();
-      while (result.next()) {
-        clients.add(result.getString("client_id"));
-      }
-      stmt = "SELECT DISTINCT client_id FROM refresh_token WHERE username = ?;";
-      statement = conn.prepareStatement(stmt);
-      statement.setString(1, username);
-      result = statement.executeQuery();
-      while (result.next()) {
-        clients.add(result.getString("client_id"));
-      }
-    } catch (SQLException exception) {
-      throw new OAuth2ServerException(exception);
-    } finally {
-      if (result != null) {
-        try {
-          result.close();
-        } catch (SQLException exception2) {
-          throw new OAuth2ServerException(exception2);
-        }
-      }
-      if (statement != null) {
-        try {
-          statement.close();
-        } catch (SQLException exception3) {
-          throw new OAuth2ServerException(exception3);
-        }
-      }
-      if (conn != null) {
-        try {
-          conn.close();
-        } catch (SQLException exception4) {
-          throw new OAuth2ServerException(exception4);
-        }
-      }
-    }
-    return ImmutableList.copyOf(clients);
+    return executor.inTransaction(
+        transaction -> {
+          Set<String> clients = new LinkedHashSet<>();
+          for (JdbcTokenLayout tokenLayout : layouts()) {
+            clients.addAll(
+                transaction.query(
+                    tokenLayout.statementName("token.listUserAccessTokenClients"),
+                    "SELECT DISTINCT client_id FROM "
+                        + tokenLayout.accessTable
+                        + " WHERE username = ?;",
+                    statement -> statement.setString(1, username),
+                    result -> result.getString("client_id")));
+            clients.addAll(
+                transaction.query(
+                    tokenLayout.statementName("token.listUserRefreshTokenClients"),
+                    "SELECT DISTINCT client_id FROM "
+                        + tokenLayout.refreshTable
+                        + " WHERE username = ?;",
+                    statement -> statement.setString(1, username),
+                    result -> result.getString("client_id")));
+          }
+          return ImmutableList.copyOf(clients);
+        });
   }
 
   @Override
   public List<OAuth2AccessToken> listUserClientAccessTokens(String username, String clientID) {
-    List<OAuth2AccessToken> tokenList = new LinkedList<>();
-    Connection conn = null;
-    PreparedStatement statement = null;
-    ResultSet result = null;
-    try {
-      conn = dataSource.getConnection();
-      String stmt = "SELECT * FROM access_token WHERE username = ? AND client_id = ?;";
-      statement = conn.prepareStatement(stmt);
-      statement.setString(1, username);
-      statement.setString(2, clientID);
-      result = statement.executeQuery();
-      while (result.next()) {
-        tokenList.add(buildAccessTokenFromJdbcResult(result));
-      }
-    } catch (SQLException exception) {
-      throw new OAuth2ServerException(exception);
-    } finally {
-      if (result != null) {
-        try {
-          result.close();
-        } catch (SQLException exception2) {
-          throw new OAuth2ServerException(exception2);
-        }
-      }
-      if (statement != null) {
-        try {
-          statement.close();
-        } catch (SQLException exception3) {
-          throw new OAuth2ServerException(exception3);
-        }
-      }
-      if (conn != null) {
-        try {
-          conn.close();
-        } catch (SQLException exception4) {
-          throw new OAuth2ServerException(exception4);
-        }
-      }
+    List<OAuth2AccessToken> tokenList = new ArrayList<>();
+    for (JdbcTokenLayout tokenLayout : layouts()) {
+      tokenList.addAll(
+          executor.query(
+              tokenLayout.statementName("token.listUserClientAccessTokens"),
+              "SELECT * FROM " + tokenLayout.accessTable + " WHERE username = ? AND client_id = ?;",
+              statement -> bindUserClient(statement, username, clientID),
+              result -> buildAccessTokenFromJdbcResult(tokenLayout, result)));
     }
     return ImmutableList.copyOf(tokenList);
   }
 
   @Override
   public List<OAuth2RefreshToken> listUserClientRefreshTokens(String username, String clientID) {
-    List<OAuth2RefreshToken> tokenList = new LinkedList<>();
-    Connection conn = null;
-    PreparedStatement statement = null;
-    ResultSet result = null;
-    try {
-      conn = dataSource.getConnection();
-      String stmt = "SELECT * FROM refresh_token WHERE username = ? AND client_id = ?;";
-      statement = conn.prepareStatement(stmt);
-      statement.setString(1, username);
-      statement.setString(2, clientID);
-      result = statement.executeQuery();
-      while (result.next()) {
-        tokenList.add(buildRefreshTokenFromJdbcResult(result));
-      }
-    } catch (SQLException exception) {
-      throw new OAuth2ServerException(exception);
-    } finally {
-      if (result != null) {
-        try {
-          result.close();
-        } catch (SQLException exception2) {
-          throw new OAuth2ServerException(exception2);
-        }
-      }
-      if (statement != null) {
-        try {
-          statement.close();
-        } catch (SQLException exception3) {
-          throw new OAuth2ServerException(exception3);
-        }
-      }
-      if (conn != null) {
-        try {
-          conn.close();
-        } catch (SQLException exception4) {
-          throw new OAuth2ServerException(exception4);
-        }
-      }
+    List<OAuth2RefreshToken> tokenList = new ArrayList<>();
+    for (JdbcTokenLayout tokenLayout : layouts()) {
+      tokenList.addAll(
+          executor.query(
+              tokenLayout.statementName("token.listUserClientRefreshTokens"),
+              "SELECT * FROM "
+                  + tokenLayout.refreshTable
+                  + " WHERE username = ? AND client_id = ?;",
+              statement -> bindUserClient(statement, username, clientID),
+              result -> buildRefreshTokenFromJdbcResult(tokenLayout, result)));
     }
     return ImmutableList.copyOf(tokenList);
   }
 
+  @Override
+  public Page<String> listUserClient(String username, Optional<String> cursor, int limit) {
+    Page.checkLimit(limit);
+    List<String> selects = new ArrayList<>();
+    for (JdbcTokenLayout tokenLayout : layouts()) {
+      for (String table : ImmutableList.of(tokenLayout.accessTable, tokenLayout.refreshTable)) {
+        selects.add("SELECT client_id FROM " + table + " WHERE username = ? AND client_id > ?");
+      }
+    }
+    return Page.fromRows(
+        executor.query(
+            "token.listUserClientPage",
+            "SELECT client_id FROM ("
+                + String.join(" UNION ", selects)
+                + ") clients ORDER BY client_id LIMIT ?;",
+            statement -> {
+              int index = 1;
+              for (int i = 0; i < selects.size(); i++) {
+                statement.setString(index++, username);
+                statement.setString(index++, cursor.orElse(""));
+              }
+              statement.setInt(index, limit + 1);
+            },
+            result -> result.getString("client_id")),
+        limit,
+        clientID -> clientID);
+  }
+
+  @Override
+  public Page<OAuth2AccessToken> listUserClientAccessTokens(
+      String username, String clientID, Optional<String> cursor, int limit) {
+    return listUserClientPage(
+        "token.listUserClientAccessTokenPage",
+        true,
+        username,
+        clientID,
+        cursor,
+        limit,
+        this::buildAccessTokenFromJdbcResult,
+        OAuth2AccessToken::getAccessToken);
+  }
+
+  @Override
+  public Page<OAuth2RefreshToken> listUserClientRefreshTokens(
+      String username, String clientID, Optional<String> cursor, int limit) {
+    return listUserClientPage(
+        "token.listUserClientRefreshTokenPage",
+        false,
+        username,
+        clientID,
+        cursor,
+        limit,
+        this::buildRefreshTokenFromJdbcResult,
+        OAuth2RefreshToken::getRefreshToken);
+  }
+
+  /** Reads a token row stored in a layout. */
+  private interface TokenRowMapper<T> {
+    T map(JdbcTokenLayout tokenLayout, ResultSet result) throws SQLException;
+  }
+
+  /**
+   * Keyset pagination over the tokens of a user and client in the tables of every layout, one
+   * layout after another and in key order within one. The cursor is the token value, or identifier
+   * in DIGEST, of the last token, which also tells the layout the next page starts in. Tokens moved
+   * to digest keys while a listing runs may be left out of it.
+   */
+  private <T> Page<T> listUserClientPage(
+      String name,
+      boolean accessTokens,
+      String username,
+      String clientID,
+      Optional<String> cursor,
+      int limit,
+      TokenRowMapper<T> mapper,
+      Function<T, String> tokenOf) {
+    Page.checkLimit(limit);
+    List<JdbcTokenLayout> tokenLayouts = layouts();
+    int start = 0;
+    Object after = null;
+    if (cursor.isPresent()) {
+      boolean digest = TokenDigest.isIdentifier(cursor.get());
+      start = tokenLayouts.indexOf(digest ? JdbcTokenLayout.DIGEST : JdbcTokenLayout.PLAIN);
+      if (start < 0) {
+        return Page.of(ImmutableList.of(), Optional.empty());
+      }
+      after = digest ? TokenDigest.parseIdentifier(cursor.get()) : cursor.get();
+    }
+    List<T> rows = new ArrayList<>();
+    for (int i = start; i < tokenLayouts.size() && rows.size() <= limit; i++) {
+      JdbcTokenLayout tokenLayout = tokenLayouts.get(i);
+      String table = accessTokens ? tokenLayout.accessTable : tokenLayout.refreshTable;
+      String key = accessTokens ? tokenLayout.accessKey : tokenLayout.refreshKey;
+      // Every key is larger than the empty one.
+      Object from = i == start && after != null ? after : tokenLayout.digest ? new byte[0] : "";
+      int remaining = limit + 1 - rows.size();
+      rows.addAll(
+          executor.query(
+              tokenLayout.statementName(name),
+              "SELECT * FROM "
+                  + table
+                  + " WHERE username = ? AND client_id = ? AND "
+                  + key
+                  + " > ? ORDER BY "
+                  + key
+                  + " LIMIT ?;",
+              statement -> {
+                bindUserClient(statement, username, clientID);
+                statement.setObject(3, from);
+                statement.setInt(4, remaining);
+              },
+              result -> mapper.map(tokenLayout, result)));
+    }
+    return Page.fromRows(rows, limit, tokenOf);
+  }
+
   @Override
   public void reset() {
-    Connection conn = null;
-    PreparedStatement statement = null;
-    ResultSet result = null;
+    executor.inTransaction(
+        transaction -> {
+          for (JdbcTokenLayout tokenLayout :
+              ImmutableList.of(JdbcTokenLayout.PLAIN, JdbcTokenLayout.DIGEST)) {
+            transaction.update(
+                tokenLayout.statementName("token.deleteRefreshTokens"),
+                "DELETE FROM " + tokenLayout.refreshTable + ";",
+                statement -> {});
+            transaction.update(
+                tokenLayout.statementName("token.deleteAccessTokens"),
+                "DELETE FROM " + tokenLayout.accessTable + ";",
+                statement -> {});
+          }
+          return null;
+        });
+  }
+
+  private void movePlainTokensTask() {
+    // An exception would cancel the following runs of the scheduled task.
     try {
-      conn = dataSource.getConnection();
-      conn.setAutoCommit(false);
-      String stmt = "DELETE FROM refresh_token;";
-      statement = conn.prepareStatement(stmt);
-      statement.execute();
-      stmt = "DELETE FROM access_token;";
-      statement = conn.prepareStatement(stmt);
-      statement.execute();
-      conn.commit();
-    } catch (SQLException exception) {
-      try {
-        if (conn != null) {
-          conn.rollback();
-        }
-      } catch (SQLException exception1) {
-        throw new OAuth2ServerException(exception1);
-      }
-      throw new OAuth2ServerException(exception);
-    } finally {
-      if (result != null) {
-        try {
-          result.close();
-        } catch (SQLException exception2) {
-          throw new OAuth2ServerException(exception2);
-        }
-      }
-      if (statement != null) {
-        try {
-          statement.close();
-        } catch (SQLException exception3) {
-          throw new OAuth2ServerException(exception3);
-        }
-      }
-      if (conn != null) {
-        try {
-          conn.close();
-        } catch (SQLException exception4) {
-          throw new OAuth2ServerException(exception4);
-        }
+      long moved = movePlainTokens();
+      if (moved > 0) {
+        log.info("Moved " + moved + " tokens to digest keys");
       }
+    } catch (RuntimeException exception) {
+      log.log(Level.WARNING, "Error when moving tokens to digest keys", exception);
     }
   }
 
-  private OAuth2AccessToken buildAccessTokenFromJdbcResult(ResultSet result) throws SQLException {
+  /**
+   * Move all tokens of the plain tables to the digest tables, each refresh token with its access
+   * tokens in one transaction.
+   *
+   * @return the number of tokens moved
+   */
+  long movePlainTokens() {
+    long moved = 0;
+    while (true) {
+      int batch = executor.inTransaction(this::movePlainTokenBatch);
+      if (batch == 0) {
+        plainTablesMoved = true;
+        return moved;
+      }
+      moved += batch;
+    }
+  }
+
+  private int movePlainTokenBatch(JdbcExecutor.Transaction transaction) throws SQLException {
+    JdbcTokenLayout plain = JdbcTokenLayout.PLAIN;
+    JdbcTokenLayout digest = JdbcTokenLayout.DIGEST;
+    int moved = 0;
+    List<OAuth2RefreshToken> refreshTokens =
+        transaction.query(
+            "token.lockPlainRefreshTokens",
+            "SELECT * FROM refresh_token LIMIT ? FOR UPDATE;",
+            statement -> statement.setInt(1, MOVE_BATCH_SIZE),
+            result -> buildRefreshTokenFromJdbcResult(plain, result));
+    for (OAuth2RefreshToken refreshToken : refreshTokens) {
+      transaction.update(
+          "token.moveRefreshToken",
+          "INSERT INTO hashed_refresh_token "
+              + "(digest, client_id, username, is_scoped, scope_mask, risc_hash) "
+              + "VALUES(?, ?, ?, ?, ?, ?);",
+          statement -> {
+            statement.setObject(1, digest.key(refreshToken.getRefreshToken()));
+            statement.setString(2, refreshToken.getClientId());
+            statement.setString(3, refreshToken.getUsername());
+            statement.setBoolean(4, refreshToken.getIsScoped());
+            scopeRegistry.bind(statement, 5, refreshToken.getScopesList());
+            digest.bindRiscHash(statement, 6, refreshToken.getRefreshToken());
+          });
+      List<OAuth2AccessToken> accessTokens =
+          transaction.query(
+              "token.lockPlainAccessTokensByRefreshToken",
+              "SELECT * FROM access_token WHERE refresh_token = ? FOR UPDATE;",
+              statement -> statement.setString(1, refreshToken.getRefreshToken()),
+              result -> buildAccessTokenFromJdbcResult(plain, result));
+      for (OAuth2AccessToken accessToken : accessTokens) {
+        insertAccessToken(transaction, digest, accessToken);
+      }
+      transaction.update(
+          "token.deletePlainAccessTokensByRefreshToken",
+          "DELETE FROM access_token WHERE refresh_token = ?;",
+          statement -> statement.setString(1, refreshToken.getRefreshToken()));
+      transaction.update(
+          "token.deletePlainRefreshToken",
+          "DELETE FROM refresh_token WHERE refresh_token = ?;",
+          statement -> statement.setString(1, refreshToken.getRefreshToken()));
+      moved += 1 + accessTokens.size();
+    }
+    if (!refreshTokens.isEmpty()) {
+      return moved;
+    }
+    // Only access tokens without a refresh token are left.
+    List<OAuth2AccessToken> accessTokens =
+        transaction.query(
+            "token.lockPlainAccessTokens",
+            "SELECT * FROM access_token LIMIT ? FOR UPDATE;",
+            statement -> statement.setInt(1, MOVE_BATCH_SIZE),
+            result -> buildAccessTokenFromJdbcResult(plain, result));
+    for (OAuth2AccessToken accessToken : accessTokens) {
+      insertAccessToken(transaction, digest, accessToken);
+      transaction.update(
+          "token.deletePlainAccessToken",
+          "DELETE FROM access_token WHERE access_token = ?;",
+          statement -> statement.setString(1, accessToken.getAccessToken()));
+    }
+    return accessTokens.size();
+  }
+
+  private static void bindUserClient(
+      PreparedStatement statement, String username, String clientID) throws SQLException {
+    statement.setString(1, username);
+    statement.setString(2, clientID);
+  }
+
+  private OAuth2AccessToken buildAccessTokenFromJdbcResult(
+      JdbcTokenLayout tokenLayout, ResultSet result) throws SQLException {
     return OAuth2AccessToken.newBuilder()
-        .setAccessToken(result.getString("access_token"))
+        .setAccessToken(tokenLayout.token(result, tokenLayout.accessKey))
         .setClientId(result.getString("client_id"))
         .setUsername(result.getString("username"))
         .setIsScoped(result.getBoolean("is_scoped"))
-        .addAllScopes(OAuth2Utils.parseScope(result.getString("scopes")))
+        .addAllScopes(scopeRegistry.read(result))
         .setExpiredTime(result.getLong("expired_time"))
-        .setRefreshToken(result.getString("refresh_token"))
+        .setRefreshToken(tokenLayout.token(result, tokenLayout.accessRefreshKey))
+        .setRiscTokenHash(tokenLayout.riscHash(result))
         .build();
   }
 
-  private OAuth2RefreshToken buildRefreshTokenFromJdbcResult(ResultSet result) throws SQLException {
+  private OAuth2RefreshToken buildRefreshTokenFromJdbcResult(
+      JdbcTokenLayout tokenLayout, ResultSet result) throws SQLException {
     return OAuth2RefreshToken.newBuilder()
-        .setRefreshToken(result.getString("refresh_token"))
+        .setRefreshToken(tokenLayout.token(result, tokenLayout.refreshKey))
         .setClientId(result.getString("client_id"))
         .setUsername(result.getString("username"))
         .setIsScoped(result.getBoolean("is_scoped"))
-        .addAllScopes(OAuth2Utils.parseScope(result.getString("scopes")))
+        .addAllScopes(scopeRegistry.read(result))
+        .setRiscTokenHash(tokenLayout.riscHash(result))
         .build();
   }
-
-  private class TokenCleaner implements Runnable {
-
-    @Override
-    public void run() {
-      Connection conn = null;
-      PreparedStatement statement = null;
-      ResultSet result = null;
-      try {
-        conn = dataSource.getConnection();
-        conn.setAutoCommit(false);
-        String stmt = "DELETE FROM refresh_token WHERE expired_time < ? ;";
-        statement = conn.prepareStatement(stmt);
-        statement.setLong(1, Instant.now().getEpochSecond());
-        statement.execute();
-        stmt = "DELETE FROM access_token WHERE expired_time < ? ;";
-        statement = conn.prepareStatement(stmt);
-        statement.setLong(1, Instant.now().getEpochSecond());
-        statement.execute();
-        conn.commit();
-
-      } catch (SQLException exception) {
-        try {
-          if (conn != null) {
-            conn.rollback();
-          }
-        } catch (SQLException exception1) {
-          throw new OAuth2ServerException(exception1);
-        }
-        throw new OAuth2ServerException(exception);
-      } finally {
-        if (result != null) {
-          try {
-            result.close();
-          } catch (SQLException exception2) {
-            throw new OAuth2ServerException(exception2);
-          }
-        }
-        if (statement != null) {
-          try {
-            statement.close();
-          } catch (SQLException exception3) {
-            throw new OAuth2ServerException(exception3);
-          }
-        }
-        if (conn != null) {
-          try {
-            conn.close();
-          } catch (SQLException exception4) {
-            throw new OAuth2ServerException(exception4);
-          }
-        }
-      }
-    }
-  }
 }
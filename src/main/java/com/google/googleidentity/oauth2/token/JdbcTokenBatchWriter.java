@@ -0,0 +1,242 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import com.google.common.base.Strings;
+import com.google.googleidentity.mysql.JdbcExecutor;
+import com.google.googleidentity.oauth2.exception.OAuth2ServerException;
+import com.google.googleidentity.oauth2.request.OAuth2Request;
+import com.google.googleidentity.oauth2.scope.JdbcScopeRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Group commit of new tokens for {@link JdbcOAuth2TokenService}. Callers hand in a token and wait,
+ * a writer thread collects the tokens of concurrent callers for up to maxDelay or maxRows and
+ * inserts them with one multi-row INSERT per table in a single transaction. A caller returns only
+ * after that transaction committed, so a returned token is as durable as with a commit of its own.
+ *
+ * <p>If a batch fails, for example on a token value collision, each of its grants is retried on
+ * its own with the fallback.
+ */
+final class JdbcTokenBatchWriter {
+
+  private static final Logger log = Logger.getLogger("JdbcTokenBatchWriter");
+
+  static final int DEFAULT_MAX_ROWS = 128;
+
+  private final JdbcExecutor executor;
+  private final JdbcScopeRegistry scopeRegistry;
+  private final JdbcTokenLayout layout;
+  private final Duration maxDelay;
+  private final int maxRows;
+  private final Function<OAuth2Request, OAuth2AccessToken> fallback;
+
+  private final BlockingQueue<PendingGrant> queue = new LinkedBlockingQueue<>();
+
+  private final Thread writer;
+
+  private static final class PendingGrant {
+    private final OAuth2Request request;
+    private final OAuth2AccessToken token;
+    private final CompletableFuture<OAuth2AccessToken> result = new CompletableFuture<>();
+
+    PendingGrant(OAuth2Request request, OAuth2AccessToken token) {
+      this.request = request;
+      this.token = token;
+    }
+  }
+
+  /**
+   * @param fallback inserts the tokens of a request in a transaction of its own, used for the
+   *     grants of a failed batch
+   */
+  JdbcTokenBatchWriter(
+      JdbcExecutor executor,
+      JdbcScopeRegistry scopeRegistry,
+      JdbcTokenLayout layout,
+      Duration maxDelay,
+      int maxRows,
+      Function<OAuth2Request, OAuth2AccessToken> fallback) {
+    this.executor = executor;
+    this.scopeRegistry = scopeRegistry;
+    this.layout = layout;
+    this.maxDelay = maxDelay;
+    this.maxRows = maxRows;
+    this.fallback = fallback;
+    writer = new Thread(this::writeBatches, "JdbcTokenBatchWriter");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Insert the token, with its refresh token if it has one, and wait for the commit.
+   *
+   * @param token the new token with its value and refresh token value set
+   * @return the token as stored, which differs from the given one in its values if the batch
+   *     failed and the grant was retried
+   */
+  OAuth2AccessToken write(OAuth2Request request, OAuth2AccessToken token) {
+    PendingGrant grant = new PendingGrant(request, token);
+    queue.add(grant);
+    try {
+      return grant.result.join();
+    } catch (CompletionException exception) {
+      if (exception.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) exception.getCause();
+      }
+      throw new OAuth2ServerException(exception);
+    }
+  }
+
+  private void writeBatches() {
+    List<PendingGrant> batch = new ArrayList<>(maxRows);
+    try {
+      while (true) {
+        batch.add(queue.take());
+        long deadline = System.nanoTime() + maxDelay.toNanos();
+        while (batch.size() < maxRows) {
+          if (queue.drainTo(batch, maxRows - batch.size()) > 0) {
+            continue;
+          }
+          PendingGrant next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+        }
+        flush(batch);
+        batch.clear();
+      }
+    } catch (InterruptedException exception) {
+      OAuth2ServerException stopped =
+          new OAuth2ServerException("Token writer stopped!", exception);
+      batch.addAll(queue);
+      for (PendingGrant grant : batch) {
+        grant.result.completeExceptionally(stopped);
+      }
+    }
+  }
+
+  private void flush(List<PendingGrant> batch) {
+    try {
+      insertBatch(batch);
+      for (PendingGrant grant : batch) {
+        grant.result.complete(grant.token);
+      }
+    } catch (RuntimeException exception) {
+      log.log(
+          Level.WARNING, "Batch of " + batch.size() + " tokens failed, retrying each", exception);
+      for (PendingGrant grant : batch) {
+        try {
+          grant.result.complete(fallback.apply(grant.request));
+        } catch (RuntimeException exception1) {
+          grant.result.completeExceptionally(exception1);
+        }
+      }
+    }
+  }
+
+  private void insertBatch(List<PendingGrant> batch) {
+    // Registered before the transaction, a new scope is inserted on a connection of its own.
+    List<byte[]> masks = new ArrayList<>(batch.size());
+    List<OAuth2AccessToken> refreshable = new ArrayList<>(batch.size());
+    List<byte[]> refreshableMasks = new ArrayList<>(batch.size());
+    for (PendingGrant grant : batch) {
+      byte[] mask = scopeRegistry.register(grant.token.getScopesList()).toByteArray();
+      masks.add(mask);
+      if (!grant.token.getRefreshToken().isEmpty()) {
+        refreshable.add(grant.token);
+        refreshableMasks.add(mask);
+      }
+    }
+    executor.inTransaction(
+        transaction -> {
+          if (!refreshable.isEmpty()) {
+            String stmt =
+                "INSERT INTO "
+                    + layout.refreshTable
+                    + " ("
+                    + layout.refreshKey
+                    + ", client_id, username, is_scoped, scope_mask"
+                    + layout.riscHashColumn()
+                    + ") VALUES "
+                    + rowPlaceholders(5, refreshable.size())
+                    + ";";
+            transaction.update(
+                layout.statementName("token.insertRefreshTokenBatch"),
+                stmt,
+                statement -> {
+                  int index = 1;
+                  for (int i = 0; i < refreshable.size(); i++) {
+                    OAuth2AccessToken token = refreshable.get(i);
+                    statement.setObject(index++, layout.key(token.getRefreshToken()));
+                    statement.setString(index++, token.getClientId());
+                    statement.setString(index++, token.getUsername());
+                    statement.setBoolean(index++, token.getIsScoped());
+                    statement.setBytes(index++, refreshableMasks.get(i));
+                    index = layout.bindRiscHash(statement, index, token.getRefreshToken());
+                  }
+                });
+          }
+          String stmt =
+              "INSERT INTO "
+                  + layout.accessTable
+                  + " ("
+                  + layout.accessKey
+                  + ", client_id, username, is_scoped, scope_mask, expired_time, "
+                  + layout.accessRefreshKey
+                  + layout.riscHashColumn()
+                  + ") VALUES "
+                  + rowPlaceholders(7, batch.size())
+                  + ";";
+          return transaction.update(
+              layout.statementName("token.insertAccessTokenBatch"),
+              stmt,
+              statement -> {
+                int index = 1;
+                for (int i = 0; i < batch.size(); i++) {
+                  OAuth2AccessToken token = batch.get(i).token;
+                  statement.setObject(index++, layout.key(token.getAccessToken()));
+                  statement.setString(index++, token.getClientId());
+                  statement.setString(index++, token.getUsername());
+                  statement.setBoolean(index++, token.getIsScoped());
+                  statement.setBytes(index++, masks.get(i));
+                  statement.setLong(index++, token.getExpiredTime());
+                  JdbcTokenLayout.bind(
+                      statement, index++, layout.refreshReference(token.getRefreshToken()));
+                  index = layout.bindRiscHash(statement, index, token.getAccessToken());
+                }
+              });
+        });
+  }
+
+  /** @return the placeholders of that many rows, each of the columns and the RISC hash if stored */
+  private String rowPlaceholders(int columns, int rows) {
+    String row = "(?" + Strings.repeat(", ?", columns - 1) + layout.riscHashPlaceholder() + ")";
+    return row + Strings.repeat(", " + row, rows - 1);
+  }
+}
@@ -0,0 +1,141 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * Tables and key columns of the tokens of {@link JdbcOAuth2TokenService}. {@link #PLAIN} keys the
+ * rows by the token values, {@link #DIGEST} by their {@link TokenDigest} in BINARY(32) columns,
+ * including the reference of an access token to its refresh token.
+ *
+ * <p>Keys are a String for PLAIN and the digest bytes for DIGEST, and a missing refresh token is an
+ * empty string in PLAIN and NULL in DIGEST. DIGEST rows also keep the {@link
+ * TokenDigest#riscHashOf} of their token in a risc_hash column, it is NULL for rows stored before.
+ */
+final class JdbcTokenLayout {
+
+  static final JdbcTokenLayout PLAIN =
+      new JdbcTokenLayout(
+          false, "access_token", "access_token", "refresh_token", "refresh_token", "refresh_token");
+
+  static final JdbcTokenLayout DIGEST =
+      new JdbcTokenLayout(
+          true,
+          "hashed_access_token",
+          "digest",
+          "hashed_refresh_token",
+          "digest",
+          "refresh_digest");
+
+  final boolean digest;
+  final String accessTable;
+  final String accessKey;
+  final String refreshTable;
+  final String refreshKey;
+  /** Column of an access token row with the key of its refresh token. */
+  final String accessRefreshKey;
+
+  private JdbcTokenLayout(
+      boolean digest,
+      String accessTable,
+      String accessKey,
+      String refreshTable,
+      String refreshKey,
+      String accessRefreshKey) {
+    this.digest = digest;
+    this.accessTable = accessTable;
+    this.accessKey = accessKey;
+    this.refreshTable = refreshTable;
+    this.refreshKey = refreshKey;
+    this.accessRefreshKey = accessRefreshKey;
+  }
+
+  /** @return the name of a statement on the tables of this layout, for its statistics */
+  String statementName(String name) {
+    return digest ? name + ".digest" : name;
+  }
+
+  /** @return the key of a token value */
+  Object key(String token) {
+    return digest ? TokenDigest.of(token) : token;
+  }
+
+  /** Bind a key of this layout, which may be NULL. */
+  static void bind(PreparedStatement statement, int index, Object key) throws SQLException {
+    if (key == null) {
+      statement.setNull(index, Types.BINARY);
+    } else {
+      statement.setObject(index, key);
+    }
+  }
+
+  /** @return the key of the refresh token of an access token, which may have none */
+  Object refreshReference(String refreshToken) {
+    if (refreshToken.isEmpty()) {
+      return digest ? null : "";
+    }
+    return key(refreshToken);
+  }
+
+  /** @return the column list to append to the key columns of an INSERT, for the RISC hash */
+  String riscHashColumn() {
+    return digest ? ", risc_hash" : "";
+  }
+
+  /** @return the placeholder to append to the values of an INSERT, for the RISC hash */
+  String riscHashPlaceholder() {
+    return digest ? ", ?" : "";
+  }
+
+  /**
+   * Bind the RISC hash of the token if this layout stores one.
+   *
+   * @return the index of the next parameter
+   */
+  int bindRiscHash(PreparedStatement statement, int index, String token) throws SQLException {
+    if (!digest) {
+      return index;
+    }
+    statement.setString(index, TokenDigest.riscHashOf(token));
+    return index + 1;
+  }
+
+  /** @return the RISC hash of a row, empty for PLAIN, which has the token value, and for NULL */
+  String riscHash(ResultSet result) throws SQLException {
+    if (!digest) {
+      return "";
+    }
+    String hash = result.getString("risc_hash");
+    return hash == null ? "" : hash;
+  }
+
+  /**
+   * @return the token value in a key column, or its identifier for DIGEST, empty if the column is
+   *     NULL
+   */
+  String token(ResultSet result, String column) throws SQLException {
+    if (!digest) {
+      return result.getString(column);
+    }
+    byte[] key = result.getBytes(column);
+    return key == null ? "" : TokenDigest.identifier(key);
+  }
+}
@@ -0,0 +1,221 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.googleidentity.mysql.JdbcExecutor;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Range partitions of an access token table by expired time on MySQL, one per bucket of time. With
+ * access tokens valid for minutes the table is almost only churn, so instead of deleting expired
+ * rows one by one {@link JdbcTokenReaper} calls {@link #rotate}, which drops the buckets that have
+ * completely expired and adds the buckets of the near future ahead of time. A pmax partition takes
+ * rows past the last bucket, so inserts never fail if rotation falls behind.
+ *
+ * <p>MySQL requires the partition column in every unique key, so the primary key becomes the token
+ * key with the expired time. Token values are random, a collision is no longer detected by the
+ * database and inserts are not retried on one. A lookup by token probes the index of every
+ * partition, which are few for short lived tokens. Expired tokens stay until their bucket is
+ * dropped, readers check the expired time.
+ *
+ * <p>Partitioning an existing table copies it, so the first {@link #rotate} on a large table should
+ * run in a quiet period.
+ */
+final class JdbcTokenPartitions {
+
+  private static final Logger log = Logger.getLogger("JdbcTokenPartitions");
+
+  /** Buckets created ahead of the current one. */
+  static final int DEFAULT_AHEAD = 3;
+
+  private static final String MAX_PARTITION = "pmax";
+
+  private final JdbcExecutor executor;
+  private final Clock clock;
+  private final String table;
+  private final String key;
+  private final long bucketSeconds;
+  private final int ahead;
+
+  JdbcTokenPartitions(
+      JdbcExecutor executor, Clock clock, JdbcTokenLayout layout, Duration bucket, int ahead) {
+    this.executor = executor;
+    this.clock = clock;
+    this.table = layout.accessTable;
+    this.key = layout.accessKey;
+    this.bucketSeconds = bucket.getSeconds();
+    this.ahead = ahead;
+  }
+
+  /**
+   * Partitions of the access table of the layout with buckets of TOKEN_PARTITION_MINUTES, null if
+   * that is not set.
+   */
+  static JdbcTokenPartitions fromEnvironment(JdbcExecutor executor, JdbcTokenLayout layout) {
+    String minutes = System.getenv("TOKEN_PARTITION_MINUTES");
+    if (Strings.isNullOrEmpty(minutes)) {
+      return null;
+    }
+    return new JdbcTokenPartitions(
+        executor,
+        Clock.systemUTC(),
+        layout,
+        Duration.ofMinutes(Long.parseLong(minutes)),
+        DEFAULT_AHEAD);
+  }
+
+  String getTable() {
+    return table;
+  }
+
+  /**
+   * Partition the table if it is not yet, drop the expired buckets and add the coming ones.
+   *
+   * @return the estimated number of rows dropped
+   */
+  long rotate() {
+    long now = clock.instant().getEpochSecond();
+    List<Partition> partitions = readPartitions();
+    if (partitions.isEmpty()) {
+      partitionTable(boundsToAdd(ImmutableList.of(), now, bucketSeconds, ahead));
+      return 0;
+    }
+    List<Long> bounds = new ArrayList<>();
+    long dropped = 0;
+    List<String> expired = new ArrayList<>();
+    for (Partition partition : partitions) {
+      if (partition.bound == null) {
+        continue;
+      }
+      bounds.add(partition.bound);
+      if (partition.bound <= now) {
+        expired.add(partition.name);
+        dropped += partition.rows;
+      }
+    }
+    List<Long> newBounds = boundsToAdd(bounds, now, bucketSeconds, ahead);
+    if (!newBounds.isEmpty()) {
+      executor.update(
+          "partitions.add." + table,
+          "ALTER TABLE "
+              + table
+              + " REORGANIZE PARTITION "
+              + MAX_PARTITION
+              + " INTO ("
+              + partitionList(newBounds)
+              + ");",
+          statement -> {});
+    }
+    if (!expired.isEmpty()) {
+      executor.update(
+          "partitions.drop." + table,
+          "ALTER TABLE " + table + " DROP PARTITION " + Joiner.on(", ").join(expired) + ";",
+          statement -> {});
+      log.info("Dropped " + expired.size() + " expired partitions of " + table);
+    }
+    return dropped;
+  }
+
+  private void partitionTable(List<Long> bounds) {
+    log.info("Partition " + table + " by expired time");
+    executor.update(
+        "partitions.create." + table,
+        "ALTER TABLE "
+            + table
+            + " MODIFY expired_time BIGINT NOT NULL, DROP PRIMARY KEY, ADD PRIMARY KEY ("
+            + key
+            + ", expired_time) PARTITION BY RANGE (expired_time) ("
+            + partitionList(bounds)
+            + ");",
+        statement -> {});
+  }
+
+  /** @return the definitions of the buckets with the bounds, followed by pmax */
+  private static String partitionList(List<Long> bounds) {
+    StringBuilder list = new StringBuilder();
+    for (long bound : bounds) {
+      list.append("PARTITION ")
+          .append(partitionName(bound))
+          .append(" VALUES LESS THAN (")
+          .append(bound)
+          .append("), ");
+    }
+    return list.append("PARTITION ")
+        .append(MAX_PARTITION)
+        .append(" VALUES LESS THAN MAXVALUE")
+        .toString();
+  }
+
+  private static final class Partition {
+    private final String name;
+    /** Null for pmax. */
+    private final Long bound;
+    private final long rows;
+
+    Partition(String name, Long bound, long rows) {
+      this.name = name;
+      this.bound = bound;
+      this.rows = rows;
+    }
+  }
+
+  /** @return the partitions of the table in order, empty if it is not partitioned */
+  private List<Partition> readPartitions() {
+    return executor.query(
+        "partitions.read." + table,
+        "SELECT PARTITION_NAME, PARTITION_DESCRIPTION, TABLE_ROWS "
+            + "FROM information_schema.PARTITIONS "
+            + "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? AND PARTITION_NAME IS NOT NULL "
+            + "ORDER BY PARTITION_ORDINAL_POSITION;",
+        statement -> statement.setString(1, table),
+        result -> {
+          String bound = result.getString(2);
+          return new Partition(
+              result.getString(1),
+              "MAXVALUE".equals(bound) ? null : Long.valueOf(bound),
+              result.getLong(3));
+        });
+  }
+
+  /** @return the name of the bucket of rows expiring before the bound */
+  static String partitionName(long bound) {
+    return "p" + bound;
+  }
+
+  /**
+   * @param bounds the upper bounds of the existing buckets in ascending order
+   * @return the upper bounds of the buckets to add so that there are buckets up to ahead buckets
+   *     after the current one, in ascending order
+   */
+  static List<Long> boundsToAdd(List<Long> bounds, long now, long bucketSeconds, int ahead) {
+    long current = Math.floorDiv(now, bucketSeconds) * bucketSeconds;
+    long last = bounds.isEmpty() ? current : Math.max(bounds.get(bounds.size() - 1), current);
+    long target = current + (ahead + 1) * bucketSeconds;
+    List<Long> newBounds = new ArrayList<>();
+    for (long bound = last + bucketSeconds; bound <= target; bound += bucketSeconds) {
+      newBounds.add(bound);
+    }
+    return newBounds;
+  }
+}
@@ -0,0 +1,239 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import com.google.common.base.Strings;
+import com.google.googleidentity.mysql.JdbcExecutor;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Removes expired tokens of {@link JdbcOAuth2TokenService} in small batches. A batch reads the
+ * keys of the next expired rows through the expired_time index, starting at the expired time the
+ * previous batch ended at, and deletes them by primary key, so each statement only locks the rows
+ * it removes. The sweep pauses between batches to leave the database to online requests.
+ *
+ * <p>A refresh token without expired time never expires. An access token table partitioned by
+ * {@link JdbcTokenPartitions} is not swept, its expired partitions are dropped instead.
+ */
+public final class JdbcTokenReaper implements Runnable {
+
+  private static final Logger log = Logger.getLogger("JdbcTokenReaper");
+
+  /** Time between the end of a sweep and the start of the next one. */
+  static final Duration DEFAULT_INTERVAL = Duration.ofMinutes(1);
+
+  static final int DEFAULT_BATCH_SIZE = 500;
+
+  static final Duration DEFAULT_BATCH_PAUSE = Duration.ofMillis(50);
+
+  /** Tables to sweep, each with its primary key column, see {@link JdbcTokenLayout}. */
+  private static final String[][] TABLES = {
+    {JdbcTokenLayout.PLAIN.accessTable, JdbcTokenLayout.PLAIN.accessKey},
+    {JdbcTokenLayout.PLAIN.refreshTable, JdbcTokenLayout.PLAIN.refreshKey},
+    {JdbcTokenLayout.DIGEST.accessTable, JdbcTokenLayout.DIGEST.accessKey},
+    {JdbcTokenLayout.DIGEST.refreshTable, JdbcTokenLayout.DIGEST.refreshKey}
+  };
+
+  private final JdbcExecutor executor;
+  private final Clock clock;
+  private final Duration interval;
+  private final int batchSize;
+  private final Duration batchPause;
+
+  /** Null if no table is partitioned. */
+  private final JdbcTokenPartitions partitions;
+
+  private final AtomicLong totalReclaimed = new AtomicLong();
+  private volatile long lastSweepReclaimed = 0;
+  private volatile Duration lastSweepDuration = Duration.ZERO;
+
+  JdbcTokenReaper(
+      JdbcExecutor executor, Clock clock, Duration interval, int batchSize, Duration batchPause) {
+    this(executor, clock, interval, batchSize, batchPause, null);
+  }
+
+  JdbcTokenReaper(
+      JdbcExecutor executor,
+      Clock clock,
+      Duration interval,
+      int batchSize,
+      Duration batchPause,
+      JdbcTokenPartitions partitions) {
+    this.executor = executor;
+    this.clock = clock;
+    this.interval = interval;
+    this.batchSize = batchSize;
+    this.batchPause = batchPause;
+    this.partitions = partitions;
+  }
+
+  /**
+   * Reaper with the interval in seconds from TOKEN_REAPER_INTERVAL_SECONDS if that is set, which
+   * drops partitions of the access table of the layout if TOKEN_PARTITION_MINUTES is set.
+   */
+  static JdbcTokenReaper fromEnvironment(JdbcExecutor executor, JdbcTokenLayout layout) {
+    String seconds = System.getenv("TOKEN_REAPER_INTERVAL_SECONDS");
+    Duration interval =
+        Strings.isNullOrEmpty(seconds)
+            ? DEFAULT_INTERVAL
+            : Duration.ofSeconds(Long.parseLong(seconds));
+    return new JdbcTokenReaper(
+        executor,
+        Clock.systemUTC(),
+        interval,
+        DEFAULT_BATCH_SIZE,
+        DEFAULT_BATCH_PAUSE,
+        JdbcTokenPartitions.fromEnvironment(executor, layout));
+  }
+
+  Duration getInterval() {
+    return interval;
+  }
+
+  /** @return whether the table is partitioned, its token key is then not unique */
+  boolean isPartitioned(String table) {
+    return partitions != null && partitions.getTable().equals(table);
+  }
+
+  /** @return rows removed by all sweeps */
+  public long getTotalReclaimed() {
+    return totalReclaimed.get();
+  }
+
+  /** @return rows removed by the last finished sweep */
+  public long getLastSweepReclaimed() {
+    return lastSweepReclaimed;
+  }
+
+  /** @return how long the last finished sweep took, including the pauses */
+  public Duration getLastSweepDuration() {
+    return lastSweepDuration;
+  }
+
+  @Override
+  public void run() {
+    // An exception would cancel the following runs of the scheduled task.
+    try {
+      sweep();
+    } catch (RuntimeException exception) {
+      log.log(Level.WARNING, "Error when removing expired tokens", exception);
+    }
+  }
+
+  /**
+   * Remove all rows expired before now.
+   *
+   * @return the number of rows removed
+   */
+  long sweep() {
+    long start = System.nanoTime();
+    long now = clock.instant().getEpochSecond();
+    long reclaimed = 0;
+    for (String[] table : TABLES) {
+      if (isPartitioned(table[0])) {
+        reclaimed += partitions.rotate();
+      } else {
+        reclaimed += sweepTable(table[0], table[1], now);
+      }
+      if (Thread.currentThread().isInterrupted()) {
+        break;
+      }
+    }
+    Duration duration = Duration.ofNanos(System.nanoTime() - start);
+    totalReclaimed.addAndGet(reclaimed);
+    lastSweepReclaimed = reclaimed;
+    lastSweepDuration = duration;
+    if (reclaimed > 0) {
+      log.info("Removed " + reclaimed + " expired tokens in " + duration.toMillis() + " ms");
+    }
+    return reclaimed;
+  }
+
+  private long sweepTable(String table, String key, long now) {
+    long reclaimed = 0;
+    long from = Long.MIN_VALUE;
+    while (true) {
+      List<Object> keys = new ArrayList<>(batchSize);
+      long last = readBatch(table, key, from, now, keys);
+      if (keys.isEmpty()) {
+        return reclaimed;
+      }
+      reclaimed += deleteBatch(table, key, keys, now);
+      if (keys.size() < batchSize) {
+        return reclaimed;
+      }
+      from = last;
+      try {
+        Thread.sleep(batchPause.toMillis());
+      } catch (InterruptedException exception) {
+        Thread.currentThread().interrupt();
+        return reclaimed;
+      }
+    }
+  }
+
+  /**
+   * Read the keys of up to batchSize rows expired at or after from and before now.
+   *
+   * @return the largest expired time read
+   */
+  private long readBatch(String table, String key, long from, long now, List<Object> keys) {
+    String stmt =
+        "SELECT "
+            + key
+            + ", expired_time FROM "
+            + table
+            + " WHERE expired_time >= ? AND expired_time < ? ORDER BY expired_time LIMIT ?;";
+    List<Long> expiredTimes =
+        executor.query(
+            "reaper.read." + table,
+            stmt,
+            statement -> {
+              statement.setLong(1, from);
+              statement.setLong(2, now);
+              statement.setInt(3, batchSize);
+            },
+            result -> {
+              keys.add(result.getObject(1));
+              return result.getLong(2);
+            });
+    return expiredTimes.isEmpty() ? from : expiredTimes.get(expiredTimes.size() - 1);
+  }
+
+  private int deleteBatch(String table, String key, List<Object> keys, long now) {
+    StringBuilder stmt =
+        new StringBuilder("DELETE FROM ").append(table).append(" WHERE ").append(key);
+    stmt.append(" IN (?").append(Strings.repeat(", ?", keys.size() - 1));
+    stmt.append(") AND expired_time < ?;");
+    return executor.update(
+        "reaper.delete." + table,
+        stmt.toString(),
+        statement -> {
+          int index = 1;
+          for (Object value : keys) {
+            statement.setObject(index++, value);
+          }
+          statement.setLong(index, now);
+        });
+  }
+}
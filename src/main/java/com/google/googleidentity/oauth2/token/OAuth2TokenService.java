@@ -17,9 +17,10 @@
 package com.google.googleidentity.oauth2.token;
 
 import com.google.googleidentity.oauth2.request.OAuth2Request;
-
+import com.google.googleidentity.oauth2.util.Page;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 /** The class for generate token, refresh token, read token, store token */
 public interface OAuth2TokenService {
@@ -54,6 +55,12 @@ public interface OAuth2TokenService {
   /** Revoke tokens between a user and a client, if token cannot be found, return false */
   boolean revokeUserClientTokens(String username, String clientID);
 
+  /**
+   * Revoke tokens between a user and a client as one operation and return them, so no token
+   * issued meanwhile is left out of the result.
+   */
+  RevokedTokens revokeAndListUserClientTokens(String username, String clientID);
+
   /** List all client linked by this user */
   List<String> listUserClient(String username);
 
@@ -63,5 +70,47 @@ public interface OAuth2TokenService {
   /** List all refresh tokens between a user and a client */
   List<OAuth2RefreshToken> listUserClientRefreshTokens(String username, String clientID);
 
+  /**
+   * List a page of the clients linked by this user in client ID order.
+   *
+   * @param cursor the next cursor of the previous page, empty for the first page
+   */
+  Page<String> listUserClient(String username, Optional<String> cursor, int limit);
+
+  /**
+   * List a page of the access tokens between a user and a client, in an order of the store.
+   *
+   * @param cursor the next cursor of the previous page, empty for the first page
+   */
+  Page<OAuth2AccessToken> listUserClientAccessTokens(
+      String username, String clientID, Optional<String> cursor, int limit);
+
+  /**
+   * List a page of the refresh tokens between a user and a client, in an order of the store.
+   *
+   * @param cursor the next cursor of the previous page, empty for the first page
+   */
+  Page<OAuth2RefreshToken> listUserClientRefreshTokens(
+      String username, String clientID, Optional<String> cursor, int limit);
+
+  /** Stream the clients linked by this user, read page by page as the stream is consumed */
+  default Stream<String> streamUserClients(String username) {
+    return Page.stream(cursor -> listUserClient(username, cursor, Page.STREAM_PAGE_SIZE));
+  }
+
+  /** Stream the access tokens between a user and a client, read page by page */
+  default Stream<OAuth2AccessToken> streamUserClientAccessTokens(
+      String username, String clientID) {
+    return Page.stream(
+        cursor -> listUserClientAccessTokens(username, clientID, cursor, Page.STREAM_PAGE_SIZE));
+  }
+
+  /** Stream the refresh tokens between a user and a client, read page by page */
+  default Stream<OAuth2RefreshToken> streamUserClientRefreshTokens(
+      String username, String clientID) {
+    return Page.stream(
+        cursor -> listUserClientRefreshTokens(username, clientID, cursor, Page.STREAM_PAGE_SIZE));
+  }
+
   void reset();
 }
@@ -0,0 +1,93 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Interns the scope settings of tokens. Nearly all tokens of a deployment share a handful of scope
+ * sets, so a stored token only keeps the int id of its set.
+ */
+final class ScopeSetDictionary {
+
+  private final Map<ScopeSet, Integer> ids = new ConcurrentHashMap<>();
+  private final List<ScopeSet> sets = new CopyOnWriteArrayList<>();
+
+  /** @return the id of the scope set, the same for equal sets */
+  int intern(boolean isScoped, List<String> scopes) {
+    ScopeSet set = new ScopeSet(isScoped, ImmutableList.copyOf(scopes));
+    Integer id = ids.get(set);
+    if (id != null) {
+      return id;
+    }
+    synchronized (this) {
+      id = ids.get(set);
+      if (id == null) {
+        id = sets.size();
+        // Publish the set before its id, so every id handed out can be resolved.
+        sets.add(set);
+        ids.put(set, id);
+      }
+      return id;
+    }
+  }
+
+  ScopeSet get(int id) {
+    return sets.get(id);
+  }
+
+  static final class ScopeSet {
+    private final boolean isScoped;
+    private final ImmutableList<String> scopes;
+
+    private ScopeSet(boolean isScoped, ImmutableList<String> scopes) {
+      this.isScoped = isScoped;
+      this.scopes = scopes;
+    }
+
+    boolean isScoped() {
+      return isScoped;
+    }
+
+    ImmutableList<String> getScopes() {
+      return scopes;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof ScopeSet)) {
+        return false;
+      }
+      ScopeSet that = (ScopeSet) o;
+      return isScoped == that.isScoped && scopes.equals(that.scopes);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(isScoped, scopes);
+    }
+  }
+}
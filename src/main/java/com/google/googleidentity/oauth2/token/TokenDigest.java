@@ -0,0 +1,80 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * SHA-256 digests of token values, the keys of the tokens {@link JdbcOAuth2TokenService} stores
+ * with TOKEN_DIGEST_KEYS. A digest can not be used as a token, so the database does not hold live
+ * tokens.
+ *
+ * <p>A token listed from such storage has its {@link #identifier} in place of the value, and so
+ * does the refresh token of an access token read from it.
+ */
+public final class TokenDigest {
+
+  public static final int LENGTH = 32;
+
+  private static final String IDENTIFIER_PREFIX = "sha256:";
+
+  private TokenDigest() {}
+
+  /** @return the digest of the token value */
+  public static byte[] of(String token) {
+    return Hashing.sha256().hashString(token, StandardCharsets.UTF_8).asBytes();
+  }
+
+  /** @return a printable identifier of the token with the digest, not usable as the token */
+  public static String identifier(byte[] digest) {
+    return IDENTIFIER_PREFIX + BaseEncoding.base16().lowerCase().encode(digest);
+  }
+
+  /** @return the identifier of the token value */
+  public static String identifierOf(String token) {
+    return identifier(of(token));
+  }
+
+  /**
+   * @return the digest in the identifier
+   * @throws IllegalArgumentException if it is not an identifier
+   */
+  public static byte[] parseIdentifier(String identifier) {
+    if (!isIdentifier(identifier)) {
+      throw new IllegalArgumentException("Not a token identifier: " + identifier);
+    }
+    return BaseEncoding.base16()
+        .lowerCase()
+        .decode(identifier.substring(IDENTIFIER_PREFIX.length()));
+  }
+
+  /**
+   * @return the lowercase hex double SHA-512 of the token value, by which RISC events identify
+   *     the token. Stored next to the digest, since it can not be computed from the digest.
+   */
+  public static String riscHashOf(String token) {
+    byte[] hash = Hashing.sha512().hashString(token, StandardCharsets.UTF_8).asBytes();
+    return Hashing.sha512().hashBytes(hash).toString();
+  }
+
+  /** @return whether the value is an identifier instead of a token value */
+  public static boolean isIdentifier(String value) {
+    return value.startsWith(IDENTIFIER_PREFIX);
+  }
+}
@@ -0,0 +1,306 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import com.google.googleidentity.oauth2.exception.OAuth2ServerException;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append only log of {@link TokenJournalEntry}s in a local directory, so the in memory token
+ * service can be restored after a restart.
+ *
+ * <p>The log is split in numbered segments, each a memory mapped file. An entry is framed as its
+ * length, the CRC32 of its bytes and the bytes, a zero length or a wrong CRC ends a segment, so a
+ * write torn by a crash is dropped. {@link #append} only copies the entry into the mapping, {@link
+ * #sync} makes all entries appended so far durable; callers waiting at the same time share one
+ * fsync.
+ *
+ * <p>{@link #compact} starts a new segment, writes a snapshot of the whole state as entries and
+ * deletes the older segments. Entries are replayed from the latest snapshot and then from every
+ * segment starting with the one the snapshot was taken at. Since the snapshot may already contain
+ * some of the entries of that segment, applying an entry must be idempotent.
+ */
+final class TokenJournal implements Closeable {
+
+  private static final Logger log = Logger.getLogger("TokenJournal");
+
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SNAPSHOT_PREFIX = "snapshot-";
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  private static final int INITIAL_MAPPING_SIZE = 1 << 20;
+
+  /** Length and CRC32 of an entry. */
+  private static final int FRAME_HEADER_SIZE = 8;
+
+  /** Writes a snapshot of the whole state as entries. */
+  interface Snapshot {
+    void writeTo(Consumer<TokenJournalEntry> out);
+  }
+
+  private final Path directory;
+
+  // Guarded by this.
+  private long segment;
+  private FileChannel channel;
+  private MappedByteBuffer mapping;
+
+  /** Bytes appended since the journal was opened, over all segments. */
+  private volatile long appended = 0;
+
+  /** Bytes of {@link #appended} known to be on disk. Guarded by syncLock. */
+  private long durable = 0;
+
+  private final Object syncLock = new Object();
+
+  /** Size of the current segment when it was started. */
+  private long segmentStart = 0;
+
+  private TokenJournal(Path directory, long segment) throws IOException {
+    this.directory = directory;
+    this.segment = segment;
+    openSegment();
+  }
+
+  /**
+   * Open the journal in the directory, hand all entries written before to replay in order and start
+   * a new segment for the entries appended from now on.
+   */
+  static TokenJournal open(Path directory, Consumer<TokenJournalEntry> replay)
+      throws IOException {
+    Files.createDirectories(directory);
+
+    long snapshot = -1;
+    List<Long> segments = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        if (name.endsWith(TEMP_SUFFIX)) {
+          // An unfinished snapshot.
+          Files.delete(file);
+        } else if (name.startsWith(SNAPSHOT_PREFIX)) {
+          snapshot = Math.max(snapshot, Long.parseLong(name.substring(SNAPSHOT_PREFIX.length())));
+        } else if (name.startsWith(SEGMENT_PREFIX)) {
+          segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length())));
+        }
+      }
+    }
+    Collections.sort(segments);
+
+    if (snapshot >= 0) {
+      read(directory.resolve(SNAPSHOT_PREFIX + snapshot), replay);
+    }
+    long last = snapshot;
+    for (long segment : segments) {
+      if (segment >= snapshot) {
+        read(directory.resolve(SEGMENT_PREFIX + segment), replay);
+      }
+      last = Math.max(last, segment);
+    }
+    return new TokenJournal(directory, last + 1);
+  }
+
+  /** Read the entries of a segment or snapshot up to the first one not completely written. */
+  private static void read(Path file, Consumer<TokenJournalEntry> replay) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+    CRC32 crc = new CRC32();
+    while (buffer.remaining() >= FRAME_HEADER_SIZE) {
+      int length = buffer.getInt();
+      int checksum = buffer.getInt();
+      if (length <= 0 || length > buffer.remaining()) {
+        return;
+      }
+      crc.reset();
+      crc.update(buffer.array(), buffer.position(), length);
+      if ((int) crc.getValue() != checksum) {
+        log.warning("Token journal " + file + " ends with a damaged entry");
+        return;
+      }
+      try {
+        replay.accept(
+            TokenJournalEntry.parseFrom(
+                ByteBuffer.wrap(buffer.array(), buffer.position(), length)));
+      } catch (InvalidProtocolBufferException e) {
+        throw new IOException("Invalid entry in token journal " + file, e);
+      }
+      buffer.position(buffer.position() + length);
+    }
+  }
+
+  private void openSegment() throws IOException {
+    channel =
+        FileChannel.open(
+            directory.resolve(SEGMENT_PREFIX + segment),
+            StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, INITIAL_MAPPING_SIZE);
+    segmentStart = appended;
+  }
+
+  /** Append an entry, it is durable after the next {@link #sync}. */
+  void append(TokenJournalEntry entry) {
+    byte[] bytes = entry.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    synchronized (this) {
+      if (mapping.remaining() < FRAME_HEADER_SIZE + bytes.length) {
+        grow(FRAME_HEADER_SIZE + bytes.length);
+      }
+      mapping.putInt(bytes.length).putInt((int) crc.getValue()).put(bytes);
+      appended += FRAME_HEADER_SIZE + bytes.length;
+    }
+  }
+
+  /** Map a larger part of the current segment, at least needed more bytes. */
+  private void grow(int needed) {
+    int position = mapping.position();
+    long size = Math.max((long) mapping.capacity() * 2, (long) position + needed);
+    if (size > Integer.MAX_VALUE) {
+      throw new OAuth2ServerException(new IOException("Token journal segment is too large"));
+    }
+    try {
+      // Entries in the old mapping are not covered by forcing the new one.
+      mapping.force();
+      mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    } catch (IOException e) {
+      throw new OAuth2ServerException("Error when growing token journal!", e);
+    }
+    mapping.position(position);
+  }
+
+  /** Wait until all entries appended before are on disk. */
+  void sync() {
+    long target = appended;
+    synchronized (syncLock) {
+      // Another caller may have synced this far while we waited for the lock.
+      if (durable >= target) {
+        return;
+      }
+      MappedByteBuffer current;
+      long end;
+      synchronized (this) {
+        current = mapping;
+        end = appended;
+      }
+      current.force();
+      durable = end;
+    }
+  }
+
+  /** @return bytes appended to the current segment */
+  synchronized long getSegmentSize() {
+    return appended - segmentStart;
+  }
+
+  /**
+   * Start a new segment, write the snapshot and delete the segments and snapshots it replaces. The
+   * snapshot is written while entries are appended to the new segment.
+   */
+  void compact(Snapshot snapshot) throws IOException {
+    long snapshotSegment;
+    synchronized (syncLock) {
+      synchronized (this) {
+        mapping.force();
+        durable = appended;
+        channel.close();
+        segment++;
+        openSegment();
+        snapshotSegment = segment;
+      }
+    }
+
+    Path temp = directory.resolve(SNAPSHOT_PREFIX + snapshotSegment + TEMP_SUFFIX);
+    try (FileChannel file =
+        FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+      OutputStream stream = Channels.newOutputStream(file);
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+      CRC32 crc = new CRC32();
+      IOException[] error = new IOException[1];
+      snapshot.writeTo(
+          entry -> {
+            if (error[0] != null) {
+              return;
+            }
+            byte[] bytes = entry.toByteArray();
+            crc.reset();
+            crc.update(bytes);
+            try {
+              out.writeInt(bytes.length);
+              out.writeInt((int) crc.getValue());
+              out.write(bytes);
+            } catch (IOException e) {
+              error[0] = e;
+            }
+          });
+      if (error[0] != null) {
+        throw error[0];
+      }
+      out.flush();
+      file.force(true);
+    }
+    Files.move(
+        temp, directory.resolve(SNAPSHOT_PREFIX + snapshotSegment), StandardCopyOption.ATOMIC_MOVE);
+
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        if (name.endsWith(TEMP_SUFFIX)) {
+          continue;
+        }
+        if ((name.startsWith(SNAPSHOT_PREFIX)
+                && Long.parseLong(name.substring(SNAPSHOT_PREFIX.length())) < snapshotSegment)
+            || (name.startsWith(SEGMENT_PREFIX)
+                && Long.parseLong(name.substring(SEGMENT_PREFIX.length())) < snapshotSegment)) {
+          Files.delete(file);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (syncLock) {
+      synchronized (this) {
+        mapping.force();
+        durable = appended;
+        channel.close();
+      }
+    }
+  }
+}
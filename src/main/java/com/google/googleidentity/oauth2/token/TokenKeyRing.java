@@ -0,0 +1,91 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import com.google.googleidentity.oauth2.exception.OAuth2ServerException;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * AES keys of token strings by key ID. New token strings use the current key, a rotation starts a
+ * new current key and keeps the older ones, so token strings issued before stay valid. Key IDs are
+ * one byte, the 256th rotation replaces the oldest key.
+ */
+final class TokenKeyRing {
+
+  private static final int KEY_IDS = 256;
+
+  private final AtomicReferenceArray<Key> keys = new AtomicReferenceArray<>(KEY_IDS);
+
+  private volatile int currentKeyId = 0;
+
+  TokenKeyRing() {
+    keys.set(currentKeyId, newKey());
+  }
+
+  private static Key newKey() {
+    KeyGenerator generator;
+    try {
+      generator = KeyGenerator.getInstance("AES");
+      generator.init(256);
+    } catch (NoSuchAlgorithmException e) {
+      throw new OAuth2ServerException("Error when init Key!", e);
+    }
+    return generator.generateKey();
+  }
+
+  int getCurrentKeyId() {
+    return currentKeyId;
+  }
+
+  Optional<Key> getKey(int keyId) {
+    return Optional.ofNullable(keys.get(keyId));
+  }
+
+  /** @return the ID of the new current key */
+  synchronized int rotate() {
+    int keyId = (currentKeyId + 1) % KEY_IDS;
+    keys.set(keyId, newKey());
+    currentKeyId = keyId;
+    return keyId;
+  }
+
+  /** Put back a key read from the token journal, replacing the key with the same ID. */
+  synchronized void restore(int keyId, byte[] encodedKey, boolean current) {
+    keys.set(keyId, new SecretKeySpec(encodedKey, "AES"));
+    if (current) {
+      currentKeyId = keyId;
+    }
+  }
+
+  /** Call the consumer with every key and its ID, the current key last. */
+  synchronized void forEachKey(ObjIntConsumer<Key> consumer) {
+    for (int i = 1; i <= KEY_IDS; i++) {
+      int keyId = (currentKeyId + i) % KEY_IDS;
+      Key key = keys.get(keyId);
+      if (key != null) {
+        consumer.accept(key, keyId);
+      }
+    }
+  }
+}
@@ -16,16 +16,38 @@
 
 package com.google.googleidentity.oauth2.token;
 
+import com.google.common.base.Strings;
 import com.google.inject.AbstractModule;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.google.inject.name.Names;
+
+import java.nio.file.Paths;
 
 public class TokenModule extends AbstractModule {
 
   @Override
   protected void configure() {
-    bind(OAuth2TokenService.class)
-        .to(
-            ("true").equals(System.getenv("USE_CLOUD_SQL"))
-                ? JdbcOAuth2TokenService.class
-                : InMemoryOAuth2TokenService.class);
+    Class<? extends OAuth2TokenService> tokenServiceClass =
+        ("true").equals(System.getenv("USE_CLOUD_SQL"))
+            ? JdbcOAuth2TokenService.class
+            : InMemoryOAuth2TokenService.class;
+
+    String journalDirectory = System.getenv("TOKEN_JOURNAL_DIR");
+    if (tokenServiceClass == InMemoryOAuth2TokenService.class
+        && !Strings.isNullOrEmpty(journalDirectory)) {
+      Provider<InMemoryOAuth2TokenService> journaled =
+          () -> new InMemoryOAuth2TokenService(Paths.get(journalDirectory));
+      bind(InMemoryOAuth2TokenService.class).toProvider(journaled).in(Singleton.class);
+    }
+
+    if (("true").equals(System.getenv("CACHE_TOKENS"))) {
+      bind(OAuth2TokenService.class)
+          .annotatedWith(Names.named(CachingOAuth2TokenService.BACKEND))
+          .to(tokenServiceClass);
+      bind(OAuth2TokenService.class).to(CachingOAuth2TokenService.class);
+    } else {
+      bind(OAuth2TokenService.class).to(tokenServiceClass);
+    }
   }
 }
@@ -0,0 +1,186 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+
+/**
+ * Open addressing hash table of fixed-width records keyed by a 128 bit token id, all kept in one
+ * long array. A record costs its width in longs and nothing else, there is no entry object per
+ * token. Ids are random, so linear probing on the low bits spreads well. An all zero id marks a
+ * free slot, random UUIDs never have it. Most tables hold a token or two, so tables up to {@link
+ * #SMALL_CAPACITY} slots are filled completely and bigger ones up to 3/4.
+ *
+ * <p>Not thread safe.
+ */
+final class TokenRecordTable {
+
+  private static final int SMALL_CAPACITY = 8;
+
+  /** Longs per record, the first two hold the id. */
+  private final int width;
+
+  private long[] records;
+  private int size = 0;
+
+  /** @param fields the number of longs stored per record besides the id */
+  TokenRecordTable(int fields) {
+    this.width = fields + 2;
+    this.records = new long[width];
+  }
+
+  int size() {
+    return size;
+  }
+
+  /** @return the record of the id, or -1 if there is none */
+  int find(UUID id) {
+    long hi = id.getMostSignificantBits();
+    long lo = id.getLeastSignificantBits();
+    int mask = capacity() - 1;
+    int slot = slotOf(hi, lo, mask);
+    for (int probes = 0; probes <= mask; probes++, slot = (slot + 1) & mask) {
+      int record = slot * width;
+      if (isFree(records, record)) {
+        return -1;
+      }
+      if (records[record] == hi && records[record + 1] == lo) {
+        return record;
+      }
+    }
+    return -1;
+  }
+
+  /** @return the new record of the id with all fields zero, or -1 if the id is already in use */
+  int insert(UUID id) {
+    if (find(id) >= 0) {
+      return -1;
+    }
+    if (size + 1 > maxSize(capacity())) {
+      rehash(capacity() * 2);
+    }
+    size++;
+    return place(records, id.getMostSignificantBits(), id.getLeastSignificantBits());
+  }
+
+  long get(int record, int field) {
+    return records[record + 2 + field];
+  }
+
+  void set(int record, int field, long value) {
+    records[record + 2 + field] = value;
+  }
+
+  UUID id(int record) {
+    return new UUID(records[record], records[record + 1]);
+  }
+
+  /** Remove a record found by {@link #find}, other records may move. */
+  void remove(int record) {
+    Arrays.fill(records, record, record + width, 0L);
+    size--;
+    // Re-place the rest of the probe run so no lookup stops early at the new gap.
+    int mask = capacity() - 1;
+    int slot = (record / width + 1) & mask;
+    for (int probes = 0; probes < mask; probes++, slot = (slot + 1) & mask) {
+      int next = slot * width;
+      if (isFree(records, next)) {
+        break;
+      }
+      long[] moved = Arrays.copyOfRange(records, next, next + width);
+      Arrays.fill(records, next, next + width, 0L);
+      int target = place(records, moved[0], moved[1]);
+      System.arraycopy(moved, 2, records, target + 2, width - 2);
+    }
+  }
+
+  /** Remove all records matching the predicate and shrink the table if it got sparse. */
+  int removeIf(IntPredicate predicate) {
+    int removed = 0;
+    for (int record = 0; record < records.length; record += width) {
+      if (!isFree(records, record) && predicate.test(record)) {
+        Arrays.fill(records, record, record + width, 0L);
+        removed++;
+      }
+    }
+    if (removed > 0) {
+      size -= removed;
+      int capacity = 1;
+      while (size > maxSize(capacity)) {
+        capacity *= 2;
+      }
+      // The gaps break probe runs, rebuild even if the capacity stays.
+      rehash(capacity);
+    }
+    return removed;
+  }
+
+  /** Visit the records in table order. */
+  void forEach(IntConsumer consumer) {
+    for (int record = 0; record < records.length; record += width) {
+      if (!isFree(records, record)) {
+        consumer.accept(record);
+      }
+    }
+  }
+
+  private int capacity() {
+    return records.length / width;
+  }
+
+  private static int maxSize(int capacity) {
+    return capacity <= SMALL_CAPACITY ? capacity : capacity / 4 * 3;
+  }
+
+  private void rehash(int capacity) {
+    long[] old = records;
+    records = new long[capacity * width];
+    for (int record = 0; record < old.length; record += width) {
+      if (!isFree(old, record)) {
+        int target = place(records, old[record], old[record + 1]);
+        System.arraycopy(old, record + 2, records, target + 2, width - 2);
+      }
+    }
+  }
+
+  /**
+   * Put the id into the first free slot of its probe run and return the record. The caller makes
+   * sure there is a free slot.
+   */
+  private int place(long[] table, long hi, long lo) {
+    int mask = table.length / width - 1;
+    for (int slot = slotOf(hi, lo, mask); ; slot = (slot + 1) & mask) {
+      int record = slot * width;
+      if (isFree(table, record)) {
+        table[record] = hi;
+        table[record + 1] = lo;
+        return record;
+      }
+    }
+  }
+
+  private static boolean isFree(long[] table, int record) {
+    return table[record] == 0L && table[record + 1] == 0L;
+  }
+
+  private static int slotOf(long hi, long lo, int mask) {
+    return Long.hashCode(hi ^ lo) & mask;
+  }
+}
@@ -17,47 +17,133 @@
 package com.google.googleidentity.oauth2.token;
 
 import com.google.common.io.BaseEncoding;
-
 import com.google.googleidentity.oauth2.exception.OAuth2ServerException;
+
+import javax.crypto.AEADBadTagException;
 import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.security.InvalidParameterException;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
 import java.security.Key;
-import java.util.logging.Level;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.UUID;
 import java.util.logging.Logger;
 
-/** Used for encrypt username and clientID */
+/**
+ * Codec of the token strings of the in memory token service. A token string is the AES-GCM
+ * encryption of username and client ID, behind a header with everything needed to check it:
+ *
+ * <pre>
+ *   version (1 byte) | key ID (1) | expired time (8) | token ID (16) | ciphertext | tag (16)
+ * </pre>
+ *
+ * <p>The header is authenticated but not encrypted, so an expired token string is rejected without
+ * any cryptography and a forged one by its tag, both before a token lookup. The first 12 bytes of
+ * the random token ID are the GCM nonce. Encryption is thus deterministic, the service rebuilds the
+ * token strings of listed tokens from the token ID.
+ */
 final class UserClientTokenInfo {
   private static final Logger log = Logger.getLogger("UserClientTokenInfo");
-  private static final String delimiter = "\t";
+
+  private static final byte VERSION = 1;
+  private static final int HEADER_LENGTH = 1 + 1 + 8 + 16;
+  private static final int NONCE_OFFSET = 1 + 1 + 8;
+  private static final int NONCE_LENGTH = 12;
+  private static final int TAG_LENGTH = 16;
+
+  private static final BaseEncoding ENCODING = BaseEncoding.base64Url().omitPadding();
+
+  /** A Cipher is not thread safe and expensive to look up, so each thread keeps its own. */
+  private static final ThreadLocal<Cipher> CIPHER =
+      ThreadLocal.withInitial(UserClientTokenInfo::newCipher);
+
   private final String username;
   private final String clientID;
-  private final String tokenValue;
+  private final UUID tokenID;
+  private final long expiredTime;
 
-  UserClientTokenInfo(String username, String clientID, String tokenValue) {
+  /** @param expiredTime in epoch seconds, 0 if the token never expires */
+  UserClientTokenInfo(String username, String clientID, UUID tokenID, long expiredTime) {
     this.username = username;
     this.clientID = clientID;
-    this.tokenValue = tokenValue;
+    this.tokenID = tokenID;
+    this.expiredTime = expiredTime;
   }
 
-  public static UserClientTokenInfo decryptTokenString(Key aesKey, String tokenString) {
+  private static Cipher newCipher() {
     try {
-      Cipher cipher = Cipher.getInstance("AES");
-      byte[] bytesToDecrypt = BaseEncoding.base64Url().withPadChar('*').decode(tokenString);
-      cipher.init(Cipher.DECRYPT_MODE, aesKey);
-      byte[] decryptedBytes = cipher.doFinal(bytesToDecrypt);
-      String tokenInfoString = new String(decryptedBytes, StandardCharsets.UTF_8);
-      String[] tokenInfo = tokenInfoString.split(delimiter);
-
-      if (tokenInfo.length != 3) {
-        throw new InvalidParameterException();
-      }
+      return Cipher.getInstance("AES/GCM/NoPadding");
+    } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+      throw new OAuth2ServerException(e);
+    }
+  }
+
+  /**
+   * @return the token info, empty if the token string is malformed, expired by now, forged or
+   *     issued with a key no longer in the key ring
+   */
+  public static Optional<UserClientTokenInfo> decryptTokenString(
+      TokenKeyRing keyRing, String tokenString, Instant now) {
+    byte[] bytes;
+    try {
+      bytes = ENCODING.decode(tokenString);
+    } catch (IllegalArgumentException e) {
+      log.fine("Token string is not base64");
+      return Optional.empty();
+    }
+    if (bytes.length < HEADER_LENGTH + 2 + TAG_LENGTH || bytes[0] != VERSION) {
+      log.fine("Token string has an unknown format");
+      return Optional.empty();
+    }
+
+    ByteBuffer header = ByteBuffer.wrap(bytes, 0, HEADER_LENGTH);
+    header.position(2);
+    long expiredTime = header.getLong();
+    if (expiredTime != 0 && Instant.ofEpochSecond(expiredTime).isBefore(now)) {
+      return Optional.empty();
+    }
+    UUID tokenID = new UUID(header.getLong(), header.getLong());
+
+    Optional<Key> key = keyRing.getKey(bytes[1] & 0xFF);
+    if (!key.isPresent()) {
+      log.fine("Token string key is not in the key ring");
+      return Optional.empty();
+    }
 
-      return new UserClientTokenInfo(tokenInfo[0], tokenInfo[1], tokenInfo[2]);
-    } catch (Exception e) {
-      log.log(Level.INFO, "Error when decrypting tokenString!", e);
-      throw new InvalidParameterException();
+    byte[] plaintext;
+    try {
+      Cipher cipher = CIPHER.get();
+      cipher.init(
+          Cipher.DECRYPT_MODE,
+          key.get(),
+          new GCMParameterSpec(TAG_LENGTH * 8, bytes, NONCE_OFFSET, NONCE_LENGTH));
+      cipher.updateAAD(bytes, 0, HEADER_LENGTH);
+      plaintext = cipher.doFinal(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH);
+    } catch (AEADBadTagException e) {
+      log.fine("Token string does not authenticate");
+      return Optional.empty();
+    } catch (GeneralSecurityException e) {
+      throw new OAuth2ServerException(e);
     }
+
+    int usernameLength = ((plaintext[0] & 0xFF) << 8) | (plaintext[1] & 0xFF);
+    if (usernameLength > plaintext.length - 2) {
+      log.fine("Token string has an unknown format");
+      return Optional.empty();
+    }
+    String username = new String(plaintext, 2, usernameLength, StandardCharsets.UTF_8);
+    String clientID =
+        new String(
+            plaintext,
+            2 + usernameLength,
+            plaintext.length - 2 - usernameLength,
+            StandardCharsets.UTF_8);
+    return Optional.of(new UserClientTokenInfo(username, clientID, tokenID, expiredTime));
   }
 
   public String getUsername() {
@@ -68,25 +154,61 @@ final class UserClientTokenInfo {
     return clientID;
   }
 
-  /** The random string generated for a token. */
-  public String getTokenValue() {
-    return tokenValue;
+  /** The random ID generated for a token. */
+  public UUID getTokenID() {
+    return tokenID;
+  }
+
+  /** @return the expired time in epoch seconds, 0 if the token never expires */
+  public long getExpiredTime() {
+    return expiredTime;
   }
 
   /**
-   * The string contains information of username, client ID and tokenValue. It is encrypt and send
-   * to user as token string.
+   * The string contains information of username, client ID, token ID and expired time. It is
+   * encrypt with the current key of the key ring and send to user as token string.
    */
-  public String getEncryptTokenString(Key aesKey) {
+  public String getEncryptTokenString(TokenKeyRing keyRing) {
+    byte[] user = username.getBytes(StandardCharsets.UTF_8);
+    byte[] client = clientID.getBytes(StandardCharsets.UTF_8);
+    if (user.length > 0xFFFF) {
+      throw new IllegalArgumentException("Username is too long for a token string!");
+    }
+    int keyId = keyRing.getCurrentKeyId();
+    // The current key is never removed from the key ring.
+    Key key = keyRing.getKey(keyId).get();
+
+    int plaintextLength = 2 + user.length + client.length;
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + plaintextLength + TAG_LENGTH);
+    buffer
+        .put(VERSION)
+        .put((byte) keyId)
+        .putLong(expiredTime)
+        .putLong(tokenID.getMostSignificantBits())
+        .putLong(tokenID.getLeastSignificantBits())
+        .putShort((short) user.length)
+        .put(user)
+        .put(client);
+    byte[] bytes = buffer.array();
+
     try {
-      String tokenInfo = username + delimiter + clientID + delimiter + tokenValue;
-      Cipher cipher = Cipher.getInstance("AES");
-      cipher.init(Cipher.ENCRYPT_MODE, aesKey);
-      byte[] bytesToEncrypt = tokenInfo.getBytes(StandardCharsets.UTF_8);
-      byte[] encryptedBytes = cipher.doFinal(bytesToEncrypt);
-      return BaseEncoding.base64Url().withPadChar('*').encode(encryptedBytes);
-    } catch (Exception e) {
+      GCMParameterSpec parameters =
+          new GCMParameterSpec(TAG_LENGTH * 8, bytes, NONCE_OFFSET, NONCE_LENGTH);
+      Cipher cipher = CIPHER.get();
+      try {
+        cipher.init(Cipher.ENCRYPT_MODE, key, parameters);
+      } catch (InvalidAlgorithmParameterException e) {
+        // A Cipher refuses to encrypt twice in a row with the same key and nonce, rebuilding the
+        // string of a token does that on purpose with the same plaintext.
+        cipher = newCipher();
+        CIPHER.set(cipher);
+        cipher.init(Cipher.ENCRYPT_MODE, key, parameters);
+      }
+      cipher.updateAAD(bytes, 0, HEADER_LENGTH);
+      cipher.doFinal(bytes, HEADER_LENGTH, plaintextLength, bytes, HEADER_LENGTH);
+    } catch (GeneralSecurityException e) {
       throw new OAuth2ServerException(e);
     }
+    return ENCODING.encode(bytes);
   }
 }
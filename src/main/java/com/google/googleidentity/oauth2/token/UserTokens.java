@@ -16,210 +16,427 @@
 
 package com.google.googleidentity.oauth2.token;
 
-import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 
-import java.time.Instant;
-import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-
-/** Store user tokens in memory */
+import java.util.UUID;
+import java.util.function.Predicate;
+
+/**
+ * Store user tokens in memory.
+ *
+ * <p>Tokens are kept as fixed-width records keyed by their random id. The user and client are
+ * implied by where a record is stored and scopes are ids of a {@link ScopeSetDictionary}, so a
+ * token costs a few dozen bytes. {@link InMemoryOAuth2TokenService} builds the protobuf tokens when
+ * they leave the store.
+ *
+ * <p>Every change to the tokens of a client holds the lock of the user, so a client is only dropped
+ * once it is empty and no token is ever added to a client that has just been dropped. Reads only
+ * lock the tokens of one client.
+ */
 public final class UserTokens {
 
   private final String username;
-  Map<String, ClientTokens> clientTokensMap = new ConcurrentHashMap<>();
+
+  /** Copy on write in client ID order, a user has tokens of a few clients only. */
+  private volatile ClientTokens[] clients = new ClientTokens[0];
+
+  private boolean expiryScheduled = false;
+
+  /** Set once the user is dropped from the store, under its lock. */
+  private boolean dropped = false;
 
   UserTokens(String username) {
     this.username = username;
   }
 
-  public Optional<OAuth2AccessToken> readAccessToken(String clientID, String tokenValue) {
-    if (clientTokensMap.containsKey(clientID)) {
-      return clientTokensMap.get(clientID).readAccessToken(tokenValue);
-    } else {
-      return Optional.empty();
-    }
+  public String getUsername() {
+    return username;
   }
 
-  public void addAccessToken(String clientID, OAuth2AccessToken token) {
-    if (!clientTokensMap.containsKey(clientID)) {
-      clientTokensMap.put(clientID, new ClientTokens(clientID));
+  private ClientTokens getClient(String clientID) {
+    for (ClientTokens client : clients) {
+      if (client.clientID.equals(clientID)) {
+        return client;
+      }
     }
-    clientTokensMap.get(clientID).addAccessToken(token);
+    return null;
   }
 
-  public void addRefreshToken(String clientID, OAuth2RefreshToken token) {
-    if (!clientTokensMap.containsKey(clientID)) {
-      clientTokensMap.put(clientID, new ClientTokens(clientID));
-    }
-    clientTokensMap.get(clientID).addRefreshToken(token);
+  public Optional<AccessTokenEntry> readAccessToken(String clientID, UUID id) {
+    ClientTokens client = getClient(clientID);
+    return client == null ? Optional.empty() : client.readAccessToken(id);
   }
 
-  public List<OAuth2RefreshToken> listRefreshTokens(String clientID) {
-    if (clientTokensMap.containsKey(clientID)) {
-      return clientTokensMap.get(clientID).listRefreshTokens();
-    } else {
-      return ImmutableList.of();
-    }
+  /**
+   * @return false if the id is already in use or the refresh token of the access token has been
+   *     revoked, in both cases nothing is added
+   */
+  public boolean addAccessToken(String clientID, AccessTokenEntry token) {
+    return updateClient(clientID, true, client -> client.addAccessToken(token));
   }
 
-  public Optional<OAuth2RefreshToken> readRefreshToken(String clientID, String tokenString) {
-    if (clientTokensMap.containsKey(clientID)) {
-      return clientTokensMap.get(clientID).readRefreshToken(tokenString);
-    } else {
-      return Optional.empty();
-    }
+  /** @return false if the id is already in use, nothing is added then */
+  public boolean addRefreshToken(String clientID, RefreshTokenEntry token) {
+    return updateClient(clientID, true, client -> client.addRefreshToken(token));
   }
 
-  public void clearExpiredTokens() {
-    for (Map.Entry<String, ClientTokens> client : clientTokensMap.entrySet()) {
-      client.getValue().clearExpiredTokens();
-      if (client.getValue().isEmpty()) {
-        clientTokensMap.remove(client.getKey());
+  public List<RefreshTokenEntry> listRefreshTokens(String clientID) {
+    ClientTokens client = getClient(clientID);
+    return client == null ? ImmutableList.of() : client.listRefreshTokens();
+  }
+
+  public Optional<RefreshTokenEntry> readRefreshToken(String clientID, UUID id) {
+    ClientTokens client = getClient(clientID);
+    return client == null ? Optional.empty() : client.readRefreshToken(id);
+  }
+
+  /** Remove an access token, its refresh token is kept. */
+  public void removeAccessToken(String clientID, UUID id) {
+    updateClient(clientID, false, client -> client.removeAccessToken(id));
+  }
+
+  /**
+   * Mark that the expiry of the access tokens of the user is scheduled.
+   *
+   * @return false if it was scheduled already
+   */
+  public synchronized boolean markExpiryScheduled() {
+    boolean wasScheduled = expiryScheduled;
+    expiryScheduled = true;
+    return !wasScheduled;
+  }
+
+  /**
+   * Remove the access tokens which expired before nowSecond.
+   *
+   * @return the earliest expired time of the remaining access tokens, or -1 if there are none and
+   *     the expiry is no longer scheduled
+   */
+  public synchronized long removeExpiredAccessTokens(long nowSecond) {
+    long next = -1;
+    for (ClientTokens client : clients) {
+      long clientNext = client.removeExpiredAccessTokens(nowSecond);
+      if (client.isEmpty()) {
+        removeClient(client);
+      } else if (clientNext >= 0 && (next < 0 || clientNext < next)) {
+        next = clientNext;
       }
     }
+    expiryScheduled = next >= 0;
+    return next;
+  }
+
+  /** Mark that the user is dropped from the store, nothing may be added to it any more. */
+  synchronized void markDropped() {
+    dropped = true;
+  }
+
+  synchronized boolean isDropped() {
+    return dropped;
   }
 
   public boolean isEmpty() {
-    return clientTokensMap.isEmpty();
+    return clients.length == 0;
   }
 
   public List<String> listClients() {
-    return ImmutableList.copyOf(clientTokensMap.keySet());
+    ImmutableList.Builder<String> list = ImmutableList.builder();
+    for (ClientTokens client : clients) {
+      list.add(client.clientID);
+    }
+    return list.build();
   }
 
-  public List<OAuth2AccessToken> listAccessTokens(String clientID) {
-    if (clientTokensMap.containsKey(clientID)) {
-      return clientTokensMap.get(clientID).listAccessTokens();
-    } else {
-      return ImmutableList.of();
+  /** @return up to count client IDs after the cursor in order, from the first for an empty one */
+  public List<String> listClients(Optional<String> cursor, int count) {
+    ClientTokens[] current = clients;
+    int start = 0;
+    if (cursor.isPresent()) {
+      int end = current.length;
+      while (start < end) {
+        int middle = (start + end) >>> 1;
+        if (current[middle].clientID.compareTo(cursor.get()) <= 0) {
+          start = middle + 1;
+        } else {
+          end = middle;
+        }
+      }
+    }
+    ImmutableList.Builder<String> list = ImmutableList.builder();
+    for (int i = start; i < current.length && i < start + count; i++) {
+      list.add(current[i].clientID);
     }
+    return list.build();
   }
 
-  public boolean revokeByAccessToken(OAuth2AccessToken accessToken) {
-    if (Strings.isNullOrEmpty(accessToken.getRefreshToken())) {
-      clientTokensMap
-          .get(accessToken.getClientId())
-          .accessTokenMap
-          .remove(accessToken.getAccessToken());
-      return true;
-    } else {
-      Optional<OAuth2RefreshToken> refreshToken =
-          clientTokensMap
-              .get(accessToken.getClientId())
-              .readRefreshToken(accessToken.getRefreshToken());
-      if (!refreshToken.isPresent()) {
+  public List<AccessTokenEntry> listAccessTokens(String clientID) {
+    ClientTokens client = getClient(clientID);
+    return client == null ? ImmutableList.of() : client.listAccessTokens();
+  }
+
+  /** Revoke an access token, or its whole refresh token group if it has a refresh token. */
+  public boolean revokeByAccessToken(String clientID, UUID id) {
+    return updateClient(clientID, false, client -> client.revokeByAccessToken(id));
+  }
+
+  /** Revoke a refresh token together with all the access tokens issued from it. */
+  public boolean revokeByRefreshToken(String clientID, UUID id) {
+    return updateClient(clientID, false, client -> client.revokeByRefreshToken(id));
+  }
+
+  public synchronized boolean revokeUserClientTokens(String clientID) {
+    ClientTokens client = getClient(clientID);
+    if (client == null) {
+      return false;
+    }
+    removeClient(client);
+    return true;
+  }
+
+  /**
+   * Atomically apply an update to the tokens of a client and drop the client if it is empty
+   * afterwards.
+   *
+   * @param create whether to start an empty client if there is none yet
+   * @return the result of the update, false if the client does not exist and create is false
+   */
+  private synchronized boolean updateClient(
+      String clientID, boolean create, Predicate<ClientTokens> update) {
+    ClientTokens client = getClient(clientID);
+    boolean isNew = client == null;
+    if (isNew) {
+      if (!create) {
         return false;
       }
-      return revokeByRefreshToken(refreshToken.get());
+      client = new ClientTokens(clientID);
+    }
+    boolean result = update.test(client);
+    if (client.isEmpty()) {
+      if (!isNew) {
+        removeClient(client);
+      }
+    } else if (isNew) {
+      int index = 0;
+      while (index < clients.length && clients[index].clientID.compareTo(clientID) < 0) {
+        index++;
+      }
+      ClientTokens[] added = new ClientTokens[clients.length + 1];
+      System.arraycopy(clients, 0, added, 0, index);
+      added[index] = client;
+      System.arraycopy(clients, index, added, index + 1, clients.length - index);
+      clients = added;
     }
+    return result;
   }
 
-  public boolean revokeByRefreshToken(OAuth2RefreshToken refreshToken) {
-    for (String accessToken :
-        clientTokensMap
-            .get(refreshToken.getClientId())
-            .refreshTokenMap
-            .get(refreshToken.getRefreshToken())
-            .accessTokens) {
-      clientTokensMap.get(refreshToken.getClientId()).accessTokenMap.remove(accessToken);
+  private void removeClient(ClientTokens client) {
+    ClientTokens[] removed = new ClientTokens[clients.length - 1];
+    int i = 0;
+    for (ClientTokens other : clients) {
+      if (other != client) {
+        removed[i++] = other;
+      }
     }
-    clientTokensMap
-        .get(refreshToken.getClientId())
-        .refreshTokenMap
-        .remove(refreshToken.getRefreshToken());
-    return true;
+    clients = removed;
   }
 
-  public boolean revokeUserClientTokens(String clientID) {
-    boolean result = clientTokensMap.containsKey(clientID);
-    clientTokensMap.remove(clientID);
-    return result;
+  /** An access token as stored, without the user and client it belongs to. */
+  static final class AccessTokenEntry {
+    private final UUID id;
+    private final long expiredTime;
+    private final int scopeSetId;
+    private final UUID refreshTokenId;
+
+    /** @param refreshTokenId null if the token is not refreshable */
+    AccessTokenEntry(UUID id, long expiredTime, int scopeSetId, UUID refreshTokenId) {
+      this.id = id;
+      this.expiredTime = expiredTime;
+      this.scopeSetId = scopeSetId;
+      this.refreshTokenId = refreshTokenId;
+    }
+
+    UUID getId() {
+      return id;
+    }
+
+    long getExpiredTime() {
+      return expiredTime;
+    }
+
+    int getScopeSetId() {
+      return scopeSetId;
+    }
+
+    Optional<UUID> getRefreshTokenId() {
+      return Optional.ofNullable(refreshTokenId);
+    }
+  }
+
+  /** A refresh token as stored, without the user and client it belongs to. */
+  static final class RefreshTokenEntry {
+    private final UUID id;
+    private final int scopeSetId;
+
+    RefreshTokenEntry(UUID id, int scopeSetId) {
+      this.id = id;
+      this.scopeSetId = scopeSetId;
+    }
+
+    UUID getId() {
+      return id;
+    }
+
+    int getScopeSetId() {
+      return scopeSetId;
+    }
   }
 
+  /** Tokens of one client. Only changed while holding the lock of the user. */
   private static final class ClientTokens {
 
+    /** Expired time in the high and scope set id in the low 32 bits, valid until 2106. */
+    private static final int EXPIRY_AND_SCOPES = 0;
+
+    /** Id of the refresh token of an access token, zero for none. */
+    private static final int REFRESH_HI = 1;
+
+    private static final int REFRESH_LO = 2;
+
+    private static final int SCOPES = 0;
+
     private final String clientID;
-    private final Map<String, OAuth2AccessToken> accessTokenMap = new ConcurrentHashMap<>();
-    private final Map<String, TokenGroup> refreshTokenMap = new ConcurrentHashMap<>();
+    private final TokenRecordTable accessTokens = new TokenRecordTable(3);
+    private final TokenRecordTable refreshTokens = new TokenRecordTable(1);
 
     ClientTokens(String clientID) {
       this.clientID = clientID;
     }
 
-    public Optional<OAuth2AccessToken> readAccessToken(String tokenValue) {
-      return Optional.ofNullable(accessTokenMap.get(tokenValue));
+    synchronized Optional<AccessTokenEntry> readAccessToken(UUID id) {
+      int record = accessTokens.find(id);
+      return record < 0 ? Optional.empty() : Optional.of(accessTokenEntry(record));
+    }
+
+    synchronized boolean addAccessToken(AccessTokenEntry token) {
+      Optional<UUID> refreshTokenId = token.getRefreshTokenId();
+      if (refreshTokenId.isPresent() && refreshTokens.find(refreshTokenId.get()) < 0) {
+        return false;
+      }
+      int record = accessTokens.insert(token.getId());
+      if (record < 0) {
+        return false;
+      }
+      accessTokens.set(
+          record,
+          EXPIRY_AND_SCOPES,
+          token.getExpiredTime() << 32 | (token.getScopeSetId() & 0xFFFFFFFFL));
+      if (refreshTokenId.isPresent()) {
+        accessTokens.set(record, REFRESH_HI, refreshTokenId.get().getMostSignificantBits());
+        accessTokens.set(record, REFRESH_LO, refreshTokenId.get().getLeastSignificantBits());
+      }
+      return true;
     }
 
-    public void addAccessToken(OAuth2AccessToken token) {
-      accessTokenMap.put(token.getAccessToken(), token);
-      if (!Strings.isNullOrEmpty(token.getRefreshToken())) {
-        refreshTokenMap.get(token.getRefreshToken()).getAccessTokens().add(token.getAccessToken());
+    synchronized boolean addRefreshToken(RefreshTokenEntry token) {
+      int record = refreshTokens.insert(token.getId());
+      if (record < 0) {
+        return false;
       }
+      refreshTokens.set(record, SCOPES, token.getScopeSetId());
+      return true;
     }
 
-    public void addRefreshToken(OAuth2RefreshToken token) {
-      refreshTokenMap.put(token.getRefreshToken(), new TokenGroup(token));
+    synchronized Optional<RefreshTokenEntry> readRefreshToken(UUID id) {
+      int record = refreshTokens.find(id);
+      return record < 0
+          ? Optional.empty()
+          : Optional.of(new RefreshTokenEntry(id, (int) refreshTokens.get(record, SCOPES)));
     }
 
-    public Optional<OAuth2RefreshToken> readRefreshToken(String tokenString) {
-      if (refreshTokenMap.containsKey(tokenString)) {
-        return Optional.of(refreshTokenMap.get(tokenString).getRefreshToken());
-      } else {
-        return Optional.empty();
+    synchronized boolean removeAccessToken(UUID id) {
+      int record = accessTokens.find(id);
+      if (record < 0) {
+        return false;
       }
+      accessTokens.remove(record);
+      return true;
     }
 
-    public void clearExpiredTokens() {
-      for (Map.Entry<String, OAuth2AccessToken> token : accessTokenMap.entrySet()) {
-        if (Instant.ofEpochSecond(token.getValue().getExpiredTime()).isBefore(Instant.now())) {
-          if (!Strings.isNullOrEmpty(token.getValue().getRefreshToken())) {
-            refreshTokenMap
-                .get(token.getValue().getRefreshToken())
-                .getAccessTokens()
-                .remove(token.getKey());
-          }
-          accessTokenMap.remove(token.getKey());
-        }
-      }
+    synchronized long removeExpiredAccessTokens(long nowSecond) {
+      accessTokens.removeIf(record -> expiredTime(record) < nowSecond);
+      long[] next = {-1};
+      accessTokens.forEach(
+          record -> {
+            if (next[0] < 0 || expiredTime(record) < next[0]) {
+              next[0] = expiredTime(record);
+            }
+          });
+      return next[0];
     }
 
-    public boolean isEmpty() {
-      return accessTokenMap.isEmpty() && refreshTokenMap.isEmpty();
+    synchronized boolean revokeByAccessToken(UUID id) {
+      int record = accessTokens.find(id);
+      if (record < 0) {
+        return false;
+      }
+      long refreshHi = accessTokens.get(record, REFRESH_HI);
+      long refreshLo = accessTokens.get(record, REFRESH_LO);
+      if (refreshHi == 0L && refreshLo == 0L) {
+        accessTokens.remove(record);
+        return true;
+      }
+      return revokeByRefreshToken(new UUID(refreshHi, refreshLo));
     }
 
-    public List<OAuth2RefreshToken> listRefreshTokens() {
-      List<OAuth2RefreshToken> list = new LinkedList<>();
-      for (TokenGroup tokens : refreshTokenMap.values()) {
-        list.add(tokens.getRefreshToken());
+    synchronized boolean revokeByRefreshToken(UUID id) {
+      int record = refreshTokens.find(id);
+      if (record < 0) {
+        return false;
       }
-      return ImmutableList.copyOf(list);
+      refreshTokens.remove(record);
+      long hi = id.getMostSignificantBits();
+      long lo = id.getLeastSignificantBits();
+      accessTokens.removeIf(
+          access ->
+              accessTokens.get(access, REFRESH_HI) == hi
+                  && accessTokens.get(access, REFRESH_LO) == lo);
+      return true;
     }
 
-    public List<OAuth2AccessToken> listAccessTokens() {
-      return ImmutableList.copyOf(accessTokenMap.values());
+    synchronized boolean isEmpty() {
+      return accessTokens.size() == 0 && refreshTokens.size() == 0;
     }
 
-    private static final class TokenGroup {
-      private final OAuth2RefreshToken refreshToken;
-      private Set<String> accessTokens = new HashSet<>();
+    synchronized List<RefreshTokenEntry> listRefreshTokens() {
+      ImmutableList.Builder<RefreshTokenEntry> list = ImmutableList.builder();
+      refreshTokens.forEach(
+          record ->
+              list.add(
+                  new RefreshTokenEntry(
+                      refreshTokens.id(record), (int) refreshTokens.get(record, SCOPES))));
+      return list.build();
+    }
 
-      TokenGroup(OAuth2RefreshToken refreshToken) {
-        this.refreshToken = refreshToken;
-      }
+    synchronized List<AccessTokenEntry> listAccessTokens() {
+      ImmutableList.Builder<AccessTokenEntry> list = ImmutableList.builder();
+      accessTokens.forEach(record -> list.add(accessTokenEntry(record)));
+      return list.build();
+    }
 
-      public OAuth2RefreshToken getRefreshToken() {
-        return refreshToken;
-      }
+    private long expiredTime(int record) {
+      return accessTokens.get(record, EXPIRY_AND_SCOPES) >>> 32;
+    }
 
-      public Set<String> getAccessTokens() {
-        return accessTokens;
-      }
+    private AccessTokenEntry accessTokenEntry(int record) {
+      long hi = accessTokens.get(record, REFRESH_HI);
+      long lo = accessTokens.get(record, REFRESH_LO);
+      return new AccessTokenEntry(
+          accessTokens.id(record),
+          expiredTime(record),
+          (int) accessTokens.get(record, EXPIRY_AND_SCOPES),
+          hi == 0L && lo == 0L ? null : new UUID(hi, lo));
     }
   }
 }
@@ -0,0 +1,135 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.util;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel with a tick of one second, used to remove items soon after their expired
+ * time. Scheduling is O(1) and a sweep only visits the slots of the seconds passed since the last
+ * sweep, so its cost is proportional to the number of expired items instead of all items. An item
+ * due more than one rotation later stays in its slot until its round comes.
+ *
+ * <p>{@link #schedule} never blocks, sweeps are serialized.
+ */
+public final class ExpiryWheel<T> {
+
+  private final Clock clock;
+
+  private final Queue<Entry<T>>[] slots;
+
+  /**
+   * The slot of this second is being or has been swept, and all items expired before or in it are
+   * handed out by then. Published before the slot is drained, see {@link #schedule}.
+   */
+  private volatile long lastSweptSecond;
+
+  private volatile long sweepLagMillis = 0;
+
+  public ExpiryWheel(int slotCount) {
+    this(slotCount, Clock.systemUTC());
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public ExpiryWheel(int slotCount, Clock clock) {
+    this.clock = clock;
+    this.slots = new Queue[slotCount];
+    for (int i = 0; i < slotCount; i++) {
+      slots[i] = new ConcurrentLinkedQueue<>();
+    }
+    this.lastSweptSecond = clock.instant().getEpochSecond() - 1;
+  }
+
+  /** Schedule the item to expire after expiredTime, in epoch seconds. */
+  public void schedule(long expiredTime, T item) {
+    Entry<T> entry = new Entry<>(expiredTime, item);
+    // An item which is already due goes to the next slot to be swept instead of waiting a round.
+    long tick = Math.max(expiredTime, lastSweptSecond + 1);
+    while (true) {
+      Queue<Entry<T>> slot = slots[slotOf(tick)];
+      slot.add(entry);
+      long sweptSecond = lastSweptSecond;
+      // A sweep which got to the slot meanwhile may have drained it before the entry was added.
+      // Unless the sweep took it, move it to the next slot to be swept.
+      if (tick > sweptSecond || !slot.remove(entry)) {
+        return;
+      }
+      tick = sweptSecond + 1;
+    }
+  }
+
+  /**
+   * Hand every item whose expired time is before the current second to onExpired, and remove it
+   * from the wheel.
+   *
+   * @return the number of expired items
+   */
+  public synchronized int sweep(Consumer<T> onExpired) {
+    Instant now = clock.instant();
+    long lastDueSecond = now.getEpochSecond() - 1;
+    long firstTick = Math.max(lastSweptSecond + 1, lastDueSecond - slots.length + 1);
+
+    int count = 0;
+    long maxLagMillis = 0;
+    for (long tick = firstTick; tick <= lastDueSecond; tick++) {
+      lastSweptSecond = tick;
+      Iterator<Entry<T>> iterator = slots[slotOf(tick)].iterator();
+      while (iterator.hasNext()) {
+        Entry<T> entry = iterator.next();
+        if (entry.expiredTime <= lastDueSecond) {
+          iterator.remove();
+          onExpired.accept(entry.item);
+          count++;
+          maxLagMillis =
+              Math.max(maxLagMillis, now.toEpochMilli() - entry.expiredTime * 1000);
+        }
+      }
+    }
+
+    lastSweptSecond = Math.max(lastSweptSecond, lastDueSecond);
+    sweepLagMillis = maxLagMillis;
+    return count;
+  }
+
+  /**
+   * @return how long after its expired time the most delayed item of the last sweep was removed,
+   *     zero if the last sweep removed nothing
+   */
+  public Duration getSweepLag() {
+    return Duration.ofMillis(sweepLagMillis);
+  }
+
+  private int slotOf(long tick) {
+    return (int) Math.floorMod(tick, (long) slots.length);
+  }
+
+  private static final class Entry<T> {
+    private final long expiredTime;
+    private final T item;
+
+    Entry(long expiredTime, T item) {
+      this.expiredTime = expiredTime;
+      this.item = item;
+    }
+  }
+}
@@ -0,0 +1,167 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.util;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Streams;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * One page of a listing in key order. The next page is listed with {@link #getNextCursor}, which
+ * is empty on the last page, so a listing page by page holds one page in memory at a time. A
+ * cursor is opaque to callers, stores make it from the key of the last item.
+ *
+ * <p>Pages are read one after another without a snapshot, an item added or removed meanwhile may
+ * or may not be listed.
+ */
+public final class Page<T> {
+
+  /** Page size of the streams built on pages. */
+  public static final int STREAM_PAGE_SIZE = 500;
+
+  /** Reads the page after the cursor, the first page for an empty cursor. */
+  public interface Reader<T> {
+    Page<T> read(Optional<String> cursor);
+  }
+
+  private final ImmutableList<T> items;
+  private final Optional<String> nextCursor;
+
+  private Page(ImmutableList<T> items, Optional<String> nextCursor) {
+    this.items = items;
+    this.nextCursor = nextCursor;
+  }
+
+  public static <T> Page<T> of(List<T> items, Optional<String> nextCursor) {
+    return new Page<>(ImmutableList.copyOf(items), nextCursor);
+  }
+
+  /**
+   * @param rows up to limit + 1 rows in key order, a row past the limit shows there is a next page
+   * @return the page of the first limit rows
+   */
+  public static <T> Page<T> fromRows(List<T> rows, int limit, Function<T, String> key) {
+    if (rows.size() <= limit) {
+      return of(rows, Optional.empty());
+    }
+    List<T> items = rows.subList(0, limit);
+    return of(items, Optional.of(key.apply(items.get(limit - 1))));
+  }
+
+  /**
+   * Select a page of items already in memory, for stores without an index. Takes time linear in
+   * the items and memory for one page.
+   *
+   * @return the up to limit items with the smallest keys after the cursor
+   */
+  public static <T> Page<T> select(
+      Iterable<T> items, Function<T, String> key, Optional<String> cursor, int limit) {
+    checkLimit(limit);
+    Comparator<T> order = Comparator.comparing(key);
+    // The limit + 1 smallest keys after the cursor, largest first.
+    PriorityQueue<T> smallest = new PriorityQueue<>(limit + 2, order.reversed());
+    for (T item : items) {
+      if (cursor.isPresent() && key.apply(item).compareTo(cursor.get()) <= 0) {
+        continue;
+      }
+      smallest.add(item);
+      if (smallest.size() > limit + 1) {
+        smallest.poll();
+      }
+    }
+    List<T> rows = new ArrayList<>(smallest);
+    rows.sort(order);
+    return fromRows(rows, limit, key);
+  }
+
+  /**
+   * Select a page of a map sorted by key. The cursor is looked up in the map, so a page takes time
+   * for its own items only.
+   *
+   * @return the up to limit values with the smallest keys after the cursor
+   */
+  public static <T> Page<T> select(
+      NavigableMap<String, T> items, Optional<String> cursor, int limit) {
+    checkLimit(limit);
+    NavigableMap<String, T> after = cursor.isPresent() ? items.tailMap(cursor.get(), false) : items;
+    List<Map.Entry<String, T>> rows = new ArrayList<>(limit + 1);
+    for (Map.Entry<String, T> entry : after.entrySet()) {
+      rows.add(entry);
+      if (rows.size() > limit) {
+        break;
+      }
+    }
+    return fromRows(rows, limit, Map.Entry::getKey).map(Map.Entry::getValue);
+  }
+
+  /** @throws IllegalArgumentException if the limit is not positive */
+  public static void checkLimit(int limit) {
+    if (limit <= 0) {
+      throw new IllegalArgumentException("Page limit must be positive: " + limit);
+    }
+  }
+
+  /** @return all items of the pages, read lazily one page after another */
+  public static <T> Stream<T> stream(Reader<T> reader) {
+    Iterator<T> iterator =
+        new AbstractIterator<T>() {
+          /** Null until the first item is asked for. */
+          private Page<T> page = null;
+          private Iterator<T> items = ImmutableList.<T>of().iterator();
+
+          @Override
+          protected T computeNext() {
+            while (!items.hasNext()) {
+              if (page != null && !page.nextCursor.isPresent()) {
+                return endOfData();
+              }
+              page = reader.read(page == null ? Optional.empty() : page.nextCursor);
+              items = page.items.iterator();
+            }
+            return items.next();
+          }
+        };
+    return Streams.stream(iterator);
+  }
+
+  public ImmutableList<T> getItems() {
+    return items;
+  }
+
+  public Optional<String> getNextCursor() {
+    return nextCursor;
+  }
+
+  /** @return the page with the items mapped, and the same next cursor */
+  public <R> Page<R> map(Function<T, R> mapper) {
+    List<R> mapped = new ArrayList<>(items.size());
+    for (T item : items) {
+      mapped.add(mapper.apply(item));
+    }
+    return of(mapped, nextCursor);
+  }
+}
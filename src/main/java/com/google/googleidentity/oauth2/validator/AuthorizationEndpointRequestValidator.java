@@ -26,6 +26,7 @@ import com.google.googleidentity.oauth2.exception.InvalidScopeException;
 import com.google.googleidentity.oauth2.exception.AccessDeniedException;
 import com.google.googleidentity.oauth2.exception.UnauthorizedClientException;
 import com.google.googleidentity.oauth2.exception.UnsupportedResponseTypeException;
+import com.google.googleidentity.oauth2.scope.ScopeRegistry;
 import com.google.googleidentity.oauth2.util.OAuth2Constants;
 import com.google.googleidentity.oauth2.util.OAuth2EnumMap;
 import com.google.googleidentity.oauth2.util.OAuth2Enums.GrantType;
@@ -81,7 +82,9 @@ public class AuthorizationEndpointRequestValidator {
    * validateRedirectUri function
    */
   public static void validateGET(
-      HttpServletRequest request, ClientDetailsService clientDetailsService)
+      HttpServletRequest request,
+      ClientDetailsService clientDetailsService,
+      ScopeRegistry scopeRegistry)
       throws OAuth2Exception {
 
     // here the clientID has been checked in validateRedirectUri function
@@ -112,7 +115,7 @@ public class AuthorizationEndpointRequestValidator {
     if (!Strings.isNullOrEmpty(request.getParameter(OAuth2ParameterNames.SCOPE))
         && client.getIsScoped()) {
       Set<String> scope = OAuth2Utils.parseScope(request.getParameter(OAuth2ParameterNames.SCOPE));
-      if (!client.getScopesList().containsAll(scope)) {
+      if (!scopeRegistry.containsAll(client.getScopesList(), scope)) {
         throw new InvalidScopeException();
       }
     }
@@ -27,6 +27,7 @@ import com.google.googleidentity.oauth2.exception.OAuth2ServerException;
 import com.google.googleidentity.oauth2.token.OAuth2TokenService;
 import com.google.googleidentity.oauth2.util.OAuth2Enums.GrantType;
 import com.google.googleidentity.oauth2.util.OAuth2Utils;
+import com.google.googleidentity.oauth2.util.Page;
 import com.google.googleidentity.user.UserDetails;
 import com.google.googleidentity.user.UserDetailsService;
 import com.google.googleidentity.user.UserSession;
@@ -40,6 +41,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.servlet.ServletException;
@@ -75,6 +77,8 @@ public final class AdminServlet extends HttpServlet {
   private static final String TESTUSERPASSWORD1 = "12345678";
   private static final String ADMIN = "admin";
   private static final String ADMINPASS = "123456789";
+  /** Users and clients listed per page. */
+  private static final int PAGE_SIZE = 50;
   private final ClientDetailsService clientDetailsService;
   private final UserDetailsService userDetailsService;
   private final OAuth2TokenService oauth2TokenService;
@@ -187,6 +191,34 @@ public final class AdminServlet extends HttpServlet {
 
     information.put("username", user.getUsername());
 
+    // One page each, the next page is requested with the cursor in the link below the table.
+    Page<UserDetails> users =
+        userDetailsService.listUser(Optional.ofNullable(request.getParameter("users")), PAGE_SIZE);
+    information.put(
+        "users",
+        users
+            .map(
+                listed ->
+                    ImmutableList.of(
+                        listed.getUsername(), listed.getEmail(), listed.getGoogleAccountId()))
+            .getItems());
+    users.getNextCursor().ifPresent(cursor -> information.put("nextUsers", cursor));
+
+    Page<ClientDetails> clients =
+        clientDetailsService.listClient(
+            Optional.ofNullable(request.getParameter("clients")), PAGE_SIZE);
+    information.put(
+        "clients",
+        clients
+            .map(
+                client ->
+                    ImmutableList.of(
+                        client.getClientId(),
+                        String.join(" ", client.getScopesList()),
+                        String.join(" ", client.getRedirectUrisList())))
+            .getItems());
+    clients.getNextCursor().ifPresent(cursor -> information.put("nextClients", cursor));
+
     Template template = configuration.getTemplate("AdminPage.ftl");
 
     response.setCharacterEncoding("utf-8");
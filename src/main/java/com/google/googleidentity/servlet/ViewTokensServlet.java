@@ -19,9 +19,8 @@ package com.google.googleidentity.servlet;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.googleidentity.oauth2.exception.OAuth2ServerException;
-import com.google.googleidentity.oauth2.token.OAuth2AccessToken;
-import com.google.googleidentity.oauth2.token.OAuth2RefreshToken;
 import com.google.googleidentity.oauth2.token.OAuth2TokenService;
+import com.google.googleidentity.oauth2.token.TokenDigest;
 import com.google.googleidentity.oauth2.util.OAuth2Utils;
 import com.google.googleidentity.user.UserDetails;
 import com.google.googleidentity.user.UserSession;
@@ -33,8 +32,8 @@ import freemarker.template.TemplateException;
 import freemarker.template.Version;
 
 import java.time.Instant;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.stream.Stream;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -91,34 +90,36 @@ public final class ViewTokensServlet extends HttpServlet {
 
     information.put("username", user.getUsername());
 
-    List<List<String>> accessTokenList = new LinkedList<>();
-    List<List<String>> refreshTokenList = new LinkedList<>();
-    for (String client : oauth2TokenService.listUserClient(user.getUsername())) {
-      for (OAuth2AccessToken token :
-          oauth2TokenService.listUserClientAccessTokens(user.getUsername(), client)) {
-        accessTokenList.add(
-            ImmutableList.of(
-                token.getAccessToken(),
-                token.getClientId(),
-                String.valueOf(token.getIsScoped()),
-                String.join("\t", token.getScopesList()),
-                Instant.ofEpochSecond(token.getExpiredTime()).toString(),
-                token.getRefreshToken()));
-      }
-
-      for (OAuth2RefreshToken token :
-          oauth2TokenService.listUserClientRefreshTokens(user.getUsername(), client)) {
-        refreshTokenList.add(
-            ImmutableList.of(
-                token.getRefreshToken(),
-                token.getClientId(),
-                String.valueOf(token.getIsScoped()),
-                String.join("\t", token.getScopesList())));
-      }
-    }
-
-    information.put("accessTokens", accessTokenList);
-    information.put("refreshTokens", refreshTokenList);
+    // The template lists the rows as the tokens are read page by page, so a user with many tokens
+    // is never held in memory at once.
+    String username = user.getUsername();
+    Stream<List<String>> accessTokens =
+        oauth2TokenService
+            .streamUserClients(username)
+            .flatMap(client -> oauth2TokenService.streamUserClientAccessTokens(username, client))
+            .map(
+                token ->
+                    ImmutableList.of(
+                        displayedValue(token.getAccessToken()),
+                        token.getClientId(),
+                        String.valueOf(token.getIsScoped()),
+                        String.join("\t", token.getScopesList()),
+                        Instant.ofEpochSecond(token.getExpiredTime()).toString(),
+                        displayedValue(token.getRefreshToken())));
+    Stream<List<String>> refreshTokens =
+        oauth2TokenService
+            .streamUserClients(username)
+            .flatMap(client -> oauth2TokenService.streamUserClientRefreshTokens(username, client))
+            .map(
+                token ->
+                    ImmutableList.of(
+                        displayedValue(token.getRefreshToken()),
+                        token.getClientId(),
+                        String.valueOf(token.getIsScoped()),
+                        String.join("\t", token.getScopesList())));
+
+    information.put("accessTokens", accessTokens.iterator());
+    information.put("refreshTokens", refreshTokens.iterator());
 
     Template template = configuration.getTemplate("ViewTokens.ftl");
 
@@ -129,4 +130,12 @@ public final class ViewTokensServlet extends HttpServlet {
 
     printWriter.flush();
   }
+
+  /**
+   * Tokens stored with TOKEN_DIGEST_KEYS have no value to show, only the identifier of their digest,
+   * which is marked as such so it is not taken for the token.
+   */
+  private static String displayedValue(String token) {
+    return TokenDigest.isIdentifier(token) ? "(value not stored) " + token : token;
+  }
 }
@@ -0,0 +1,222 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.user;
+
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.googleidentity.oauth2.util.Page;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import java.time.Duration;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read through cache of users in front of another {@link UserDetailsService}, so that the user
+ * lookups of every resource, userinfo and assertion request do not need a database round-trip.
+ *
+ * <p>Users are cached by username and by the email and Google account ID they were looked up with.
+ * Both caches are bounded by size and by a time to live, only found users are cached. Adding,
+ * updating and resetting users evict the affected entries before they return. Writes made through
+ * another instance are seen after the time to live at the latest.
+ */
+@Singleton
+public final class CachingUserDetailsService implements UserDetailsService {
+
+  /** Name of the binding of the user service this cache reads through. */
+  public static final String BACKEND = "UserDetailsServiceBackend";
+
+  private static final long DEFAULT_MAXIMUM_SIZE = 10000;
+
+  private static final Duration DEFAULT_TIME_TO_LIVE = Duration.ofMinutes(1);
+
+  private final UserDetailsService delegate;
+
+  private final Cache<String, UserDetails> usersByName;
+
+  private final Cache<IdentityKey, UserDetails> usersByIdentity;
+
+  /**
+   * Incremented before every eviction. A user read from the delegate is only kept in the cache
+   * when no write happened during the read, otherwise the old user could be cached again.
+   */
+  private final AtomicLong writes = new AtomicLong();
+
+  /** Email and Google account ID of a lookup, empty for a missing value. */
+  private static final class IdentityKey {
+    private final String email;
+    private final String googleAccountId;
+
+    IdentityKey(String email, String googleAccountId) {
+      this.email = Strings.nullToEmpty(email);
+      this.googleAccountId = Strings.nullToEmpty(googleAccountId);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof IdentityKey)) {
+        return false;
+      }
+      IdentityKey key = (IdentityKey) other;
+      return email.equals(key.email) && googleAccountId.equals(key.googleAccountId);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(email, googleAccountId);
+    }
+  }
+
+  @Inject
+  public CachingUserDetailsService(@Named(BACKEND) UserDetailsService delegate) {
+    this(delegate, DEFAULT_MAXIMUM_SIZE, DEFAULT_TIME_TO_LIVE);
+  }
+
+  CachingUserDetailsService(UserDetailsService delegate, long maximumSize, Duration timeToLive) {
+    this.delegate = delegate;
+    this.usersByName =
+        CacheBuilder.newBuilder()
+            .maximumSize(maximumSize)
+            .expireAfterWrite(timeToLive)
+            .recordStats()
+            .build();
+    this.usersByIdentity =
+        CacheBuilder.newBuilder()
+            .maximumSize(maximumSize)
+            .expireAfterWrite(timeToLive)
+            .recordStats()
+            .build();
+  }
+
+  @Override
+  public Optional<UserDetails> getUserByName(String username) {
+    UserDetails cachedUser = usersByName.getIfPresent(username);
+    if (cachedUser != null) {
+      return Optional.of(cachedUser);
+    }
+
+    long writesBeforeRead = writes.get();
+    Optional<UserDetails> user = delegate.getUserByName(username);
+    user.ifPresent(found -> cacheIfNotWritten(usersByName, username, found, writesBeforeRead));
+    return user;
+  }
+
+  @Override
+  public Optional<UserDetails> getUserByEmailOrGoogleAccountId(String email, String gid) {
+    IdentityKey key = new IdentityKey(email, gid);
+    if (key.email.isEmpty() && key.googleAccountId.isEmpty()) {
+      return delegate.getUserByEmailOrGoogleAccountId(email, gid);
+    }
+    UserDetails cachedUser = usersByIdentity.getIfPresent(key);
+    if (cachedUser != null) {
+      return Optional.of(cachedUser);
+    }
+
+    long writesBeforeRead = writes.get();
+    Optional<UserDetails> user = delegate.getUserByEmailOrGoogleAccountId(email, gid);
+    user.ifPresent(found -> cacheIfNotWritten(usersByIdentity, key, found, writesBeforeRead));
+    return user;
+  }
+
+  @Override
+  public boolean updateUser(UserDetails user) {
+    boolean result = delegate.updateUser(user);
+    evict(user);
+    return result;
+  }
+
+  @Override
+  public boolean addUser(UserDetails user) {
+    // A new user with an email may take precedence over a cached Google account ID match.
+    boolean result = delegate.addUser(user);
+    evict(user);
+    return result;
+  }
+
+  @Override
+  public List<UserDetails> listUser() {
+    return delegate.listUser();
+  }
+
+  @Override
+  public Page<UserDetails> listUser(Optional<String> cursor, int limit) {
+    return delegate.listUser(cursor, limit);
+  }
+
+  @Override
+  public void reset() {
+    delegate.reset();
+    writes.incrementAndGet();
+    usersByName.invalidateAll();
+    usersByIdentity.invalidateAll();
+  }
+
+  /** @return the number of user lookups served from the cache */
+  public long getHitCount() {
+    return stats().hitCount();
+  }
+
+  /** @return the number of user lookups which went to the delegate */
+  public long getMissCount() {
+    return stats().missCount();
+  }
+
+  /** @return the share of user lookups served from the cache, 1.0 before the first lookup */
+  public double getHitRate() {
+    return stats().hitRate();
+  }
+
+  private CacheStats stats() {
+    return usersByName.stats().plus(usersByIdentity.stats());
+  }
+
+  /**
+   * Cache a user got from the delegate. If a write started after writesBefore was read, the user
+   * may be outdated already and the entry is dropped again.
+   */
+  private <K> void cacheIfNotWritten(
+      Cache<K, UserDetails> cache, K key, UserDetails user, long writesBefore) {
+    cache.put(key, user);
+    if (writes.get() != writesBefore) {
+      cache.invalidate(key);
+    }
+  }
+
+  /**
+   * Evict the entries of the user, under its old and new email and Google account ID. Called after
+   * the delegate finished the write, the counter is incremented before evicting so that a read
+   * racing with the write drops what it cached.
+   */
+  private void evict(UserDetails user) {
+    writes.incrementAndGet();
+    usersByName.invalidate(user.getUsername());
+    usersByIdentity
+        .asMap()
+        .entrySet()
+        .removeIf(
+            entry ->
+                entry.getValue().getUsername().equals(user.getUsername())
+                    || (!user.getEmail().isEmpty() && entry.getKey().email.equals(user.getEmail()))
+                    || (!user.getGoogleAccountId().isEmpty()
+                        && entry.getKey().googleAccountId.equals(user.getGoogleAccountId())));
+  }
+}
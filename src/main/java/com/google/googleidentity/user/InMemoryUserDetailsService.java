@@ -19,18 +19,36 @@ package com.google.googleidentity.user;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.googleidentity.oauth2.util.Page;
 import com.google.inject.Singleton;
 
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
 import java.util.logging.Logger;
 
-/** Default InMemory UserDetailsService for user information Store. */
+/**
+ * Default InMemory UserDetailsService for user information Store. Users are indexed by email and
+ * Google account ID as well, so account linking looks them up without a scan. Writes are
+ * serialized to keep the indexes consistent with the users, reads do not lock.
+ */
 @Singleton
 public final class InMemoryUserDetailsService implements UserDetailsService {
 
-  private final ConcurrentHashMap<String, UserDetails> userStore = new ConcurrentHashMap<>();
+  /** In username order, so a page of users starts at its cursor. */
+  private final ConcurrentSkipListMap<String, UserDetails> userStore =
+      new ConcurrentSkipListMap<>();
+
+  /** Usernames by email and by Google account ID, a value is never empty. */
+  private final ConcurrentHashMap<String, Set<String>> usernamesByEmail = new ConcurrentHashMap<>();
+
+  private final ConcurrentHashMap<String, Set<String>> usernamesByGoogleAccountId =
+      new ConcurrentHashMap<>();
+
   private static final Logger log = Logger.getLogger("InMemoryUserDetailsService");
 
   public Optional<UserDetails> getUserByName(String username) {
@@ -38,7 +56,7 @@ public final class InMemoryUserDetailsService implements UserDetailsService {
     return Optional.ofNullable(userStore.get(username));
   }
 
-  public boolean updateUser(UserDetails user) {
+  public synchronized boolean updateUser(UserDetails user) {
 
     Preconditions.checkNotNull(user);
 
@@ -46,15 +64,25 @@ public final class InMemoryUserDetailsService implements UserDetailsService {
     if (username.isEmpty()) {
       throw new IllegalArgumentException("Empty username");
     }
-    if (!userStore.containsKey(username)) {
+    UserDetails old = userStore.get(username);
+    if (old == null) {
       return false;
     }
+    // Index the new values first, so a concurrent lookup by either value finds the user.
+    index(usernamesByEmail, user.getEmail(), username);
+    index(usernamesByGoogleAccountId, user.getGoogleAccountId(), username);
     userStore.put(username, user);
+    if (!old.getEmail().equals(user.getEmail())) {
+      unindex(usernamesByEmail, old.getEmail(), username);
+    }
+    if (!old.getGoogleAccountId().equals(user.getGoogleAccountId())) {
+      unindex(usernamesByGoogleAccountId, old.getGoogleAccountId(), username);
+    }
     return true;
   }
 
   @Override
-  public boolean addUser(UserDetails user) {
+  public synchronized boolean addUser(UserDetails user) {
 
     Preconditions.checkNotNull(user);
 
@@ -65,31 +93,102 @@ public final class InMemoryUserDetailsService implements UserDetailsService {
     if (userStore.containsKey(username)) {
       return false;
     }
+    index(usernamesByEmail, user.getEmail(), username);
+    index(usernamesByGoogleAccountId, user.getGoogleAccountId(), username);
     userStore.put(username, user);
     return true;
   }
 
+  /** Looks the user up by email first, then by Google account ID. */
   @Override
   public Optional<UserDetails> getUserByEmailOrGoogleAccountId(String email, String gid) {
-    for (UserDetails user : userStore.values()) {
-      if (!Strings.isNullOrEmpty(email) && user.getEmail().equals(email)) {
-        return Optional.of(user);
+    if (!Strings.isNullOrEmpty(email)) {
+      Optional<UserDetails> user = lookup(usernamesByEmail, email, UserDetails::getEmail);
+      if (user.isPresent()) {
+        return user;
       }
-      if (!Strings.isNullOrEmpty(gid) && user.getGoogleAccountId().equals(gid)) {
-        log.info("User has google account Id with empty email.");
-        return Optional.of(user);
+    }
+    if (!Strings.isNullOrEmpty(gid)) {
+      Optional<UserDetails> user =
+          lookup(usernamesByGoogleAccountId, gid, UserDetails::getGoogleAccountId);
+      if (user.isPresent()) {
+        log.fine("User has google account Id with empty email.");
+        return user;
       }
     }
 
     return Optional.empty();
   }
 
+  /** @return a user whose field has the value, the index may still name users which moved away */
+  private Optional<UserDetails> lookup(
+      ConcurrentHashMap<String, Set<String>> index,
+      String value,
+      Function<UserDetails, String> field) {
+    Set<String> usernames = index.get(value);
+    if (usernames == null) {
+      return Optional.empty();
+    }
+    for (String username : usernames) {
+      UserDetails user = userStore.get(username);
+      if (user != null && field.apply(user).equals(value)) {
+        return Optional.of(user);
+      }
+    }
+    return Optional.empty();
+  }
+
+  private static void index(
+      ConcurrentHashMap<String, Set<String>> index, String value, String username) {
+    if (value.isEmpty()) {
+      return;
+    }
+    index.compute(
+        value,
+        (key, usernames) -> {
+          if (usernames == null) {
+            return ImmutableSet.of(username);
+          }
+          if (usernames.contains(username)) {
+            return usernames;
+          }
+          return ImmutableSet.<String>builder().addAll(usernames).add(username).build();
+        });
+  }
+
+  private static void unindex(
+      ConcurrentHashMap<String, Set<String>> index, String value, String username) {
+    if (value.isEmpty()) {
+      return;
+    }
+    index.computeIfPresent(
+        value,
+        (key, usernames) -> {
+          if (!usernames.contains(username)) {
+            return usernames;
+          }
+          ImmutableSet<String> rest =
+              usernames.stream()
+                  .filter(other -> !other.equals(username))
+                  .collect(ImmutableSet.toImmutableSet());
+          // An empty set removes the entry.
+          return rest.isEmpty() ? null : rest;
+        });
+  }
+
   public List<UserDetails> listUser() {
     return ImmutableList.copyOf(userStore.values());
   }
 
   @Override
-  public void reset() {
+  public Page<UserDetails> listUser(Optional<String> cursor, int limit) {
+    return Page.select(userStore, cursor, limit);
+  }
+
+  @Override
+  public synchronized void reset() {
     userStore.clear();
+    usernamesByEmail.clear();
+    usernamesByGoogleAccountId.clear();
   }
 }
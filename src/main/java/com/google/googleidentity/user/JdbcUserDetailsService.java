@@ -16,318 +16,179 @@
 
 package com.google.googleidentity.user;
 
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.googleidentity.mysql.JdbcExecutor;
 import com.google.googleidentity.oauth2.exception.OAuth2ServerException;
+import com.google.googleidentity.oauth2.util.Page;
 import com.google.inject.Inject;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.LinkedList;
+import java.sql.SQLIntegrityConstraintViolationException;
 import java.util.List;
 import java.util.Optional;
-import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.sql.DataSource;
 
-/** Jdbc Implementation for {@link UserDetailsService} */
+/**
+ * Jdbc Implementation for {@link UserDetailsService}. An empty email or Google account ID is stored
+ * as NULL, the columns are unique otherwise, see SchemaMigrations.
+ */
 public class JdbcUserDetailsService implements UserDetailsService {
 
-  private final DataSource dataSource;
+  private final JdbcExecutor executor;
 
   private final Logger log = Logger.getLogger("JdbcUserDetailsService");
 
   @Inject
-  JdbcUserDetailsService(DataSource dataSource) {
-    this.dataSource = dataSource;
+  JdbcUserDetailsService(JdbcExecutor executor) {
+    this.executor = executor;
   }
 
   @Override
   public Optional<UserDetails> getUserByName(String username) {
-    Connection conn = null;
-    PreparedStatement statement = null;
-    ResultSet result = null;
-    try {
-      conn = dataSource.getConnection();
-      String stmt = "SELECT * FROM user " + "WHERE username = ?;";
-      statement = conn.prepareStatement(stmt);
-      statement.setString(1, username);
-      result = statement.executeQuery();
-      if (result.next()) {
-        Optional<UserDetails> user = Optional.ofNullable(buildUserFromJdbcResult(result));
-        return user;
-      }
-    } catch (SQLException exception) {
-      throw new OAuth2ServerException(exception);
-    } finally {
-      if (result != null) {
-        try {
-          result.close();
-        } catch (SQLException exception2) {
-          throw new OAuth2ServerException(exception2);
-        }
-      }
-      if (statement != null) {
-        try {
-          statement.close();
-        } catch (SQLException exception3) {
-          throw new OAuth2ServerException(exception3);
-        }
-      }
-      if (conn != null) {
-        try {
-          conn.close();
-        } catch (SQLException exception4) {
-          throw new OAuth2ServerException(exception4);
-        }
-      }
-    }
-    return Optional.empty();
+    return executor.queryFirst(
+        "user.getUserByName",
+        "SELECT * FROM user " + "WHERE username = ?;",
+        statement -> statement.setString(1, username),
+        this::buildUserFromJdbcResult);
   }
 
+  /** @return false if there is no such user, or another user has the email or Google account ID */
   @Override
   public boolean updateUser(UserDetails user) {
-    Connection conn = null;
-    PreparedStatement statement = null;
     try {
-      conn = dataSource.getConnection();
-      conn.setAutoCommit(false);
-      String stmt =
-          "UPDATE user "
-              + "SET password = ?, email = ?, google_account_id = ? "
-              + "WHERE username = ?;";
-      statement = conn.prepareStatement(stmt);
-      statement.setString(1, user.getPassword());
-      statement.setString(2, user.getEmail());
-      statement.setString(3, user.getGoogleAccountId());
-      statement.setString(4, user.getUsername());
-      int count = statement.executeUpdate();
-      conn.commit();
+      int count =
+          executor.update(
+              "user.updateUser",
+              "UPDATE user "
+                  + "SET password = ?, email = ?, google_account_id = ? "
+                  + "WHERE username = ?;",
+              statement -> {
+                statement.setString(1, user.getPassword());
+                statement.setString(2, Strings.emptyToNull(user.getEmail()));
+                statement.setString(3, Strings.emptyToNull(user.getGoogleAccountId()));
+                statement.setString(4, user.getUsername());
+              });
       return count == 1;
-    } catch (SQLException exception) {
-      try {
-        if (conn != null) {
-          conn.rollback();
-        }
-      } catch (SQLException exception1) {
-        throw new OAuth2ServerException(exception1);
-      }
-      throw new OAuth2ServerException(exception);
-    } finally {
-      if (statement != null) {
-        try {
-          statement.close();
-        } catch (SQLException exception3) {
-          throw new OAuth2ServerException(exception3);
-        }
-      }
-      if (conn != null) {
-        try {
-          conn.close();
-        } catch (SQLException exception4) {
-          throw new OAuth2ServerException(exception4);
-        }
+    } catch (OAuth2ServerException exception) {
+      if (exception.getCause() instanceof SQLIntegrityConstraintViolationException) {
+        return false;
       }
+      throw exception;
     }
   }
 
+  /** @return false if the user exists, or another user has the email or Google account ID */
   @Override
   public boolean addUser(UserDetails user) {
-    Connection conn = null;
-    PreparedStatement statement = null;
-    ResultSet result = null;
     try {
-      conn = dataSource.getConnection();
-      conn.setAutoCommit(false);
-      String stmt = "SELECT * FROM user WHERE username = ?;";
-      statement = conn.prepareStatement(stmt);
-      statement.setString(1, user.getUsername());
-      result = statement.executeQuery();
-      if (!result.next()) {
-        stmt = "INSERT INTO user VALUES (?, ?, ?, ?);";
-        statement = conn.prepareStatement(stmt);
-        statement.setString(1, user.getUsername());
-        statement.setString(2, user.getPassword());
-        statement.setString(3, user.getEmail());
-        statement.setString(4, user.getGoogleAccountId());
-        statement.execute();
-        conn.commit();
-        return true;
-      }
-    } catch (SQLException exception) {
-      try {
-        if (conn != null) {
-          conn.rollback();
-        }
-      } catch (SQLException exception1) {
-        throw new OAuth2ServerException(exception1);
-      }
-      throw new OAuth2ServerException(exception);
-    } finally {
-      if (result != null) {
-        try {
-          result.close();
-        } catch (SQLException exception2) {
-          throw new OAuth2ServerException(exception2);
-        }
-      }
-      if (statement != null) {
-        try {
-          statement.close();
-        } catch (SQLException exception3) {
-          throw new OAuth2ServerException(exception3);
-        }
-      }
-      if (conn != null) {
-        try {
-          conn.close();
-        } catch (SQLException exception4) {
-          throw new OAuth2ServerException(exception4);
-        }
+      return insertUser(user);
+    } catch (OAuth2ServerException exception) {
+      if (exception.getCause() instanceof SQLIntegrityConstraintViolationException) {
+        return false;
       }
+      throw exception;
     }
-    return false;
   }
 
+  private boolean insertUser(UserDetails user) {
+    return executor.inTransaction(
+        transaction -> {
+          if (transaction
+              .queryFirst(
+                  "user.getUserByName",
+                  "SELECT * FROM user " + "WHERE username = ?;",
+                  statement -> statement.setString(1, user.getUsername()),
+                  result -> true)
+              .isPresent()) {
+            return false;
+          }
+          transaction.update(
+              "user.addUser",
+              "INSERT INTO user VALUES (?, ?, ?, ?);",
+              statement -> {
+                statement.setString(1, user.getUsername());
+                statement.setString(2, user.getPassword());
+                statement.setString(3, Strings.emptyToNull(user.getEmail()));
+                statement.setString(4, Strings.emptyToNull(user.getGoogleAccountId()));
+              });
+          return true;
+        });
+  }
+
+  /**
+   * One row at most, by email first and by Google account ID if no user has the email. Each column
+   * is read through its own index, an OR of the two columns scans the table.
+   */
   @Override
   public Optional<UserDetails> getUserByEmailOrGoogleAccountId(String email, String gid) {
-    Connection conn = null;
-    PreparedStatement statement = null;
-    ResultSet result = null;
-    try {
-      conn = dataSource.getConnection();
-      String stmt = "SELECT * FROM user " + "WHERE email = ? OR google_account_id = ?;";
-      statement = conn.prepareStatement(stmt);
-      statement.setString(1, email);
-      statement.setString(2, gid);
-      result = statement.executeQuery();
-      if (result.next()) {
-        Optional<UserDetails> user = Optional.ofNullable(buildUserFromJdbcResult(result));
-        return user;
-      }
-    } catch (SQLException exception) {
-      throw new OAuth2ServerException(exception);
-    } finally {
-      if (result != null) {
-        try {
-          result.close();
-        } catch (SQLException exception2) {
-          throw new OAuth2ServerException(exception2);
-        }
-      }
-      if (statement != null) {
-        try {
-          statement.close();
-        } catch (SQLException exception3) {
-          throw new OAuth2ServerException(exception3);
-        }
-      }
-      if (conn != null) {
-        try {
-          conn.close();
-        } catch (SQLException exception4) {
-          throw new OAuth2ServerException(exception4);
-        }
-      }
+    if (Strings.isNullOrEmpty(email)) {
+      if (Strings.isNullOrEmpty(gid)) {
+        return Optional.empty();
+      }
+      return executor.queryFirst(
+          "user.getUserByGoogleAccountId",
+          "SELECT * FROM user WHERE google_account_id = ? LIMIT 1;",
+          statement -> statement.setString(1, gid),
+          this::buildUserFromJdbcResult);
+    }
+    if (Strings.isNullOrEmpty(gid)) {
+      return executor.queryFirst(
+          "user.getUserByEmail",
+          "SELECT * FROM user WHERE email = ? LIMIT 1;",
+          statement -> statement.setString(1, email),
+          this::buildUserFromJdbcResult);
     }
-    return Optional.empty();
+    return executor.queryFirst(
+        "user.getUserByEmailOrGoogleAccountId",
+        "(SELECT *, 0 AS preference FROM user WHERE email = ? LIMIT 1) "
+            + "UNION ALL (SELECT *, 1 AS preference FROM user WHERE google_account_id = ? LIMIT 1) "
+            + "ORDER BY preference LIMIT 1;",
+        statement -> {
+          statement.setString(1, email);
+          statement.setString(2, gid);
+        },
+        this::buildUserFromJdbcResult);
   }
 
   @Override
   public List<UserDetails> listUser() {
-    List<UserDetails> list = new LinkedList<>();
-    Connection conn = null;
-    PreparedStatement statement = null;
-    ResultSet result = null;
-    try {
-      conn = dataSource.getConnection();
-      String stmt = "SELECT * FROM user;";
-      statement = conn.prepareStatement(stmt);
-      result = statement.executeQuery();
-      while (result.next()) {
-        list.add(buildUserFromJdbcResult(result));
-      }
-    } catch (SQLException exception) {
-      throw new OAuth2ServerException(exception);
-    } finally {
-      if (result != null) {
-        try {
-          result.close();
-        } catch (SQLException exception2) {
-          throw new OAuth2ServerException(exception2);
-        }
-      }
-      if (statement != null) {
-        try {
-          statement.close();
-        } catch (SQLException exception3) {
-          throw new OAuth2ServerException(exception3);
-        }
-      }
-      if (conn != null) {
-        try {
-          conn.close();
-        } catch (SQLException exception4) {
-          throw new OAuth2ServerException(exception4);
-        }
-      }
-    }
-    return ImmutableList.copyOf(list);
+    return ImmutableList.copyOf(
+        executor.query(
+            "user.listUser",
+            "SELECT * FROM user;",
+            statement -> {},
+            this::buildUserFromJdbcResult));
   }
 
+  /** Keyset pagination on the primary key, a page reads only its own rows. */
   @Override
-  public void reset() {
-    Connection conn = null;
-    PreparedStatement statement = null;
-    ResultSet result = null;
-    try {
-      conn = dataSource.getConnection();
-      conn.setAutoCommit(false);
-      String stmt = "DELETE FROM user;";
-      statement = conn.prepareStatement(stmt);
-      statement.execute();
-      conn.commit();
-    } catch (SQLException exception) {
-      try {
-        if (conn != null) {
-          conn.rollback();
-        }
-      } catch (SQLException exception1) {
-        throw new OAuth2ServerException(exception1);
-      }
-      throw new OAuth2ServerException(exception);
-    } finally {
-      if (result != null) {
-        try {
-          result.close();
-        } catch (SQLException exception2) {
-          throw new OAuth2ServerException(exception2);
-        }
-      }
-      if (statement != null) {
-        try {
-          statement.close();
-        } catch (SQLException exception3) {
-          throw new OAuth2ServerException(exception3);
-        }
-      }
-      if (conn != null) {
-        try {
-          conn.close();
-        } catch (SQLException exception4) {
-          throw new OAuth2ServerException(exception4);
-        }
-      }
-    }
+  public Page<UserDetails> listUser(Optional<String> cursor, int limit) {
+    Page.checkLimit(limit);
+    return Page.fromRows(
+        executor.query(
+            "user.listUserPage",
+            "SELECT * FROM user WHERE username > ? ORDER BY username LIMIT ?;",
+            statement -> {
+              statement.setString(1, cursor.orElse(""));
+              statement.setInt(2, limit + 1);
+            },
+            this::buildUserFromJdbcResult),
+        limit,
+        UserDetails::getUsername);
+  }
 
+  @Override
+  public void reset() {
+    executor.update("user.reset", "DELETE FROM user;", statement -> {});
   }
 
   private UserDetails buildUserFromJdbcResult(ResultSet result) throws SQLException {
     return UserDetails.newBuilder()
         .setUsername(result.getString("username"))
         .setPassword(result.getString("password"))
-        .setEmail(result.getString("email"))
-        .setGoogleAccountId(result.getString("google_account_id"))
+        .setEmail(Strings.nullToEmpty(result.getString("email")))
+        .setGoogleAccountId(Strings.nullToEmpty(result.getString("google_account_id")))
         .build();
   }
 }
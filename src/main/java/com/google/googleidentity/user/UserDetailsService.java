@@ -15,8 +15,10 @@
 */
 package com.google.googleidentity.user;
 
+import com.google.googleidentity.oauth2.util.Page;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 /** UserDetailsService Interface. Support basic user information access and modification */
 public interface UserDetailsService {
@@ -47,8 +49,19 @@ public interface UserDetailsService {
    */
   Optional<UserDetails> getUserByEmailOrGoogleAccountId(String email, String gid);
 
-  /** @return all users */
+  /** @return all users, held in memory at once, see {@link #streamUsers} for many users */
   List<UserDetails> listUser();
 
+  /**
+   * @param cursor the next cursor of the previous page, empty for the first page
+   * @return up to limit users in username order
+   */
+  Page<UserDetails> listUser(Optional<String> cursor, int limit);
+
+  /** @return all users in username order, read page by page as the stream is consumed */
+  default Stream<UserDetails> streamUsers() {
+    return Page.stream(cursor -> listUser(cursor, Page.STREAM_PAGE_SIZE));
+  }
+
   void reset();
 }
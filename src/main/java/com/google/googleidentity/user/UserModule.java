@@ -17,11 +17,19 @@
 package com.google.googleidentity.user;
 
 import com.google.inject.AbstractModule;
+import com.google.inject.name.Names;
 
 public final class UserModule extends AbstractModule {
 
   @Override
   protected void configure() {
-    bind(UserDetailsService.class).to(InMemoryUserDetailsService.class);
+    if (("true").equals(System.getenv("CACHE_USERS"))) {
+      bind(UserDetailsService.class)
+          .annotatedWith(Names.named(CachingUserDetailsService.BACKEND))
+          .to(InMemoryUserDetailsService.class);
+      bind(UserDetailsService.class).to(CachingUserDetailsService.class);
+    } else {
+      bind(UserDetailsService.class).to(InMemoryUserDetailsService.class);
+    }
   }
 }
@@ -18,6 +18,7 @@ package com.google.googleidentity.user.seed;
 
 import com.google.common.base.Charsets;
 import com.google.common.hash.Hashing;
+import com.google.googleidentity.user.CachingUserDetailsService;
 import com.google.googleidentity.user.JdbcUserDetailsService;
 import com.google.googleidentity.user.UserDetails;
 import com.google.googleidentity.user.UserDetailsService;
@@ -60,6 +61,9 @@ public class JdbcUserSeedModule extends AbstractModule {
             .setPassword(Hashing.sha256().hashString(ADMINPASS, Charsets.UTF_8).toString())
             .build();
     userDetailsService.addUser(admin);
+    if (("true").equals(System.getenv("CACHE_USERS"))) {
+      return new CachingUserDetailsService(userDetailsService);
+    }
     return userDetailsService;
   }
 }
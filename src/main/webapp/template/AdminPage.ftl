@@ -45,6 +45,42 @@ limitations under the License.
       </div>
     </div>
   </div>
+  <h2 style="text-align: center; padding-top: 4%; font-family: Georgia, serif">Users</h2>
+  <table class="simpletable" id="users">
+    <tr>
+      <th>username</th>
+      <th>email</th>
+      <th>google_account_id</th>
+    </tr>
+    <#list users as user>
+    <tr>
+      <#list user as info>
+      <td>${info}</td>
+      </#list>
+    </tr>
+    </#list>
+  </table>
+  <#if nextUsers??>
+  <a href="/resource/admin?users=${nextUsers?url}">Next users</a>
+  </#if>
+  <h2 style="text-align: center; padding-top: 4%; font-family: Georgia, serif">Clients</h2>
+  <table class="simpletable" id="clients">
+    <tr>
+      <th>client_id</th>
+      <th>scopes</th>
+      <th>redirect_uris</th>
+    </tr>
+    <#list clients as client>
+    <tr>
+      <#list client as info>
+      <td>${info}</td>
+      </#list>
+    </tr>
+    </#list>
+  </table>
+  <#if nextClients??>
+  <a href="/resource/admin?clients=${nextClients?url}">Next clients</a>
+  </#if>
 </div>
 <#include "/incs/footer.ftl">
 </body>
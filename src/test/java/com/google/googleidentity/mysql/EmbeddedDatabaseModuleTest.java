@@ -0,0 +1,47 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.mysql;
+
+import com.google.googleidentity.user.JdbcUserDetailsService;
+import com.google.googleidentity.user.UserDetails;
+import com.google.inject.Guice;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static com.google.common.truth.Truth8.assertThat;
+
+/** Test {@link EmbeddedDatabaseModule} */
+public class EmbeddedDatabaseModuleTest {
+
+  private static final UserDetails USER =
+      UserDetails.newBuilder().setUsername("user").setPassword("password").build();
+
+  @Test
+  void testCreateConnectionPool_existingFileDatabase_keepsRows(@TempDir Path directory) {
+    String url = "jdbc:h2:file:" + directory.resolve("demo").toAbsolutePath();
+    Guice.createInjector(new EmbeddedDatabaseModule(url))
+        .getInstance(JdbcUserDetailsService.class)
+        .addUser(USER);
+
+    assertThat(
+            Guice.createInjector(new EmbeddedDatabaseModule(url))
+                .getInstance(JdbcUserDetailsService.class)
+                .getUserByName("user"))
+        .hasValue(USER);
+  }
+}
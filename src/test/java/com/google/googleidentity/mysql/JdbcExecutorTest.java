@@ -0,0 +1,166 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.mysql;
+
+import com.google.googleidentity.oauth2.exception.OAuth2ServerException;
+import com.google.googleidentity.testtools.CountingDataSource;
+import com.google.googleidentity.testtools.TestDatabase;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import javax.sql.DataSource;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/** Test {@link JdbcExecutor} */
+public class JdbcExecutorTest {
+
+  private static final String INSERT = "INSERT INTO code (code, request) VALUES(?, ?);";
+  private static final String SELECT = "SELECT code FROM code WHERE code = ?;";
+
+  private CountingDataSource dataSource;
+  private JdbcExecutor executor;
+
+  @BeforeEach
+  void init() {
+    dataSource = new CountingDataSource(TestDatabase.newDatabase());
+    executor = new JdbcExecutor(dataSource);
+  }
+
+  private void insert(JdbcExecutor.Transaction transaction, String code) throws SQLException {
+    transaction.update(
+        "insert",
+        INSERT,
+        statement -> {
+          statement.setString(1, code);
+          statement.setBytes(2, new byte[0]);
+        });
+  }
+
+  @Test
+  void testInTransaction_repeatedStatement_preparedOnce() {
+    executor.inTransaction(
+        transaction -> {
+          insert(transaction, "a");
+          insert(transaction, "b");
+          return null;
+        });
+
+    assertThat(dataSource.getStatementCount()).isEqualTo(1);
+    assertThat(executor.getStatistics().get("insert").getCount()).isEqualTo(2);
+    assertThat(executor.getStatistics().get("insert").getRowCount()).isEqualTo(2);
+  }
+
+  @Test
+  void testInTransaction_error_rolledBackAndCounted() {
+    assertThrows(
+        OAuth2ServerException.class,
+        () ->
+            executor.inTransaction(
+                transaction -> {
+                  insert(transaction, "a");
+                  insert(transaction, "a");
+                  return null;
+                }));
+
+    assertThat(
+            executor.queryFirst(
+                "select", SELECT, statement -> statement.setString(1, "a"), result -> true))
+        .isEmpty();
+    assertThat(executor.getStatistics().get("insert").getCount()).isEqualTo(1);
+    assertThat(executor.getStatistics().get("insert").getErrorCount()).isEqualTo(1);
+  }
+
+  @Test
+  void testQuery_allRowsMapped() {
+    executor.inTransaction(
+        transaction -> {
+          insert(transaction, "a");
+          insert(transaction, "b");
+          return null;
+        });
+
+    assertThat(
+            executor.query(
+                "list",
+                "SELECT code FROM code ORDER BY code;",
+                statement -> {},
+                result -> result.getString("code")))
+        .containsExactly("a", "b")
+        .inOrder();
+    assertThat(executor.getStatistics().get("list").getRowCount()).isEqualTo(2);
+  }
+
+  @Test
+  void testInTransaction_closeFails_committedResultReturnedAndConnectionClosed()
+      throws SQLException {
+    Connection conn = mockConnectionFailingToClose();
+    DataSource pool = mock(DataSource.class);
+    when(pool.getConnection()).thenReturn(conn);
+
+    int count =
+        new JdbcExecutor(pool)
+            .inTransaction(transaction -> transaction.update("insert", INSERT, statement -> {}));
+
+    assertThat(count).isEqualTo(1);
+    verify(conn).commit();
+    verify(conn).close();
+  }
+
+  @Test
+  void testInTransaction_workAndCloseFail_workFailureThrownWithCloseSuppressed()
+      throws SQLException {
+    Connection conn = mockConnectionFailingToClose();
+    doThrow(new SQLException("rollback")).when(conn).rollback();
+    DataSource pool = mock(DataSource.class);
+    when(pool.getConnection()).thenReturn(conn);
+
+    OAuth2ServerException exception =
+        assertThrows(
+            OAuth2ServerException.class,
+            () ->
+                new JdbcExecutor(pool)
+                    .inTransaction(
+                        transaction -> {
+                          transaction.update("insert", INSERT, statement -> {});
+                          throw new SQLException("work");
+                        }));
+
+    assertThat(exception).hasCauseThat().hasMessageThat().isEqualTo("work");
+    assertThat(exception.getCause().getSuppressed()).hasLength(2);
+    verify(conn).close();
+  }
+
+  /** @return a connection whose statements update one row and fail to close */
+  private static Connection mockConnectionFailingToClose() throws SQLException {
+    PreparedStatement statement = mock(PreparedStatement.class);
+    when(statement.executeUpdate()).thenReturn(1);
+    doThrow(new SQLException("close")).when(statement).close();
+    Connection conn = mock(Connection.class);
+    when(conn.prepareStatement(anyString())).thenReturn(statement);
+    return conn;
+  }
+}
@@ -0,0 +1,154 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.mysql;
+
+import com.google.googleidentity.oauth2.authorizationcode.JdbcCodeStore;
+import com.google.googleidentity.oauth2.client.ClientDetails;
+import com.google.googleidentity.oauth2.client.JdbcClientDetailsService;
+import com.google.googleidentity.oauth2.request.OAuth2Request;
+import com.google.googleidentity.oauth2.token.JdbcOAuth2TokenService;
+import com.google.googleidentity.oauth2.token.OAuth2AccessToken;
+import com.google.googleidentity.oauth2.util.OAuth2Enums.GrantType;
+import com.google.googleidentity.user.JdbcUserDetailsService;
+import com.google.googleidentity.user.UserDetails;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Throughput of the hot path of every Jdbc store, wired by Guice with {@link
+ * EmbeddedDatabaseModule} like the server with EMBEDDED_DATABASE. The statement statistics of
+ * {@link JdbcExecutor} are printed at the end of each trial. Guice 4 needs java.lang opened on Java
+ * 17.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(value = 1, jvmArgsAppend = "--add-opens=java.base/java.lang=ALL-UNNAMED")
+public class JdbcStoresBenchmark {
+
+  private static final UserDetails USER =
+      UserDetails.newBuilder().setUsername("user").setPassword("password").build();
+
+  private static final ClientDetails CLIENT =
+      ClientDetails.newBuilder()
+          .setClientId("client")
+          .setSecret("secret")
+          .addScopes("read")
+          .setIsScoped(true)
+          .addGrantTypes(GrantType.AUTHORIZATION_CODE)
+          .addRedirectUris("http://localhost:8080/redirect")
+          .build();
+
+  private static final OAuth2Request REQUEST =
+      OAuth2Request.newBuilder()
+          .setRequestAuth(
+              OAuth2Request.RequestAuth.newBuilder().setClientId("client").setUsername("user"))
+          .setRequestBody(
+              OAuth2Request.RequestBody.newBuilder()
+                  .setIsScoped(true)
+                  .addScopes("read")
+                  .setRefreshable(true))
+          .build();
+
+  private JdbcExecutor executor;
+  private JdbcUserDetailsService userDetailsService;
+  private JdbcClientDetailsService clientDetailsService;
+  private JdbcCodeStore codeStore;
+  private JdbcOAuth2TokenService tokenService;
+
+  private String accessToken;
+
+  private final AtomicLong codes = new AtomicLong();
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    Injector injector =
+        Guice.createInjector(new EmbeddedDatabaseModule("jdbc:h2:mem:" + UUID.randomUUID()));
+    executor = injector.getInstance(JdbcExecutor.class);
+    userDetailsService = injector.getInstance(JdbcUserDetailsService.class);
+    clientDetailsService = injector.getInstance(JdbcClientDetailsService.class);
+    codeStore = injector.getInstance(JdbcCodeStore.class);
+    tokenService = injector.getInstance(JdbcOAuth2TokenService.class);
+
+    userDetailsService.addUser(USER);
+    clientDetailsService.addClient(CLIENT);
+    accessToken = tokenService.generateAccessToken(REQUEST).getAccessToken();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    System.out.println();
+    executor
+        .getStatistics()
+        .forEach((name, statistics) -> System.out.println(name + ": " + statistics));
+  }
+
+  @Benchmark
+  public Optional<UserDetails> getUserByName() {
+    return userDetailsService.getUserByName("user");
+  }
+
+  @Benchmark
+  public Optional<ClientDetails> getClientByID() {
+    return clientDetailsService.getClientByID("client");
+  }
+
+  @Benchmark
+  public Optional<OAuth2Request> setAndConsumeCode() {
+    String code = "code" + codes.incrementAndGet();
+    codeStore.setCode(code, REQUEST);
+    return codeStore.consumeCode(code);
+  }
+
+  @Benchmark
+  public OAuth2AccessToken generateAccessToken() {
+    return tokenService.generateAccessToken(REQUEST);
+  }
+
+  @Benchmark
+  public Optional<OAuth2AccessToken> readAccessToken() {
+    return tokenService.readAccessToken(accessToken);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(JdbcStoresBenchmark.class.getSimpleName()).build())
+        .run();
+  }
+}
@@ -0,0 +1,166 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.mysql;
+
+import com.google.common.collect.ImmutableList;
+import com.google.googleidentity.testtools.TestDatabase;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.UUID;
+import javax.sql.DataSource;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/** Test {@link SchemaMigrations} */
+public class SchemaMigrationsTest {
+
+  /** The statements of the Jdbc stores which do not look up a primary key. */
+  private static final ImmutableList<String> HOT_STATEMENTS =
+      ImmutableList.of(
+          "SELECT * FROM access_token WHERE username = 'u' AND client_id = 'c'",
+          "DELETE FROM access_token WHERE username = 'u' AND client_id = 'c'",
+          "SELECT * FROM refresh_token WHERE username = 'u' AND client_id = 'c'",
+          "DELETE FROM refresh_token WHERE username = 'u' AND client_id = 'c'",
+          "SELECT DISTINCT client_id FROM access_token WHERE username = 'u'",
+          "SELECT DISTINCT client_id FROM refresh_token WHERE username = 'u'",
+          "DELETE FROM access_token WHERE refresh_token = 'r'",
+          "SELECT * FROM hashed_access_token WHERE username = 'u' AND client_id = 'c'",
+          "SELECT * FROM hashed_refresh_token WHERE username = 'u' AND client_id = 'c'",
+          "DELETE FROM hashed_access_token WHERE refresh_digest = X'00'",
+          "DELETE FROM code WHERE expired_time <= 0",
+          "(SELECT *, 0 AS preference FROM user WHERE email = 'e' LIMIT 1) "
+              + "UNION ALL (SELECT *, 1 AS preference FROM user WHERE google_account_id = 'g' "
+              + "LIMIT 1) ORDER BY preference LIMIT 1");
+
+  private static String explain(DataSource dataSource, String stmt) throws SQLException {
+    try (Connection conn = dataSource.getConnection();
+        PreparedStatement statement = conn.prepareStatement("EXPLAIN " + stmt);
+        ResultSet result = statement.executeQuery()) {
+      result.next();
+      return result.getString(1);
+    }
+  }
+
+  private static void execute(DataSource dataSource, String stmt) throws SQLException {
+    try (Connection conn = dataSource.getConnection();
+        PreparedStatement statement = conn.prepareStatement(stmt)) {
+      statement.execute();
+    }
+  }
+
+  @Test
+  void testMigrate_migratedDatabase_unchanged() throws SQLException {
+    DataSource dataSource = TestDatabase.newDatabase();
+
+    assertThat(SchemaMigrations.migrate(dataSource)).isEqualTo(SchemaMigrations.latestVersion());
+    try (Connection conn = dataSource.getConnection()) {
+      assertThat(SchemaMigrations.currentVersion(conn))
+          .isEqualTo(SchemaMigrations.latestVersion());
+    }
+  }
+
+  @Test
+  void testMigrate_unversionedDatabase_keepsRowsAndAddsColumns() throws SQLException {
+    JdbcDataSource dataSource = new JdbcDataSource();
+    dataSource.setURL(EmbeddedDatabaseModule.mysqlModeUrl("jdbc:h2:mem:" + UUID.randomUUID()));
+    // A refresh token table created before refresh tokens had an expired time.
+    execute(
+        dataSource,
+        "CREATE TABLE refresh_token "
+            + "(refresh_token VARCHAR(255) NOT NULL, "
+            + "client_id VARCHAR(255) NOT NULL, "
+            + "username VARCHAR(255) NOT NULL, "
+            + "is_scoped BOOLEAN,"
+            + "scopes VARCHAR(2047), "
+            + "PRIMARY KEY (refresh_token));");
+    execute(dataSource, "INSERT INTO refresh_token VALUES ('r', 'c', 'u', FALSE, '');");
+
+    assertThat(SchemaMigrations.migrate(dataSource)).isEqualTo(SchemaMigrations.latestVersion());
+
+    try (Connection conn = dataSource.getConnection();
+        PreparedStatement statement =
+            conn.prepareStatement("SELECT refresh_token, expired_time FROM refresh_token;");
+        ResultSet result = statement.executeQuery()) {
+      assertThat(result.next()).isTrue();
+      assertThat(result.getString("refresh_token")).isEqualTo("r");
+      assertThat(result.getObject("expired_time")).isNull();
+    }
+  }
+
+  private static ImmutableList<String> uniqueIndexColumns(DataSource dataSource, String table)
+      throws SQLException {
+    ImmutableList.Builder<String> columns = ImmutableList.builder();
+    try (Connection conn = dataSource.getConnection();
+        ResultSet result =
+            conn.getMetaData().getIndexInfo(conn.getCatalog(), null, table, true, false)) {
+      while (result.next()) {
+        columns.add(result.getString("COLUMN_NAME").toLowerCase());
+      }
+    }
+    return columns.build();
+  }
+
+  @Test
+  void testMigrate_userIds_duplicatesFailUntilRemoved() throws SQLException {
+    JdbcDataSource dataSource = new JdbcDataSource();
+    dataSource.setURL(EmbeddedDatabaseModule.mysqlModeUrl("jdbc:h2:mem:" + UUID.randomUUID()));
+    execute(
+        dataSource,
+        "CREATE TABLE user "
+            + "(username VARCHAR(255) NOT NULL, "
+            + "password VARCHAR(255), "
+            + "email VARCHAR(255), "
+            + "google_account_id VARCHAR(255), "
+            + "PRIMARY KEY (username));");
+    // Two users share an email, neither has a Google account ID.
+    execute(dataSource, "INSERT INTO user VALUES ('u1', 'p', 'e', ''), ('u2', 'p', 'e', '');");
+
+    assertThrows(SQLException.class, () -> SchemaMigrations.migrate(dataSource));
+    try (Connection conn = dataSource.getConnection()) {
+      assertThat(SchemaMigrations.currentVersion(conn)).isEqualTo(6);
+    }
+    assertThat(uniqueIndexColumns(dataSource, "user")).containsNoneOf("email", "google_account_id");
+
+    execute(dataSource, "UPDATE user SET email = 'e2' WHERE username = 'u2';");
+
+    assertThat(SchemaMigrations.migrate(dataSource)).isEqualTo(SchemaMigrations.latestVersion());
+    assertThat(uniqueIndexColumns(dataSource, "user"))
+        .containsAtLeast("email", "google_account_id");
+    try (Connection conn = dataSource.getConnection();
+        PreparedStatement statement =
+            conn.prepareStatement("SELECT COUNT(*) FROM user WHERE google_account_id IS NULL;");
+        ResultSet result = statement.executeQuery()) {
+      assertThat(result.next()).isTrue();
+      assertThat(result.getInt(1)).isEqualTo(2);
+    }
+  }
+
+  @Test
+  void testMigrate_hotStatements_useIndex() throws SQLException {
+    DataSource dataSource = TestDatabase.newDatabase();
+
+    for (String stmt : HOT_STATEMENTS) {
+      assertWithMessage(stmt).that(explain(dataSource, stmt)).doesNotContain("tableScan");
+    }
+  }
+}
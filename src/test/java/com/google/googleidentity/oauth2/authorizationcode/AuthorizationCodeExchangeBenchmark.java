@@ -0,0 +1,106 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package com.google.googleidentity.oauth2.authorizationcode;
+
+import com.google.googleidentity.mysql.JdbcExecutor;
+import com.google.googleidentity.oauth2.exception.TemporarilyUnavailableException;
+import com.google.googleidentity.oauth2.request.OAuth2Request;
+import com.google.googleidentity.oauth2.util.OAuth2Enums.ResponseType;
+import com.google.googleidentity.testtools.TestDatabase;
+import java.time.Clock;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of issuing a code and redeeming it, with stored codes and with sealed codes, in memory
+ * and in an embedded database. The length of the codes is printed at the start of each trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuthorizationCodeExchangeBenchmark {
+
+  private static final OAuth2Request REQUEST =
+      OAuth2Request.newBuilder()
+          .setRequestAuth(
+              OAuth2Request.RequestAuth.newBuilder()
+                  .setClientId("google")
+                  .setUsername("user@example.com"))
+          .setRequestBody(
+              OAuth2Request.RequestBody.newBuilder()
+                  .setResponseType(ResponseType.CODE)
+                  .setIsScoped(true)
+                  .addScopes("read")
+                  .addScopes("write")
+                  .setRefreshable(true))
+          .setAuthorizationResponse(
+              OAuth2Request.AuthorizationResponse.newBuilder()
+                  .setRedirectUri(
+                      "https://oauth-redirect.googleusercontent.com/r/gal-2020-summer-intern")
+                  .setState("AF6XkFSwYtl4n-zs9kRDtyP1m1o4nyKBy1XBJSwUGNLJxoTRTQ8eG4B"))
+          .build();
+
+  @Param({"memory", "jdbc"})
+  public String store;
+
+  @Param({"false", "true"})
+  public boolean sealed;
+
+  private AuthorizationCodeService codeService;
+
+  @Setup(Level.Trial)
+  public void setUp() throws TemporarilyUnavailableException {
+    CodeStore codeStore =
+        store.equals("jdbc")
+            ? new JdbcCodeStore(
+                new JdbcExecutor(TestDatabase.newDatabase()),
+                Clock.systemUTC(),
+                CodeStore.DEFAULT_LIFETIME,
+                JdbcCodeStore.DEFAULT_PURGE_BATCH_SIZE)
+            : new InMemoryCodeStore(
+                CodeStore.DEFAULT_LIFETIME, Integer.MAX_VALUE, Clock.systemUTC());
+    codeService =
+        new AuthorizationCodeService(
+            codeStore,
+            sealed
+                ? new SealedCodes(
+                    SealedCodes.newKey(), Clock.systemUTC(), CodeStore.DEFAULT_LIFETIME)
+                : null,
+            Integer.MAX_VALUE);
+    System.out.println(
+        "Code length: " + codeService.getCodeForRequest(REQUEST).length() + " characters");
+  }
+
+  @Benchmark
+  public Optional<OAuth2Request> issueAndRedeem() throws TemporarilyUnavailableException {
+    return codeService.consumeCode(codeService.getCodeForRequest(REQUEST));
+  }
+}
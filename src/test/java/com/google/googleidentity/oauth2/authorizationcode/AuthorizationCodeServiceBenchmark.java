@@ -0,0 +1,108 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package com.google.googleidentity.oauth2.authorizationcode;
+
+import com.google.googleidentity.oauth2.exception.TemporarilyUnavailableException;
+import com.google.googleidentity.oauth2.request.OAuth2Request;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the time {@link AuthorizationCodeService} takes to mint a code for a growing number of
+ * threads. Codes go to a store which accepts every code, so only the generation is measured. With
+ * {@code users} set to 1 all threads mint codes for a single user and client.
+ *
+ * <p>Run {@link #main} to measure with 1 to 32 threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuthorizationCodeServiceBenchmark {
+
+  private static final int[] THREADS = {1, 2, 4, 8, 16, 32};
+
+  @Param({"1", "4096"})
+  public int users;
+
+  private OAuth2Request[] requests;
+
+  private AuthorizationCodeService codeService;
+
+  private static final class AcceptingCodeStore implements CodeStore {
+    @Override
+    public Optional<OAuth2Request> consumeCode(String code) {
+      return Optional.empty();
+    }
+
+    @Override
+    public boolean setCode(String code, OAuth2Request request) {
+      return true;
+    }
+
+    @Override
+    public void reset() {}
+  }
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    codeService = new AuthorizationCodeService(new AcceptingCodeStore());
+    requests = new OAuth2Request[users];
+    for (int i = 0; i < users; i++) {
+      requests[i] =
+          OAuth2Request.newBuilder()
+              .setRequestAuth(
+                  OAuth2Request.RequestAuth.newBuilder()
+                      .setClientId("client")
+                      .setUsername("user" + i))
+              .build();
+    }
+  }
+
+  @Benchmark
+  public String getCodeForRequest() throws TemporarilyUnavailableException {
+    return codeService.getCodeForRequest(requests[ThreadLocalRandom.current().nextInt(users)]);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    for (int threads : THREADS) {
+      new Runner(
+              new OptionsBuilder()
+                  .include(AuthorizationCodeServiceBenchmark.class.getSimpleName())
+                  .threads(threads)
+                  .build())
+          .run();
+    }
+  }
+}
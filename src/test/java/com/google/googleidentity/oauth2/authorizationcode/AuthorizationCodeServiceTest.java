@@ -0,0 +1,146 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package com.google.googleidentity.oauth2.authorizationcode;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.google.googleidentity.mysql.JdbcExecutor;
+import com.google.googleidentity.oauth2.exception.TemporarilyUnavailableException;
+import com.google.googleidentity.oauth2.request.OAuth2Request;
+import com.google.googleidentity.testtools.FakeClock;
+import com.google.googleidentity.testtools.TestDatabase;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+/** Test {@link AuthorizationCodeService} */
+public class AuthorizationCodeServiceTest {
+
+  private static OAuth2Request request(String clientId, String username) {
+    return OAuth2Request.newBuilder()
+        .setRequestAuth(
+            OAuth2Request.RequestAuth.newBuilder().setClientId(clientId).setUsername(username))
+        .build();
+  }
+
+  @Test
+  void testGetCodeForRequest_samePair_samePrefixDistinctCodes()
+      throws TemporarilyUnavailableException {
+    AuthorizationCodeService codeService = new AuthorizationCodeService(new InMemoryCodeStore());
+    codeService.setCodeLength(10);
+
+    Set<String> codes = new HashSet<>();
+    for (int i = 0; i < 1000; i++) {
+      String code = codeService.getCodeForRequest(request("client", "user"));
+      assertThat(code).hasLength(10);
+      codes.add(code);
+    }
+
+    assertThat(codes).hasSize(1000);
+    assertThat(codes.stream().map(code -> code.substring(0, 4)).distinct().count()).isEqualTo(1);
+  }
+
+  @Test
+  void testGetCodeForRequest_otherPair_otherPrefix() throws TemporarilyUnavailableException {
+    AuthorizationCodeService codeService = new AuthorizationCodeService(new InMemoryCodeStore());
+    codeService.setCodeLength(10);
+
+    String code1 = codeService.getCodeForRequest(request("client", "user1"));
+    String code2 = codeService.getCodeForRequest(request("client", "user2"));
+
+    assertThat(code1.substring(0, 4)).isNotEqualTo(code2.substring(0, 4));
+  }
+
+  @Test
+  void testGetCodeForRequest_longerThanRandomBlock_correctLength()
+      throws TemporarilyUnavailableException {
+    AuthorizationCodeService codeService = new AuthorizationCodeService(new InMemoryCodeStore());
+    codeService.setCodeLength(2000);
+
+    assertThat(codeService.getCodeForRequest(request("client", "user"))).hasLength(2000);
+  }
+
+  private static AuthorizationCodeService sealingService(FakeClock clock, int sealedCodeLength) {
+    return new AuthorizationCodeService(
+        new InMemoryCodeStore(Duration.ofMinutes(10), 100, clock),
+        new SealedCodes(SealedCodes.newKey(), clock, Duration.ofMinutes(10)),
+        sealedCodeLength);
+  }
+
+  @Test
+  void testSealedCode_redeemedOnce() throws TemporarilyUnavailableException {
+    OAuth2Request request = request("client", "user");
+    AuthorizationCodeService codeService =
+        sealingService(new FakeClock(Instant.ofEpochSecond(1000)), 512);
+
+    String code = codeService.getCodeForRequest(request);
+
+    assertThat(SealedCodes.isSealed(code)).isTrue();
+    assertThat(codeService.consumeCode(code)).hasValue(request);
+    assertThat(codeService.consumeCode(code)).isEmpty();
+  }
+
+  @Test
+  void testSealedCode_expiredOrForged_notRedeemed() throws TemporarilyUnavailableException {
+    FakeClock clock = new FakeClock(Instant.ofEpochSecond(1000));
+    AuthorizationCodeService codeService = sealingService(clock, 512);
+    String code = codeService.getCodeForRequest(request("client", "user"));
+    // The last character may only carry padding bits, change one inside the ciphertext.
+    int index = code.length() / 2;
+    char changed = code.charAt(index) == 'A' ? 'B' : 'A';
+    String forged = code.substring(0, index) + changed + code.substring(index + 1);
+
+    assertThat(codeService.consumeCode(forged)).isEmpty();
+    assertThat(codeService.consumeCode(SealedCodes.replayId(code))).isEmpty();
+
+    clock.advance(Duration.ofMinutes(10));
+
+    assertThat(codeService.consumeCode(code)).isEmpty();
+  }
+
+  @Test
+  void testSealedCode_tooLong_storedCode() throws TemporarilyUnavailableException {
+    OAuth2Request request = request("client", "user");
+    AuthorizationCodeService codeService =
+        sealingService(new FakeClock(Instant.ofEpochSecond(1000)), 20);
+    codeService.setCodeLength(10);
+
+    String code = codeService.getCodeForRequest(request);
+
+    assertThat(code).hasLength(10);
+    assertThat(codeService.consumeCode(code)).hasValue(request);
+  }
+
+  @Test
+  void testCheckReplaySet_sharedKey_needsSharedCodeStore() {
+    AuthorizationCodeService.checkReplaySet(new InMemoryCodeStore(), false);
+    AuthorizationCodeService.checkReplaySet(
+        new JdbcCodeStore(
+            new JdbcExecutor(TestDatabase.newDatabase()),
+            new FakeClock(Instant.ofEpochSecond(1000)),
+            CodeStore.DEFAULT_LIFETIME,
+            JdbcCodeStore.DEFAULT_PURGE_BATCH_SIZE),
+        true);
+
+    assertThrows(
+        IllegalStateException.class,
+        () -> AuthorizationCodeService.checkReplaySet(new InMemoryCodeStore(), true));
+  }
+}
@@ -0,0 +1,79 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package com.google.googleidentity.oauth2.authorizationcode;
+
+import com.google.googleidentity.oauth2.exception.TemporarilyUnavailableException;
+import com.google.googleidentity.oauth2.request.OAuth2Request;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the throughput of {@link InMemoryCodeStore} for a growing number of threads. Each
+ * operation issues a code and redeems it again, so the store does not grow during a run.
+ *
+ * <p>Run {@link #main} to measure with 1 to 64 threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InMemoryCodeStoreBenchmark {
+
+  private static final int[] THREADS = {1, 2, 4, 8, 16, 32, 64};
+
+  private static final OAuth2Request REQUEST =
+      OAuth2Request.newBuilder()
+          .setRequestAuth(
+              OAuth2Request.RequestAuth.newBuilder().setClientId("client").setUsername("user"))
+          .build();
+
+  private final InMemoryCodeStore codeStore = new InMemoryCodeStore();
+
+  @Benchmark
+  public Optional<OAuth2Request> issueAndRedeem() throws TemporarilyUnavailableException {
+    String code = Long.toHexString(ThreadLocalRandom.current().nextLong());
+    if (!codeStore.setCode(code, REQUEST)) {
+      return Optional.empty();
+    }
+    return codeStore.consumeCode(code);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    for (int threads : THREADS) {
+      new Runner(
+              new OptionsBuilder()
+                  .include(InMemoryCodeStoreBenchmark.class.getSimpleName())
+                  .threads(threads)
+                  .build())
+          .run();
+    }
+  }
+}
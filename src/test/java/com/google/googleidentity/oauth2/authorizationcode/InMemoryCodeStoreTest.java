@@ -17,13 +17,24 @@
 package com.google.googleidentity.oauth2.authorizationcode;
 
 import static com.google.common.truth.Truth.assertThat;
+import com.google.googleidentity.oauth2.exception.TemporarilyUnavailableException;
 import com.google.googleidentity.oauth2.request.OAuth2Request;
 
 import com.google.googleidentity.oauth2.util.OAuth2Enums.ResponseType;
+import com.google.googleidentity.testtools.FakeClock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /** Test {@link InMemoryCodeStore} */
@@ -40,7 +51,7 @@ public class InMemoryCodeStoreTest {
           .build();
 
   @Test
-  void testInMemoryCodeStore_duplicateCode_canNotStore() {
+  void testInMemoryCodeStore_duplicateCode_canNotStore() throws TemporarilyUnavailableException {
 
     InMemoryCodeStore codeStore = new InMemoryCodeStore();
 
@@ -50,7 +61,8 @@ public class InMemoryCodeStoreTest {
   }
 
   @Test
-  void testInMemoryCodeStore_correctStore_correctConsume() {
+  void testInMemoryCodeStore_correctStore_correctConsume()
+      throws TemporarilyUnavailableException {
 
     InMemoryCodeStore codeStore = new InMemoryCodeStore();
 
@@ -68,7 +80,7 @@ public class InMemoryCodeStoreTest {
   }
 
   @Test
-  void testInMemoryCodeStore_CorrectConsume_codeDeleted() {
+  void testInMemoryCodeStore_CorrectConsume_codeDeleted() throws TemporarilyUnavailableException {
 
     InMemoryCodeStore codeStore = new InMemoryCodeStore();
 
@@ -78,4 +90,79 @@ public class InMemoryCodeStoreTest {
 
     assertThat(codeStore.consumeCode(TEST_CODE)).isEqualTo(Optional.empty());
   }
+
+  @Test
+  void testInMemoryCodeStore_expiredCode_consumeNullAndCleared()
+      throws TemporarilyUnavailableException {
+    FakeClock clock = new FakeClock(Instant.ofEpochSecond(1000));
+    InMemoryCodeStore codeStore = new InMemoryCodeStore(Duration.ofMinutes(10), 10, clock);
+
+    assertTrue(codeStore.setCode(TEST_CODE, oauth2Request));
+    assertTrue(codeStore.setCode("456", oauth2Request));
+    clock.advance(Duration.ofMinutes(10));
+
+    assertThat(codeStore.consumeCode(TEST_CODE)).isEqualTo(Optional.empty());
+    assertThat(codeStore.size()).isEqualTo(1);
+
+    clock.advance(Duration.ofMinutes(10));
+
+    assertThat(codeStore.size()).isEqualTo(0);
+    assertThat(codeStore.consumeCode("456")).isEqualTo(Optional.empty());
+  }
+
+  @Test
+  void testInMemoryCodeStore_expiredCode_canStoreAgain() throws TemporarilyUnavailableException {
+    FakeClock clock = new FakeClock(Instant.ofEpochSecond(1000));
+    InMemoryCodeStore codeStore = new InMemoryCodeStore(Duration.ofMinutes(10), 10, clock);
+
+    assertTrue(codeStore.setCode(TEST_CODE, oauth2Request));
+    clock.advance(Duration.ofMinutes(10));
+
+    assertTrue(codeStore.setCode(TEST_CODE, oauth2Request));
+    assertThat(codeStore.size()).isEqualTo(1);
+    assertThat(codeStore.consumeCode(TEST_CODE)).isEqualTo(Optional.of(oauth2Request));
+  }
+
+  @Test
+  void testInMemoryCodeStore_full_throwTemporarilyUnavailableException()
+      throws TemporarilyUnavailableException {
+    FakeClock clock = new FakeClock(Instant.ofEpochSecond(1000));
+    InMemoryCodeStore codeStore = new InMemoryCodeStore(Duration.ofMinutes(10), 2, clock);
+
+    assertTrue(codeStore.setCode("1", oauth2Request));
+    assertTrue(codeStore.setCode("2", oauth2Request));
+
+    assertThrows(
+        TemporarilyUnavailableException.class, () -> codeStore.setCode("3", oauth2Request));
+
+    // A consumed code frees its place.
+    codeStore.consumeCode("1");
+    assertTrue(codeStore.setCode("3", oauth2Request));
+    assertThat(codeStore.size()).isEqualTo(2);
+  }
+
+  @Test
+  void testInMemoryCodeStore_concurrentConsume_onlyOneSucceeds() throws Exception {
+    InMemoryCodeStore codeStore = new InMemoryCodeStore();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      for (int round = 0; round < 100; round++) {
+        String code = "code" + round;
+        assertTrue(codeStore.setCode(code, oauth2Request));
+        List<Callable<Optional<OAuth2Request>>> consumers = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+          consumers.add(() -> codeStore.consumeCode(code));
+        }
+        int consumed = 0;
+        for (Future<Optional<OAuth2Request>> result : executor.invokeAll(consumers)) {
+          if (result.get().isPresent()) {
+            consumed++;
+          }
+        }
+        assertThat(consumed).isEqualTo(1);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
 }
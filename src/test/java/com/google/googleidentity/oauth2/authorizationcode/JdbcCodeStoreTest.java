@@ -0,0 +1,92 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package com.google.googleidentity.oauth2.authorizationcode;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.googleidentity.mysql.JdbcExecutor;
+import com.google.googleidentity.oauth2.request.OAuth2Request;
+import com.google.googleidentity.testtools.FakeClock;
+import com.google.googleidentity.testtools.TestDatabase;
+import java.time.Duration;
+import java.time.Instant;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/** Test {@link JdbcCodeStore} */
+public class JdbcCodeStoreTest {
+
+  private static final String TEST_CODE = "123";
+
+  private static final OAuth2Request REQUEST =
+      OAuth2Request.newBuilder()
+          .setRequestAuth(OAuth2Request.RequestAuth.newBuilder().setClientId("client"))
+          .build();
+
+  private FakeClock clock;
+
+  private JdbcCodeStore codeStore;
+
+  @BeforeEach
+  void init() {
+    clock = new FakeClock(Instant.ofEpochSecond(1000));
+    codeStore =
+        new JdbcCodeStore(
+            new JdbcExecutor(TestDatabase.newDatabase()), clock, Duration.ofMinutes(10), 2);
+  }
+
+  @Test
+  void testJdbcCodeStore_duplicateCode_canNotStore() {
+    assertTrue(codeStore.setCode(TEST_CODE, REQUEST));
+
+    assertFalse(codeStore.setCode(TEST_CODE, REQUEST));
+  }
+
+  @Test
+  void testJdbcCodeStore_consume_onlyOnce() {
+    assertTrue(codeStore.setCode(TEST_CODE, REQUEST));
+
+    assertThat(codeStore.consumeCode(TEST_CODE)).hasValue(REQUEST);
+    assertThat(codeStore.consumeCode(TEST_CODE)).isEmpty();
+  }
+
+  @Test
+  void testJdbcCodeStore_expiredCode_consumeEmpty() {
+    assertTrue(codeStore.setCode(TEST_CODE, REQUEST));
+
+    clock.advance(Duration.ofMinutes(10));
+
+    assertThat(codeStore.consumeCode(TEST_CODE)).isEmpty();
+  }
+
+  @Test
+  void testJdbcCodeStore_purge_removesExpiredCodesInBatches() {
+    for (int i = 0; i < 5; i++) {
+      assertTrue(codeStore.setCode("expired" + i, REQUEST));
+    }
+    clock.advance(Duration.ofMinutes(5));
+    assertTrue(codeStore.setCode(TEST_CODE, REQUEST));
+    clock.advance(Duration.ofMinutes(5));
+
+    assertThat(codeStore.purgeExpiredCodes()).isEqualTo(5);
+
+    assertTrue(codeStore.setCode("expired0", REQUEST));
+    assertThat(codeStore.consumeCode(TEST_CODE)).hasValue(REQUEST);
+  }
+}
@@ -17,11 +17,16 @@
 package com.google.googleidentity.oauth2.client;
 
 import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.hash.Hashing;
+import com.google.googleidentity.oauth2.util.Page;
+import java.util.Optional;
 import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth8.assertThat;
 
 /** Test {@link InMemoryClientDetailsService} */
@@ -89,4 +94,26 @@ public class InMemoryClientDetailsServiceTest {
 
     assertTrue(clientDetailsService.getClientByID(CLIENTID).isPresent());
   }
+
+  @Test
+  void testListClient_pages_allClientsInOrder() {
+    ClientDetailsService clientDetailsService = new InMemoryClientDetailsService();
+    for (String id : ImmutableList.of("c", "a", "b")) {
+      assertTrue(
+          clientDetailsService.addClient(ClientDetails.newBuilder(CLIENT).setClientId(id).build()));
+    }
+
+    Page<ClientDetails> first = clientDetailsService.listClient(Optional.empty(), 2);
+    Page<ClientDetails> second = clientDetailsService.listClient(first.getNextCursor(), 2);
+
+    assertThat(Lists.transform(first.getItems(), ClientDetails::getClientId))
+        .containsExactly("a", "b")
+        .inOrder();
+    assertThat(Lists.transform(second.getItems(), ClientDetails::getClientId))
+        .containsExactly("c");
+    assertThat(second.getNextCursor()).isEmpty();
+    assertThat(clientDetailsService.streamClients().map(ClientDetails::getClientId))
+        .containsExactly("a", "b", "c")
+        .inOrder();
+  }
 }
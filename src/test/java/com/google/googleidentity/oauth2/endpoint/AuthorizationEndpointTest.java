@@ -23,6 +23,7 @@ import com.google.googleidentity.oauth2.client.ClientDetailsService;
 import com.google.googleidentity.oauth2.client.InMemoryClientDetailsService;
 import com.google.googleidentity.oauth2.request.RequestHandler;
 import com.google.googleidentity.oauth2.request.OAuth2Request;
+import com.google.googleidentity.oauth2.scope.InMemoryScopeRegistry;
 import com.google.googleidentity.oauth2.util.OAuth2Constants;
 import com.google.googleidentity.oauth2.util.OAuth2Enums.GrantType;
 import com.google.googleidentity.oauth2.util.OAuth2Enums.ResponseType;
@@ -89,7 +90,8 @@ public class AuthorizationEndpointTest {
     userSession.setUser(USER);
     RequestHandler requestHandler = mock(RequestHandler.class);
     authorizationEndpoint =
-        new AuthorizationEndpoint(clientDetailsService, requestHandler);
+        new AuthorizationEndpoint(
+            clientDetailsService, requestHandler, new InMemoryScopeRegistry());
   }
 
   @Test
@@ -173,7 +173,8 @@ public class AuthorizationCodeRequestHandlerTest {
   }
 
   @Test
-  public void testHandleTokenRequest_codeClientIdMismatch_throwInvalidGrantException() {
+  public void testHandleTokenRequest_codeClientIdMismatch_throwInvalidGrantException()
+      throws OAuth2Exception {
     HttpServletResponse response = mock(HttpServletResponse.class);
 
     assertDoesNotThrow(() -> authorizationCodeRequestHandler.handle(response, TEST_REQUEST));
@@ -194,7 +195,8 @@ public class AuthorizationCodeRequestHandlerTest {
   }
 
   @Test
-  public void testHandleTokenRequest_codeRedirectUriMismatch_throwInvalidGrantException() {
+  public void testHandleTokenRequest_codeRedirectUriMismatch_throwInvalidGrantException()
+      throws OAuth2Exception {
     HttpServletResponse response = mock(HttpServletResponse.class);
 
     assertDoesNotThrow(() -> authorizationCodeRequestHandler.handle(response, TEST_REQUEST));
@@ -217,7 +219,7 @@ public class AuthorizationCodeRequestHandlerTest {
 
   @Test
   public void testHandleTokenRequest_correctRequest_returnTokenAndDeleteCode()
-      throws IOException, ParseException {
+      throws IOException, ParseException, OAuth2Exception {
     HttpServletResponse response = mock(HttpServletResponse.class);
 
     StringWriter stringWriter = new StringWriter();
@@ -279,7 +281,7 @@ public class AuthorizationCodeRequestHandlerTest {
 
   @Test
   public void testHandleTokenRequest_scopesDoNotMatch_relyOnTheOnRelatedToCode()
-      throws IOException, ParseException {
+      throws IOException, ParseException, OAuth2Exception {
     HttpServletResponse response = mock(HttpServletResponse.class);
 
     StringWriter stringWriter = new StringWriter();
@@ -35,6 +35,7 @@ import com.google.googleidentity.oauth2.exception.OAuth2Exception;
 import com.google.googleidentity.oauth2.jwt.JwkStore;
 import com.google.googleidentity.oauth2.request.JwtAssertionRequestHandler;
 import com.google.googleidentity.oauth2.request.OAuth2Request;
+import com.google.googleidentity.oauth2.scope.InMemoryScopeRegistry;
 import com.google.googleidentity.oauth2.token.InMemoryOAuth2TokenService;
 import com.google.googleidentity.oauth2.token.OAuth2AccessToken;
 import com.google.googleidentity.oauth2.token.OAuth2RefreshToken;
@@ -115,7 +116,10 @@ public class JwtAssertionHandlerTest {
     jwkStore = new JwkStore();
     jwtAssertionRequestHandler =
         new JwtAssertionRequestHandler(
-            oauth2TokenService, userDetailsService, clientDetailsService);
+            oauth2TokenService,
+            userDetailsService,
+            clientDetailsService,
+            new InMemoryScopeRegistry());
   }
 
   @Test
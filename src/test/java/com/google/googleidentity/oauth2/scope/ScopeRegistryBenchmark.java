@@ -0,0 +1,113 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package com.google.googleidentity.oauth2.scope;
+
+import com.google.common.collect.ImmutableList;
+import com.google.googleidentity.oauth2.util.OAuth2Utils;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares scope lists with {@link ScopeMask}s: the subset check of a request against the scopes
+ * of its client, and reading the scopes of a stored token, from a tab separated column with {@link
+ * OAuth2Utils#parseScope} before and from a mask column now. {@link #main} adds the GC profiler
+ * for the allocations per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScopeRegistryBenchmark {
+
+  private static final ImmutableList<String> CLIENT_SCOPES =
+      ImmutableList.of(
+          "openid", "email", "profile", "read", "write", "calendar", "contacts", "photos");
+
+  private static final ImmutableList<String> REQUESTED_SCOPES =
+      ImmutableList.of("email", "read", "photos");
+
+  private final ScopeRegistry registry = new InMemoryScopeRegistry();
+
+  private List<String> requestedScopes;
+  private ScopeMask clientMask;
+  private ScopeMask requestedMask;
+
+  private String scopesColumn;
+  private byte[] scopeMaskColumn;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    // Distinct instances, as parsed from a request.
+    requestedScopes = ImmutableList.copyOf(OAuth2Utils.parseScope("email read photos"));
+    clientMask = registry.register(CLIENT_SCOPES);
+    requestedMask = registry.lookup(REQUESTED_SCOPES).get();
+    scopesColumn = String.join("\t", REQUESTED_SCOPES);
+    scopeMaskColumn = requestedMask.toByteArray();
+  }
+
+  @Benchmark
+  public boolean listContainsAll() {
+    return CLIENT_SCOPES.containsAll(requestedScopes);
+  }
+
+  @Benchmark
+  public boolean maskContainsAll() {
+    return clientMask.containsAll(requestedMask);
+  }
+
+  /** The check of the validators, which builds both masks from the names. */
+  @Benchmark
+  public boolean registryContainsAll() {
+    return registry.containsAll(CLIENT_SCOPES, requestedScopes);
+  }
+
+  @Benchmark
+  public Set<String> parseScopesColumn() {
+    return OAuth2Utils.parseScope(scopesColumn);
+  }
+
+  @Benchmark
+  public List<String> readScopeMaskColumn() {
+    return registry.scopesOf(ScopeMask.fromByteArray(scopeMaskColumn));
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(
+            new OptionsBuilder()
+                .include(ScopeRegistryBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build())
+        .run();
+  }
+}
@@ -0,0 +1,88 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package com.google.googleidentity.oauth2.scope;
+
+import com.google.common.collect.ImmutableList;
+import com.google.googleidentity.mysql.JdbcExecutor;
+import com.google.googleidentity.testtools.TestDatabase;
+import org.junit.jupiter.api.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Test {@link ScopeRegistry} and {@link ScopeMask} */
+public class ScopeRegistryTest {
+
+  @Test
+  void testRegister_scopes_maskReadBackInBitOrder() {
+    ScopeRegistry registry = new InMemoryScopeRegistry();
+
+    ScopeMask mask = registry.register(ImmutableList.of("write", "read", "write"));
+
+    assertThat(registry.scopesOf(mask)).containsExactly("write", "read").inOrder();
+    assertThat(registry.scopesOf(ScopeMask.fromByteArray(mask.toByteArray())))
+        .containsExactly("write", "read")
+        .inOrder();
+    assertThat(registry.register(ImmutableList.of())).isEqualTo(ScopeMask.EMPTY);
+  }
+
+  @Test
+  void testLookup_unregisteredScope_emptyAndNotRegistered() {
+    ScopeRegistry registry = new InMemoryScopeRegistry();
+    registry.register("read");
+
+    assertThat(registry.lookup(ImmutableList.of("read", "admin"))).isEmpty();
+    assertThat(registry.find("admin")).isEmpty();
+  }
+
+  @Test
+  void testContainsAll_masks_subsetOnly() {
+    ScopeRegistry registry = new InMemoryScopeRegistry();
+    for (int i = 0; i < 100; i++) {
+      registry.register("scope" + i);
+    }
+    ImmutableList<String> granted = ImmutableList.of("scope1", "scope70", "scope99");
+
+    assertTrue(registry.containsAll(granted, ImmutableList.of("scope99", "scope1")));
+    assertFalse(registry.containsAll(granted, ImmutableList.of("scope1", "scope2")));
+    assertFalse(registry.containsAll(granted, ImmutableList.of("unknown")));
+    assertTrue(
+        registry
+            .register(granted)
+            .containsAll(registry.lookup(ImmutableList.of("scope70")).get()));
+    assertFalse(
+        registry
+            .lookup(ImmutableList.of("scope70"))
+            .get()
+            .containsAll(registry.register(granted)));
+  }
+
+  @Test
+  void testJdbcScopeRegistry_twoInstances_shareBits() {
+    JdbcExecutor executor = new JdbcExecutor(TestDatabase.newDatabase());
+    JdbcScopeRegistry first = new JdbcScopeRegistry(executor);
+    JdbcScopeRegistry second = new JdbcScopeRegistry(executor);
+
+    ScopeMask mask = first.register(ImmutableList.of("read", "write"));
+
+    assertThat(second.scopesOf(mask)).containsExactly("read", "write").inOrder();
+    assertThat(second.register("email")).isEqualTo(2);
+    assertThat(first.register("email")).isEqualTo(2);
+    assertThat(first.find("write")).hasValue(1);
+  }
+}
@@ -0,0 +1,162 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.googleidentity.oauth2.request.OAuth2Request;
+import com.google.googleidentity.testtools.CountingDataSource;
+import com.google.googleidentity.testtools.TestDatabase;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for {@link CachingOAuth2TokenService} */
+public class CachingOAuth2TokenServiceTest {
+
+  private static final String CLIENTID = "client";
+  private static final String USERNAME = "111";
+
+  private static final OAuth2Request REQUEST =
+      OAuth2Request.newBuilder()
+          .setRequestAuth(
+              OAuth2Request.RequestAuth.newBuilder().setClientId(CLIENTID).setUsername(USERNAME))
+          .setRequestBody(
+              OAuth2Request.RequestBody.newBuilder()
+                  .setIsScoped(true)
+                  .addScopes("read")
+                  .setRefreshable(true))
+          .build();
+
+  private CountingDataSource dataSource;
+
+  private CachingOAuth2TokenService tokenService;
+
+  @Before
+  public void init() {
+    dataSource = new CountingDataSource(TestDatabase.newDatabase());
+    tokenService = new CachingOAuth2TokenService(new JdbcOAuth2TokenService(dataSource));
+  }
+
+  @Test
+  public void testReadAccessToken_generatedToken_noDatabaseRead() {
+    OAuth2AccessToken token = tokenService.generateAccessToken(REQUEST);
+    dataSource.resetCounts();
+
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).hasValue(token);
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).hasValue(token);
+
+    assertThat(dataSource.getConnectionCount()).isEqualTo(0);
+    assertThat(tokenService.getHitCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void testReadAccessToken_notCachedToken_readThrough() {
+    // Registers the scope, another instance registering it would load it once.
+    tokenService.generateAccessToken(REQUEST);
+    OAuth2AccessToken token = new JdbcOAuth2TokenService(dataSource).generateAccessToken(REQUEST);
+    dataSource.resetCounts();
+
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).hasValue(token);
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).hasValue(token);
+
+    assertThat(dataSource.getConnectionCount()).isEqualTo(1);
+    assertThat(tokenService.getMissCount()).isEqualTo(1);
+    assertThat(tokenService.getHitCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testReadAccessToken_nonExistToken_returnEmpty() {
+    assertThat(tokenService.readAccessToken("token")).isEmpty();
+  }
+
+  @Test
+  public void testReadAccessToken_expiredToken_notCached() {
+    OAuth2TokenService delegate = mock(OAuth2TokenService.class);
+    OAuth2AccessToken expiredToken =
+        OAuth2AccessToken.newBuilder()
+            .setAccessToken("token")
+            .setExpiredTime(Instant.now().minusSeconds(1).getEpochSecond())
+            .build();
+    when(delegate.readAccessToken("token")).thenReturn(Optional.of(expiredToken));
+    CachingOAuth2TokenService cachingService =
+        new CachingOAuth2TokenService(delegate, 10, Duration.ofMinutes(1));
+
+    cachingService.readAccessToken("token");
+    cachingService.readAccessToken("token");
+
+    verify(delegate, times(2)).readAccessToken("token");
+  }
+
+  @Test
+  public void testRevokeByAccessToken_cachedToken_evictTokensOfSameRefreshToken() {
+    OAuth2AccessToken token = tokenService.generateAccessToken(REQUEST);
+    OAuth2AccessToken refreshedToken = tokenService.refreshToken(token.getRefreshToken()).get();
+
+    assertThat(tokenService.revokeByAccessToken(token.getAccessToken())).isTrue();
+    // The revocation reads the cache without counting a hit.
+    assertThat(tokenService.getHitCount()).isEqualTo(0);
+    assertThat(tokenService.getMissCount()).isEqualTo(0);
+
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).isEmpty();
+    assertThat(tokenService.readAccessToken(refreshedToken.getAccessToken())).isEmpty();
+  }
+
+  @Test
+  public void testRevokeByRefreshToken_cachedToken_evicted() {
+    OAuth2AccessToken token = tokenService.generateAccessToken(REQUEST);
+
+    assertThat(tokenService.revokeByRefreshToken(token.getRefreshToken())).isTrue();
+
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).isEmpty();
+  }
+
+  @Test
+  public void testRevokeUserClientTokens_cachedToken_evicted() {
+    OAuth2AccessToken token = tokenService.generateAccessToken(REQUEST);
+
+    assertThat(tokenService.revokeUserClientTokens(USERNAME, CLIENTID)).isTrue();
+
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).isEmpty();
+  }
+
+  @Test
+  public void testRevokeAndListUserClientTokens_cachedToken_evictedAndReturned() {
+    OAuth2AccessToken token = tokenService.generateAccessToken(REQUEST);
+
+    RevokedTokens revoked = tokenService.revokeAndListUserClientTokens(USERNAME, CLIENTID);
+
+    assertThat(revoked.getAccessTokensList()).containsExactly(token);
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).isEmpty();
+  }
+
+  @Test
+  public void testReset_cachedToken_evicted() {
+    OAuth2AccessToken token = tokenService.generateAccessToken(REQUEST);
+
+    tokenService.reset();
+
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).isEmpty();
+  }
+}
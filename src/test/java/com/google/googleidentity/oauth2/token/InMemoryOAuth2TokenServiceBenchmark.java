@@ -0,0 +1,115 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import com.google.googleidentity.oauth2.request.OAuth2Request;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the throughput of {@link InMemoryOAuth2TokenService} for a growing number of threads.
+ * Each operation issues a token for a random user, refreshes it and revokes it again, so the
+ * registry does not grow during a run. With {@code users} set to 1 all threads contend on a single
+ * user, with many users the throughput should grow with the number of threads.
+ *
+ * <p>Run {@link #main} to measure with 1 to 64 threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InMemoryOAuth2TokenServiceBenchmark {
+
+  private static final int[] THREADS = {1, 2, 4, 8, 16, 32, 64};
+
+  @Param({"1", "4096"})
+  public int users;
+
+  private OAuth2Request[] requests;
+
+  private InMemoryOAuth2TokenService tokenService;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    tokenService = new InMemoryOAuth2TokenService();
+    requests = new OAuth2Request[users];
+    for (int i = 0; i < users; i++) {
+      requests[i] =
+          OAuth2Request.newBuilder()
+              .setRequestAuth(
+                  OAuth2Request.RequestAuth.newBuilder()
+                      .setClientId("client")
+                      .setUsername("user" + i))
+              .setRequestBody(
+                  OAuth2Request.RequestBody.newBuilder()
+                      .setIsScoped(true)
+                      .addScopes("read")
+                      .setRefreshable(true))
+              .build();
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    tokenService.service.shutdownNow();
+  }
+
+  @Benchmark
+  public boolean grantRefreshRevoke() {
+    OAuth2Request request = requests[ThreadLocalRandom.current().nextInt(users)];
+    OAuth2AccessToken token = tokenService.generateAccessToken(request);
+    tokenService.refreshToken(token.getRefreshToken());
+    return tokenService.revokeByRefreshToken(token.getRefreshToken());
+  }
+
+  @Benchmark
+  public boolean grantAndUnlink() {
+    OAuth2Request request = requests[ThreadLocalRandom.current().nextInt(users)];
+    tokenService.generateAccessToken(request);
+    return tokenService.revokeUserClientTokens(
+        request.getRequestAuth().getUsername(), request.getRequestAuth().getClientId());
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    for (int threads : THREADS) {
+      new Runner(
+              new OptionsBuilder()
+                  .include(InMemoryOAuth2TokenServiceBenchmark.class.getSimpleName())
+                  .threads(threads)
+                  .build())
+          .run();
+    }
+  }
+}
@@ -0,0 +1,166 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import com.google.googleidentity.oauth2.request.OAuth2Request;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+
+/** Stress tests for {@link InMemoryOAuth2TokenService} under concurrent grants and revocations. */
+public class InMemoryOAuth2TokenServiceConcurrencyTest {
+
+  private static final int THREADS = 16;
+  private static final int ROUNDS = 200;
+
+  private final InMemoryOAuth2TokenService tokenService = new InMemoryOAuth2TokenService();
+  private final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+    tokenService.service.shutdownNow();
+  }
+
+  private static OAuth2Request request(String username, String clientID) {
+    return OAuth2Request.newBuilder()
+        .setRequestAuth(
+            OAuth2Request.RequestAuth.newBuilder().setClientId(clientID).setUsername(username))
+        .setRequestBody(
+            OAuth2Request.RequestBody.newBuilder()
+                .setIsScoped(true)
+                .addScopes("read")
+                .setRefreshable(true))
+        .build();
+  }
+
+  /** Run a task on all threads at once and wait for all of them. */
+  private <T> List<T> runConcurrently(Callable<T> task) throws Exception {
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<T>> futures = new ArrayList<>();
+    for (int i = 0; i < THREADS; i++) {
+      futures.add(
+          executor.submit(
+              () -> {
+                start.await();
+                return task.call();
+              }));
+    }
+    start.countDown();
+    List<T> results = new ArrayList<>();
+    for (Future<T> future : futures) {
+      results.add(future.get(1, TimeUnit.MINUTES));
+    }
+    return results;
+  }
+
+  @Test
+  public void testConcurrentFirstGrants_noTokenLost() throws Exception {
+    List<List<OAuth2AccessToken>> issued =
+        runConcurrently(
+            () -> {
+              List<OAuth2AccessToken> tokens = new ArrayList<>();
+              for (int i = 0; i < ROUNDS; i++) {
+                tokens.add(tokenService.generateAccessToken(request("user" + i % 4, "client")));
+              }
+              return tokens;
+            });
+
+    int total = 0;
+    for (List<OAuth2AccessToken> tokens : issued) {
+      for (OAuth2AccessToken token : tokens) {
+        assertThat(tokenService.readAccessToken(token.getAccessToken())).hasValue(token);
+        assertThat(tokenService.readRefreshToken(token.getRefreshToken())).isPresent();
+      }
+      total += tokens.size();
+    }
+    int listed = 0;
+    for (int i = 0; i < 4; i++) {
+      listed += tokenService.listUserClientAccessTokens("user" + i, "client").size();
+    }
+    assertThat(listed).isEqualTo(total);
+  }
+
+  @Test
+  public void testConcurrentRefreshAndRevoke_noAccessTokenOutlivesRefreshToken()
+      throws Exception {
+    String refreshToken =
+        tokenService.generateAccessToken(request("user", "client")).getRefreshToken();
+    AtomicInteger threadIndex = new AtomicInteger();
+    CountDownLatch refreshing = new CountDownLatch(1);
+
+    // Half of the threads refresh, the other half revoke once the refreshing has started.
+    List<List<OAuth2AccessToken>> issued =
+        runConcurrently(
+            () -> {
+              List<OAuth2AccessToken> tokens = new ArrayList<>();
+              if (threadIndex.getAndIncrement() % 2 == 0) {
+                for (int i = 0; i < ROUNDS; i++) {
+                  tokenService.refreshToken(refreshToken).ifPresent(tokens::add);
+                  refreshing.countDown();
+                }
+              } else {
+                refreshing.await();
+                tokenService.revokeByRefreshToken(refreshToken);
+              }
+              return tokens;
+            });
+
+    assertThat(tokenService.readRefreshToken(refreshToken)).isEmpty();
+    for (List<OAuth2AccessToken> tokens : issued) {
+      for (OAuth2AccessToken token : tokens) {
+        assertThat(tokenService.readAccessToken(token.getAccessToken())).isEmpty();
+      }
+    }
+    assertThat(tokenService.listUserClient("user")).isEmpty();
+  }
+
+  @Test
+  public void testConcurrentGrantsAndUnlinks_noRefreshTokenWithoutGroup() throws Exception {
+    runConcurrently(
+        () -> {
+          for (int i = 0; i < ROUNDS; i++) {
+            if (i % 3 == 0) {
+              tokenService.revokeUserClientTokens("user", "client" + i % 2);
+            } else {
+              tokenService.generateAccessToken(request("user", "client" + i % 2));
+            }
+          }
+          return null;
+        });
+
+    for (String clientID : tokenService.listUserClient("user")) {
+      for (OAuth2AccessToken token :
+          tokenService.listUserClientAccessTokens("user", clientID)) {
+        assertThat(tokenService.readRefreshToken(token.getRefreshToken())).isPresent();
+      }
+      assertThat(tokenService.listUserClientRefreshTokens("user", clientID)).isNotEmpty();
+    }
+  }
+}
@@ -22,8 +22,15 @@ import com.google.googleidentity.oauth2.client.ClientDetails;
 import com.google.googleidentity.oauth2.request.OAuth2Request;
 import com.google.googleidentity.oauth2.util.OAuth2Enums.GrantType;
 import com.google.googleidentity.oauth2.util.OAuth2Enums.ResponseType;
+import com.google.googleidentity.testtools.FakeClock;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.Optional;
 import java.util.UUID;
 
@@ -50,6 +57,8 @@ public class InMemoryOAuth2TokenServiceTest {
 
   private static final String USERNAME = "111";
 
+  @Rule public TemporaryFolder journalFolder = new TemporaryFolder();
+
   OAuth2Request TESTREQUEST0 =
       OAuth2Request.newBuilder()
           .setRequestAuth(
@@ -292,4 +301,160 @@ public class InMemoryOAuth2TokenServiceTest {
 
     assertThat(tokenService.revokeByRefreshToken(token.getAccessToken())).isFalse();
   }
+
+  @Test
+  public void testClearExpiredTokens_expiredAccessToken_removedAndRefreshTokenKept() {
+    FakeClock clock = new FakeClock(Instant.now());
+    InMemoryOAuth2TokenService tokenService = new InMemoryOAuth2TokenService(clock);
+
+    OAuth2AccessToken token = tokenService.generateAccessToken(TESTREQUEST0);
+
+    clock.advance(Duration.ofMinutes(5));
+    tokenService.clearExpiredTokens();
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).isPresent();
+
+    clock.advance(Duration.ofMinutes(6));
+    tokenService.clearExpiredTokens();
+
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).isEmpty();
+    assertThat(tokenService.readRefreshToken(token.getRefreshToken())).isPresent();
+    assertThat(tokenService.getExpirySweepLag()).isAtLeast(Duration.ofSeconds(1));
+  }
+
+  @Test
+  public void testClearExpiredTokens_allTokensExpired_userRemoved() {
+    FakeClock clock = new FakeClock(Instant.now());
+    InMemoryOAuth2TokenService tokenService = new InMemoryOAuth2TokenService(clock);
+
+    tokenService.generateAccessToken(TESTREQUEST1);
+
+    clock.advance(Duration.ofMinutes(11));
+    tokenService.clearExpiredTokens();
+
+    assertThat(tokenService.listUserClient(USERNAME)).isEmpty();
+    assertThat(tokenService.userTokensMap).isEmpty();
+  }
+
+  @Test
+  public void testReadAccessToken_expiredBeforeSweep_empty() {
+    FakeClock clock = new FakeClock(Instant.now());
+    InMemoryOAuth2TokenService tokenService = new InMemoryOAuth2TokenService(clock);
+
+    OAuth2AccessToken token = tokenService.generateAccessToken(TESTREQUEST0);
+
+    clock.advance(Duration.ofMinutes(11));
+
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).isEmpty();
+    assertThat(tokenService.revokeByAccessToken(token.getAccessToken())).isFalse();
+    assertThat(tokenService.refreshToken(token.getRefreshToken())).isPresent();
+  }
+
+  @Test
+  public void testRotateTokenKey_oldTokensStillValid() {
+    InMemoryOAuth2TokenService tokenService = new InMemoryOAuth2TokenService();
+    OAuth2AccessToken token = tokenService.generateAccessToken(TESTREQUEST0);
+
+    tokenService.rotateTokenKey();
+    OAuth2AccessToken newToken = tokenService.refreshToken(token.getRefreshToken()).get();
+
+    // The refresh token string inside is rebuilt with the new key.
+    assertThat(tokenService.readAccessToken(token.getAccessToken()).get().getAccessToken())
+        .isEqualTo(token.getAccessToken());
+    assertThat(tokenService.readAccessToken(newToken.getAccessToken())).isPresent();
+    assertThat(tokenService.listUserClientAccessTokens(USERNAME, CLIENTID)).hasSize(2);
+    assertThat(tokenService.revokeByRefreshToken(token.getRefreshToken())).isTrue();
+  }
+
+  @Test
+  public void testRevokeAndListUserClientTokens_correctInput_returnRevoked() {
+    InMemoryOAuth2TokenService tokenService = new InMemoryOAuth2TokenService();
+    OAuth2AccessToken token = tokenService.generateAccessToken(TESTREQUEST0);
+    OAuth2AccessToken implicitToken = tokenService.generateAccessToken(TESTREQUEST1);
+    OAuth2RefreshToken refreshToken = tokenService.readRefreshToken(token.getRefreshToken()).get();
+
+    RevokedTokens revoked = tokenService.revokeAndListUserClientTokens(USERNAME, CLIENTID);
+
+    assertThat(revoked.getAccessTokensList()).containsExactly(token, implicitToken);
+    assertThat(revoked.getRefreshTokensList()).containsExactly(refreshToken);
+    assertThat(tokenService.listUserClient(USERNAME)).isEmpty();
+    assertThat(tokenService.revokeAndListUserClientTokens(USERNAME, CLIENTID))
+        .isEqualToDefaultInstance();
+  }
+
+  @Test
+  public void testJournal_restart_tokensAndKeysRestored() throws IOException {
+    Path directory = journalFolder.getRoot().toPath();
+    FakeClock clock = new FakeClock(Instant.now());
+    InMemoryOAuth2TokenService tokenService =
+        new InMemoryOAuth2TokenService(clock, Optional.of(directory));
+    OAuth2AccessToken token = tokenService.generateAccessToken(TESTREQUEST0);
+    tokenService.rotateTokenKey();
+    OAuth2AccessToken implicitToken = tokenService.generateAccessToken(TESTREQUEST1);
+    tokenService.close();
+
+    InMemoryOAuth2TokenService restarted =
+        new InMemoryOAuth2TokenService(clock, Optional.of(directory));
+
+    // The refresh token string inside is rebuilt with the key in use after the rotation.
+    assertThat(restarted.readAccessToken(token.getAccessToken()).get())
+        .ignoringFields(OAuth2AccessToken.REFRESH_TOKEN_FIELD_NUMBER)
+        .isEqualTo(token);
+    assertThat(restarted.readAccessToken(implicitToken.getAccessToken())).hasValue(implicitToken);
+    assertThat(restarted.refreshToken(token.getRefreshToken())).isPresent();
+    restarted.close();
+  }
+
+  @Test
+  public void testJournal_restartAfterRevoke_tokensStayRevoked() throws IOException {
+    Path directory = journalFolder.getRoot().toPath();
+    FakeClock clock = new FakeClock(Instant.now());
+    InMemoryOAuth2TokenService tokenService =
+        new InMemoryOAuth2TokenService(clock, Optional.of(directory));
+    OAuth2AccessToken token0 = tokenService.generateAccessToken(TESTREQUEST0);
+    OAuth2AccessToken token1 = tokenService.generateAccessToken(TESTREQUEST0);
+    OAuth2AccessToken token2 = tokenService.generateAccessToken(TESTREQUEST1);
+    tokenService.revokeByRefreshToken(token0.getRefreshToken());
+    tokenService.revokeByAccessToken(token2.getAccessToken());
+    tokenService.close();
+
+    InMemoryOAuth2TokenService restarted =
+        new InMemoryOAuth2TokenService(clock, Optional.of(directory));
+
+    assertThat(restarted.readAccessToken(token0.getAccessToken())).isEmpty();
+    assertThat(restarted.readRefreshToken(token0.getRefreshToken())).isEmpty();
+    assertThat(restarted.readAccessToken(token1.getAccessToken())).isPresent();
+    assertThat(restarted.readAccessToken(token2.getAccessToken())).isEmpty();
+    restarted.revokeUserClientTokens(USERNAME, CLIENTID);
+    restarted.close();
+
+    InMemoryOAuth2TokenService restartedAgain =
+        new InMemoryOAuth2TokenService(clock, Optional.of(directory));
+
+    assertThat(restartedAgain.listUserClient(USERNAME)).isEmpty();
+    restartedAgain.close();
+  }
+
+  @Test
+  public void testJournal_restartAfterCompaction_expiredTokensDropped() throws IOException {
+    Path directory = journalFolder.getRoot().toPath();
+    FakeClock clock = new FakeClock(Instant.now());
+    InMemoryOAuth2TokenService tokenService =
+        new InMemoryOAuth2TokenService(clock, Optional.of(directory));
+    OAuth2AccessToken expiredToken = tokenService.generateAccessToken(TESTREQUEST1);
+    clock.advance(Duration.ofMinutes(11));
+    OAuth2AccessToken token = tokenService.generateAccessToken(TESTREQUEST0);
+    tokenService.compactJournal();
+    OAuth2AccessToken newToken = tokenService.refreshToken(token.getRefreshToken()).get();
+    tokenService.close();
+
+    InMemoryOAuth2TokenService restarted =
+        new InMemoryOAuth2TokenService(clock, Optional.of(directory));
+
+    assertThat(restarted.listUserClientAccessTokens(USERNAME, CLIENTID))
+        .containsExactly(
+            restarted.readAccessToken(token.getAccessToken()).get(),
+            restarted.readAccessToken(newToken.getAccessToken()).get());
+    assertThat(restarted.readAccessToken(expiredToken.getAccessToken())).isEmpty();
+    restarted.close();
+  }
 }
@@ -0,0 +1,91 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import com.google.googleidentity.oauth2.request.OAuth2Request;
+
+/**
+ * Measures the retained heap per live access token of {@link InMemoryOAuth2TokenService}. Issues a
+ * refreshable grant and a number of refreshes for each user and reports the heap growth divided by
+ * the number of access tokens. Run with a fixed heap, e.g. {@code -Xms2g -Xmx2g}, to get stable
+ * numbers.
+ *
+ * <p>The first argument is the number of access tokens per user, by default 1 and 10 are measured.
+ */
+public final class InMemoryTokenFootprintBenchmark {
+
+  private static final int USERS = 20000;
+
+  private InMemoryTokenFootprintBenchmark() {}
+
+  private static long usedHeap() throws InterruptedException {
+    Runtime runtime = Runtime.getRuntime();
+    long used = Long.MAX_VALUE;
+    // A few collections, weak references and finalizers may need more than one round.
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+      Thread.sleep(100);
+      used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+    }
+    return used;
+  }
+
+  private static OAuth2Request request(int user) {
+    return OAuth2Request.newBuilder()
+        .setRequestAuth(
+            OAuth2Request.RequestAuth.newBuilder()
+                .setClientId("client")
+                .setUsername("user" + user))
+        .setRequestBody(
+            OAuth2Request.RequestBody.newBuilder()
+                .setIsScoped(true)
+                .addScopes("read")
+                .addScopes("write")
+                .setRefreshable(true))
+        .build();
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    if (args.length > 0) {
+      measure(Integer.parseInt(args[0]));
+    } else {
+      measure(1);
+      measure(10);
+    }
+  }
+
+  private static void measure(int accessTokensPerUser) throws InterruptedException {
+    InMemoryOAuth2TokenService tokenService = new InMemoryOAuth2TokenService();
+    tokenService.service.shutdownNow();
+
+    long before = usedHeap();
+    for (int user = 0; user < USERS; user++) {
+      String refreshToken = tokenService.generateAccessToken(request(user)).getRefreshToken();
+      for (int i = 1; i < accessTokensPerUser; i++) {
+        tokenService.refreshToken(refreshToken);
+      }
+    }
+    long after = usedHeap();
+
+    long accessTokens = (long) USERS * accessTokensPerUser;
+    System.out.printf(
+        "%d access tokens of %d users: %d bytes per access token%n",
+        accessTokens, USERS, (after - before) / accessTokens);
+    // Keep the service reachable until the heap is measured.
+    System.out.println(tokenService.listUserClient("user0"));
+  }
+}
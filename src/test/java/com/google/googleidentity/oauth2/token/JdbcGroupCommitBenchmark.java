@@ -0,0 +1,124 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import com.google.googleidentity.mysql.JdbcExecutor;
+import com.google.googleidentity.oauth2.request.OAuth2Request;
+import com.google.googleidentity.testtools.CountingDataSource;
+import com.google.googleidentity.testtools.TestDatabase;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures grants of {@link JdbcOAuth2TokenService} from concurrent threads with and without group
+ * commit, against a MySQL compatible database stored in a local file. The sample time mode reports
+ * the p99 latency of a grant, the throughput mode the grants per second. The commits per grant are
+ * printed at the end of each trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(16)
+@Fork(1)
+public class JdbcGroupCommitBenchmark {
+
+  private static final OAuth2Request REQUEST =
+      OAuth2Request.newBuilder()
+          .setRequestAuth(
+              OAuth2Request.RequestAuth.newBuilder().setClientId("client").setUsername("user"))
+          .setRequestBody(
+              OAuth2Request.RequestBody.newBuilder()
+                  .setIsScoped(true)
+                  .addScopes("read")
+                  .setRefreshable(true))
+          .build();
+
+  /** Longest wait for a batch to fill, 0 for a commit per grant. */
+  @Param({"0", "2"})
+  public long groupCommitMillis;
+
+  private Path directory;
+
+  private CountingDataSource dataSource;
+
+  private JdbcOAuth2TokenService tokenService;
+
+  private final AtomicLong grants = new AtomicLong();
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("group-commit");
+    dataSource = new CountingDataSource(TestDatabase.newFileDatabase(directory));
+    JdbcExecutor jdbcExecutor = new JdbcExecutor(dataSource);
+    tokenService =
+        new JdbcOAuth2TokenService(
+            jdbcExecutor,
+            JdbcTokenReaper.fromEnvironment(jdbcExecutor, JdbcTokenLayout.PLAIN),
+            groupCommitMillis > 0
+                ? Optional.of(Duration.ofMillis(groupCommitMillis))
+                : Optional.empty(),
+            false);
+    dataSource.resetCounts();
+    grants.set(0);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    System.out.printf(
+        "%nPer grant: %.3f commits%n", (double) dataSource.getCommitCount() / grants.get());
+    tokenService.reset();
+    MoreFiles.deleteRecursively(directory, RecursiveDeleteOption.ALLOW_INSECURE);
+  }
+
+  @Benchmark
+  public OAuth2AccessToken generateAccessToken() {
+    grants.incrementAndGet();
+    return tokenService.generateAccessToken(REQUEST);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(
+            new OptionsBuilder().include(JdbcGroupCommitBenchmark.class.getSimpleName()).build())
+        .run();
+  }
+}
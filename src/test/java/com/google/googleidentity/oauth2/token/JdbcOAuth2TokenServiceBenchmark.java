@@ -0,0 +1,109 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import com.google.googleidentity.oauth2.request.OAuth2Request;
+import com.google.googleidentity.testtools.CountingDataSource;
+import com.google.googleidentity.testtools.TestDatabase;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures token issuance of {@link JdbcOAuth2TokenService} against an in memory MySQL compatible
+ * database. Besides the time per grant, the connections, statements and commits per grant are
+ * printed at the end of each trial, which are the round-trips a grant costs on Cloud SQL.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JdbcOAuth2TokenServiceBenchmark {
+
+  private static final OAuth2Request REQUEST =
+      OAuth2Request.newBuilder()
+          .setRequestAuth(
+              OAuth2Request.RequestAuth.newBuilder().setClientId("client").setUsername("user"))
+          .setRequestBody(
+              OAuth2Request.RequestBody.newBuilder()
+                  .setIsScoped(true)
+                  .addScopes("read")
+                  .setRefreshable(true))
+          .build();
+
+  private CountingDataSource dataSource;
+
+  private JdbcOAuth2TokenService tokenService;
+
+  private String refreshToken;
+
+  private final AtomicLong grants = new AtomicLong();
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    dataSource = new CountingDataSource(TestDatabase.newDatabase());
+    tokenService = new JdbcOAuth2TokenService(dataSource);
+    refreshToken = tokenService.generateAccessToken(REQUEST).getRefreshToken();
+    dataSource.resetCounts();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    System.out.printf(
+        "%nPer grant: %.2f connections, %.2f statements, %.2f commits%n",
+        (double) dataSource.getConnectionCount() / grants.get(),
+        (double) dataSource.getStatementCount() / grants.get(),
+        (double) dataSource.getCommitCount() / grants.get());
+    tokenService.reset();
+  }
+
+  @Benchmark
+  public OAuth2AccessToken generateAccessToken() {
+    grants.incrementAndGet();
+    return tokenService.generateAccessToken(REQUEST);
+  }
+
+  @Benchmark
+  public OAuth2AccessToken refreshToken() {
+    grants.incrementAndGet();
+    return tokenService.refreshToken(refreshToken).get();
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(
+            new OptionsBuilder()
+                .include(JdbcOAuth2TokenServiceBenchmark.class.getSimpleName())
+                .build())
+        .run();
+  }
+}
@@ -0,0 +1,369 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+import static com.google.common.truth.extensions.proto.ProtoTruth.assertThat;
+
+import com.google.common.collect.Iterables;
+import com.google.googleidentity.mysql.JdbcExecutor;
+import com.google.googleidentity.oauth2.request.OAuth2Request;
+import com.google.googleidentity.oauth2.util.OAuth2Enums.GrantType;
+import com.google.googleidentity.oauth2.util.OAuth2Enums.ResponseType;
+import com.google.googleidentity.oauth2.util.Page;
+import com.google.googleidentity.testtools.CountingDataSource;
+import com.google.googleidentity.testtools.TestDatabase;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for {@link JdbcOAuth2TokenService} */
+public class JdbcOAuth2TokenServiceTest {
+
+  private static final String CLIENTID = "client";
+  private static final String USERNAME = "111";
+
+  private static final OAuth2Request REFRESHABLE_REQUEST =
+      OAuth2Request.newBuilder()
+          .setRequestAuth(
+              OAuth2Request.RequestAuth.newBuilder()
+                  .setClientId(CLIENTID)
+                  .setUsername(USERNAME)
+                  .build())
+          .setRequestBody(
+              OAuth2Request.RequestBody.newBuilder()
+                  .setIsScoped(true)
+                  .addScopes("read")
+                  .setResponseType(ResponseType.TOKEN)
+                  .setRefreshable(true)
+                  .setGrantType(GrantType.AUTHORIZATION_CODE)
+                  .build())
+          .build();
+
+  private static final OAuth2Request NOT_REFRESHABLE_REQUEST =
+      OAuth2Request.newBuilder(REFRESHABLE_REQUEST)
+          .setRequestBody(
+              OAuth2Request.RequestBody.newBuilder(REFRESHABLE_REQUEST.getRequestBody())
+                  .setRefreshable(false)
+                  .setGrantType(GrantType.IMPLICIT)
+                  .build())
+          .build();
+
+  private CountingDataSource dataSource;
+
+  private OAuth2TokenService tokenService;
+
+  @Before
+  public void init() {
+    dataSource = new CountingDataSource(TestDatabase.newDatabase());
+    tokenService = new JdbcOAuth2TokenService(dataSource);
+  }
+
+  @Test
+  public void testGenerateAccessToken_refreshable_storedWithRefreshToken() {
+    OAuth2AccessToken token = tokenService.generateAccessToken(REFRESHABLE_REQUEST);
+
+    assertThat(token.getRefreshToken()).isNotEmpty();
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).hasValue(token);
+    assertThat(tokenService.readRefreshToken(token.getRefreshToken())).isPresent();
+  }
+
+  @Test
+  public void testGenerateAccessToken_notRefreshable_noRefreshToken() {
+    OAuth2AccessToken token = tokenService.generateAccessToken(NOT_REFRESHABLE_REQUEST);
+
+    assertThat(token.getRefreshToken()).isEmpty();
+    assertThat(tokenService.listUserClientRefreshTokens(USERNAME, CLIENTID)).isEmpty();
+  }
+
+  @Test
+  public void testGenerateAccessToken_refreshable_oneConnectionOneCommit() {
+    // The first grant of a scope registers it.
+    tokenService.generateAccessToken(REFRESHABLE_REQUEST);
+    dataSource.resetCounts();
+
+    tokenService.generateAccessToken(REFRESHABLE_REQUEST);
+
+    assertThat(dataSource.getConnectionCount()).isEqualTo(1);
+    assertThat(dataSource.getStatementCount()).isEqualTo(2);
+    assertThat(dataSource.getCommitCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testRefreshToken_correctRefreshToken_oneConnectionOneCommit() {
+    OAuth2AccessToken token = tokenService.generateAccessToken(REFRESHABLE_REQUEST);
+    dataSource.resetCounts();
+
+    Optional<OAuth2AccessToken> newToken = tokenService.refreshToken(token.getRefreshToken());
+
+    assertThat(newToken).isPresent();
+    assertThat(dataSource.getConnectionCount()).isEqualTo(1);
+    assertThat(dataSource.getStatementCount()).isEqualTo(2);
+    assertThat(dataSource.getCommitCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testRefreshToken_correctRefreshToken_returnNewToken() {
+    OAuth2AccessToken token = tokenService.generateAccessToken(REFRESHABLE_REQUEST);
+
+    Optional<OAuth2AccessToken> newToken = tokenService.refreshToken(token.getRefreshToken());
+
+    assertThat(newToken).isPresent();
+    // Ignore access_token value and expired_time
+    assertThat(newToken.get()).ignoringFields(1, 6).isEqualTo(token);
+    assertThat(tokenService.listUserClientAccessTokens(USERNAME, CLIENTID)).hasSize(2);
+  }
+
+  @Test
+  public void testRefreshToken_noThatRefreshToken_returnEmpty() {
+    assertThat(tokenService.refreshToken(UUID.randomUUID().toString())).isEmpty();
+  }
+
+  @Test
+  public void testRevokeByRefreshToken_correctInput_removeTokens() {
+    OAuth2AccessToken token = tokenService.generateAccessToken(REFRESHABLE_REQUEST);
+    tokenService.refreshToken(token.getRefreshToken());
+
+    assertThat(tokenService.revokeByRefreshToken(token.getRefreshToken())).isTrue();
+
+    assertThat(tokenService.readRefreshToken(token.getRefreshToken())).isEmpty();
+    assertThat(tokenService.listUserClientAccessTokens(USERNAME, CLIENTID)).isEmpty();
+  }
+
+  @Test
+  public void testRevokeUserClientTokens_correctInput_removeTokens() {
+    tokenService.generateAccessToken(REFRESHABLE_REQUEST);
+    tokenService.generateAccessToken(NOT_REFRESHABLE_REQUEST);
+
+    assertThat(tokenService.listUserClient(USERNAME)).containsExactly(CLIENTID);
+    assertThat(tokenService.revokeUserClientTokens(USERNAME, CLIENTID)).isTrue();
+
+    assertThat(tokenService.listUserClient(USERNAME)).isEmpty();
+  }
+
+  @Test
+  public void testRevokeAndListUserClientTokens_correctInput_returnRevokedInOneCommit() {
+    OAuth2AccessToken token = tokenService.generateAccessToken(REFRESHABLE_REQUEST);
+    OAuth2AccessToken implicitToken = tokenService.generateAccessToken(NOT_REFRESHABLE_REQUEST);
+    OAuth2RefreshToken refreshToken = tokenService.readRefreshToken(token.getRefreshToken()).get();
+    dataSource.resetCounts();
+
+    RevokedTokens revoked = tokenService.revokeAndListUserClientTokens(USERNAME, CLIENTID);
+
+    assertThat(revoked.getAccessTokensList()).containsExactly(token, implicitToken);
+    assertThat(revoked.getRefreshTokensList()).containsExactly(refreshToken);
+    assertThat(dataSource.getConnectionCount()).isEqualTo(1);
+    assertThat(dataSource.getCommitCount()).isEqualTo(1);
+    assertThat(tokenService.listUserClient(USERNAME)).isEmpty();
+    assertThat(tokenService.revokeAndListUserClientTokens(USERNAME, CLIENTID))
+        .isEqualToDefaultInstance();
+  }
+
+  @Test
+  public void testGenerateAccessToken_groupCommit_concurrentGrantsShareCommits() throws Exception {
+    JdbcExecutor jdbcExecutor = new JdbcExecutor(dataSource);
+    OAuth2TokenService groupCommitService =
+        new JdbcOAuth2TokenService(
+            jdbcExecutor,
+            JdbcTokenReaper.fromEnvironment(jdbcExecutor, JdbcTokenLayout.PLAIN),
+            Optional.of(Duration.ofMillis(20)),
+            false);
+    dataSource.resetCounts();
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<OAuth2AccessToken>> tokens = new ArrayList<>();
+    for (int i = 0; i < 64; i++) {
+      OAuth2Request request = i % 2 == 0 ? REFRESHABLE_REQUEST : NOT_REFRESHABLE_REQUEST;
+      tokens.add(executor.submit(() -> groupCommitService.generateAccessToken(request)));
+    }
+    for (Future<OAuth2AccessToken> token : tokens) {
+      assertThat(tokenService.readAccessToken(token.get().getAccessToken())).hasValue(token.get());
+    }
+    executor.shutdown();
+
+    assertThat(dataSource.getCommitCount()).isLessThan(64);
+    assertThat(tokenService.listUserClientAccessTokens(USERNAME, CLIENTID)).hasSize(64);
+    assertThat(tokenService.listUserClientRefreshTokens(USERNAME, CLIENTID)).hasSize(32);
+  }
+
+  private JdbcOAuth2TokenService newDigestTokenService() {
+    JdbcExecutor jdbcExecutor = new JdbcExecutor(dataSource);
+    return new JdbcOAuth2TokenService(
+        jdbcExecutor,
+        JdbcTokenReaper.fromEnvironment(jdbcExecutor, JdbcTokenLayout.DIGEST),
+        Optional.empty(),
+        true);
+  }
+
+  @Test
+  public void testDigestKeys_tokensFoundByValueListedByIdentifier() {
+    OAuth2TokenService digestService = newDigestTokenService();
+
+    OAuth2AccessToken token = digestService.generateAccessToken(REFRESHABLE_REQUEST);
+    Optional<OAuth2AccessToken> refreshed = digestService.refreshToken(token.getRefreshToken());
+
+    String refreshIdentifier = TokenDigest.identifierOf(token.getRefreshToken());
+    assertThat(digestService.readAccessToken(token.getAccessToken()))
+        .hasValue(token.toBuilder().setRefreshToken(refreshIdentifier).build());
+    assertThat(refreshed).isPresent();
+    assertThat(digestService.readAccessToken(refreshed.get().getAccessToken()))
+        .hasValue(refreshed.get().toBuilder().setRefreshToken(refreshIdentifier).build());
+    assertThat(digestService.readRefreshToken(token.getRefreshToken()).get().getRefreshToken())
+        .isEqualTo(token.getRefreshToken());
+    assertThat(digestService.listUserClientRefreshTokens(USERNAME, CLIENTID))
+        .comparingExpectedFieldsOnly()
+        .containsExactly(
+            OAuth2RefreshToken.newBuilder()
+                .setRefreshToken(refreshIdentifier)
+                .build());
+    // Nothing is stored by value.
+    assertThat(tokenService.listUserClient(USERNAME)).isEmpty();
+  }
+
+  @Test
+  public void testDigestKeys_revokeAndList_tokensCarryRiscHashes() {
+    // Group committed, the batch writer stores the hashes as well.
+    JdbcExecutor jdbcExecutor = new JdbcExecutor(dataSource);
+    OAuth2TokenService digestService =
+        new JdbcOAuth2TokenService(
+            jdbcExecutor,
+            JdbcTokenReaper.fromEnvironment(jdbcExecutor, JdbcTokenLayout.DIGEST),
+            Optional.of(Duration.ofMillis(1)),
+            true);
+    OAuth2AccessToken token = digestService.generateAccessToken(REFRESHABLE_REQUEST);
+
+    RevokedTokens revoked = digestService.revokeAndListUserClientTokens(USERNAME, CLIENTID);
+
+    assertThat(revoked.getAccessTokensList())
+        .comparingExpectedFieldsOnly()
+        .containsExactly(
+            OAuth2AccessToken.newBuilder()
+                .setAccessToken(TokenDigest.identifierOf(token.getAccessToken()))
+                .setRiscTokenHash(TokenDigest.riscHashOf(token.getAccessToken()))
+                .build());
+    assertThat(revoked.getRefreshTokensList())
+        .comparingExpectedFieldsOnly()
+        .containsExactly(
+            OAuth2RefreshToken.newBuilder()
+                .setRefreshToken(TokenDigest.identifierOf(token.getRefreshToken()))
+                .setRiscTokenHash(TokenDigest.riscHashOf(token.getRefreshToken()))
+                .build());
+  }
+
+  @Test
+  public void testDigestKeys_revokeByAccessToken_revokesRefreshTokenFamily() {
+    OAuth2TokenService digestService = newDigestTokenService();
+    OAuth2AccessToken token = digestService.generateAccessToken(REFRESHABLE_REQUEST);
+    OAuth2AccessToken refreshed = digestService.refreshToken(token.getRefreshToken()).get();
+    OAuth2AccessToken implicitToken = digestService.generateAccessToken(NOT_REFRESHABLE_REQUEST);
+
+    assertThat(digestService.revokeByAccessToken(refreshed.getAccessToken())).isTrue();
+    assertThat(digestService.revokeByAccessToken(implicitToken.getAccessToken())).isTrue();
+
+    assertThat(digestService.readAccessToken(token.getAccessToken())).isEmpty();
+    assertThat(digestService.readRefreshToken(token.getRefreshToken())).isEmpty();
+    assertThat(digestService.listUserClient(USERNAME)).isEmpty();
+  }
+
+  @Test
+  public void testDigestKeys_plainTokens_foundThenMovedWithTheirFamily() {
+    OAuth2AccessToken token = tokenService.generateAccessToken(REFRESHABLE_REQUEST);
+    OAuth2AccessToken implicitToken = tokenService.generateAccessToken(NOT_REFRESHABLE_REQUEST);
+    JdbcOAuth2TokenService digestService = newDigestTokenService();
+
+    assertThat(digestService.readAccessToken(token.getAccessToken())).hasValue(token);
+    OAuth2AccessToken refreshed = digestService.refreshToken(token.getRefreshToken()).get();
+
+    assertThat(digestService.movePlainTokens()).isEqualTo(4);
+
+    assertThat(tokenService.listUserClient(USERNAME)).isEmpty();
+    assertThat(digestService.readAccessToken(token.getAccessToken()))
+        .hasValue(
+            token.toBuilder()
+                .setRefreshToken(TokenDigest.identifierOf(token.getRefreshToken()))
+                .build());
+    assertThat(digestService.readAccessToken(implicitToken.getAccessToken()))
+        .hasValue(implicitToken);
+    assertThat(digestService.revokeByRefreshToken(token.getRefreshToken())).isTrue();
+    assertThat(digestService.readAccessToken(refreshed.getAccessToken())).isEmpty();
+    assertThat(digestService.listUserClientAccessTokens(USERNAME, CLIENTID)).hasSize(1);
+  }
+
+  @Test
+  public void testListUserClientAccessTokens_pages_acrossPlainAndDigestTables() {
+    List<String> plainTokens = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      plainTokens.add(tokenService.generateAccessToken(NOT_REFRESHABLE_REQUEST).getAccessToken());
+    }
+    OAuth2TokenService digestService = newDigestTokenService();
+    List<String> digestTokens = new ArrayList<>();
+    for (int i = 0; i < 2; i++) {
+      digestTokens.add(
+          TokenDigest.identifierOf(
+              digestService.generateAccessToken(NOT_REFRESHABLE_REQUEST).getAccessToken()));
+    }
+
+    List<String> listed = new ArrayList<>();
+    Optional<String> cursor = Optional.empty();
+    do {
+      Page<OAuth2AccessToken> page =
+          digestService.listUserClientAccessTokens(USERNAME, CLIENTID, cursor, 2);
+      assertThat(page.getItems().size()).isAtMost(2);
+      page.getItems().forEach(token -> listed.add(token.getAccessToken()));
+      cursor = page.getNextCursor();
+    } while (cursor.isPresent());
+
+    assertThat(listed).containsExactlyElementsIn(Iterables.concat(digestTokens, plainTokens));
+    assertThat(
+            digestService
+                .streamUserClientAccessTokens(USERNAME, CLIENTID)
+                .map(OAuth2AccessToken::getAccessToken)
+                .collect(Collectors.toList()))
+        .containsExactlyElementsIn(listed)
+        .inOrder();
+    assertThat(digestService.listUserClient(USERNAME, Optional.empty(), 1).getItems())
+        .containsExactly(CLIENTID);
+  }
+
+  @Test
+  public void testReadAccessToken_rowWithoutScopeMask_scopesColumnRead() {
+    new JdbcExecutor(dataSource)
+        .update(
+            "insertLegacyAccessToken",
+            "INSERT INTO access_token "
+                + "(access_token, client_id, username, is_scoped, scopes, expired_time, "
+                + "refresh_token) VALUES ('token', ?, ?, TRUE, 'read\twrite', ?, '');",
+            statement -> {
+              statement.setString(1, CLIENTID);
+              statement.setString(2, USERNAME);
+              statement.setLong(3, Long.MAX_VALUE);
+            });
+
+    assertThat(tokenService.readAccessToken("token").get().getScopesList())
+        .containsExactly("read", "write")
+        .inOrder();
+  }
+}
@@ -0,0 +1,177 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import com.google.googleidentity.mysql.JdbcExecutor;
+import com.google.googleidentity.testtools.TestDatabase;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares access tokens of {@link JdbcOAuth2TokenService} keyed by value and by digest, against a
+ * MySQL compatible database stored in a local file. The benchmark reads random tokens by value,
+ * the space of the access token table with its indexes is printed after loading. Run with -p
+ * rows=10000000 for a table of production size, which takes long to load.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JdbcTokenDigestBenchmark {
+
+  /** Token values kept to read, a random sample of the loaded ones. */
+  private static final int SAMPLE_SIZE = 10000;
+
+  private static final int LOAD_BATCH_SIZE = 1000;
+
+  @Param({"false", "true"})
+  public boolean digestKeys;
+
+  @Param({"100000"})
+  public int rows;
+
+  private Path directory;
+
+  private HikariDataSource dataSource;
+
+  private JdbcOAuth2TokenService tokenService;
+
+  private String[] sample;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException, SQLException {
+    directory = Files.createTempDirectory("token-digest");
+    // Pooled like the server, so a read does not pay for opening the database file.
+    HikariConfig config = new HikariConfig();
+    config.setDataSource(TestDatabase.newFileDatabase(directory));
+    dataSource = new HikariDataSource(config);
+    JdbcExecutor jdbcExecutor = new JdbcExecutor(dataSource);
+    JdbcTokenLayout layout = digestKeys ? JdbcTokenLayout.DIGEST : JdbcTokenLayout.PLAIN;
+    tokenService =
+        new JdbcOAuth2TokenService(
+            jdbcExecutor,
+            JdbcTokenReaper.fromEnvironment(jdbcExecutor, layout),
+            Optional.empty(),
+            digestKeys);
+    sample = new String[Math.min(SAMPLE_SIZE, rows)];
+    try (Connection conn = dataSource.getConnection()) {
+      load(conn, layout);
+      try (PreparedStatement statement = conn.prepareStatement("SELECT DISK_SPACE_USED(?);")) {
+        statement.setString(1, layout.accessTable);
+        try (ResultSet result = statement.executeQuery()) {
+          result.next();
+          System.out.printf(
+              "%n%s with %d rows: %.1f MB%n",
+              layout.accessTable, rows, result.getLong(1) / 1024.0 / 1024.0);
+        }
+      }
+    }
+  }
+
+  /** Insert rows tokens without refresh token, keeping a sample of their values. */
+  private void load(Connection conn, JdbcTokenLayout layout) throws SQLException {
+    conn.setAutoCommit(false);
+    long expiredTime = Instant.now().plusSeconds(3600).getEpochSecond();
+    try (PreparedStatement statement =
+        conn.prepareStatement(
+            "INSERT INTO "
+                + layout.accessTable
+                + " ("
+                + layout.accessKey
+                + ", client_id, username, is_scoped, scopes, expired_time, "
+                + layout.accessRefreshKey
+                + ") VALUES(?, ?, ?, ?, ?, ?, ?);")) {
+      for (int i = 0; i < rows; i++) {
+        String token = UUID.randomUUID().toString();
+        // Reservoir sampling, every loaded token is equally likely to be read.
+        if (i < sample.length) {
+          sample[i] = token;
+        } else {
+          int index = ThreadLocalRandom.current().nextInt(i + 1);
+          if (index < sample.length) {
+            sample[index] = token;
+          }
+        }
+        statement.setObject(1, layout.key(token));
+        statement.setString(2, "client" + i % 100);
+        statement.setString(3, "user" + i);
+        statement.setBoolean(4, true);
+        statement.setString(5, "read");
+        statement.setLong(6, expiredTime);
+        JdbcTokenLayout.bind(statement, 7, layout.refreshReference(""));
+        statement.addBatch();
+        if ((i + 1) % LOAD_BATCH_SIZE == 0) {
+          statement.executeBatch();
+          conn.commit();
+        }
+      }
+      statement.executeBatch();
+      conn.commit();
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    tokenService.reset();
+    dataSource.close();
+    MoreFiles.deleteRecursively(directory, RecursiveDeleteOption.ALLOW_INSECURE);
+  }
+
+  @Benchmark
+  public Optional<OAuth2AccessToken> readAccessToken() {
+    return tokenService.readAccessToken(
+        sample[ThreadLocalRandom.current().nextInt(sample.length)]);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(
+            new OptionsBuilder().include(JdbcTokenDigestBenchmark.class.getSimpleName()).build())
+        .run();
+  }
+}
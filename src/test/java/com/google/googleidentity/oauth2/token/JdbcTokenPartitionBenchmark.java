@@ -0,0 +1,154 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import com.google.googleidentity.mysql.CloudSqlModule;
+import com.google.googleidentity.mysql.JdbcExecutor;
+import com.google.googleidentity.mysql.SchemaMigrations;
+import com.google.googleidentity.oauth2.request.OAuth2Request;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import java.sql.SQLException;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Steady state grants of {@link JdbcOAuth2TokenService} while expired access tokens are cleaned up,
+ * by row deletes of {@link JdbcTokenReaper} or by dropping partitions of {@link
+ * JdbcTokenPartitions}. The cleaner runs every second with its clock ahead of the token lifetime,
+ * so every new token is already expired for it, the worst case of churn.
+ *
+ * <p>Partitioning needs MySQL, run with -p mysqlUrl= set to the JDBC url of a MySQL database whose
+ * tables may be dropped.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(8)
+@Fork(1)
+public class JdbcTokenPartitionBenchmark {
+
+  private static final OAuth2Request REQUEST =
+      OAuth2Request.newBuilder()
+          .setRequestAuth(
+              OAuth2Request.RequestAuth.newBuilder().setClientId("client").setUsername("user"))
+          .setRequestBody(
+              OAuth2Request.RequestBody.newBuilder().setIsScoped(true).addScopes("read"))
+          .build();
+
+  /** How far the clock of the cleaner is ahead, longer than the token lifetime. */
+  private static final Duration CLEANER_AHEAD = Duration.ofMinutes(20);
+
+  @Param({""})
+  public String mysqlUrl;
+
+  @Param({"false", "true"})
+  public boolean partitioned;
+
+  private HikariDataSource dataSource;
+
+  private JdbcOAuth2TokenService tokenService;
+
+  private JdbcTokenReaper cleaner;
+
+  private ScheduledExecutorService cleanerService;
+
+  @Setup(Level.Trial)
+  public void setUp() throws SQLException {
+    if (mysqlUrl.isEmpty()) {
+      throw new IllegalStateException("Partitions need MySQL, run with -p mysqlUrl=jdbc:mysql://");
+    }
+    HikariConfig config = new HikariConfig();
+    config.setJdbcUrl(mysqlUrl);
+    config.setMaximumPoolSize(20);
+    dataSource = new HikariDataSource(config);
+    CloudSqlModule.dropTables(dataSource);
+    SchemaMigrations.migrate(dataSource);
+
+    JdbcExecutor jdbcExecutor = new JdbcExecutor(dataSource);
+    Clock cleanerClock = Clock.offset(Clock.systemUTC(), CLEANER_AHEAD);
+    cleaner =
+        new JdbcTokenReaper(
+            jdbcExecutor,
+            cleanerClock,
+            Duration.ofSeconds(1),
+            JdbcTokenReaper.DEFAULT_BATCH_SIZE,
+            JdbcTokenReaper.DEFAULT_BATCH_PAUSE,
+            partitioned
+                ? new JdbcTokenPartitions(
+                    jdbcExecutor,
+                    cleanerClock,
+                    JdbcTokenLayout.PLAIN,
+                    Duration.ofMinutes(1),
+                    JdbcTokenPartitions.DEFAULT_AHEAD)
+                : null);
+    // Partition the table before the first grant.
+    cleaner.sweep();
+    tokenService =
+        new JdbcOAuth2TokenService(
+            jdbcExecutor,
+            JdbcTokenReaper.fromEnvironment(jdbcExecutor, JdbcTokenLayout.PLAIN),
+            Optional.empty(),
+            false);
+    cleanerService = Executors.newSingleThreadScheduledExecutor();
+    cleanerService.scheduleWithFixedDelay(cleaner, 1, 1, TimeUnit.SECONDS);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws SQLException {
+    cleanerService.shutdownNow();
+    System.out.printf("%nCleaned up: %d tokens%n", cleaner.getTotalReclaimed());
+    CloudSqlModule.dropTables(dataSource);
+    dataSource.close();
+  }
+
+  @Benchmark
+  public OAuth2AccessToken generateAccessToken() {
+    return tokenService.generateAccessToken(REQUEST);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(
+            new OptionsBuilder()
+                .include(JdbcTokenPartitionBenchmark.class.getSimpleName())
+                .build())
+        .run();
+  }
+}
@@ -0,0 +1,65 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+/** Tests for {@link JdbcTokenPartitions} */
+public class JdbcTokenPartitionsTest {
+
+  private static final long HOUR = 3600;
+
+  private static final long NOW = 100 * HOUR + 600;
+
+  @Test
+  public void testBoundsToAdd_notPartitioned_currentAndAheadBuckets() {
+    assertThat(JdbcTokenPartitions.boundsToAdd(ImmutableList.of(), NOW, HOUR, 2))
+        .containsExactly(101 * HOUR, 102 * HOUR, 103 * HOUR)
+        .inOrder();
+  }
+
+  @Test
+  public void testBoundsToAdd_bucketsAhead_nothingAdded() {
+    assertThat(
+            JdbcTokenPartitions.boundsToAdd(
+                ImmutableList.of(100 * HOUR, 101 * HOUR, 102 * HOUR, 103 * HOUR), NOW, HOUR, 2))
+        .isEmpty();
+  }
+
+  @Test
+  public void testBoundsToAdd_oneBucketLater_nextBucketAdded() {
+    assertThat(
+            JdbcTokenPartitions.boundsToAdd(
+                ImmutableList.of(101 * HOUR, 102 * HOUR, 103 * HOUR), NOW + HOUR, HOUR, 2))
+        .containsExactly(104 * HOUR);
+  }
+
+  @Test
+  public void testBoundsToAdd_fellBehind_startsAtCurrentBucket() {
+    assertThat(JdbcTokenPartitions.boundsToAdd(ImmutableList.of(90 * HOUR), NOW, HOUR, 1))
+        .containsExactly(101 * HOUR, 102 * HOUR)
+        .inOrder();
+  }
+
+  @Test
+  public void testPartitionName_namedByBound() {
+    assertThat(JdbcTokenPartitions.partitionName(101 * HOUR)).isEqualTo("p363600");
+  }
+}
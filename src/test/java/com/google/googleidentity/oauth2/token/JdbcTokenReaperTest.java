@@ -0,0 +1,93 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+
+import com.google.googleidentity.mysql.JdbcExecutor;
+import com.google.googleidentity.oauth2.request.OAuth2Request;
+import com.google.googleidentity.testtools.FakeClock;
+import com.google.googleidentity.testtools.TestDatabase;
+import java.time.Duration;
+import java.time.Instant;
+import javax.sql.DataSource;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for {@link JdbcTokenReaper} */
+public class JdbcTokenReaperTest {
+
+  private static final String CLIENTID = "client";
+  private static final String USERNAME = "111";
+
+  private static final OAuth2Request REQUEST =
+      OAuth2Request.newBuilder()
+          .setRequestAuth(
+              OAuth2Request.RequestAuth.newBuilder()
+                  .setClientId(CLIENTID)
+                  .setUsername(USERNAME)
+                  .build())
+          .setRequestBody(
+              OAuth2Request.RequestBody.newBuilder()
+                  .setIsScoped(true)
+                  .addScopes("read")
+                  .setRefreshable(true)
+                  .build())
+          .build();
+
+  private DataSource dataSource;
+
+  private OAuth2TokenService tokenService;
+
+  @Before
+  public void init() {
+    dataSource = TestDatabase.newDatabase();
+    tokenService = new JdbcOAuth2TokenService(dataSource);
+  }
+
+  private JdbcTokenReaper newReaper(FakeClock clock) {
+    return new JdbcTokenReaper(new JdbcExecutor(dataSource), clock, Duration.ofMinutes(1), 2, Duration.ZERO);
+  }
+
+  @Test
+  public void testSweep_nothingExpired_nothingRemoved() {
+    OAuth2AccessToken token = tokenService.generateAccessToken(REQUEST);
+    JdbcTokenReaper reaper = newReaper(new FakeClock(Instant.now()));
+
+    assertThat(reaper.sweep()).isEqualTo(0);
+
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).isPresent();
+  }
+
+  @Test
+  public void testSweep_expiredAccessTokens_removedInBatchesAndRefreshTokensKept() {
+    OAuth2AccessToken token = tokenService.generateAccessToken(REQUEST);
+    for (int i = 0; i < 4; i++) {
+      tokenService.refreshToken(token.getRefreshToken());
+    }
+    JdbcTokenReaper reaper = newReaper(new FakeClock(Instant.now().plus(Duration.ofMinutes(11))));
+
+    assertThat(reaper.sweep()).isEqualTo(5);
+
+    assertThat(tokenService.listUserClientAccessTokens(USERNAME, CLIENTID)).isEmpty();
+    assertThat(tokenService.readRefreshToken(token.getRefreshToken())).isPresent();
+    assertThat(reaper.getLastSweepReclaimed()).isEqualTo(5);
+    assertThat(reaper.sweep()).isEqualTo(0);
+    assertThat(reaper.getTotalReclaimed()).isEqualTo(5);
+  }
+}
@@ -0,0 +1,159 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import com.google.googleidentity.oauth2.request.OAuth2Request;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures what the {@link TokenJournal} costs {@link InMemoryOAuth2TokenService}: the time of a
+ * grant with and without the journal, and the startup time from a journal of {@code tokens} access
+ * tokens with their refresh tokens. Grants from several threads share an fsync, so run {@link
+ * #main} to compare 1 to 16 threads.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenJournalBenchmark {
+
+  private static final int[] THREADS = {1, 4, 16};
+
+  private static final int USERS = 4096;
+
+  private static OAuth2Request request(int user) {
+    return OAuth2Request.newBuilder()
+        .setRequestAuth(
+            OAuth2Request.RequestAuth.newBuilder()
+                .setClientId("client")
+                .setUsername("user" + user))
+        .setRequestBody(
+            OAuth2Request.RequestBody.newBuilder()
+                .setIsScoped(true)
+                .addScopes("read")
+                .setRefreshable(true))
+        .build();
+  }
+
+  @State(Scope.Benchmark)
+  public static class Grant {
+
+    @Param({"false", "true"})
+    public boolean journaled;
+
+    private final OAuth2Request[] requests = new OAuth2Request[USERS];
+
+    private Path directory;
+
+    private InMemoryOAuth2TokenService tokenService;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+      for (int i = 0; i < USERS; i++) {
+        requests[i] = request(i);
+      }
+      directory = Files.createTempDirectory("token-journal");
+      tokenService =
+          new InMemoryOAuth2TokenService(
+              Clock.systemUTC(), journaled ? Optional.of(directory) : Optional.empty());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+      tokenService.close();
+      MoreFiles.deleteRecursively(directory, RecursiveDeleteOption.ALLOW_INSECURE);
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class Restart {
+
+    @Param({"100000"})
+    public int tokens;
+
+    private Path directory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+      directory = Files.createTempDirectory("token-journal");
+      InMemoryOAuth2TokenService tokenService = new InMemoryOAuth2TokenService(directory);
+      for (int i = 0; i < tokens; i++) {
+        tokenService.generateAccessToken(request(i % USERS));
+      }
+      tokenService.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+      MoreFiles.deleteRecursively(directory, RecursiveDeleteOption.ALLOW_INSECURE);
+    }
+  }
+
+  @Benchmark
+  public OAuth2AccessToken grant(Grant state) {
+    return state.tokenService.generateAccessToken(
+        state.requests[ThreadLocalRandom.current().nextInt(USERS)]);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Warmup(iterations = 2)
+  @Measurement(iterations = 5)
+  public int restart(Restart state) throws IOException {
+    InMemoryOAuth2TokenService tokenService = new InMemoryOAuth2TokenService(state.directory);
+    int users = tokenService.userTokensMap.size();
+    tokenService.close();
+    return users;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    for (int threads : THREADS) {
+      new Runner(
+              new OptionsBuilder()
+                  .include(TokenJournalBenchmark.class.getSimpleName())
+                  .threads(threads)
+                  .build())
+          .run();
+    }
+  }
+}
@@ -0,0 +1,106 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/** Tests for {@link TokenJournal} */
+public class TokenJournalTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private static TokenJournalEntry revoked(String username) {
+    return TokenJournalEntry.newBuilder()
+        .setUserClientRevoked(
+            TokenJournalEntry.UserClientRevoked.newBuilder()
+                .setUsername(username)
+                .setClientId("client"))
+        .build();
+  }
+
+  private List<TokenJournalEntry> reopen(Path directory) throws IOException {
+    List<TokenJournalEntry> entries = new ArrayList<>();
+    TokenJournal.open(directory, entries::add).close();
+    return entries;
+  }
+
+  @Test
+  public void testAppend_reopen_entriesInOrder() throws IOException {
+    Path directory = folder.getRoot().toPath();
+    TokenJournal journal = TokenJournal.open(directory, entry -> {});
+
+    for (int i = 0; i < 10000; i++) {
+      journal.append(revoked("user" + i));
+    }
+    journal.sync();
+    journal.close();
+
+    List<TokenJournalEntry> entries = reopen(directory);
+    assertThat(entries).hasSize(10000);
+    assertThat(entries.get(9999)).isEqualTo(revoked("user9999"));
+  }
+
+  @Test
+  public void testReopen_tornEntry_droppedWithFollowing() throws IOException {
+    Path directory = folder.getRoot().toPath();
+    TokenJournal journal = TokenJournal.open(directory, entry -> {});
+    journal.append(revoked("a"));
+    journal.append(revoked("b"));
+    journal.close();
+
+    int length = revoked("a").getSerializedSize();
+    try (RandomAccessFile segment =
+        new RandomAccessFile(directory.resolve("segment-0").toFile(), "rw")) {
+      // Damage the last byte of the second entry.
+      segment.seek(2L * (8 + length) - 1);
+      segment.write(0xff);
+    }
+
+    assertThat(reopen(directory)).containsExactly(revoked("a"));
+  }
+
+  @Test
+  public void testCompact_snapshotReplacesOlderSegments() throws IOException {
+    Path directory = folder.getRoot().toPath();
+    TokenJournal journal = TokenJournal.open(directory, entry -> {});
+    journal.append(revoked("a"));
+
+    journal.compact(out -> out.accept(revoked("snapshot")));
+    journal.append(revoked("b"));
+    journal.close();
+
+    List<String> files;
+    try (Stream<Path> list = Files.list(directory)) {
+      files = list.map(file -> file.getFileName().toString()).collect(Collectors.toList());
+    }
+    assertThat(files).containsExactly("snapshot-1", "segment-1");
+    assertThat(reopen(directory)).containsExactly(revoked("snapshot"), revoked("b")).inOrder();
+  }
+}
@@ -0,0 +1,122 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/** Tests for {@link TokenRecordTable} */
+public class TokenRecordTableTest {
+
+  @Test
+  public void testInsert_canFindWithFields() {
+    TokenRecordTable table = new TokenRecordTable(2);
+    UUID id = UUID.randomUUID();
+
+    int record = table.insert(id);
+    table.set(record, 0, 42L);
+    table.set(record, 1, -7L);
+
+    int found = table.find(id);
+    assertThat(table.id(found)).isEqualTo(id);
+    assertThat(table.get(found, 0)).isEqualTo(42L);
+    assertThat(table.get(found, 1)).isEqualTo(-7L);
+    assertThat(table.find(UUID.randomUUID())).isEqualTo(-1);
+  }
+
+  @Test
+  public void testInsert_idInUse_rejected() {
+    TokenRecordTable table = new TokenRecordTable(1);
+    UUID id = UUID.randomUUID();
+
+    table.insert(id);
+
+    assertThat(table.insert(id)).isEqualTo(-1);
+    assertThat(table.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void testManyInsertsAndRemoves_allOthersStillFound() {
+    TokenRecordTable table = new TokenRecordTable(1);
+    List<UUID> ids = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      UUID id = UUID.randomUUID();
+      ids.add(id);
+      table.set(table.insert(id), 0, i);
+    }
+
+    for (int i = 0; i < 1000; i += 3) {
+      table.remove(table.find(ids.get(i)));
+    }
+
+    for (int i = 0; i < 1000; i++) {
+      int record = table.find(ids.get(i));
+      if (i % 3 == 0) {
+        assertThat(record).isEqualTo(-1);
+      } else {
+        assertThat(table.get(record, 0)).isEqualTo(i);
+      }
+    }
+    assertThat(table.size()).isEqualTo(666);
+  }
+
+  @Test
+  public void testSmallTableFilledCompletely_removeKeepsOthersFound() {
+    TokenRecordTable table = new TokenRecordTable(1);
+    List<UUID> ids = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      UUID id = UUID.randomUUID();
+      ids.add(id);
+      table.insert(id);
+    }
+
+    table.remove(table.find(ids.get(0)));
+    table.remove(table.find(ids.get(5)));
+
+    assertThat(table.find(ids.get(0))).isEqualTo(-1);
+    assertThat(table.find(ids.get(5))).isEqualTo(-1);
+    for (int i : new int[] {1, 2, 3, 4, 6, 7}) {
+      assertThat(table.id(table.find(ids.get(i)))).isEqualTo(ids.get(i));
+    }
+    assertThat(table.find(UUID.randomUUID())).isEqualTo(-1);
+  }
+
+  @Test
+  public void testRemoveIf_removesMatchingAndKeepsRest() {
+    TokenRecordTable table = new TokenRecordTable(1);
+    List<UUID> ids = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      UUID id = UUID.randomUUID();
+      ids.add(id);
+      table.set(table.insert(id), 0, i);
+    }
+
+    assertThat(table.removeIf(record -> table.get(record, 0) >= 10)).isEqualTo(90);
+
+    Set<UUID> left = new HashSet<>();
+    table.forEach(record -> left.add(table.id(record)));
+    assertThat(left).containsExactlyElementsIn(ids.subList(0, 10));
+    assertThat(table.size()).isEqualTo(10);
+  }
+}
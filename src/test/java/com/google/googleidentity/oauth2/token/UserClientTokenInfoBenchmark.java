@@ -0,0 +1,133 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import com.google.common.io.BaseEncoding;
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the token string codec of {@link UserClientTokenInfo} with the former one, an AES/ECB
+ * encryption of tab separated strings with a new Cipher per call, kept here as {@link
+ * LegacyCodec}. {@link #main} adds the GC profiler for the allocations per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserClientTokenInfoBenchmark {
+
+  private static final String USERNAME = "user@example.com";
+  private static final String CLIENTID = "google";
+
+  private final TokenKeyRing keyRing = new TokenKeyRing();
+  private final Instant now = Instant.now();
+  private Key legacyKey;
+
+  private String tokenString;
+  private String legacyTokenString;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    KeyGenerator generator = KeyGenerator.getInstance("AES");
+    generator.init(256);
+    legacyKey = generator.generateKey();
+    tokenString =
+        new UserClientTokenInfo(USERNAME, CLIENTID, UUID.randomUUID(), now.getEpochSecond() + 600)
+            .getEncryptTokenString(keyRing);
+    legacyTokenString =
+        LegacyCodec.encrypt(legacyKey, USERNAME, CLIENTID, UUID.randomUUID().toString());
+  }
+
+  @Benchmark
+  public String encrypt() {
+    return new UserClientTokenInfo(
+            USERNAME, CLIENTID, UUID.randomUUID(), now.getEpochSecond() + 600)
+        .getEncryptTokenString(keyRing);
+  }
+
+  @Benchmark
+  public Object decrypt() {
+    return UserClientTokenInfo.decryptTokenString(keyRing, tokenString, now);
+  }
+
+  @Benchmark
+  public String legacyEncrypt() throws Exception {
+    return LegacyCodec.encrypt(legacyKey, USERNAME, CLIENTID, UUID.randomUUID().toString());
+  }
+
+  @Benchmark
+  public String[] legacyDecrypt() throws Exception {
+    return LegacyCodec.decrypt(legacyKey, legacyTokenString);
+  }
+
+  /** The token string codec before the AES-GCM one. */
+  static final class LegacyCodec {
+
+    private static final String DELIMITER = "\t";
+
+    private LegacyCodec() {}
+
+    static String encrypt(Key key, String username, String clientID, String tokenValue)
+        throws Exception {
+      String tokenInfo = username + DELIMITER + clientID + DELIMITER + tokenValue;
+      Cipher cipher = Cipher.getInstance("AES");
+      cipher.init(Cipher.ENCRYPT_MODE, key);
+      byte[] encryptedBytes = cipher.doFinal(tokenInfo.getBytes(StandardCharsets.UTF_8));
+      return BaseEncoding.base64Url().withPadChar('*').encode(encryptedBytes);
+    }
+
+    static String[] decrypt(Key key, String tokenString) throws Exception {
+      Cipher cipher = Cipher.getInstance("AES");
+      byte[] bytesToDecrypt = BaseEncoding.base64Url().withPadChar('*').decode(tokenString);
+      cipher.init(Cipher.DECRYPT_MODE, key);
+      byte[] decryptedBytes = cipher.doFinal(bytesToDecrypt);
+      return new String(decryptedBytes, StandardCharsets.UTF_8).split(DELIMITER);
+    }
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(
+            new OptionsBuilder()
+                .include(UserClientTokenInfoBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build())
+        .run();
+  }
+}
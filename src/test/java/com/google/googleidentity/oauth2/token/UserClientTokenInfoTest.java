@@ -0,0 +1,134 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import com.google.common.io.BaseEncoding;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.Optional;
+import java.util.UUID;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+
+/** Tests for {@link UserClientTokenInfo} */
+public class UserClientTokenInfoTest {
+
+  private static final String USERNAME = "user";
+  private static final String CLIENTID = "client";
+  private static final Instant NOW = Instant.ofEpochSecond(1_600_000_000L);
+
+  private final TokenKeyRing keyRing = new TokenKeyRing();
+
+  @Test
+  public void testEncryptAndDecrypt_sameInfo() {
+    UUID tokenID = UUID.randomUUID();
+    String tokenString =
+        new UserClientTokenInfo(USERNAME, CLIENTID, tokenID, NOW.getEpochSecond() + 60)
+            .getEncryptTokenString(keyRing);
+
+    Optional<UserClientTokenInfo> info =
+        UserClientTokenInfo.decryptTokenString(keyRing, tokenString, NOW);
+
+    assertThat(info).isPresent();
+    assertThat(info.get().getUsername()).isEqualTo(USERNAME);
+    assertThat(info.get().getClientID()).isEqualTo(CLIENTID);
+    assertThat(info.get().getTokenID()).isEqualTo(tokenID);
+    assertThat(info.get().getExpiredTime()).isEqualTo(NOW.getEpochSecond() + 60);
+  }
+
+  @Test
+  public void testEncryptTwice_sameTokenString() {
+    UserClientTokenInfo info = new UserClientTokenInfo(USERNAME, CLIENTID, UUID.randomUUID(), 0);
+
+    assertThat(info.getEncryptTokenString(keyRing))
+        .isEqualTo(info.getEncryptTokenString(keyRing));
+  }
+
+  @Test
+  public void testDecrypt_expired_rejected() {
+    String tokenString =
+        new UserClientTokenInfo(USERNAME, CLIENTID, UUID.randomUUID(), NOW.getEpochSecond() - 1)
+            .getEncryptTokenString(keyRing);
+
+    assertThat(UserClientTokenInfo.decryptTokenString(keyRing, tokenString, NOW)).isEmpty();
+  }
+
+  @Test
+  public void testDecrypt_neverExpires_accepted() {
+    String tokenString =
+        new UserClientTokenInfo(USERNAME, CLIENTID, UUID.randomUUID(), 0)
+            .getEncryptTokenString(keyRing);
+
+    assertThat(UserClientTokenInfo.decryptTokenString(keyRing, tokenString, NOW)).isPresent();
+  }
+
+  @Test
+  public void testDecrypt_changedByte_rejected() {
+    String tokenString =
+        new UserClientTokenInfo(USERNAME, CLIENTID, UUID.randomUUID(), 0)
+            .getEncryptTokenString(keyRing);
+    BaseEncoding encoding = BaseEncoding.base64Url().omitPadding();
+
+    byte[] bytes = encoding.decode(tokenString);
+    for (int i = 0; i < bytes.length; i++) {
+      // The expired time is checked before the tag, make it an unexpired one.
+      if (i >= 2 && i < 10) {
+        continue;
+      }
+      bytes[i] ^= 1;
+      assertThat(UserClientTokenInfo.decryptTokenString(keyRing, encoding.encode(bytes), NOW))
+          .isEmpty();
+      bytes[i] ^= 1;
+    }
+  }
+
+  @Test
+  public void testDecrypt_malformed_rejected() {
+    assertThat(UserClientTokenInfo.decryptTokenString(keyRing, "not a token", NOW)).isEmpty();
+    assertThat(UserClientTokenInfo.decryptTokenString(keyRing, "AAAA", NOW)).isEmpty();
+    assertThat(
+            UserClientTokenInfo.decryptTokenString(keyRing, UUID.randomUUID().toString(), NOW))
+        .isEmpty();
+  }
+
+  @Test
+  public void testDecrypt_afterKeyRotation_oldTokenStillValid() {
+    String oldTokenString =
+        new UserClientTokenInfo(USERNAME, CLIENTID, UUID.randomUUID(), 0)
+            .getEncryptTokenString(keyRing);
+
+    keyRing.rotate();
+    String newTokenString =
+        new UserClientTokenInfo(USERNAME, CLIENTID, UUID.randomUUID(), 0)
+            .getEncryptTokenString(keyRing);
+
+    assertThat(UserClientTokenInfo.decryptTokenString(keyRing, oldTokenString, NOW)).isPresent();
+    assertThat(UserClientTokenInfo.decryptTokenString(keyRing, newTokenString, NOW)).isPresent();
+  }
+
+  @Test
+  public void testDecrypt_otherKeyRing_rejected() {
+    String tokenString =
+        new UserClientTokenInfo(USERNAME, CLIENTID, UUID.randomUUID(), 0)
+            .getEncryptTokenString(keyRing);
+
+    assertThat(UserClientTokenInfo.decryptTokenString(new TokenKeyRing(), tokenString, NOW))
+        .isEmpty();
+  }
+}
@@ -16,10 +16,8 @@
 
 package com.google.googleidentity.oauth2.token;
 
-import com.google.common.base.Charsets;
-import com.google.common.hash.Hashing;
-import com.google.googleidentity.oauth2.client.ClientDetails;
-import com.google.googleidentity.oauth2.util.OAuth2Enums.GrantType;
+import com.google.googleidentity.oauth2.token.UserTokens.AccessTokenEntry;
+import com.google.googleidentity.oauth2.token.UserTokens.RefreshTokenEntry;
 import org.junit.Test;
 
 import java.time.Instant;
@@ -30,80 +28,85 @@ import static com.google.common.truth.Truth.assertThat;
 
 public class UserTokensTest {
   private static final String CLIENTID = "clientid";
-  private static final String SECRET = "secret";
-  private static final String REDIRECT_URI = "http://www.google.com";
-
-  private static final ClientDetails CLIENT =
-      ClientDetails.newBuilder()
-          .setClientId(CLIENTID)
-          .setSecret(Hashing.sha256().hashString(SECRET, Charsets.UTF_8).toString())
-          .addScopes("read")
-          .setIsScoped(true)
-          .addRedirectUris(REDIRECT_URI)
-          .addGrantTypes(GrantType.AUTHORIZATION_CODE)
-          .build();
 
   private static final String USERNAME = "111";
 
-  OAuth2AccessToken TEST_ACCESS_TOKEN =
-      OAuth2AccessToken.newBuilder()
-          .setClientId(CLIENTID)
-          .setUsername(USERNAME)
-          .setIsScoped(true)
-          .setExpiredTime(Instant.now().getEpochSecond())
-          .addAllScopes(CLIENT.getScopesList())
-          .build();
+  private static final int SCOPE_SET_ID = 3;
+
+  private static final long EXPIRED_TIME = Instant.now().getEpochSecond();
+
+  private final AccessTokenEntry TEST_ACCESS_TOKEN =
+      new AccessTokenEntry(UUID.randomUUID(), EXPIRED_TIME, SCOPE_SET_ID, null);
+
+  private static void assertSameAccessToken(AccessTokenEntry actual, AccessTokenEntry expected) {
+    assertThat(actual.getId()).isEqualTo(expected.getId());
+    assertThat(actual.getExpiredTime()).isEqualTo(expected.getExpiredTime());
+    assertThat(actual.getScopeSetId()).isEqualTo(expected.getScopeSetId());
+    assertThat(actual.getRefreshTokenId()).isEqualTo(expected.getRefreshTokenId());
+  }
 
   @Test
   public void testAddAccessToken_canReadOut() {
     UserTokens user = new UserTokens(USERNAME);
 
+    assertThat(user.addAccessToken(CLIENTID, TEST_ACCESS_TOKEN)).isTrue();
+
+    assertSameAccessToken(
+        user.readAccessToken(CLIENTID, TEST_ACCESS_TOKEN.getId()).get(), TEST_ACCESS_TOKEN);
+
+    assertThat(user.listAccessTokens(CLIENTID)).hasSize(1);
+    assertSameAccessToken(user.listAccessTokens(CLIENTID).get(0), TEST_ACCESS_TOKEN);
+  }
+
+  @Test
+  public void testAddAccessToken_idInUse_notAdded() {
+    UserTokens user = new UserTokens(USERNAME);
+
     user.addAccessToken(CLIENTID, TEST_ACCESS_TOKEN);
 
-    assertThat(user.readAccessToken(CLIENTID, TEST_ACCESS_TOKEN.getAccessToken()))
-        .hasValue(TEST_ACCESS_TOKEN);
+    assertThat(
+            user.addAccessToken(
+                CLIENTID,
+                new AccessTokenEntry(TEST_ACCESS_TOKEN.getId(), EXPIRED_TIME + 1, 0, null)))
+        .isFalse();
+    assertSameAccessToken(
+        user.readAccessToken(CLIENTID, TEST_ACCESS_TOKEN.getId()).get(), TEST_ACCESS_TOKEN);
+  }
 
-    assertThat(user.listAccessTokens(CLIENTID)).containsExactly(TEST_ACCESS_TOKEN);
+  @Test
+  public void testAddAccessToken_refreshTokenMissing_notAdded() {
+    UserTokens user = new UserTokens(USERNAME);
+
+    assertThat(
+            user.addAccessToken(
+                CLIENTID,
+                new AccessTokenEntry(
+                    UUID.randomUUID(), EXPIRED_TIME, SCOPE_SET_ID, UUID.randomUUID())))
+        .isFalse();
+    assertThat(user.isEmpty()).isTrue();
   }
 
   @Test
   public void testSetRefreshToken_canReadOut() {
     UserTokens user = new UserTokens(USERNAME);
 
-    String tokenString = UUID.randomUUID().toString();
+    RefreshTokenEntry refreshToken = new RefreshTokenEntry(UUID.randomUUID(), SCOPE_SET_ID);
 
-    OAuth2RefreshToken TEST_REFRESH_TOKEN =
-        OAuth2RefreshToken.newBuilder()
-            .setClientId(CLIENTID)
-            .setUsername(USERNAME)
-            .setIsScoped(true)
-            .addAllScopes(CLIENT.getScopesList())
-            .setRefreshToken(tokenString)
-            .build();
+    user.addRefreshToken(CLIENTID, refreshToken);
 
-    user.addRefreshToken(CLIENTID, TEST_REFRESH_TOKEN);
+    assertThat(user.listRefreshTokens(CLIENTID)).hasSize(1);
+    assertThat(user.listRefreshTokens(CLIENTID).get(0).getId()).isEqualTo(refreshToken.getId());
 
-    assertThat(user.listRefreshTokens(CLIENTID)).containsExactly(TEST_REFRESH_TOKEN);
-
-    assertThat(user.readRefreshToken(CLIENTID, tokenString)).hasValue(TEST_REFRESH_TOKEN);
+    RefreshTokenEntry read = user.readRefreshToken(CLIENTID, refreshToken.getId()).get();
+    assertThat(read.getId()).isEqualTo(refreshToken.getId());
+    assertThat(read.getScopeSetId()).isEqualTo(SCOPE_SET_ID);
   }
 
   @Test
   public void testRevokeTokens_empty() {
     UserTokens user = new UserTokens(USERNAME);
 
-    String tokenString = UUID.randomUUID().toString();
-
-    OAuth2RefreshToken TEST_REFRESH_TOKEN =
-        OAuth2RefreshToken.newBuilder()
-            .setClientId(CLIENTID)
-            .setUsername(USERNAME)
-            .setIsScoped(true)
-            .addAllScopes(CLIENT.getScopesList())
-            .setRefreshToken(tokenString)
-            .build();
-
-    user.addRefreshToken(CLIENTID, TEST_REFRESH_TOKEN);
+    user.addRefreshToken(CLIENTID, new RefreshTokenEntry(UUID.randomUUID(), SCOPE_SET_ID));
 
     user.revokeUserClientTokens(CLIENTID);
 
@@ -113,13 +116,73 @@ public class UserTokensTest {
   }
 
   @Test
-  public void testClearExpiredTokens_tokenRemoved() {
+  public void testRevokeByAccessToken_withRefreshToken_groupRevoked() {
     UserTokens user = new UserTokens(USERNAME);
 
+    RefreshTokenEntry refreshToken = new RefreshTokenEntry(UUID.randomUUID(), SCOPE_SET_ID);
+    user.addRefreshToken(CLIENTID, refreshToken);
+    AccessTokenEntry first =
+        new AccessTokenEntry(UUID.randomUUID(), EXPIRED_TIME, SCOPE_SET_ID, refreshToken.getId());
+    AccessTokenEntry second =
+        new AccessTokenEntry(UUID.randomUUID(), EXPIRED_TIME, SCOPE_SET_ID, refreshToken.getId());
+    user.addAccessToken(CLIENTID, first);
+    user.addAccessToken(CLIENTID, second);
     user.addAccessToken(CLIENTID, TEST_ACCESS_TOKEN);
 
-    user.clearExpiredTokens();
+    assertThat(user.revokeByAccessToken(CLIENTID, first.getId())).isTrue();
 
-    assertThat(user.listRefreshTokens(CLIENTID)).isEmpty();
+    assertThat(user.readRefreshToken(CLIENTID, refreshToken.getId())).isEmpty();
+    assertThat(user.readAccessToken(CLIENTID, second.getId())).isEmpty();
+    assertThat(user.readAccessToken(CLIENTID, TEST_ACCESS_TOKEN.getId())).isPresent();
+  }
+
+  @Test
+  public void testRemoveAccessToken_tokenRemoved() {
+    UserTokens user = new UserTokens(USERNAME);
+
+    user.addAccessToken(CLIENTID, TEST_ACCESS_TOKEN);
+
+    user.removeAccessToken(CLIENTID, TEST_ACCESS_TOKEN.getId());
+
+    assertThat(user.listAccessTokens(CLIENTID)).isEmpty();
+
+    assertThat(user.isEmpty()).isTrue();
+  }
+
+  @Test
+  public void testRemoveAccessToken_withRefreshToken_refreshTokenKept() {
+    UserTokens user = new UserTokens(USERNAME);
+
+    RefreshTokenEntry refreshToken = new RefreshTokenEntry(UUID.randomUUID(), SCOPE_SET_ID);
+    AccessTokenEntry accessToken =
+        new AccessTokenEntry(UUID.randomUUID(), EXPIRED_TIME, SCOPE_SET_ID, refreshToken.getId());
+
+    user.addRefreshToken(CLIENTID, refreshToken);
+    user.addAccessToken(CLIENTID, accessToken);
+
+    user.removeAccessToken(CLIENTID, accessToken.getId());
+
+    assertThat(user.listAccessTokens(CLIENTID)).isEmpty();
+
+    assertThat(user.listRefreshTokens(CLIENTID)).hasSize(1);
+
+    assertThat(user.revokeByRefreshToken(CLIENTID, refreshToken.getId())).isTrue();
+  }
+
+  @Test
+  public void testRemoveExpiredAccessTokens_returnsNextExpiredTime() {
+    UserTokens user = new UserTokens(USERNAME);
+
+    AccessTokenEntry later =
+        new AccessTokenEntry(UUID.randomUUID(), EXPIRED_TIME + 60, SCOPE_SET_ID, null);
+    user.addAccessToken(CLIENTID, TEST_ACCESS_TOKEN);
+    user.addAccessToken(CLIENTID, later);
+
+    assertThat(user.removeExpiredAccessTokens(EXPIRED_TIME + 1))
+        .isEqualTo(EXPIRED_TIME + 60);
+    assertThat(user.readAccessToken(CLIENTID, TEST_ACCESS_TOKEN.getId())).isEmpty();
+
+    assertThat(user.removeExpiredAccessTokens(EXPIRED_TIME + 61)).isEqualTo(-1);
+    assertThat(user.isEmpty()).isTrue();
   }
 }
@@ -0,0 +1,113 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.util;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.googleidentity.testtools.FakeClock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/** Test {@link ExpiryWheel} */
+public class ExpiryWheelTest {
+
+  private static final Instant START = Instant.ofEpochSecond(1_000_000);
+
+  @Test
+  void testSweep_notExpired_keepItem() {
+    FakeClock clock = new FakeClock(START);
+    ExpiryWheel<String> wheel = new ExpiryWheel<>(16, clock);
+    List<String> expired = new ArrayList<>();
+
+    wheel.schedule(START.getEpochSecond() + 5, "a");
+    clock.advance(Duration.ofSeconds(5));
+
+    assertThat(wheel.sweep(expired::add)).isEqualTo(0);
+    assertThat(expired).isEmpty();
+  }
+
+  @Test
+  void testSweep_expired_removeItemOnce() {
+    FakeClock clock = new FakeClock(START);
+    ExpiryWheel<String> wheel = new ExpiryWheel<>(16, clock);
+    List<String> expired = new ArrayList<>();
+
+    wheel.schedule(START.getEpochSecond() + 5, "a");
+    wheel.schedule(START.getEpochSecond() + 8, "b");
+    clock.advance(Duration.ofSeconds(6));
+
+    wheel.sweep(expired::add);
+    assertThat(expired).containsExactly("a");
+
+    clock.advance(Duration.ofSeconds(10));
+    wheel.sweep(expired::add);
+    assertThat(expired).containsExactly("a", "b").inOrder();
+  }
+
+  @Test
+  void testSweep_dueAfterSeveralRounds_waitForItsRound() {
+    FakeClock clock = new FakeClock(START);
+    ExpiryWheel<String> wheel = new ExpiryWheel<>(4, clock);
+    List<String> expired = new ArrayList<>();
+
+    wheel.schedule(START.getEpochSecond() + 10, "a");
+    for (int i = 0; i < 10; i++) {
+      clock.advance(Duration.ofSeconds(1));
+      wheel.sweep(expired::add);
+    }
+    assertThat(expired).isEmpty();
+
+    clock.advance(Duration.ofSeconds(1));
+    wheel.sweep(expired::add);
+    assertThat(expired).containsExactly("a");
+  }
+
+  @Test
+  void testSweep_longPause_removeAllExpired() {
+    FakeClock clock = new FakeClock(START);
+    ExpiryWheel<String> wheel = new ExpiryWheel<>(4, clock);
+    List<String> expired = new ArrayList<>();
+
+    wheel.schedule(START.getEpochSecond() + 1, "a");
+    wheel.schedule(START.getEpochSecond() + 7, "b");
+    wheel.schedule(START.getEpochSecond() + 100, "c");
+    clock.advance(Duration.ofSeconds(50));
+
+    wheel.sweep(expired::add);
+
+    assertThat(expired).containsExactly("a", "b");
+    assertThat(wheel.getSweepLag()).isEqualTo(Duration.ofSeconds(49));
+  }
+
+  @Test
+  void testSchedule_alreadyExpired_removeInNextSweep() {
+    FakeClock clock = new FakeClock(START);
+    ExpiryWheel<String> wheel = new ExpiryWheel<>(16, clock);
+    List<String> expired = new ArrayList<>();
+    clock.advance(Duration.ofSeconds(3));
+    wheel.sweep(expired::add);
+
+    wheel.schedule(START.getEpochSecond(), "a");
+    clock.advance(Duration.ofSeconds(1));
+    wheel.sweep(expired::add);
+
+    assertThat(expired).containsExactly("a");
+  }
+}
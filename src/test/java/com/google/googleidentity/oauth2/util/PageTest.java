@@ -0,0 +1,104 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.util;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+
+/** Test {@link Page} */
+public class PageTest {
+
+  private static final ImmutableList<String> ITEMS = ImmutableList.of("d", "b", "e", "a", "c");
+
+  @Test
+  void testSelect_firstPage_smallestKeysInOrder() {
+    Page<String> page = Page.select(ITEMS, Function.identity(), Optional.empty(), 2);
+
+    assertThat(page.getItems()).containsExactly("a", "b").inOrder();
+    assertThat(page.getNextCursor()).hasValue("b");
+  }
+
+  @Test
+  void testSelect_lastPage_noNextCursor() {
+    Page<String> page = Page.select(ITEMS, Function.identity(), Optional.of("c"), 2);
+
+    assertThat(page.getItems()).containsExactly("d", "e").inOrder();
+    assertThat(page.getNextCursor()).isEmpty();
+  }
+
+  @Test
+  void testSelect_nonPositiveLimit_throw() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> Page.select(ITEMS, Function.identity(), Optional.empty(), 0));
+  }
+
+  @Test
+  void testSelect_sortedMap_pagesAfterCursor() {
+    TreeMap<String, Integer> items = new TreeMap<>();
+    for (String item : ITEMS) {
+      items.put(item, (int) item.charAt(0));
+    }
+
+    Page<Integer> middle = Page.select(items, Optional.of("b"), 2);
+    Page<Integer> last = Page.select(items, Optional.of("c"), 2);
+
+    assertThat(middle.getItems()).containsExactly((int) 'c', (int) 'd').inOrder();
+    assertThat(middle.getNextCursor()).hasValue("d");
+    assertThat(last.getItems()).containsExactly((int) 'd', (int) 'e').inOrder();
+    assertThat(last.getNextCursor()).isEmpty();
+  }
+
+  @Test
+  void testFromRows_rowPastLimit_nextCursorOfLastItem() {
+    Page<String> page = Page.fromRows(ImmutableList.of("a", "b", "c"), 2, Function.identity());
+
+    assertThat(page.getItems()).containsExactly("a", "b").inOrder();
+    assertThat(page.getNextCursor()).hasValue("b");
+  }
+
+  @Test
+  void testStream_readsPagesLazily() {
+    List<Optional<String>> cursors = new ArrayList<>();
+    Page.Reader<String> reader =
+        cursor -> {
+          cursors.add(cursor);
+          return Page.select(ITEMS, Function.identity(), cursor, 2);
+        };
+
+    assertThat(Page.stream(reader).limit(1).collect(Collectors.toList())).containsExactly("a");
+    assertThat(cursors).containsExactly(Optional.empty());
+
+    cursors.clear();
+    assertThat(Page.stream(reader).collect(Collectors.toList()))
+        .containsExactly("a", "b", "c", "d", "e")
+        .inOrder();
+    assertThat(cursors)
+        .containsExactly(Optional.empty(), Optional.of("b"), Optional.of("d"))
+        .inOrder();
+  }
+}
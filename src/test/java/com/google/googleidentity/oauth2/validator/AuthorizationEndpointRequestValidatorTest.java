@@ -30,6 +30,8 @@ import com.google.googleidentity.oauth2.exception.AccessDeniedException;
 import com.google.googleidentity.oauth2.exception.UnauthorizedClientException;
 import com.google.googleidentity.oauth2.exception.UnsupportedResponseTypeException;
 import com.google.googleidentity.oauth2.request.OAuth2Request;
+import com.google.googleidentity.oauth2.scope.InMemoryScopeRegistry;
+import com.google.googleidentity.oauth2.scope.ScopeRegistry;
 import com.google.googleidentity.oauth2.util.OAuth2Constants;
 import com.google.googleidentity.oauth2.util.OAuth2Enums.GrantType;
 import com.google.googleidentity.oauth2.util.OAuth2ParameterNames;
@@ -72,6 +74,8 @@ public class AuthorizationEndpointRequestValidatorTest {
   private ClientSession clientSession;
   private ClientDetailsService clientDetailsService;
 
+  private final ScopeRegistry scopeRegistry = new InMemoryScopeRegistry();
+
   @Before
   public void init() {
     clientDetailsService = new InMemoryClientDetailsService();
@@ -187,7 +191,9 @@ public class AuthorizationEndpointRequestValidatorTest {
     OAuth2Exception e =
         assertThrows(
             OAuth2Exception.class,
-            () -> AuthorizationEndpointRequestValidator.validateGET(request, clientDetailsService));
+            () ->
+                AuthorizationEndpointRequestValidator.validateGET(
+                    request, clientDetailsService, scopeRegistry));
 
     assertThat(e).isInstanceOf(InvalidRequestException.class);
     assertThat(e.getErrorDescription()).isEqualTo("No Response Type!");
@@ -207,7 +213,9 @@ public class AuthorizationEndpointRequestValidatorTest {
     OAuth2Exception e =
         assertThrows(
             OAuth2Exception.class,
-            () -> AuthorizationEndpointRequestValidator.validateGET(request, clientDetailsService));
+            () ->
+                AuthorizationEndpointRequestValidator.validateGET(
+                    request, clientDetailsService, scopeRegistry));
 
     assertThat(e).isInstanceOf(UnsupportedResponseTypeException.class);
   }
@@ -227,7 +235,9 @@ public class AuthorizationEndpointRequestValidatorTest {
     OAuth2Exception e =
         assertThrows(
             OAuth2Exception.class,
-            () -> AuthorizationEndpointRequestValidator.validateGET(request, clientDetailsService));
+            () ->
+                AuthorizationEndpointRequestValidator.validateGET(
+                    request, clientDetailsService, scopeRegistry));
 
     assertThat(e).isInstanceOf(UnauthorizedClientException.class);
   }
@@ -247,7 +257,9 @@ public class AuthorizationEndpointRequestValidatorTest {
     OAuth2Exception e =
         assertThrows(
             OAuth2Exception.class,
-            () -> AuthorizationEndpointRequestValidator.validateGET(request, clientDetailsService));
+            () ->
+                AuthorizationEndpointRequestValidator.validateGET(
+                    request, clientDetailsService, scopeRegistry));
 
     assertThat(e).isInstanceOf(InvalidScopeException.class);
   }
@@ -265,7 +277,9 @@ public class AuthorizationEndpointRequestValidatorTest {
     when(request.getParameter(OAuth2ParameterNames.STATE)).thenReturn("111");
 
     assertDoesNotThrow(
-        () -> AuthorizationEndpointRequestValidator.validateGET(request, clientDetailsService));
+        () ->
+            AuthorizationEndpointRequestValidator.validateGET(
+                request, clientDetailsService, scopeRegistry));
   }
 
   @Test
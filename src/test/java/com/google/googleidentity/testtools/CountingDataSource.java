@@ -0,0 +1,131 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.testtools;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import javax.sql.DataSource;
+
+/**
+ * DataSource wrapper that counts connections checked out, statements prepared and commits issued,
+ * only used for test and benchmark. Every prepared statement is one round-trip to the database.
+ */
+public class CountingDataSource implements DataSource {
+
+  private final DataSource delegate;
+
+  private final AtomicLong connections = new AtomicLong();
+
+  private final AtomicLong statements = new AtomicLong();
+
+  private final AtomicLong commits = new AtomicLong();
+
+  public CountingDataSource(DataSource delegate) {
+    this.delegate = delegate;
+  }
+
+  public long getConnectionCount() {
+    return connections.get();
+  }
+
+  public long getStatementCount() {
+    return statements.get();
+  }
+
+  public long getCommitCount() {
+    return commits.get();
+  }
+
+  public void resetCounts() {
+    connections.set(0);
+    statements.set(0);
+    commits.set(0);
+  }
+
+  @Override
+  public Connection getConnection() throws SQLException {
+    return countConnection(delegate.getConnection());
+  }
+
+  @Override
+  public Connection getConnection(String username, String password) throws SQLException {
+    return countConnection(delegate.getConnection(username, password));
+  }
+
+  private Connection countConnection(Connection connection) {
+    connections.incrementAndGet();
+    InvocationHandler handler =
+        (Object proxy, Method method, Object[] args) -> {
+          if (method.getName().startsWith("prepare")) {
+            statements.incrementAndGet();
+          } else if (method.getName().equals("commit")) {
+            commits.incrementAndGet();
+          }
+          try {
+            return method.invoke(connection, args);
+          } catch (InvocationTargetException exception) {
+            throw exception.getCause();
+          }
+        };
+    return (Connection)
+        Proxy.newProxyInstance(
+            Connection.class.getClassLoader(), new Class<?>[] {Connection.class}, handler);
+  }
+
+  @Override
+  public PrintWriter getLogWriter() throws SQLException {
+    return delegate.getLogWriter();
+  }
+
+  @Override
+  public void setLogWriter(PrintWriter out) throws SQLException {
+    delegate.setLogWriter(out);
+  }
+
+  @Override
+  public void setLoginTimeout(int seconds) throws SQLException {
+    delegate.setLoginTimeout(seconds);
+  }
+
+  @Override
+  public int getLoginTimeout() throws SQLException {
+    return delegate.getLoginTimeout();
+  }
+
+  @Override
+  public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+    return delegate.getParentLogger();
+  }
+
+  @Override
+  public <T> T unwrap(Class<T> iface) throws SQLException {
+    return delegate.unwrap(iface);
+  }
+
+  @Override
+  public boolean isWrapperFor(Class<?> iface) throws SQLException {
+    return delegate.isWrapperFor(iface);
+  }
+}
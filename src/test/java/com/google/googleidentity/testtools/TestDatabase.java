@@ -0,0 +1,55 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.testtools;
+
+import com.google.googleidentity.mysql.EmbeddedDatabaseModule;
+import com.google.googleidentity.mysql.SchemaMigrations;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.UUID;
+import javax.sql.DataSource;
+import org.h2.jdbcx.JdbcDataSource;
+
+/** Creates MySQL compatible databases with the demo schema, only used for test. */
+public final class TestDatabase {
+
+  private TestDatabase() {}
+
+  /** @return a DataSource of a new empty database which has all tables created */
+  public static DataSource newDatabase() {
+    return createTables("mem:" + UUID.randomUUID());
+  }
+
+  /**
+   * @return a DataSource of a new database stored in the directory which has all tables created,
+   *     for measurements where commits should reach a file
+   */
+  public static DataSource newFileDatabase(Path directory) {
+    return createTables("file:" + directory.resolve("test").toAbsolutePath());
+  }
+
+  private static DataSource createTables(String database) {
+    JdbcDataSource dataSource = new JdbcDataSource();
+    dataSource.setURL(EmbeddedDatabaseModule.mysqlModeUrl("jdbc:h2:" + database));
+    try {
+      SchemaMigrations.migrate(dataSource);
+    } catch (SQLException exception) {
+      throw new IllegalStateException("Can not create test tables", exception);
+    }
+    return dataSource;
+  }
+}
@@ -0,0 +1,118 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.user;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.googleidentity.mysql.JdbcExecutor;
+import com.google.googleidentity.testtools.CountingDataSource;
+import com.google.googleidentity.testtools.TestDatabase;
+import java.time.Duration;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/** Test {@link CachingUserDetailsService} */
+public class CachingUserDetailsServiceTest {
+
+  private static final UserDetails USER1 =
+      UserDetails.newBuilder()
+          .setUsername("user1")
+          .setEmail("a@a.com")
+          .setGoogleAccountId("gid1")
+          .build();
+
+  private static final UserDetails USER2 =
+      UserDetails.newBuilder().setUsername("user2").setGoogleAccountId("gid2").build();
+
+  private CountingDataSource dataSource;
+
+  private CachingUserDetailsService userDetailsService;
+
+  @BeforeEach
+  void init() {
+    dataSource = new CountingDataSource(TestDatabase.newDatabase());
+    userDetailsService =
+        new CachingUserDetailsService(
+            new JdbcUserDetailsService(new JdbcExecutor(dataSource)), 100, Duration.ofMinutes(1));
+  }
+
+  @Test
+  void testGetUserByName_repeatedLookup_noDatabaseRead() {
+    assertTrue(userDetailsService.addUser(USER1));
+
+    assertThat(userDetailsService.getUserByName("user1")).hasValue(USER1);
+    dataSource.resetCounts();
+    assertThat(userDetailsService.getUserByName("user1")).hasValue(USER1);
+    assertThat(userDetailsService.getUserByEmailOrGoogleAccountId("a@a.com", "gid2"))
+        .hasValue(USER1);
+    assertThat(userDetailsService.getUserByEmailOrGoogleAccountId("a@a.com", "gid2"))
+        .hasValue(USER1);
+
+    assertThat(dataSource.getConnectionCount()).isEqualTo(1);
+    assertThat(userDetailsService.getHitCount()).isEqualTo(2);
+    assertThat(userDetailsService.getMissCount()).isEqualTo(2);
+    assertThat(userDetailsService.getHitRate()).isEqualTo(0.5);
+  }
+
+  @Test
+  void testGetUserByName_missingUser_notCached() {
+    assertThat(userDetailsService.getUserByName("user1")).isEmpty();
+    assertTrue(userDetailsService.addUser(USER1));
+
+    assertThat(userDetailsService.getUserByName("user1")).hasValue(USER1);
+  }
+
+  @Test
+  void testUpdateUser_cachedUser_evicted() {
+    assertTrue(userDetailsService.addUser(USER1));
+    assertThat(userDetailsService.getUserByName("user1")).hasValue(USER1);
+    assertThat(userDetailsService.getUserByEmailOrGoogleAccountId("a@a.com", null))
+        .hasValue(USER1);
+
+    UserDetails updated = USER1.toBuilder().setPassword("new").setEmail("b@b.com").build();
+    assertTrue(userDetailsService.updateUser(updated));
+
+    assertThat(userDetailsService.getUserByName("user1")).hasValue(updated);
+    assertThat(userDetailsService.getUserByEmailOrGoogleAccountId("a@a.com", null)).isEmpty();
+    assertThat(userDetailsService.getUserByEmailOrGoogleAccountId("b@b.com", null))
+        .hasValue(updated);
+  }
+
+  @Test
+  void testAddUser_newEmailMatch_evictsGoogleAccountIdMatch() {
+    assertTrue(userDetailsService.addUser(USER2));
+    assertThat(userDetailsService.getUserByEmailOrGoogleAccountId("a@a.com", "gid2"))
+        .hasValue(USER2);
+
+    assertTrue(userDetailsService.addUser(USER1));
+
+    assertThat(userDetailsService.getUserByEmailOrGoogleAccountId("a@a.com", "gid2"))
+        .hasValue(USER1);
+  }
+
+  @Test
+  void testReset_cachedUser_evicted() {
+    assertTrue(userDetailsService.addUser(USER1));
+    assertThat(userDetailsService.getUserByName("user1")).hasValue(USER1);
+
+    userDetailsService.reset();
+
+    assertThat(userDetailsService.getUserByName("user1")).isEmpty();
+  }
+}
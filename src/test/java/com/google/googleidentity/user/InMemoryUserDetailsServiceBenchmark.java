@@ -0,0 +1,75 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package com.google.googleidentity.user;
+
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time of the account linking lookup of {@link InMemoryUserDetailsService} by email and by Google
+ * account ID, for a growing number of users. The heap needs about 1 GB for a million users.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class InMemoryUserDetailsServiceBenchmark {
+
+  @Param({"1000", "1000000"})
+  public int users;
+
+  private InMemoryUserDetailsService userDetailsService;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    userDetailsService = new InMemoryUserDetailsService();
+    for (int i = 0; i < users; i++) {
+      userDetailsService.addUser(
+          UserDetails.newBuilder()
+              .setUsername("user" + i)
+              .setEmail("user" + i + "@example.com")
+              .setGoogleAccountId("gid" + i)
+              .build());
+    }
+  }
+
+  @Benchmark
+  public Optional<UserDetails> getUserByEmail() {
+    int i = ThreadLocalRandom.current().nextInt(users);
+    return userDetailsService.getUserByEmailOrGoogleAccountId("user" + i + "@example.com", null);
+  }
+
+  @Benchmark
+  public Optional<UserDetails> getUserByGoogleAccountId() {
+    int i = ThreadLocalRandom.current().nextInt(users);
+    return userDetailsService.getUserByEmailOrGoogleAccountId(null, "gid" + i);
+  }
+}
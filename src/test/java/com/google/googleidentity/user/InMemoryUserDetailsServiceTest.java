@@ -17,11 +17,16 @@
 package com.google.googleidentity.user;
 
 import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.hash.Hashing;
+import com.google.googleidentity.oauth2.util.Page;
+import java.util.Optional;
 import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth8.assertThat;
 
 /** Test {@link InMemoryUserDetailsService} */
@@ -108,4 +113,66 @@ public class InMemoryUserDetailsServiceTest {
 
     assertThat(userDetailsService.getUserByEmailOrGoogleAccountId("a@a.com", "gid")).isEmpty();
   }
+
+  @Test
+  void testGetUserByEmailOrGoogleAccountId_emailChanged_indexMoved() {
+    UserDetailsService userDetailsService = new InMemoryUserDetailsService();
+    UserDetails user =
+        UserDetails.newBuilder(USER).setEmail("a@a.com").setGoogleAccountId("gid").build();
+    assertTrue(userDetailsService.addUser(user));
+
+    UserDetails updated = UserDetails.newBuilder(user).setEmail("b@b.com").build();
+    assertTrue(userDetailsService.updateUser(updated));
+
+    assertThat(userDetailsService.getUserByEmailOrGoogleAccountId("a@a.com", null)).isEmpty();
+    assertThat(userDetailsService.getUserByEmailOrGoogleAccountId("b@b.com", null))
+        .hasValue(updated);
+    assertThat(userDetailsService.getUserByEmailOrGoogleAccountId(null, "gid")).hasValue(updated);
+  }
+
+  @Test
+  void testGetUserByEmailOrGoogleAccountId_sharedEmail_otherUserStillFound() {
+    UserDetailsService userDetailsService = new InMemoryUserDetailsService();
+    UserDetails user1 = UserDetails.newBuilder().setUsername("1").setEmail("a@a.com").build();
+    UserDetails user2 = UserDetails.newBuilder().setUsername("2").setEmail("a@a.com").build();
+    assertTrue(userDetailsService.addUser(user1));
+    assertTrue(userDetailsService.addUser(user2));
+
+    assertTrue(userDetailsService.updateUser(user1.toBuilder().setEmail("b@b.com").build()));
+
+    assertThat(userDetailsService.getUserByEmailOrGoogleAccountId("a@a.com", null))
+        .hasValue(user2);
+  }
+
+  @Test
+  void testGetUserByEmailOrGoogleAccountId_reset_notFound() {
+    UserDetailsService userDetailsService = new InMemoryUserDetailsService();
+    assertTrue(
+        userDetailsService.addUser(
+            UserDetails.newBuilder(USER).setEmail("a@a.com").setGoogleAccountId("gid").build()));
+
+    userDetailsService.reset();
+
+    assertThat(userDetailsService.getUserByEmailOrGoogleAccountId("a@a.com", "gid")).isEmpty();
+  }
+
+  @Test
+  void testListUser_pages_allUsersInOrder() {
+    UserDetailsService userDetailsService = new InMemoryUserDetailsService();
+    for (String name : ImmutableList.of("c", "a", "b")) {
+      assertTrue(userDetailsService.addUser(UserDetails.newBuilder().setUsername(name).build()));
+    }
+
+    Page<UserDetails> first = userDetailsService.listUser(Optional.empty(), 2);
+    Page<UserDetails> second = userDetailsService.listUser(first.getNextCursor(), 2);
+
+    assertThat(Lists.transform(first.getItems(), UserDetails::getUsername))
+        .containsExactly("a", "b")
+        .inOrder();
+    assertThat(Lists.transform(second.getItems(), UserDetails::getUsername)).containsExactly("c");
+    assertThat(second.getNextCursor()).isEmpty();
+    assertThat(userDetailsService.streamUsers().map(UserDetails::getUsername))
+        .containsExactly("a", "b", "c")
+        .inOrder();
+  }
 }
@@ -0,0 +1,84 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package com.google.googleidentity.user;
+
+import static com.google.common.truth.Truth8.assertThat;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.googleidentity.mysql.JdbcExecutor;
+import com.google.googleidentity.testtools.TestDatabase;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/** Test {@link JdbcUserDetailsService} */
+public class JdbcUserDetailsServiceTest {
+
+  private static final UserDetails USER1 =
+      UserDetails.newBuilder()
+          .setUsername("user1")
+          .setEmail("a@a.com")
+          .setGoogleAccountId("gid1")
+          .build();
+
+  private static final UserDetails USER2 =
+      UserDetails.newBuilder().setUsername("user2").setGoogleAccountId("gid2").build();
+
+  private JdbcUserDetailsService userDetailsService;
+
+  @BeforeEach
+  void init() {
+    userDetailsService = new JdbcUserDetailsService(new JdbcExecutor(TestDatabase.newDatabase()));
+  }
+
+  @Test
+  void testGetUserByEmailOrGoogleAccountId_bothMatch_preferEmail() {
+    assertTrue(userDetailsService.addUser(USER1));
+    assertTrue(userDetailsService.addUser(USER2));
+
+    assertThat(userDetailsService.getUserByEmailOrGoogleAccountId("a@a.com", "gid2"))
+        .hasValue(USER1);
+    assertThat(userDetailsService.getUserByEmailOrGoogleAccountId("b@b.com", "gid2"))
+        .hasValue(USER2);
+    assertThat(userDetailsService.getUserByEmailOrGoogleAccountId(null, "gid1")).hasValue(USER1);
+    assertThat(userDetailsService.getUserByEmailOrGoogleAccountId("a@a.com", null))
+        .hasValue(USER1);
+  }
+
+  @Test
+  void testGetUserByEmailOrGoogleAccountId_emptyValues_noUser() {
+    // Neither user has an email.
+    assertTrue(userDetailsService.addUser(USER2));
+    assertTrue(userDetailsService.addUser(UserDetails.newBuilder().setUsername("user3").build()));
+
+    assertThat(userDetailsService.getUserByEmailOrGoogleAccountId("", "")).isEmpty();
+    assertThat(userDetailsService.getUserByEmailOrGoogleAccountId("", null)).isEmpty();
+    assertThat(userDetailsService.getUserByName("user3"))
+        .hasValue(UserDetails.newBuilder().setUsername("user3").build());
+  }
+
+  @Test
+  void testAddAndUpdateUser_emailOfOtherUser_fail() {
+    assertTrue(userDetailsService.addUser(USER1));
+    assertTrue(userDetailsService.addUser(USER2));
+
+    assertFalse(
+        userDetailsService.addUser(
+            UserDetails.newBuilder().setUsername("user3").setEmail("a@a.com").build()));
+    assertFalse(userDetailsService.updateUser(USER2.toBuilder().setEmail("a@a.com").build()));
+    assertThat(userDetailsService.getUserByName("user2")).hasValue(USER2);
+  }
+}